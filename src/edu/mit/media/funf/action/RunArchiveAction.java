@@ -1,16 +1,24 @@
 package edu.mit.media.funf.action;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 
 import edu.mit.media.funf.config.Configurable;
 import edu.mit.media.funf.storage.FileArchive;
+import edu.mit.media.funf.storage.FileArchive.MovingFileArchive;
+import edu.mit.media.funf.storage.SegmentedLog;
+import edu.mit.media.funf.util.IOUtil;
 import edu.mit.media.funf.util.LogUtil;
 
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Handler;
 import android.util.Log;
 
 public class RunArchiveAction extends Action {
+
+    public static final String SEALED_DIR_PREFIX = "sealed_";
     
     @Configurable
     private FileArchive archive = null;
@@ -18,6 +26,19 @@ public class RunArchiveAction extends Action {
     @Configurable
     private SQLiteOpenHelper dbHelper = null;
     
+    private WriteDataAction writer = null;
+    
+    private Handler archiveHandler = null;
+    
+    private volatile File dbFile = null; // Only the writer thread may open the database to find it
+    
+    private final Runnable archiveSealedFiles = new Runnable() {
+        @Override
+        public void run() {
+            archiveSealedFiles();
+        }
+    };
+    
     RunArchiveAction() {
     }
     
@@ -26,18 +47,144 @@ public class RunArchiveAction extends Action {
         this.dbHelper = dbHelper;
     }
     
+    /**
+     * @param writer The action writing to dbHelper, whose buffered records will be flushed before archiving.
+     */
+    public RunArchiveAction(FileArchive archive, SQLiteOpenHelper dbHelper, WriteDataAction writer) {
+        this(archive, dbHelper);
+        this.writer = writer;
+    }
+    
+    /**
+     * Enables background archiving.  Instead of copying the database while writes wait,
+     * the database file is sealed by moving it aside, a fresh database is created immediately,
+     * and the sealed file is archived on the given handler.
+     * @param archiveHandler handler for a thread other than the one writing data, or null to archive in place
+     */
+    public void setArchiveHandler(Handler archiveHandler) {
+        this.archiveHandler = archiveHandler;
+    }
+    
+    /**
+     * Tells the archive thread where the database lives, so sealed databases left by a previous 
+     * process can be archived before the database is opened.
+     * @param dbFile the file dbHelper opens, as given by {@link android.content.Context#getDatabasePath(String)}
+     */
+    public void setDatabaseFile(File dbFile) {
+        this.dbFile = dbFile;
+    }
+    
     protected void execute() {
         Log.d(LogUtil.TAG, "running archive");
+        if (writer != null) {
+            writer.flush();
+            if (writer.getLog() != null) {
+                archiveLog(writer.getLog());
+                exitHandler();
+                return;
+            }
+        }
         SQLiteDatabase db = dbHelper.getWritableDatabase();
         // TODO: add check to make sure this is not empty
         File dbFile = new File(db.getPath());
+        this.dbFile = dbFile;
         db.close();
-        if (archive.add(dbFile)) {
-          dbFile.delete();
+        IOUtil.sync(dbFile); // Writes may not have been synced, when a journal is kept instead
+        if (archiveHandler != null && seal(dbFile)) {
+            dbHelper.getWritableDatabase(); // Build new database
+            archiveHandler.post(archiveSealedFiles);
+            Log.d(LogUtil.TAG, "sealed for archive");
+        } else {
+            archiveFile(dbFile);
+            dbHelper.getWritableDatabase(); // Build new database
+            Log.d(LogUtil.TAG, "archived!");
+        }
+        if (writer != null) {
+            writer.onArchived();
+        }
+        exitHandler(); // free system resources, keeping any handler shared with the writer
+    }
+    
+    /**
+     * Moves the closed database file into its own sealed directory, keeping the file name
+     * so it is archived under the same name as a database archived in place.
+     */
+    private boolean seal(File dbFile) {
+        File sealedDir = new File(getSealedRoot(dbFile), String.valueOf(System.currentTimeMillis()));
+        sealedDir.mkdirs();
+        if (dbFile.renameTo(new File(sealedDir, dbFile.getName()))) {
+            return true;
+        }
+        Log.w(LogUtil.TAG, "Unable to seal database " + dbFile.getName() + ", archiving in place.");
+        sealedDir.delete();
+        return false;
+    }
+    
+    /**
+     * Closes the open log segment, and archives every closed segment unchanged.
+     */
+    private void archiveLog(SegmentedLog log) {
+        try {
+            log.roll();
+        } catch (IOException e) {
+            Log.e(LogUtil.TAG, "Unable to close log segment for archive.", e);
+        }
+        if (archiveHandler != null) {
+            archiveHandler.post(archiveSealedFiles);
+        } else {
+            archiveSealedFiles();
+        }
+    }
+    
+    /**
+     * Archives that can't consume the file are given a copy, and the file is deleted once it is archived.
+     */
+    private boolean archiveFile(File file) {
+        if (archive instanceof MovingFileArchive) {
+            return ((MovingFileArchive)archive).move(file);
+        } else if (archive.add(file)) {
+            file.delete();
+            return true;
+        }
+        return false;
+    }
+    
+    private static File getSealedRoot(File dbFile) {
+        return new File(dbFile.getParentFile(), SEALED_DIR_PREFIX + dbFile.getName());
+    }
+    
+    /**
+     * Archives every sealed database, or closed log segment, oldest first, including any left
+     * behind by a previous process or a failed archive attempt.  Runs on the calling thread.
+     */
+    public void archiveSealedFiles() {
+        if (writer != null && writer.getLog() != null) {
+            for (File segmentFile : writer.getLog().getClosedSegments()) {
+                if (!archiveFile(segmentFile)) {
+                    Log.w(LogUtil.TAG, "Unable to archive log segment " + segmentFile.getName() + ", will retry.");
+                }
+            }
+            Log.d(LogUtil.TAG, "archived!");
+            return;
+        }
+        File dbFile = this.dbFile;
+        if (dbFile == null) {
+            return; // Nothing has been sealed by this process, and no previous location was given
+        }
+        File[] sealedDirs = getSealedRoot(dbFile).listFiles();
+        if (sealedDirs == null) {
+            return;
+        }
+        Arrays.sort(sealedDirs);
+        for (File sealedDir : sealedDirs) {
+            File sealedFile = new File(sealedDir, dbFile.getName());
+            if (!sealedFile.exists() || archiveFile(sealedFile)) {
+                sealedDir.delete();
+            } else {
+                Log.w(LogUtil.TAG, "Unable to archive sealed database " + sealedDir.getName() + ", will retry.");
+            }
         }
-        dbHelper.getWritableDatabase(); // Build new database
         Log.d(LogUtil.TAG, "archived!");
-        setHandler(null); // free system resources
     }
     
     protected boolean isLongRunningAction() {
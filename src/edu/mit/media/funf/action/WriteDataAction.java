@@ -1,53 +1,468 @@
 package edu.mit.media.funf.action;
 
-import android.content.ContentValues;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
 
 import edu.mit.media.funf.config.Configurable;
 import edu.mit.media.funf.config.RuntimeTypeAdapterFactory;
 import edu.mit.media.funf.json.IJsonObject;
 import edu.mit.media.funf.probe.Probe.DataListener;
 import edu.mit.media.funf.probe.builtin.ProbeKeys;
+import edu.mit.media.funf.storage.DataJournal;
+import edu.mit.media.funf.storage.IngestionQueue;
 import edu.mit.media.funf.storage.NameValueDatabaseHelper;
+import edu.mit.media.funf.storage.ProbeRecord;
+import edu.mit.media.funf.storage.SegmentedLog;
+import edu.mit.media.funf.time.TimeUtil;
+import edu.mit.media.funf.util.IOUtil;
 import edu.mit.media.funf.util.LogUtil;
 
+/**
+ * Writes probe data into the pipeline database.  Records are buffered and inserted
+ * in a single transaction once the batch count, size or latency threshold is reached.
+ * Setting batchSize to 1 writes every record as soon as it is received.
+ * 
+ * If an archive action is set, it is run when the database grows past the configured
+ * file size, row count or per probe byte budget.  These are checked once per batch.
+ * 
+ * If an ingestion queue is set, received data is held in the bounded queue instead of
+ * the handler's unbounded message queue, and drained by a single runnable.
+ * 
+ * If a journal is set, every record is appended to it before onDataReceived returns, and the
+ * database runs without per-transaction syncing.  Journal segments are removed once their records
+ * are written and the database file has been synced, and any left after a crash are replayed.
+ * 
+ * If a segmented log is set, records are appended to it instead of the database.
+ */
 public class WriteDataAction extends Action implements DataListener {
 
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    public static final long DEFAULT_BATCH_BYTES = 256 * 1024;
+    public static final double DEFAULT_BATCH_LATENCY = 2.0;
+    
+    /**
+     * Minimum time between archives triggered by database size, so a failing archive is not retried on every batch.
+     */
+    private static final long MIN_ARCHIVE_INTERVAL_MILLIS = 60 * 1000L;
+    
+    /**
+     * Maximum number of queued records written before yielding the handler to other work.
+     */
+    private static final int MAX_DRAIN_COUNT = 500;
+
+    private static final String INSERT_SQL = String.format("INSERT INTO %s (%s, %s, %s) VALUES (?, ?, ?)",
+            NameValueDatabaseHelper.DATA_TABLE.name,
+            NameValueDatabaseHelper.COLUMN_NAME,
+            NameValueDatabaseHelper.COLUMN_TIMESTAMP,
+            NameValueDatabaseHelper.COLUMN_VALUE);
+
+    private static final String PROBE_INSERT_SQL_FORMAT = "INSERT INTO %s (" 
+            + NameValueDatabaseHelper.COLUMN_TIMESTAMP + ", " 
+            + NameValueDatabaseHelper.COLUMN_VALUE + ") VALUES (?, ?)";
+
     @Configurable
     private SQLiteOpenHelper dbHelper = null;
-        
+
+    /**
+     * Maximum number of records to hold before writing them to the database.
+     */
+    @Configurable
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    /**
+     * Maximum number of value characters to hold before writing them to the database.
+     */
+    @Configurable
+    private long batchBytes = DEFAULT_BATCH_BYTES;
+
+    /**
+     * Maximum number of seconds a record will wait in the batch before being written.
+     */
+    @Configurable
+    private double batchLatency = DEFAULT_BATCH_LATENCY;
+
+    /**
+     * Archive once the database file reaches this many bytes, or 0 to disable.
+     * This and the other archive limits apply to the database only, a segmented log rolls its segments by size itself.
+     */
+    @Configurable
+    private long maxDatabaseBytes = 0L;
+
+    /**
+     * Archive once the database holds this many records, or 0 to disable.
+     */
+    @Configurable
+    private long maxDatabaseRows = 0L;
+
+    /**
+     * Archive once a probe has written this many value bytes to the database, keyed by probe type.
+     */
+    @Configurable
+    private Map<String, Long> maxProbeBytes = null;
+
+    private final List<Record> batch = new ArrayList<Record>();
+    private long batchByteCount = 0L;
+    private SQLiteDatabase statementDb = null;
+    private final Map<String, SQLiteStatement> insertStatements = new HashMap<String, SQLiteStatement>(); // Keyed by record name
+    private boolean partitioned = false;
+
+    private Action archiveAction = null;
+    private long lastArchiveMillis = 0L;
+    private long databaseRows = 0L;
+    private final Map<String, Long> databaseProbeBytes = new HashMap<String, Long>();
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private final Runnable archiveRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // A scheduled archive may have run since this was posted
+            if (isArchiveDue()) {
+                lastArchiveMillis = System.currentTimeMillis();
+                Log.d(LogUtil.TAG, "database limit reached, archiving");
+                archiveAction.run();
+            }
+        }
+    };
+
+    private IngestionQueue queue = null;
+
+    private final Runnable drainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    private DataJournal journal = null;
+
+    private final LinkedList<Checkpoint> pendingCheckpoints = new LinkedList<Checkpoint>(); // Handler thread only
+
+    private SegmentedLog log = null;
+
     WriteDataAction() {
     }
-    
+
     public WriteDataAction(SQLiteOpenHelper dbHelper) {
         this.dbHelper = dbHelper;
     }
-    
+
     protected void execute(String key, IJsonObject data) {
         if (key == null || data == null)
             return;
-        
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
+
         final double timestamp = data.get(ProbeKeys.BaseProbeKeys.TIMESTAMP).getAsDouble();
         final String value = data.toString();
         if (timestamp == 0L || key == null || value == null) {
             Log.e(LogUtil.TAG, "Unable to save data.  Not all required values specified. " + timestamp + " " + key + " - " + value);
             throw new SQLException("Not all required fields specified.");
         }
-        ContentValues cv = new ContentValues();
-        cv.put(NameValueDatabaseHelper.COLUMN_NAME, key);
-        cv.put(NameValueDatabaseHelper.COLUMN_VALUE, value);
-        cv.put(NameValueDatabaseHelper.COLUMN_TIMESTAMP, timestamp);
-        db.insertOrThrow(NameValueDatabaseHelper.DATA_TABLE.name, "", cv);
+        boolean shouldFlush;
+        synchronized (batch) {
+            if (batch.isEmpty() && batchSize > 1 && getHandler() != null) {
+                getHandler().postDelayed(flushRunnable, TimeUtil.secondsToMillis(batchLatency));
+            }
+            batch.add(new Record(key, timestamp, value));
+            batchByteCount += value.length();
+            shouldFlush = batch.size() >= batchSize || batchByteCount >= batchBytes;
+        }
+        if (shouldFlush) {
+            flush();
+        }
     }
-    
+
+    /**
+     * Writes all buffered records to the database in a single transaction.
+     * Safe to call when there are no buffered records.
+     * @return false if the records could not be appended to the log, in which case they stay buffered for the next flush
+     */
+    public boolean flush() {
+        synchronized (batch) {
+            if (getHandler() != null) {
+                getHandler().removeCallbacks(flushRunnable);
+            }
+            if (batch.isEmpty()) {
+                return true;
+            }
+            if (log != null) {
+                if (!appendToLog()) {
+                    return false;
+                }
+                batch.clear();
+                batchByteCount = 0L;
+                return true;
+            }
+            SQLiteDatabase db = dbHelper.getWritableDatabase();
+            prepareInsertStatements(db);
+            boolean committed = false;
+            db.beginTransaction();
+            try {
+                for (Record record : batch) {
+                    insert(record);
+                }
+                db.setTransactionSuccessful();
+                committed = true;
+            } catch (SQLException e) {
+                Log.e(LogUtil.TAG, "Unable to write batch of " + batch.size() + " records, retrying individually.", e);
+            } finally {
+                db.endTransaction();
+            }
+            if (!committed) {
+                // Isolate the bad records, so one bad record does not lose the whole batch
+                insertIndividually();
+            }
+            countWritten();
+            batch.clear();
+            batchByteCount = 0L;
+        }
+        if (isArchiveDue()) {
+            // Posted rather than run here, since flush may itself be called by the archive action
+            ensureHandlerExists();
+            getHandler().removeCallbacks(archiveRunnable);
+            getHandler().post(archiveRunnable);
+        }
+        return true;
+    }
+
+    /**
+     * Resets the limit counts, called by the archive action once the database has been archived and replaced.
+     */
+    public void onArchived() {
+        lastArchiveMillis = System.currentTimeMillis();
+        databaseRows = 0L;
+        databaseProbeBytes.clear();
+        statementDb = null; // Counts and statements are reloaded for the new database on the next write
+    }
+
+    /**
+     * A batch that fails part way is appended again in full on the next flush, so records written before 
+     * the failure may appear twice in the log.
+     * @return true if the whole batch was written to the log
+     */
+    private boolean appendToLog() {
+        try {
+            for (Record record : batch) {
+                log.append(record.name, record.timestamp, record.value);
+            }
+            log.flush();
+            return true;
+        } catch (IOException e) {
+            Log.e(LogUtil.TAG, "Unable to write batch of " + batch.size() + " records to log, keeping it for the next flush.", e);
+            return false;
+        }
+    }
+
+    private void countWritten() {
+        databaseRows += batch.size();
+        if (maxProbeBytes != null) {
+            for (Record record : batch) {
+                Long bytes = databaseProbeBytes.get(record.name);
+                databaseProbeBytes.put(record.name, (bytes == null ? 0L : bytes) + record.value.length());
+            }
+        }
+    }
+
+    private boolean isArchiveDue() {
+        if (archiveAction == null || statementDb == null
+                || System.currentTimeMillis() - lastArchiveMillis < MIN_ARCHIVE_INTERVAL_MILLIS) {
+            return false;
+        }
+        if (maxDatabaseRows > 0 && databaseRows >= maxDatabaseRows) {
+            return true;
+        }
+        if (maxDatabaseBytes > 0 && new File(statementDb.getPath()).length() >= maxDatabaseBytes) {
+            return true;
+        }
+        if (maxProbeBytes != null) {
+            for (Map.Entry<String, Long> budget : maxProbeBytes.entrySet()) {
+                // Records are keyed by the probe type's json representation
+                Long bytes = databaseProbeBytes.get(new JsonPrimitive(budget.getKey()).toString());
+                if (bytes != null && budget.getValue() != null && bytes >= budget.getValue()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Loads the counts for a newly opened database, which may already contain data from a previous process.
+     */
+    private void resetDatabaseCounts(SQLiteDatabase db) {
+        databaseRows = 0L;
+        databaseProbeBytes.clear();
+        if (maxDatabaseRows > 0) {
+            databaseRows = DatabaseUtils.queryNumEntries(db, NameValueDatabaseHelper.DATA_TABLE.name);
+        }
+        if (maxProbeBytes != null) {
+            Cursor cursor = db.rawQuery(String.format("SELECT %s, SUM(LENGTH(%s)) FROM %s GROUP BY %s",
+                    NameValueDatabaseHelper.COLUMN_NAME, NameValueDatabaseHelper.COLUMN_VALUE,
+                    NameValueDatabaseHelper.DATA_TABLE.name, NameValueDatabaseHelper.COLUMN_NAME), null);
+            try {
+                while (cursor.moveToNext()) {
+                    databaseProbeBytes.put(cursor.getString(0), cursor.getLong(1));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    private void insert(Record record) {
+        SQLiteStatement statement = insertStatements.get(record.name);
+        if (statement == null) {
+            throw new SQLException("No table for " + record.name);
+        }
+        int index = 1;
+        if (!partitioned) {
+            statement.bindString(index++, record.name);
+        }
+        statement.bindDouble(index++, record.timestamp);
+        statement.bindString(index, record.value);
+        statement.executeInsert();
+    }
+
+    private void insertIndividually() {
+        for (Record record : batch) {
+            try {
+                insert(record);
+            } catch (SQLException e) {
+                Log.e(LogUtil.TAG, "Unable to save data for " + record.name, e);
+            }
+        }
+    }
+
+    /**
+     * Compiles an insert statement for each probe in the batch that does not have one yet.
+     * Runs outside the batch transaction, so probe tables created here are not lost if the batch is rolled back.
+     */
+    private void prepareInsertStatements(SQLiteDatabase db) {
+        if (statementDb != db || !db.isOpen()) {
+            for (SQLiteStatement statement : insertStatements.values()) {
+                try {
+                    statement.close();
+                } catch (IllegalStateException e) {
+                    // Statement belonged to a database that has already been closed
+                }
+            }
+            insertStatements.clear();
+            if (journal != null) {
+                db.execSQL("PRAGMA synchronous = OFF"); // Journal provides durability
+            }
+            partitioned = dbHelper instanceof NameValueDatabaseHelper && ((NameValueDatabaseHelper)dbHelper).isPartitioned();
+            statementDb = db;
+            resetDatabaseCounts(db);
+        }
+        for (Record record : batch) {
+            if (!insertStatements.containsKey(record.name)) {
+                try {
+                    insertStatements.put(record.name, partitioned
+                            ? db.compileStatement(String.format(PROBE_INSERT_SQL_FORMAT, ((NameValueDatabaseHelper)dbHelper).getProbeTable(db, record.name)))
+                            : db.compileStatement(INSERT_SQL));
+                } catch (SQLException e) {
+                    Log.e(LogUtil.TAG, "Unable to prepare insert for " + record.name, e);
+                }
+            }
+        }
+    }
+
+    private void drain() {
+        for (int i = 0; i < MAX_DRAIN_COUNT; i++) {
+            ProbeRecord record = queue.poll();
+            if (record == null) {
+                if (!pendingCheckpoints.isEmpty()) {
+                    runCheckpoints();
+                }
+                return; // Queue will request a new drain on the next offer
+            }
+            writeQueued(record);
+        }
+        getHandler().post(drainRunnable);
+    }
+
+    private void writeQueued(ProbeRecord record) {
+        try {
+            // Same key as the probe config's json type
+            execute(new JsonPrimitive(record.probeType).toString(), record.data);
+        } catch (SQLException e) {
+            Log.e(LogUtil.TAG, "Unable to save queued data for " + record.probeType, e);
+        }
+    }
+
+    /**
+     * Writes everything still in the queue and the batch, so no received data is left in memory.
+     * Called on the handler thread when the pipeline is destroyed, after its data sources have stopped.
+     */
+    public void finish() {
+        if (queue != null) {
+            ProbeRecord record;
+            while ((record = queue.poll()) != null) {
+                writeQueued(record);
+            }
+        }
+        if (pendingCheckpoints.isEmpty()) {
+            flush();
+        } else {
+            runCheckpoints();
+        }
+    }
+
     @Override
     public void onDataReceived(IJsonObject probeConfig, IJsonObject data) {
+        if (journal == null) {
+            enqueue(probeConfig, data);
+        } else {
+            // Append and enqueue together, so a checkpoint runs after every record in the segments it removes
+            synchronized (journal) {
+                boolean segmentClosed = journal.append(probeConfig.get(RuntimeTypeAdapterFactory.TYPE).getAsString(), data);
+                enqueue(probeConfig, data);
+                if (segmentClosed) {
+                    // Every record in the closed segment was offered to the queue before this point
+                    final Checkpoint checkpoint = new Checkpoint(journal.getLastClosedSegment(), 
+                            queue == null ? 0L : queue.getOfferedCount());
+                    getHandler().post(new Runnable() {
+                        @Override
+                        public void run() {
+                            pendingCheckpoints.add(checkpoint);
+                            runCheckpoints();
+                        }
+                    });
+                }
+            }
+        }
+    }
+
+    private void enqueue(IJsonObject probeConfig, IJsonObject data) {
+        if (queue != null) {
+            if (queue.offer(probeConfig.get(RuntimeTypeAdapterFactory.TYPE).getAsString(), data)) {
+                ensureHandlerExists();
+                getHandler().post(drainRunnable);
+            }
+            return;
+        }
         final String key = probeConfig.get(RuntimeTypeAdapterFactory.TYPE).toString();
         final IJsonObject finalData = data;
         ensureHandlerExists();
@@ -59,14 +474,214 @@ public class WriteDataAction extends Action implements DataListener {
         });
     }
 
+    /**
+     * Removes journal segments once all of their records are durably in the database.  With a queue, a segment's 
+     * records are written once every record offered before it closed has left the queue, which does not require 
+     * the queue to be empty.
+     */
+    private void runCheckpoints() {
+        if (!flush()) {
+            return; // The journal is still needed for the batch
+        }
+        long oldestQueued = queue == null ? Long.MAX_VALUE : queue.getOldestQueuedSequence();
+        long throughSegment = -1L;
+        for (Checkpoint checkpoint : pendingCheckpoints) {
+            if (checkpoint.offeredCount > oldestQueued) {
+                break; // Later checkpoints have later offered counts
+            }
+            throughSegment = checkpoint.segment;
+        }
+        if (throughSegment >= 0 && syncDatabase()) {
+            journal.deleteThrough(throughSegment);
+            while (!pendingCheckpoints.isEmpty() && pendingCheckpoints.getFirst().segment <= throughSegment) {
+                pendingCheckpoints.removeFirst();
+            }
+        }
+    }
+
+    private boolean syncDatabase() {
+        if (log != null) {
+            try {
+                log.sync();
+                return true;
+            } catch (IOException e) {
+                Log.e(LogUtil.TAG, "Unable to sync log, keeping journal.", e);
+                return false;
+            }
+        }
+        return IOUtil.sync(new File(dbHelper.getWritableDatabase().getPath()));
+    }
+
+    /**
+     * Writes any records left in the journal by a previous process into the database, skipping
+     * records that were already written.  Must run on the handler before any new data is received.
+     */
+    public void replayJournal() {
+        if (journal == null) {
+            return;
+        }
+        long throughSegment = journal.getLastClosedSegment();
+        List<DataJournal.Entry> entries = journal.read(throughSegment);
+        if (!entries.isEmpty()) {
+            double minTimestamp = Double.MAX_VALUE;
+            for (DataJournal.Entry entry : entries) {
+                if (entry.data.has(ProbeKeys.BaseProbeKeys.TIMESTAMP)) {
+                    minTimestamp = Math.min(minTimestamp, entry.data.get(ProbeKeys.BaseProbeKeys.TIMESTAMP).getAsDouble());
+                }
+            }
+            Set<String> written = getWrittenSince(minTimestamp);
+            int replayed = 0;
+            for (DataJournal.Entry entry : entries) {
+                String key = new JsonPrimitive(entry.probeType).toString();
+                if (!entry.data.has(ProbeKeys.BaseProbeKeys.TIMESTAMP)
+                        || written.contains(key + entry.data.get(ProbeKeys.BaseProbeKeys.TIMESTAMP).getAsDouble())) {
+                    continue;
+                }
+                try {
+                    execute(key, entry.data);
+                    replayed++;
+                } catch (SQLException e) {
+                    Log.e(LogUtil.TAG, "Unable to replay journaled data for " + entry.probeType, e);
+                }
+            }
+            flush();
+            Log.i(LogUtil.TAG, "Replayed " + replayed + " of " + entries.size() + " journaled records.");
+        }
+        if (syncDatabase()) {
+            journal.deleteThrough(throughSegment);
+        }
+    }
+
+    private Set<String> getWrittenSince(double timestamp) {
+        Set<String> written = new HashSet<String>();
+        if (log != null) {
+            return written; // Log segments are not searched, so replayed data may be written twice
+        }
+        Cursor cursor = dbHelper.getWritableDatabase().rawQuery(String.format("SELECT %s, %s FROM %s WHERE %s >= ?",
+                NameValueDatabaseHelper.COLUMN_NAME, NameValueDatabaseHelper.COLUMN_TIMESTAMP,
+                NameValueDatabaseHelper.DATA_TABLE.name, NameValueDatabaseHelper.COLUMN_TIMESTAMP),
+                new String[] {String.valueOf(timestamp)});
+        try {
+            while (cursor.moveToNext()) {
+                written.add(cursor.getString(0) + cursor.getDouble(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return written;
+    }
+
     @Override
     public void onDataCompleted(IJsonObject probeConfig, JsonElement checkpoint) {
-        String key = probeConfig.get(RuntimeTypeAdapterFactory.TYPE).toString();
-        Log.d(LogUtil.TAG, "finished writing probe data " + key);
-        setHandler(null); // free system resources as data stream has completed.
+        final String key = probeConfig.get(RuntimeTypeAdapterFactory.TYPE).toString();
+        ensureHandlerExists();
+        getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+                Log.d(LogUtil.TAG, "finished writing probe data " + key);
+            }
+        });
     }
-    
+
     protected boolean isLongRunningAction() {
         return true;
     }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    public long getBatchBytes() {
+        return batchBytes;
+    }
+
+    public void setBatchBytes(long batchBytes) {
+        this.batchBytes = batchBytes;
+    }
+
+    public double getBatchLatency() {
+        return batchLatency;
+    }
+
+    public void setBatchLatency(double batchLatency) {
+        this.batchLatency = batchLatency;
+    }
+
+    /**
+     * @param archiveAction action to run when the database reaches one of its configured limits
+     */
+    public void setArchiveAction(Action archiveAction) {
+        this.archiveAction = archiveAction;
+    }
+
+    public void setMaxDatabaseBytes(long maxDatabaseBytes) {
+        this.maxDatabaseBytes = maxDatabaseBytes;
+    }
+
+    public void setMaxDatabaseRows(long maxDatabaseRows) {
+        this.maxDatabaseRows = maxDatabaseRows;
+    }
+
+    public void setMaxProbeBytes(Map<String, Long> maxProbeBytes) {
+        this.maxProbeBytes = maxProbeBytes;
+    }
+
+    /**
+     * @param queue bounded queue to hold received data until it is written, or null to post each record to the handler
+     */
+    public void setQueue(IngestionQueue queue) {
+        this.queue = queue;
+    }
+
+    public IngestionQueue getQueue() {
+        return queue;
+    }
+
+    /**
+     * @param log append only log to write data to instead of the database, or null to use the database
+     */
+    public void setLog(SegmentedLog log) {
+        this.log = log;
+    }
+
+    public SegmentedLog getLog() {
+        return log;
+    }
+
+    /**
+     * @param journal write-ahead journal to append received data to, or null to write without a journal
+     */
+    public void setJournal(DataJournal journal) {
+        this.journal = journal;
+    }
+
+    private static class Record {
+        private final String name;
+        private final double timestamp;
+        private final String value;
+
+        private Record(String name, double timestamp, String value) {
+            this.name = name;
+            this.timestamp = timestamp;
+            this.value = value;
+        }
+    }
+
+    /**
+     * A closed journal segment, whose records are in the database once the queue has moved past offeredCount.
+     */
+    private static class Checkpoint {
+        private final long segment;
+        private final long offeredCount;
+
+        private Checkpoint(long segment, long offeredCount) {
+            this.segment = segment;
+            this.offeredCount = offeredCount;
+        }
+    }
 }
@@ -25,8 +25,14 @@
  */
 package edu.mit.media.funf.pipeline;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import android.content.Context;
 import android.database.sqlite.SQLiteOpenHelper;
@@ -49,11 +55,20 @@ import edu.mit.media.funf.json.IJsonObject;
 import edu.mit.media.funf.json.JsonUtils;
 import edu.mit.media.funf.probe.Probe;
 import edu.mit.media.funf.probe.Probe.DataListener;
+import edu.mit.media.funf.storage.DataJournal;
+import edu.mit.media.funf.storage.DataQueryIterator;
 import edu.mit.media.funf.storage.DefaultArchive;
 import edu.mit.media.funf.storage.FileArchive;
+import edu.mit.media.funf.storage.FileCopier;
+import edu.mit.media.funf.storage.FileCopier.DecodingFileCopier;
+import edu.mit.media.funf.storage.IngestionQueue;
+import edu.mit.media.funf.storage.IngestionQueue.OverflowPolicy;
 import edu.mit.media.funf.storage.NameValueDatabaseHelper;
 import edu.mit.media.funf.storage.RemoteFileArchive;
+import edu.mit.media.funf.storage.SegmentedLog;
+import edu.mit.media.funf.storage.StreamingArchive;
 import edu.mit.media.funf.storage.UploadService;
+import edu.mit.media.funf.storage.UploadService.UploadOrder;
 import edu.mit.media.funf.util.StringUtil;
 
 public class BasicPipeline implements Pipeline, DataListener {
@@ -62,6 +77,18 @@ public class BasicPipeline implements Pipeline, DataListener {
             ACTION_UPLOAD = "upload",
             ACTION_UPDATE = "update";
     
+    public static enum StorageEngine {
+        /**
+         * Data is written to a SQLite database, which is archived whole.
+         */
+        SQLITE,
+        /**
+         * Data is appended to a segmented log, whose closed segments are archived.
+         * Cheaper per record for high rate probes, but not queryable on the device.
+         */
+        LOG
+    }
+    
     @Configurable
     protected String name = "actiongraph";
 
@@ -83,6 +110,146 @@ public class BasicPipeline implements Pipeline, DataListener {
     @Configurable
     protected Map<String, StartableDataSource> schedules = null;
     
+    /**
+     * Number of records to write to the database in a single transaction.
+     */
+    @Configurable
+    protected int writeBatchSize = WriteDataAction.DEFAULT_BATCH_SIZE;
+    
+    /**
+     * Maximum number of seconds data will be held in memory before being written to the database.
+     */
+    @Configurable
+    protected double writeBatchLatency = WriteDataAction.DEFAULT_BATCH_LATENCY;
+    
+    /**
+     * When true the database is swapped for a fresh one on archive, and the old
+     * file is archived on a separate thread so writes never wait on archive I/O.
+     */
+    @Configurable
+    protected boolean backgroundArchive = false;
+    
+    /**
+     * Archive as soon as the database file reaches this many bytes.  0 disables the limit.
+     * The archive limits only apply to SQLITE storage, LOG storage closes segments by size on its own.
+     */
+    @Configurable
+    protected long archiveMaxBytes = 0L;
+    
+    /**
+     * Archive as soon as the database holds this many records.  0 disables the limit.
+     */
+    @Configurable
+    protected long archiveMaxRows = 0L;
+    
+    /**
+     * Archive as soon as a probe has written this many bytes of data, keyed by probe type.
+     */
+    @Configurable
+    protected Map<String, Long> archiveMaxProbeBytes = null;
+    
+    /**
+     * Number of records per probe type held in memory waiting to be written.
+     * 0 leaves the queue unbounded.
+     */
+    @Configurable
+    protected int queueCapacity = 0;
+    
+    /**
+     * Overrides queueCapacity for specific probe types.
+     */
+    @Configurable
+    protected Map<String, Integer> queueCapacities = null;
+    
+    /**
+     * What to do with data that arrives when a probe's queue is full.
+     */
+    @Configurable
+    protected OverflowPolicy queueOverflow = OverflowPolicy.DROP_OLDEST;
+    
+    /**
+     * When true received data is journaled to disk before it is queued for the database,
+     * so it survives the process being killed, and the database skips syncing each transaction.
+     */
+    @Configurable
+    protected boolean journal = false;
+    
+    /**
+     * When true each probe's data is stored in its own table, with the data table kept as a view over them.
+     * Existing databases are converted to the configured layout when opened.
+     */
+    @Configurable
+    protected boolean partitionByProbe = false;
+    
+    /**
+     * Where data is written before being archived.
+     */
+    @Configurable
+    protected StorageEngine storage = StorageEngine.SQLITE;
+    
+    /**
+     * Number of files uploaded at the same time.  1 uploads one file at a time.
+     */
+    @Configurable
+    protected int uploadConcurrency = 1;
+    
+    /**
+     * Number of files uploaded at the same time to any one remote archive.
+     */
+    @Configurable
+    protected int uploadConcurrencyPerRemote = 2;
+    
+    /**
+     * Order in which archived files are uploaded.
+     */
+    @Configurable
+    protected UploadOrder uploadOrder = UploadOrder.ARCHIVE;
+    
+    /**
+     * Priorities for the PRIORITY upload order, keyed by part of the file name, such as a capture probe's file name base.
+     */
+    @Configurable
+    protected Map<String, Integer> uploadPriorities = null;
+    
+    /**
+     * Bytes that may be uploaded per day and per calendar month, keyed by network type name such as "wifi" or "mobile".
+     * Network types without a budget are unlimited.
+     */
+    @Configurable
+    protected Map<String, Long> uploadDailyBudgets = null;
+    
+    @Configurable
+    protected Map<String, Long> uploadMonthlyBudgets = null;
+    
+    /**
+     * Files up to this size with at least urgentUploadPriority, from uploadPriorities, are uploaded 
+     * regardless of budgets.  0 for none.
+     */
+    @Configurable
+    protected long urgentUploadMaxBytes = 0L;
+    
+    @Configurable
+    protected int urgentUploadPriority = 1;
+    
+    /**
+     * Maximum number of archived files sent in one upload request, when the upload archive accepts batches.
+     * 1 sends each file in its own request.
+     */
+    @Configurable
+    protected int uploadBatchMaxFiles = 1;
+    
+    /**
+     * Maximum total bytes of files sent in one upload request.
+     */
+    @Configurable
+    protected long uploadBatchMaxBytes = 1024 * 1024L;
+    
+    /**
+     * When set, received data is also streamed to this receiver as it arrives, alongside being stored.
+     */
+    @Configurable
+    protected StreamingArchive stream = null;
+    
     private UploadService uploader;    
     
     private boolean enabled;
@@ -90,6 +257,7 @@ public class BasicPipeline implements Pipeline, DataListener {
     private SQLiteOpenHelper databaseHelper = null;
     private Looper looper;
     private Handler handler;
+    private Looper archiveLooper;
     
     private WriteDataAction writeAction;
     private RunArchiveAction archiveAction;
@@ -124,8 +292,9 @@ public class BasicPipeline implements Pipeline, DataListener {
     protected void setupDataSources() {
         if (enabled == false) {
             
+            DataListener dataListener = stream == null ? writeAction : this;
             for (StartableDataSource dataSource: data) {
-                dataSource.setListener((DataListener)writeAction);
+                dataSource.setListener(dataListener);
             }
             
             if (schedules != null) {
@@ -173,8 +342,19 @@ public class BasicPipeline implements Pipeline, DataListener {
         }
         if (uploader == null) {
             uploader = new UploadService(manager);
+            uploader.setConcurrency(uploadConcurrency);
+            uploader.setMaxConcurrentPerRemote(uploadConcurrencyPerRemote);
+            uploader.setOrder(uploadOrder);
+            uploader.setPriorities(uploadPriorities);
+            uploader.setByteBudgets(uploadDailyBudgets, uploadMonthlyBudgets);
+            uploader.setUrgent(urgentUploadMaxBytes, urgentUploadPriority);
+            uploader.setBatching(uploadBatchMaxFiles, uploadBatchMaxBytes);
             uploader.start();
         }
+        if (stream != null) {
+            stream.setContext(manager);
+            stream.start();
+        }
         this.manager = manager;
         reloadDbHelper(manager);
         
@@ -184,14 +364,60 @@ public class BasicPipeline implements Pipeline, DataListener {
         this.handler = new Handler(looper);
         
         writeAction = new WriteDataAction(databaseHelper);
+        writeAction.setBatchSize(writeBatchSize);
+        writeAction.setBatchLatency(writeBatchLatency);
+        if (queueCapacity > 0) {
+            File spillFile = new File(manager.getFilesDir(), StringUtil.simpleFilesafe(name) + ".spill");
+            IngestionQueue queue = new IngestionQueue(queueCapacity, queueOverflow, spillFile);
+            queue.setCapacities(queueCapacities);
+            writeAction.setQueue(queue);
+        }
+        if (storage == StorageEngine.LOG) {
+            File logDir = manager.getDir("funf_" + StringUtil.simpleFilesafe(name) + "_log", Context.MODE_PRIVATE);
+            writeAction.setLog(new SegmentedLog(logDir, StringUtil.simpleFilesafe(name)));
+        }
+        if (journal) {
+            File journalDir = manager.getDir("funf_" + StringUtil.simpleFilesafe(name) + "_journal", Context.MODE_PRIVATE);
+            writeAction.setJournal(new DataJournal(journalDir));
+        }
         writeAction.setHandler(handler);
-        archiveAction = new RunArchiveAction(archive, databaseHelper);
+        archiveAction = new RunArchiveAction(archive, databaseHelper, writeAction);
         archiveAction.setHandler(handler);
+        if (archiveMaxBytes > 0 || archiveMaxRows > 0 || archiveMaxProbeBytes != null) {
+            writeAction.setMaxDatabaseBytes(archiveMaxBytes);
+            writeAction.setMaxDatabaseRows(archiveMaxRows);
+            writeAction.setMaxProbeBytes(archiveMaxProbeBytes);
+            writeAction.setArchiveAction(archiveAction);
+        }
+        if (backgroundArchive) {
+            HandlerThread archiveThread = new HandlerThread(getClass().getName() + "[archive]");
+            archiveThread.start();
+            this.archiveLooper = archiveThread.getLooper();
+            Handler archiveHandler = new Handler(archiveLooper);
+            archiveAction.setArchiveHandler(archiveHandler);
+            archiveAction.setDatabaseFile(manager.getDatabasePath(StringUtil.simpleFilesafe(name)));
+            // Pick up databases sealed by a previous process that did not finish archiving
+            archiveHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    archiveAction.archiveSealedFiles();
+                }
+            });
+        }
         uploadAction = new RunUploadAction(archive, upload, uploader);
         uploadAction.setHandler(handler);
         updateAction = new RunUpdateAction(name, getFunfManager(), update);
         updateAction.setHandler(handler);
         
+        if (journal) {
+            // Recover data from a previous process before any new data arrives
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    writeAction.replayJournal();
+                }
+            });
+        }
         handler.post(new Runnable() {
             @Override
             public void run() {
@@ -217,11 +443,18 @@ public class BasicPipeline implements Pipeline, DataListener {
         if (uploader != null) {
             uploader.stop();
         }
+        if (stream != null) {
+            stream.stop();
+        }
         handler.post(new Runnable() {
             @Override
             public void run() {
                 destroyDataSources();
+                writeAction.finish();
                 looper.quit();
+                if (archiveLooper != null) {
+                    archiveLooper.quit();
+                }
             }
         });
     }
@@ -234,6 +467,9 @@ public class BasicPipeline implements Pipeline, DataListener {
     @Override
     public void onDataReceived(IJsonObject probeConfig, IJsonObject data) {
       writeAction.onDataReceived(probeConfig, data);
+      if (stream != null) {
+        stream.onDataReceived(probeConfig, data);
+      }
     }
 
     @Override
@@ -244,13 +480,53 @@ public class BasicPipeline implements Pipeline, DataListener {
     public Handler getHandler() {
         return handler;
     }
+    
+    /**
+     * @return the bounded queue in front of the database writer, with its dropped and spilled counts, or null if unbounded
+     */
+    public IngestionQueue getIngestionQueue() {
+        return writeAction == null ? null : writeAction.getQueue();
+    }
+    
+    /**
+     * Reads stored data for a probe within a time range, from local archives followed by the current database.
+     * Encrypted or compressed files in a {@link DefaultArchive} are decrypted one at a time into the cache 
+     * directory.  Other archives can only be queried if they store plain database files, the rest are skipped.
+     * Data still buffered by the writer is not included until it is flushed.
+     * @param probeType probe type to return data for, or null for all probes
+     * @param fromTimestamp inclusive start of the time range, in seconds
+     * @param toTimestamp exclusive end of the time range, in seconds
+     * @param limit maximum number of records to return, or 0 for no limit
+     * @return iterator over the matching data, which must be closed if not read to the end
+     */
+    public DataQueryIterator query(String probeType, double fromTimestamp, double toTimestamp, int limit) {
+        List<File> databaseFiles = new ArrayList<File>();
+        // Archives may keep a copy of each file in several places
+        Set<String> archivedNames = new HashSet<String>();
+        File[] archivedFiles = archive.getAll();
+        Arrays.sort(archivedFiles, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return f1.getName().compareTo(f2.getName()); // Timestamped names
+            }
+        });
+        for (File archivedFile : archivedFiles) {
+            if (archivedFile.getName().endsWith(".db") && archivedNames.add(archivedFile.getName())) {
+                databaseFiles.add(archivedFile);
+            }
+        }
+        databaseFiles.add(new File(databaseHelper.getReadableDatabase().getPath()));
+        FileCopier copier = (archive instanceof DefaultArchive) ? ((DefaultArchive)archive).getFileCopier() : null;
+        DecodingFileCopier decoder = (copier instanceof DecodingFileCopier) ? (DecodingFileCopier)copier : null;
+        return new DataQueryIterator(databaseFiles, decoder, manager.getCacheDir(), probeType, fromTimestamp, toTimestamp, limit);
+    }
 
     public FunfManager getFunfManager() {
         return manager;
     }
 
     protected void reloadDbHelper(Context ctx) {
-        this.databaseHelper = new NameValueDatabaseHelper(ctx, StringUtil.simpleFilesafe(name), version);
+        this.databaseHelper = new NameValueDatabaseHelper(ctx, StringUtil.simpleFilesafe(name), version, partitionByProbe);
     }
 
     public String getName() {
@@ -24,6 +24,8 @@
 package edu.mit.media.funf.probe.builtin;
 
 
+import java.math.BigDecimal;
+
 import android.content.Context;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
@@ -31,14 +33,19 @@ import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.util.Log;
 
+import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
 
 import edu.mit.media.funf.Schedule;
 import edu.mit.media.funf.config.Configurable;
 import edu.mit.media.funf.probe.Probe.Base;
 import edu.mit.media.funf.probe.Probe.ContinuousProbe;
 import edu.mit.media.funf.probe.builtin.ProbeKeys.SensorKeys;
+import edu.mit.media.funf.security.Base64Coder;
+import edu.mit.media.funf.storage.TimeSeriesDecoder;
+import edu.mit.media.funf.storage.TimeSeriesEncoder;
 import edu.mit.media.funf.time.TimeUtil;
 import edu.mit.media.funf.util.LogUtil;
 
@@ -51,6 +58,13 @@ public abstract class SensorProbe extends Base implements ContinuousProbe, Senso
 	@Configurable
 	private String sensorDelay = SENSOR_DELAY_FASTEST;
 	
+	/**
+	 * Number of seconds of samples to compress into a single data record, see {@link TimeSeriesDecoder}.
+	 * 0 sends every sample as its own record.
+	 */
+	@Configurable
+	private double blockDuration = 0;
+	
 	public static final String 
 		SENSOR_DELAY_FASTEST = "FASTEST",
 		SENSOR_DELAY_GAME = "GAME",
@@ -60,6 +74,8 @@ public abstract class SensorProbe extends Base implements ContinuousProbe, Senso
 	private SensorManager sensorManager;
 	private Sensor sensor;
 	private SensorEventListener sensorListener;
+	private TimeSeriesEncoder encoder;
+	private BigDecimal blockStart;
 	
 	@Override
 	protected void onEnable() {
@@ -67,10 +83,15 @@ public abstract class SensorProbe extends Base implements ContinuousProbe, Senso
 		sensorManager = (SensorManager) getContext().getSystemService(Context.SENSOR_SERVICE);
 		sensor = sensorManager.getDefaultSensor(getSensorType());
 		final String[] valueNames = getValueNames();
+		encoder = blockDuration > 0 ? new TimeSeriesEncoder(valueNames.length + 1) : null;
 		sensorListener = new SensorEventListener() {
 			
 			@Override
 			public void onSensorChanged(SensorEvent event) {
+				if (encoder != null) {
+					addToBlock(event.timestamp, event.accuracy, event.values, valueNames);
+					return;
+				}
 				JsonObject data = new JsonObject();
 				data.addProperty(TIMESTAMP, TimeUtil.uptimeNanosToTimestamp(event.timestamp));
 				data.addProperty(ACCURACY, event.accuracy);
@@ -97,6 +118,54 @@ public abstract class SensorProbe extends Base implements ContinuousProbe, Senso
 	@Override
 	protected void onStop() {
 		getSensorManager().unregisterListener(sensorListener);
+		if (encoder != null) {
+			sendBlock(getValueNames());
+		}
+	}
+	
+	/**
+	 * Adds one sensor event to the current block, sending the block once it spans the block duration.
+	 */
+	void addToBlock(long eventTimestamp, int accuracy, float[] eventValues, String[] valueNames) {
+		BigDecimal timestamp = TimeUtil.uptimeNanosToTimestamp(eventTimestamp);
+		float[] values = new float[valueNames.length + 1];
+		values[0] = accuracy;
+		System.arraycopy(eventValues, 0, values, 1, Math.min(eventValues.length, valueNames.length));
+		boolean blockFull;
+		synchronized (encoder) {
+			if (encoder.getCount() == 0) {
+				blockStart = timestamp;
+			}
+			encoder.add(timestamp.movePointRight(6).longValue(), values); // Microseconds
+			blockFull = timestamp.subtract(blockStart).doubleValue() >= blockDuration;
+		}
+		if (blockFull) {
+			sendBlock(valueNames);
+		}
+	}
+	
+	/**
+	 * Sends the samples collected so far as one data record, with the block start as its timestamp.
+	 */
+	void sendBlock(String[] valueNames) {
+		JsonObject data = new JsonObject();
+		synchronized (encoder) {
+			if (encoder.getCount() == 0) {
+				return;
+			}
+			JsonArray fields = new JsonArray();
+			fields.add(new JsonPrimitive(ACCURACY));
+			for (String valueName : valueNames) {
+				fields.add(new JsonPrimitive(valueName));
+			}
+			data.addProperty(TIMESTAMP, blockStart);
+			data.addProperty(TimeSeriesDecoder.ENCODING, TimeSeriesDecoder.ENCODING_GORILLA);
+			data.add(TimeSeriesDecoder.FIELDS, fields);
+			data.addProperty(TimeSeriesDecoder.COUNT, encoder.getCount());
+			data.addProperty(TimeSeriesDecoder.BLOCK, new String(Base64Coder.encode(encoder.toByteArray())));
+			encoder.reset();
+		}
+		sendData(data);
 	}
 	
 	protected SensorManager getSensorManager() {
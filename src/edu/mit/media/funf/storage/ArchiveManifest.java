@@ -0,0 +1,493 @@
+/**
+ *
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ *
+ * This file is part of Funf.
+ *
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package edu.mit.media.funf.storage;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+import edu.mit.media.funf.util.IOUtil;
+import edu.mit.media.funf.util.LogUtil;
+
+/**
+ * On disk index of the files in an archive directory, so the archive can be listed and queried from memory
+ * instead of by listing the directory.  Each file's size, time archived and checksums are kept.
+ * 
+ * Checksums of files that have been removed, usually once uploaded, are remembered so that archives can recognize
+ * content they have already handled, see {@link #hasContent(String)}.  Only the most recent 10000 are kept.  
+ * Content is recognized for as long as its checksum is remembered, so a file captured again with identical 
+ * content is never stored again, only a reference to the earlier file is, see {@link #addReference(String, String)}.
+ * 
+ * The manifest is an append only text file of entries, a later entry for a name replacing an earlier one, 
+ * which is compacted when it grows to several times the number of files.  It is rebuilt from the directory if it
+ * is missing or unreadable.  Otherwise the directory is listed once when the manifest is loaded, to pick up files 
+ * archived by a process that died before recording them, and again every rescan interval, to pick up changes 
+ * made by someone else.  Hidden files, such as partial copies, are never part of the archive.
+ */
+public class ArchiveManifest {
+	
+	public static final String FILENAME = ".manifest";
+	private static final String COMPACT_SUFFIX = ".tmp";
+	private static final String ADD = "+", REMOVE = "-", RETIRED = "x", REFERENCE = "=", UNREFERENCE = "~";
+	private static final String SEPARATOR = "\t";
+	private static final int COMPACT_SLACK = 100;
+	private static final int MAX_RETIRED_CHECKSUMS = 10000;
+	// Earlier versions kept an upload state before the file checksum, which was not always there
+	private static final List<String> LEGACY_STATES = Arrays.asList("PENDING", "UPLOADING", "UPLOADED");
+	public static final long DEFAULT_RESCAN_MILLIS = 60 * 60 * 1000L;
+	
+	private final File directory;
+	private final long rescanMillis;
+	private final File manifestFile;
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+	private final Map<String, String> namesByChecksum = new HashMap<String, String>();
+	private final Map<String, Entry> retired = new LinkedHashMap<String, Entry>(); // Removed files by content checksum
+	private final Map<String, Entry> references = new LinkedHashMap<String, Entry>();
+	private Writer out = null;
+	private int lineCount = 0;
+	private long scanTime = 0L;
+	private boolean loaded = false;
+	
+	public ArchiveManifest(File directory) {
+		this(directory, DEFAULT_RESCAN_MILLIS);
+	}
+	
+	/**
+	 * @param rescanMillis how long files added or removed by someone else can go unnoticed
+	 */
+	public ArchiveManifest(File directory, long rescanMillis) {
+		this.directory = directory;
+		this.manifestFile = new File(directory, FILENAME);
+		this.rescanMillis = rescanMillis;
+	}
+	
+	private void ensureLoaded() {
+		if (loaded) {
+			return;
+		}
+		loaded = true;
+		boolean readable = manifestFile.exists() && read();
+		// Rebuilding keeps what was read about files that are still there
+		if (rebuild() || !readable || lineCount > 2 * getLiveLineCount() + COMPACT_SLACK) {
+			compact();
+		}
+	}
+	
+	private int getLiveLineCount() {
+		return entries.size() + retired.size() + references.size();
+	}
+	
+	private boolean read() {
+		entries.clear();
+		namesByChecksum.clear();
+		retired.clear();
+		references.clear();
+		lineCount = 0;
+		BufferedReader in = null;
+		try {
+			in = new BufferedReader(new InputStreamReader(new FileInputStream(manifestFile), "UTF-8"));
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.split(SEPARATOR, -1);
+				if (ADD.equals(fields[0]) && (fields.length == 6 || fields.length == 7)) {
+					index(parseEntry(fields));
+				} else if (REMOVE.equals(fields[0]) && fields.length == 2) {
+					unindex(fields[1]);
+				} else if (RETIRED.equals(fields[0]) && fields.length == 2) {
+					// Manifests written before removed files' checksums were kept
+					retire(new Entry(null, 0L, 0L, fields[1], null));
+				} else if (RETIRED.equals(fields[0]) && fields.length == 4) {
+					retire(new Entry(null, Long.parseLong(fields[2]), 0L, fields[1], fields[3].length() == 0 ? null : fields[3]));
+				} else if (REFERENCE.equals(fields[0]) && (fields.length == 6 || fields.length == 7)) {
+					Entry reference = parseEntry(fields);
+					references.put(reference.name, reference);
+				} else if (UNREFERENCE.equals(fields[0]) && fields.length == 2) {
+					references.remove(fields[1]);
+				} else {
+					throw new IOException("Malformed manifest line " + (lineCount + 1));
+				}
+				lineCount++;
+			}
+			return true;
+		} catch (IOException e) {
+			Log.w(LogUtil.TAG, "Unable to read archive manifest, rebuilding. " + e.getMessage());
+		} catch (IllegalArgumentException e) {
+			Log.w(LogUtil.TAG, "Unable to read archive manifest, rebuilding. " + e.getMessage());
+		} finally {
+			IOUtil.close(in);
+		}
+		return false;
+	}
+	
+	private static Entry parseEntry(String[] fields) {
+		String fileChecksum = fields[fields.length - 1];
+		if (fileChecksum.length() == 0 || LEGACY_STATES.contains(fileChecksum)) {
+			fileChecksum = null;
+		}
+		return new Entry(fields[1], Long.parseLong(fields[2]), Long.parseLong(fields[3]), 
+				fields[4].length() == 0 ? null : fields[4], fileChecksum);
+	}
+	
+	/**
+	 * Replaces the entries with the files in the directory, oldest first, keeping what is known about files that
+	 * are still there unchanged.  Entries are left as they are if they already match the directory.
+	 * @return true if the entries changed, and need to be written with {@link #compact()}
+	 */
+	private boolean rebuild() {
+		scanTime = System.currentTimeMillis();
+		File[] files = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return !file.isHidden() && file.isFile();
+			}
+		});
+		if (files == null) {
+			files = new File[0];
+		}
+		boolean changed = files.length != entries.size();
+		for (int i = 0; i < files.length && !changed; i++) {
+			Entry entry = entries.get(files[i].getName());
+			changed = entry == null || entry.size != files[i].length();
+		}
+		if (!changed) {
+			return false;
+		}
+		Map<String, Entry> previous = new HashMap<String, Entry>(entries);
+		entries.clear();
+		namesByChecksum.clear();
+		Arrays.sort(files, new DirectoryCleaner.DescendingByLastModifiedComaparator());
+		for (int i = files.length - 1; i >= 0; i--) {
+			Entry entry = previous.get(files[i].getName());
+			if (entry == null || entry.size != files[i].length()) {
+				entry = new Entry(files[i].getName(), files[i].length(), files[i].lastModified(), null, null);
+			}
+			index(entry);
+		}
+		return true;
+	}
+	
+	/**
+	 * Rewrites the manifest with one line per file.
+	 */
+	private void compact() {
+		IOUtil.close(out);
+		out = null;
+		File tempFile = new File(directory, FILENAME + COMPACT_SUFFIX);
+		Writer tempOut = null;
+		try {
+			tempOut = new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8");
+			for (Entry entry : entries.values()) {
+				tempOut.write(toLine(ADD, entry));
+			}
+			for (Entry entry : retired.values()) {
+				tempOut.write(toRetiredLine(entry));
+			}
+			for (Entry reference : references.values()) {
+				tempOut.write(toLine(REFERENCE, reference));
+			}
+			tempOut.close();
+			tempOut = null;
+			if (!tempFile.renameTo(manifestFile)) {
+				throw new IOException("Unable to replace manifest");
+			}
+			lineCount = getLiveLineCount();
+		} catch (IOException e) {
+			Log.e(LogUtil.TAG, "Unable to write archive manifest.", e);
+			IOUtil.close(tempOut);
+			tempFile.delete();
+			manifestFile.delete(); // Rebuilt on next load
+		}
+	}
+	
+	private void append(String line) {
+		try {
+			if (out == null) {
+				out = new OutputStreamWriter(new FileOutputStream(manifestFile, true), "UTF-8");
+			}
+			out.write(line);
+			out.flush();
+			lineCount++;
+		} catch (IOException e) {
+			Log.e(LogUtil.TAG, "Unable to update archive manifest.", e);
+			IOUtil.close(out);
+			out = null;
+			manifestFile.delete(); // Rebuilt on next load
+		}
+		if (lineCount > 2 * getLiveLineCount() + COMPACT_SLACK) {
+			compact();
+		}
+	}
+	
+	private static String toLine(String type, Entry entry) {
+		return type + SEPARATOR + entry.name + SEPARATOR + entry.size + SEPARATOR + entry.created + SEPARATOR
+				+ (entry.checksum == null ? "" : entry.checksum) + SEPARATOR
+				+ (entry.fileChecksum == null ? "" : entry.fileChecksum) + "\n";
+	}
+	
+	private static String toRetiredLine(Entry entry) {
+		return RETIRED + SEPARATOR + entry.checksum + SEPARATOR + entry.size + SEPARATOR 
+				+ (entry.fileChecksum == null ? "" : entry.fileChecksum) + "\n";
+	}
+	
+	private void put(Entry entry) {
+		if (entry.name.contains(SEPARATOR) || entry.name.contains("\n")) {
+			Log.w(LogUtil.TAG, "Archive file name can't be stored in manifest: " + entry.name);
+			return;
+		}
+		index(entry);
+		append(toLine(ADD, entry));
+	}
+	
+	private void index(Entry entry) {
+		Entry previous = entries.put(entry.name, entry); // Updates keep their original position
+		if (previous != null && previous.checksum != null && entry.name.equals(namesByChecksum.get(previous.checksum))) {
+			namesByChecksum.remove(previous.checksum);
+		}
+		if (entry.checksum != null) {
+			namesByChecksum.put(entry.checksum, entry.name);
+		}
+	}
+	
+	private Entry unindex(String name) {
+		Entry entry = entries.get(name);
+		if (entry != null && entry.checksum != null && name.equals(namesByChecksum.get(entry.checksum))) {
+			namesByChecksum.remove(entry.checksum);
+		}
+		return entry == null ? null : entries.remove(name);
+	}
+	
+	private void retire(Entry entry) {
+		retired.remove(entry.checksum);
+		retired.put(entry.checksum, entry);
+		if (retired.size() > MAX_RETIRED_CHECKSUMS) {
+			Iterator<String> oldest = retired.keySet().iterator();
+			oldest.next();
+			oldest.remove();
+		}
+	}
+	
+	/**
+	 * Lists the directory again once the rescan interval has passed, to pick up changes made by someone else.
+	 */
+	private void rescanIfDue() {
+		ensureLoaded();
+		long now = System.currentTimeMillis();
+		if (now - scanTime >= rescanMillis || now < scanTime) {
+			reconcile();
+		}
+	}
+	
+	/**
+	 * Records a file that has just been placed in the archive directory.
+	 */
+	public synchronized void add(File file) {
+		add(file, null);
+	}
+	
+	/**
+	 * Records a file that has just been placed in the archive directory, along with its checksum.
+	 * @param checksum checksum of the content the file was archived from, or null if it is not known
+	 */
+	public synchronized void add(File file, String checksum) {
+		add(file, checksum, null);
+	}
+	
+	/**
+	 * Records a file that has just been placed in the archive directory, along with its checksums.
+	 * @param checksum checksum of the content the file was archived from, or null if it is not known
+	 * @param fileChecksum checksum of the archived file itself, or null if it is not known
+	 */
+	public synchronized void add(File file, String checksum, String fileChecksum) {
+		ensureLoaded();
+		put(new Entry(file.getName(), file.length(), System.currentTimeMillis(), checksum, fileChecksum));
+	}
+	
+	/**
+	 * Records a file that has just been removed from the archive directory.
+	 */
+	public synchronized void remove(String name) {
+		ensureLoaded();
+		Entry entry = unindex(name);
+		if (entry != null) {
+			append(REMOVE + SEPARATOR + name + "\n");
+			if (entry.checksum != null) {
+				retire(entry);
+				append(toRetiredLine(entry));
+			}
+		}
+	}
+	
+	/**
+	 * Brings the manifest in line with the directory, for use after files may have been deleted by a cleaner.
+	 */
+	public synchronized void reconcile() {
+		ensureLoaded();
+		if (rebuild()) {
+			compact();
+		}
+	}
+	
+	public synchronized boolean contains(String name) {
+		rescanIfDue();
+		return entries.containsKey(name);
+	}
+	
+	/**
+	 * @return the archived files, oldest first
+	 */
+	public synchronized File[] getFiles() {
+		rescanIfDue();
+		List<File> files = new ArrayList<File>(entries.size());
+		for (String name : entries.keySet()) {
+			files.add(new File(directory, name));
+		}
+		return files.toArray(new File[files.size()]);
+	}
+	
+	/**
+	 * @return what is known about the archived file, or null if it is not in the archive
+	 */
+	public synchronized Entry get(String name) {
+		ensureLoaded();
+		return entries.get(name);
+	}
+	
+	/**
+	 * @return true if a file with this checksum is in the archive, or was removed from it
+	 */
+	public synchronized boolean hasContent(String checksum) {
+		ensureLoaded();
+		return namesByChecksum.containsKey(checksum) || retired.containsKey(checksum);
+	}
+	
+	/**
+	 * Records that a file was not archived because the archive already had its content, or had it once.  
+	 * The reference keeps the size and file checksum of the archived file holding the content, so the name 
+	 * can be recorded remotely once that file has been uploaded, see {@link #getReferences()}.
+	 * @param name name the file would have been archived under
+	 * @param checksum checksum of the file's content
+	 * @return true if the reference was recorded, false if the content is not known, or its archived file 
+	 * was not checksummed so it can't be referred to
+	 */
+	public synchronized boolean addReference(String name, String checksum) {
+		ensureLoaded();
+		String archivedName = namesByChecksum.get(checksum);
+		Entry archived = archivedName == null ? retired.get(checksum) : entries.get(archivedName);
+		if (archived == null || archived.fileChecksum == null) {
+			return false;
+		} else if (name.equals(archivedName)) {
+			return true; // The same file archived again
+		} else if (name.contains(SEPARATOR) || name.contains("\n")) {
+			Log.w(LogUtil.TAG, "Archive file name can't be stored in manifest: " + name);
+			return false;
+		}
+		Entry reference = new Entry(name, archived.size, System.currentTimeMillis(), checksum, archived.fileChecksum);
+		references.put(name, reference);
+		append(toLine(REFERENCE, reference));
+		return true;
+	}
+	
+	/**
+	 * References whose content is still in the archive are left out, as it has not been uploaded yet.
+	 * @return references to content that has been removed from the archive, usually once uploaded, oldest first
+	 */
+	public synchronized List<Entry> getReferences() {
+		ensureLoaded();
+		List<Entry> removed = new ArrayList<Entry>();
+		for (Entry reference : references.values()) {
+			if (!namesByChecksum.containsKey(reference.checksum)) {
+				removed.add(reference);
+			}
+		}
+		return removed;
+	}
+	
+	/**
+	 * Forgets a reference, once it has been recorded remotely.
+	 */
+	public synchronized void removeReference(String name) {
+		ensureLoaded();
+		if (references.remove(name) != null) {
+			append(UNREFERENCE + SEPARATOR + name + "\n");
+		}
+	}
+	
+	/**
+	 * Formats a digest as the lower case hex checksum stored in the manifest.
+	 */
+	public static String toChecksum(byte[] digest) {
+		StringBuilder checksum = new StringBuilder(digest.length * 2);
+		for (byte b : digest) {
+			checksum.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return checksum.toString();
+	}
+	
+	public synchronized void close() {
+		IOUtil.close(out);
+		out = null;
+	}
+	
+	/**
+	 * What is known about an archived file.  For a reference the name is that of the file referring to the content, 
+	 * and the size and file checksum are those of the archived file holding it.
+	 */
+	public static class Entry {
+		public final String name;
+		public final long size;
+		public final long created;
+		/**
+		 * Checksum of the content the file was archived from, used to recognize duplicate content, 
+		 * or null if it has not been computed.
+		 */
+		public final String checksum;
+		/**
+		 * Checksum of the archived file as stored, which differs from the content checksum when the archive 
+		 * encrypts or compresses files, or null if it has not been computed.
+		 */
+		public final String fileChecksum;
+		
+		private Entry(String name, long size, long created, String checksum, String fileChecksum) {
+			this.name = name;
+			this.size = size;
+			this.created = created;
+			this.checksum = checksum;
+			this.fileChecksum = fileChecksum;
+		}
+	}
+}
@@ -24,13 +24,19 @@
 package edu.mit.media.funf.storage;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.mit.media.funf.storage.FileArchive.ChecksummedFileArchive;
+import edu.mit.media.funf.storage.FileArchive.DeduplicatingFileArchive;
+import edu.mit.media.funf.storage.FileArchive.MovingFileArchive;
 
 /**
  * Delegates all actions to archive.  Adds an item to the backup archive before removing from the archive.
  * It is up to the backup archive to determine when those items will remove themselves.
  *
  */
-public class BackedUpArchive implements FileArchive {
+public class BackedUpArchive implements MovingFileArchive, ChecksummedFileArchive, DeduplicatingFileArchive {
 
 	private final FileArchive archive, backupArchive;
 	
@@ -44,6 +50,11 @@ public class BackedUpArchive implements FileArchive {
 		return archive.add(item);
 	}
 
+	@Override
+	public boolean move(File item) {
+		return DefaultArchive.move(archive, item);
+	}
+
 	@Override
 	public File[] getAll() {
 		return archive.getAll();
@@ -53,10 +64,29 @@ public class BackedUpArchive implements FileArchive {
 	public boolean contains(File item) {
 		return archive.contains(item);
 	}
+	
+	@Override
+	public String getChecksum(File item) {
+		return DefaultArchive.getChecksum(archive, item);
+	}
+
+	@Override
+	public List<ArchiveManifest.Entry> getReferences() {
+		return (archive instanceof DeduplicatingFileArchive) 
+				? ((DeduplicatingFileArchive)archive).getReferences() : new ArrayList<ArchiveManifest.Entry>();
+	}
+	
+	@Override
+	public void removeReference(String name) {
+		if (archive instanceof DeduplicatingFileArchive) {
+			((DeduplicatingFileArchive)archive).removeReference(name);
+		}
+	}
 
 	@Override
 	public boolean remove(File item) {
-		if (archive.contains(item)) {
+		// Skip files already backed up when they were archived, see TeeFileArchive
+		if (archive.contains(item) && !backupArchive.contains(item)) {
 			backupArchive.add(item);
 		}
 		return archive.remove(item);
@@ -0,0 +1,91 @@
+/**
+ *
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ *
+ * This file is part of Funf.
+ *
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package edu.mit.media.funf.storage;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Token bucket that limits the rate bytes are sent at.  Tokens accumulate at the configured rate up to
+ * the burst size, and writers wait until there are tokens for what they send.  One limiter can be
+ * shared by several concurrent uploads, which then share its bandwidth.
+ */
+public class BandwidthLimiter {
+
+	private final long bytesPerSecond;
+	private final long burstBytes;
+	
+	private double tokens;
+	private long lastRefillNanos;
+	
+	/**
+	 * @param bytesPerSecond average rate
+	 * @param burstBytes maximum bytes sent at once after being idle
+	 */
+	public BandwidthLimiter(long bytesPerSecond, long burstBytes) {
+		this.bytesPerSecond = Math.max(1L, bytesPerSecond);
+		this.burstBytes = Math.max(1L, burstBytes);
+		this.tokens = this.burstBytes;
+		this.lastRefillNanos = System.nanoTime();
+	}
+	
+	/**
+	 * Allows a burst of one second of data.
+	 */
+	public BandwidthLimiter(long bytesPerSecond) {
+		this(bytesPerSecond, bytesPerSecond);
+	}
+	
+	public long getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+	
+	/**
+	 * @return largest write that should be made at once, so data is sent smoothly instead of in long bursts
+	 */
+	public int getMaxWrite() {
+		return (int)Math.min(Integer.MAX_VALUE, burstBytes);
+	}
+	
+	/**
+	 * Takes tokens for the bytes, waiting until the bucket has refilled enough to send them.
+	 */
+	public void acquire(int bytes) throws InterruptedIOException {
+		long waitNanos;
+		synchronized (this) {
+			long now = System.nanoTime();
+			tokens = Math.min(burstBytes, tokens + (now - lastRefillNanos) * bytesPerSecond / 1e9);
+			lastRefillNanos = now;
+			// Take the tokens now, so concurrent writers queue up behind each other
+			tokens -= bytes;
+			waitNanos = tokens < 0 ? (long)(-tokens * 1e9 / bytesPerSecond) : 0L;
+		}
+		if (waitNanos > 0) {
+			try {
+				Thread.sleep(waitNanos / 1000000L, (int)(waitNanos % 1000000L));
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+			}
+		}
+	}
+}
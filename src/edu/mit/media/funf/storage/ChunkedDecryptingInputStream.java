@@ -0,0 +1,138 @@
+/**
+ *
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ *
+ * This file is part of Funf.
+ *
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package edu.mit.media.funf.storage;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * Streams the plain text of data written by {@link ChunkedEncryptingOutputStream}, decrypting and
+ * authenticating one chunk at a time.  Throws an IOException if any chunk has been modified, reordered
+ * or removed, or if the stream ends before the last chunk.
+ */
+public class ChunkedDecryptingInputStream extends InputStream {
+
+	private final DataInputStream in;
+	private final SecretKey key;
+	private final int flags;
+	private final int chunkSize;
+	private byte[] plainText = new byte[0];
+	private int position = 0;
+	private int chunkIndex = 0;
+	private boolean lastRead = false;
+	
+	public ChunkedDecryptingInputStream(InputStream in, SecretKey key) throws IOException {
+		this.in = new DataInputStream(in);
+		byte[] magic = new byte[ChunkedEncryptingOutputStream.MAGIC.length];
+		this.in.readFully(magic);
+		if (!Arrays.equals(ChunkedEncryptingOutputStream.MAGIC, magic)) {
+			throw new IOException("Not a chunked encrypted file");
+		}
+		this.flags = this.in.readUnsignedByte();
+		this.chunkSize = this.in.readInt();
+		byte[] salt = new byte[ChunkedEncryptingOutputStream.SALT_LENGTH];
+		this.in.readFully(salt);
+		// A modified header derives a different key, so the first chunk fails authentication
+		this.key = ChunkedEncryptingOutputStream.deriveKey(key, ChunkedEncryptingOutputStream.getHeader(flags, chunkSize, salt));
+	}
+	
+	/**
+	 * @return the flags given when the data was encrypted
+	 */
+	public int getFlags() {
+		return flags;
+	}
+	
+	private boolean nextChunk() throws IOException {
+		if (lastRead) {
+			if (in.read() != -1) {
+				throw new IOException("Data after the last chunk");
+			}
+			return false;
+		}
+		int header;
+		try {
+			header = in.readInt();
+		} catch (EOFException e) {
+			throw new IOException("Truncated before the last chunk");
+		}
+		boolean last = (header & ChunkedEncryptingOutputStream.LAST_CHUNK_FLAG) != 0;
+		int length = header & ~ChunkedEncryptingOutputStream.LAST_CHUNK_FLAG;
+		if (length > chunkSize + ChunkedEncryptingOutputStream.TAG_BITS / 8) {
+			throw new IOException("Chunk larger than the chunk size");
+		}
+		byte[] cipherText = new byte[length];
+		in.readFully(cipherText);
+		try {
+			Cipher cipher = ChunkedEncryptingOutputStream.getCipher();
+			cipher.init(Cipher.DECRYPT_MODE, key, ChunkedEncryptingOutputStream.getParameterSpec(
+					ChunkedEncryptingOutputStream.getNonce(chunkIndex++, last)));
+			plainText = cipher.doFinal(cipherText);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Chunk " + (chunkIndex - 1) + " failed authentication");
+		}
+		position = 0;
+		lastRead = last;
+		return true;
+	}
+	
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		while (position == plainText.length) {
+			if (!nextChunk()) {
+				return -1;
+			}
+		}
+		int count = Math.min(len, plainText.length - position);
+		System.arraycopy(plainText, position, b, off, count);
+		position += count;
+		return count;
+	}
+	
+	@Override
+	public int available() {
+		return plainText.length - position;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+}
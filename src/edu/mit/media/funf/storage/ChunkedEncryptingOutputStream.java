@@ -0,0 +1,266 @@
+/**
+ *
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ *
+ * This file is part of Funf.
+ *
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package edu.mit.media.funf.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts a stream as a sequence of fixed size chunks, each sealed with AES-GCM, so every chunk is
+ * authenticated on its own and chunks can be encrypted in parallel.  Chunks are handed to an executor
+ * as they fill, and written in order with at most a fixed number in flight, bounding memory use.
+ * 
+ * Format: the magic bytes "FNG2", a flags byte, the int chunk size and a random 12 byte salt, then
+ * for each chunk an int ciphertext length, with the high bit set on the last chunk, and the ciphertext
+ * including its 16 byte tag.  Chunks are encrypted with a per-file key, the HMAC-SHA256 of the whole header
+ * under the given key, so a modified header fails to decrypt and nonces are never shared between files.
+ * Each chunk's 12 byte nonce is the int chunk index and a byte that is 1 for the last chunk, so reordered,
+ * dropped or truncated chunks fail to decrypt.
+ * Read with {@link ChunkedDecryptingInputStream}.
+ */
+public class ChunkedEncryptingOutputStream extends OutputStream {
+
+	static final byte[] MAGIC = {'F', 'N', 'G', '2'};
+	static final String TRANSFORMATION = "AES/GCM/NoPadding";
+	static final String KEY_DERIVATION = "HmacSHA256";
+	static final int SALT_LENGTH = 12;
+	static final int NONCE_LENGTH = 12;
+	static final int TAG_BITS = 128;
+	static final int LAST_CHUNK_FLAG = 0x80000000;
+	public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+	
+	private static final SecureRandom random = new SecureRandom();
+	private static final ThreadLocal<Cipher> ciphers = new ThreadLocal<Cipher>();
+	
+	private final DataOutputStream out;
+	private final SecretKey key;
+	private final ExecutorService executor;
+	private final int maxInFlight;
+	private final LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+	private final LinkedList<Boolean> pendingLast = new LinkedList<Boolean>();
+	private byte[] chunk;
+	private int chunkLength = 0;
+	private int chunkIndex = 0;
+	private boolean closed = false;
+	
+	/**
+	 * @param out stream to write the encrypted format to
+	 * @param key AES key
+	 * @param flags stored in the header for the reader, such as whether the plain text is compressed
+	 * @param chunkSize number of plain text bytes per chunk
+	 * @param executor executor to encrypt chunks on, or null to encrypt on the writing thread
+	 * @param maxInFlight maximum number of chunks being encrypted or waiting to be written
+	 */
+	public ChunkedEncryptingOutputStream(OutputStream out, SecretKey key, int flags, int chunkSize, ExecutorService executor, int maxInFlight) throws IOException {
+		this.out = new DataOutputStream(out);
+		this.executor = executor;
+		this.maxInFlight = Math.max(1, maxInFlight);
+		this.chunk = new byte[chunkSize];
+		byte[] salt = new byte[SALT_LENGTH];
+		random.nextBytes(salt);
+		byte[] header = getHeader(flags, chunkSize, salt);
+		this.key = deriveKey(key, header);
+		this.out.write(header);
+	}
+	
+	static byte[] getHeader(int flags, int chunkSize, byte[] salt) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream header = new DataOutputStream(bytes);
+		header.write(MAGIC);
+		header.writeByte(flags);
+		header.writeInt(chunkSize);
+		header.write(salt);
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * @return AES key the same size as the given key, for the file with this header
+	 */
+	static SecretKey deriveKey(SecretKey key, byte[] header) throws IOException {
+		byte[] keyBytes = key.getEncoded();
+		try {
+			Mac mac = Mac.getInstance(KEY_DERIVATION);
+			mac.init(new SecretKeySpec(keyBytes, KEY_DERIVATION));
+			return new SecretKeySpec(mac.doFinal(header), 0, keyBytes.length, "AES");
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Unable to derive file key: " + e.getMessage());
+		}
+	}
+	
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] {(byte)b}, 0, 1);
+	}
+	
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+		while (len > 0) {
+			if (chunkLength == chunk.length) {
+				// Only sent once more data arrives, since the last chunk must be marked
+				submit(false);
+			}
+			int count = Math.min(len, chunk.length - chunkLength);
+			System.arraycopy(b, off, chunk, chunkLength, count);
+			chunkLength += count;
+			off += count;
+			len -= count;
+		}
+	}
+	
+	private void submit(final boolean last) throws IOException {
+		final byte[] plainText = chunk;
+		final int length = chunkLength;
+		final byte[] nonce = getNonce(chunkIndex++, last);
+		try {
+			if (executor == null) {
+				writeChunk(encrypt(plainText, length, nonce), last);
+			} else {
+				pending.add(executor.submit(new Callable<byte[]>() {
+					@Override
+					public byte[] call() throws GeneralSecurityException {
+						return encrypt(plainText, length, nonce);
+					}
+				}));
+				pendingLast.add(last);
+				while (pending.size() >= maxInFlight) {
+					writeNext();
+				}
+			}
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Unable to encrypt chunk: " + e.getMessage());
+		}
+		chunk = last ? null : new byte[plainText.length];
+		chunkLength = 0;
+	}
+	
+	private byte[] encrypt(byte[] plainText, int length, byte[] nonce) throws GeneralSecurityException {
+		Cipher cipher = getCipher();
+		cipher.init(Cipher.ENCRYPT_MODE, key, getParameterSpec(nonce));
+		return cipher.doFinal(plainText, 0, length);
+	}
+	
+	private void writeNext() throws IOException {
+		try {
+			writeChunk(pending.removeFirst().get(), pendingLast.removeFirst());
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while encrypting");
+		} catch (ExecutionException e) {
+			throw new IOException("Unable to encrypt chunk: " + e.getCause());
+		}
+	}
+	
+	private void writeChunk(byte[] cipherText, boolean last) throws IOException {
+		out.writeInt(cipherText.length | (last ? LAST_CHUNK_FLAG : 0));
+		out.write(cipherText);
+	}
+	
+	/**
+	 * Encrypts the remaining data as the last chunk, and waits for every chunk to be written.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			submit(true);
+			while (!pending.isEmpty()) {
+				writeNext();
+			}
+		} finally {
+			for (Future<byte[]> future : pending) {
+				future.cancel(true);
+			}
+			out.close();
+		}
+	}
+	
+	static byte[] getNonce(int index, boolean last) {
+		byte[] nonce = new byte[NONCE_LENGTH];
+		nonce[0] = (byte)(index >>> 24);
+		nonce[1] = (byte)(index >>> 16);
+		nonce[2] = (byte)(index >>> 8);
+		nonce[3] = (byte)index;
+		nonce[4] = (byte)(last ? 1 : 0);
+		return nonce;
+	}
+	
+	/**
+	 * @return this thread's cipher, since cipher instances are not thread safe
+	 */
+	static Cipher getCipher() throws GeneralSecurityException {
+		Cipher cipher = ciphers.get();
+		if (cipher == null) {
+			cipher = Cipher.getInstance(TRANSFORMATION);
+			ciphers.set(cipher);
+		}
+		return cipher;
+	}
+	
+	private static Constructor<?> gcmSpecConstructor;
+	private static boolean gcmSpecLoaded = false;
+	
+	/**
+	 * GCMParameterSpec is only available from API 19, older providers accept the nonce as an IvParameterSpec.
+	 */
+	static synchronized AlgorithmParameterSpec getParameterSpec(byte[] nonce) {
+		if (!gcmSpecLoaded) {
+			try {
+				gcmSpecConstructor = Class.forName("javax.crypto.spec.GCMParameterSpec").getConstructor(int.class, byte[].class);
+			} catch (Exception e) {
+				gcmSpecConstructor = null;
+			}
+			gcmSpecLoaded = true;
+		}
+		if (gcmSpecConstructor != null) {
+			try {
+				return (AlgorithmParameterSpec)gcmSpecConstructor.newInstance(TAG_BITS, nonce);
+			} catch (Exception e) {
+				// Fall through to the older form
+			}
+		}
+		return new IvParameterSpec(nonce);
+	}
+}
@@ -28,11 +28,14 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 
+import edu.mit.media.funf.storage.FileArchive.ChecksummedFileArchive;
+import edu.mit.media.funf.storage.FileArchive.MovingFileArchive;
+
 /**
  * Attempts to use the first archive. If that fails, continues down the list until a successful archive is reached.
  *
  */
-public class CompositeFileArchive implements FileArchive {
+public class CompositeFileArchive implements MovingFileArchive, ChecksummedFileArchive {
 
 	private final FileArchive[] archives;
 	
@@ -51,6 +54,16 @@ public class CompositeFileArchive implements FileArchive {
 		return false;
 	}
 
+	@Override
+	public boolean move(File item) {
+		for (FileArchive archive : archives) {
+			if(DefaultArchive.move(archive, item)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	@Override
 	public File[] getAll() {
 		// Merge files from all archives, ignoring duplicates
@@ -84,5 +97,16 @@ public class CompositeFileArchive implements FileArchive {
 		}
 		return false;
 	}
+	
+	@Override
+	public String getChecksum(File item) {
+		for (FileArchive archive : archives) {
+			String checksum = DefaultArchive.getChecksum(archive, item);
+			if (checksum != null) {
+				return checksum;
+			}
+		}
+		return null;
+	}
 
 }
@@ -0,0 +1,262 @@
+/**
+ *
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ *
+ * This file is part of Funf.
+ *
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package edu.mit.media.funf.storage;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import android.util.Log;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import edu.mit.media.funf.json.IJsonObject;
+import edu.mit.media.funf.util.IOUtil;
+import edu.mit.media.funf.util.LogUtil;
+
+/**
+ * Append only write-ahead journal of probe data that has been received but may not yet be in the database.
+ * Records are written to the operating system before append returns, so they survive the process being killed,
+ * and are synced to disk in batches.  The journal is split into numbered segments, which are deleted once
+ * every record in them is known to be durably stored elsewhere.
+ */
+public class DataJournal {
+
+	private static final String SEGMENT_SUFFIX = ".journal";
+	public static final int DEFAULT_SEGMENT_RECORDS = 1000;
+	public static final int DEFAULT_SYNC_RECORDS = 50;
+	public static final long DEFAULT_SYNC_MILLIS = 1000L;
+
+	private final File journalDir;
+	private final int segmentRecords;
+	private final int syncRecords;
+	private final long syncMillis;
+
+	private long segment;
+	private int segmentCount = 0;
+	private FileOutputStream out = null;
+	private int unsyncedCount = 0;
+	private long lastSyncMillis = 0L;
+	private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream();
+	private final DataOutputStream recordOut = new DataOutputStream(recordBuffer);
+
+	public DataJournal(File journalDir) {
+		this(journalDir, DEFAULT_SEGMENT_RECORDS, DEFAULT_SYNC_RECORDS, DEFAULT_SYNC_MILLIS);
+	}
+
+	/**
+	 * @param journalDir directory holding only this journal's segments
+	 * @param segmentRecords number of records per segment, which bounds how much is kept before a checkpoint
+	 * @param syncRecords maximum number of records appended between syncs to disk
+	 * @param syncMillis maximum time between syncs to disk, checked when a record is appended
+	 */
+	public DataJournal(File journalDir, int segmentRecords, int syncRecords, long syncMillis) {
+		this.journalDir = journalDir;
+		this.segmentRecords = Math.max(1, segmentRecords);
+		this.syncRecords = Math.max(1, syncRecords);
+		this.syncMillis = syncMillis;
+		journalDir.mkdirs();
+		long[] existing = getSegments();
+		// Never append to a segment from a previous process, it may end in a partial record
+		this.segment = existing.length == 0 ? 0L : existing[existing.length - 1] + 1;
+	}
+
+	/**
+	 * Appends a record to the current segment.
+	 * @return true if the segment was closed after this record, and a checkpoint should be scheduled
+	 */
+	public synchronized boolean append(String probeType, IJsonObject data) {
+		try {
+			if (out == null) {
+				out = new FileOutputStream(getSegmentFile(segment), true);
+			}
+			recordBuffer.reset();
+			ProbeRecord.writeString(recordOut, probeType);
+			ProbeRecord.writeString(recordOut, data.toString());
+			recordBuffer.writeTo(out); // Single write, so a killed process leaves at most one partial record
+			segmentCount++;
+			unsyncedCount++;
+			long now = System.currentTimeMillis();
+			if (unsyncedCount >= syncRecords || now - lastSyncMillis >= syncMillis) {
+				sync();
+				lastSyncMillis = now;
+			}
+		} catch (IOException e) {
+			Log.e(LogUtil.TAG, "Unable to journal " + probeType + " data.", e);
+		}
+		if (segmentCount >= segmentRecords) {
+			roll();
+			return true;
+		}
+		return false;
+	}
+
+	private void sync() throws IOException {
+		if (out != null && unsyncedCount > 0) {
+			out.getFD().sync();
+			unsyncedCount = 0;
+		}
+	}
+
+	/**
+	 * Closes the current segment, so that records appended from now on go into a new one.
+	 * @return the id of the last closed segment
+	 */
+	public synchronized long roll() {
+		if (out != null) {
+			try {
+				sync();
+			} catch (IOException e) {
+				Log.e(LogUtil.TAG, "Unable to sync journal.", e);
+			}
+			IOUtil.close(out);
+			out = null;
+		}
+		segmentCount = 0;
+		return segment++;
+	}
+
+	/**
+	 * @return the id of the last closed segment, any segment up to and including this is no longer appended to
+	 */
+	public synchronized long getLastClosedSegment() {
+		return segment - 1;
+	}
+
+	/**
+	 * Deletes closed segments, once every record in them has been durably stored.
+	 * @param throughSegment the last segment id to delete
+	 */
+	public void deleteThrough(long throughSegment) {
+		for (long id : getSegments()) {
+			if (id <= throughSegment) {
+				getSegmentFile(id).delete();
+			}
+		}
+	}
+
+	/**
+	 * Reads every complete record in closed segments, oldest first.
+	 * Segments left by a previous process are always closed.
+	 * @param throughSegment the last segment id to read
+	 */
+	public List<Entry> read(long throughSegment) {
+		return read(Long.MIN_VALUE, throughSegment, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Reads complete records in a range of closed segments, oldest first.  Whole segments are read, stopping after 
+	 * the segment in which maxRecords is reached, so the segment of the last entry returned has been read completely.
+	 * @param fromSegment the first segment id to read
+	 * @param throughSegment the last segment id to read
+	 * @param maxRecords number of records after which no further segments are read
+	 */
+	public List<Entry> read(long fromSegment, long throughSegment, int maxRecords) {
+		List<Entry> entries = new ArrayList<Entry>();
+		for (long id : getSegments()) {
+			if (id < fromSegment || id > throughSegment) {
+				continue;
+			}
+			if (entries.size() >= maxRecords) {
+				break;
+			}
+			File segmentFile = getSegmentFile(id);
+			long maxLength = segmentFile.length();
+			DataInputStream in = null;
+			try {
+				in = new DataInputStream(new BufferedInputStream(new FileInputStream(segmentFile)));
+				while (true) {
+					String probeType = ProbeRecord.readString(in, maxLength);
+					String value = ProbeRecord.readString(in, maxLength);
+					try {
+						entries.add(new Entry(id, probeType, new IJsonObject(new JsonParser().parse(value).getAsJsonObject())));
+					} catch (JsonParseException e) {
+						Log.w(LogUtil.TAG, "Skipping unreadable journal record for " + probeType);
+					}
+				}
+			} catch (EOFException e) {
+				// End of segment, possibly with a partial record from a killed process
+			} catch (IOException e) {
+				Log.e(LogUtil.TAG, "Unable to read journal segment " + id, e);
+			} finally {
+				IOUtil.close(in);
+			}
+		}
+		return entries;
+	}
+
+	private long[] getSegments() {
+		String[] names = journalDir.list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String filename) {
+				return filename.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		if (names == null) {
+			return new long[0];
+		}
+		long[] ids = new long[names.length];
+		int count = 0;
+		for (String name : names) {
+			try {
+				ids[count] = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+				count++;
+			} catch (NumberFormatException e) {
+				Log.w(LogUtil.TAG, "Ignoring unknown journal file " + name);
+			}
+		}
+		long[] validIds = new long[count];
+		System.arraycopy(ids, 0, validIds, 0, count);
+		Arrays.sort(validIds);
+		return validIds;
+	}
+
+	private File getSegmentFile(long id) {
+		return new File(journalDir, String.format(Locale.US, "%019d%s", id, SEGMENT_SUFFIX));
+	}
+
+	/**
+	 * A journaled record along with the segment it was read from.
+	 */
+	public static class Entry extends ProbeRecord {
+		public final long segment;
+
+		private Entry(long segment, String probeType, IJsonObject data) {
+			super(probeType, data);
+			this.segment = segment;
+		}
+	}
+}
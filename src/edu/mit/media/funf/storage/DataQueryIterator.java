@@ -0,0 +1,250 @@
+/**
+ *
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ *
+ * This file is part of Funf.
+ *
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package edu.mit.media.funf.storage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.util.Log;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+import edu.mit.media.funf.json.IJsonObject;
+import edu.mit.media.funf.storage.FileCopier.DecodingFileCopier;
+import edu.mit.media.funf.util.IOUtil;
+import edu.mit.media.funf.util.LogUtil;
+
+/**
+ * Streams probe data in a time range out of one or more data databases, in the order given and by
+ * timestamp within each database.  Each database is opened read only on its own connection when the
+ * previous one is exhausted, and rows are read through a cursor, so memory use does not grow with
+ * the number of results.  Encrypted or compressed archives are decoded one at a time to a temporary file 
+ * when a decoder is given.  Files that still cannot be opened as a database are skipped.
+ * 
+ * Callers must close the iterator if they stop before it is exhausted.
+ */
+public class DataQueryIterator implements Iterator<IJsonObject>, Closeable {
+
+	private static final byte[] SQLITE_HEADER = "SQLite format 3\u0000".getBytes();
+	
+	private final List<File> databaseFiles;
+	private final DecodingFileCopier decoder;
+	private final File tempDir;
+	private final String probeName;
+	private final String[] timeArgs;
+	private final int limit;
+	
+	private int nextFileIndex = 0;
+	private int returnedCount = 0;
+	private SQLiteDatabase db = null;
+	private Cursor cursor = null;
+	private File decodedFile = null;
+	private IJsonObject next = null;
+	
+	/**
+	 * @param databaseFiles data databases to read, oldest first
+	 * @param probeType probe type to return data for, or null for all probes
+	 * @param fromTimestamp inclusive start of the time range, in seconds
+	 * @param toTimestamp exclusive end of the time range, in seconds
+	 * @param limit maximum number of records to return, or 0 for no limit
+	 */
+	public DataQueryIterator(List<File> databaseFiles, String probeType, double fromTimestamp, double toTimestamp, int limit) {
+		this(databaseFiles, null, null, probeType, fromTimestamp, toTimestamp, limit);
+	}
+	
+	/**
+	 * @param databaseFiles data databases to read, oldest first
+	 * @param decoder copier that wrote the files that are not plain databases, or null to skip them
+	 * @param tempDir directory to decode files into, only needed with a decoder
+	 * @param probeType probe type to return data for, or null for all probes
+	 * @param fromTimestamp inclusive start of the time range, in seconds
+	 * @param toTimestamp exclusive end of the time range, in seconds
+	 * @param limit maximum number of records to return, or 0 for no limit
+	 */
+	public DataQueryIterator(List<File> databaseFiles, DecodingFileCopier decoder, File tempDir, 
+			String probeType, double fromTimestamp, double toTimestamp, int limit) {
+		this.databaseFiles = new ArrayList<File>(databaseFiles);
+		this.decoder = decoder;
+		this.tempDir = tempDir;
+		this.limit = limit;
+		this.probeName = probeType == null ? null : new JsonPrimitive(probeType).toString(); // Names are stored as JSON strings
+		this.timeArgs = new String[] {String.valueOf(fromTimestamp), String.valueOf(toTimestamp)};
+	}
+	
+	@Override
+	public boolean hasNext() {
+		if (next == null) {
+			next = advance();
+		}
+		return next != null;
+	}
+
+	@Override
+	public IJsonObject next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		IJsonObject result = next;
+		next = null;
+		returnedCount++;
+		return result;
+	}
+	
+	private IJsonObject advance() {
+		while (limit <= 0 || returnedCount < limit) {
+			if (cursor != null && moveToNext()) {
+				try {
+					return new IJsonObject(new JsonParser().parse(cursor.getString(0)).getAsJsonObject());
+				} catch (JsonParseException e) {
+					Log.w(LogUtil.TAG, "Skipping unreadable data in " + databaseFiles.get(nextFileIndex - 1).getName());
+					continue;
+				} catch (IllegalStateException e) {
+					continue; // Not a JSON object
+				}
+			}
+			closeCurrent();
+			if (nextFileIndex >= databaseFiles.size()) {
+				break;
+			}
+			openNext();
+		}
+		close();
+		return null;
+	}
+	
+	private boolean moveToNext() {
+		try {
+			return cursor.moveToNext();
+		} catch (SQLiteException e) {
+			// Queries run lazily, so unreadable files can fail here rather than on open
+			Log.w(LogUtil.TAG, "Skipping unreadable database " + databaseFiles.get(nextFileIndex - 1).getName());
+			return false;
+		}
+	}
+	
+	private void openNext() {
+		File file = databaseFiles.get(nextFileIndex++);
+		if (!file.exists()) {
+			return;
+		}
+		File dbFile = file;
+		if (decoder != null && !isDatabaseFile(file)) {
+			try {
+				decodedFile = File.createTempFile("query", ".db", tempDir);
+			} catch (IOException e) {
+				Log.w(LogUtil.TAG, "Skipping " + file.getName() + ", unable to create a file to decode it to.");
+				return;
+			}
+			if (!decoder.decode(file, decodedFile)) {
+				Log.w(LogUtil.TAG, "Skipping undecodable archive " + file.getName());
+				closeCurrent();
+				return;
+			}
+			dbFile = decodedFile;
+		}
+		try {
+			db = SQLiteDatabase.openDatabase(dbFile.getAbsolutePath(), null, SQLiteDatabase.OPEN_READONLY);
+			String table = NameValueDatabaseHelper.DATA_TABLE.name;
+			String selection = NameValueDatabaseHelper.COLUMN_TIMESTAMP + " >= ? AND " + NameValueDatabaseHelper.COLUMN_TIMESTAMP + " < ?";
+			String[] selectionArgs = timeArgs;
+			if (probeName != null) {
+				String probeTable = NameValueDatabaseHelper.findProbeTable(db, probeName);
+				if (probeTable != null) {
+					table = probeTable;
+				} else if (NameValueDatabaseHelper.isPartitioned(db)) {
+					closeCurrent(); // Probe has no data in this file
+					return;
+				} else {
+					selection = NameValueDatabaseHelper.COLUMN_NAME + " = ? AND " + selection;
+					selectionArgs = new String[] {probeName, timeArgs[0], timeArgs[1]};
+				}
+			}
+			cursor = db.query(table, 
+					new String[] {NameValueDatabaseHelper.COLUMN_VALUE}, 
+					selection, selectionArgs, null, null, 
+					NameValueDatabaseHelper.COLUMN_TIMESTAMP, 
+					limit <= 0 ? null : String.valueOf(limit - returnedCount));
+		} catch (SQLiteException e) {
+			Log.w(LogUtil.TAG, "Skipping unreadable database " + file.getName());
+			closeCurrent();
+		}
+	}
+	
+	private void closeCurrent() {
+		if (cursor != null) {
+			cursor.close();
+			cursor = null;
+		}
+		if (db != null) {
+			db.close();
+			db = null;
+		}
+		if (decodedFile != null) {
+			decodedFile.delete();
+			decodedFile = null;
+		}
+	}
+	
+	private static boolean isDatabaseFile(File file) {
+		byte[] header = new byte[SQLITE_HEADER.length];
+		InputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			int offset = 0;
+			int count;
+			while (offset < header.length && (count = in.read(header, offset, header.length - offset)) > 0) {
+				offset += count;
+			}
+			return Arrays.equals(SQLITE_HEADER, header);
+		} catch (IOException e) {
+			return false;
+		} finally {
+			IOUtil.close(in);
+		}
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void close() {
+		closeCurrent();
+		nextFileIndex = databaseFiles.size();
+	}
+}
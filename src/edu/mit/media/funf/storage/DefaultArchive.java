@@ -30,12 +30,17 @@ import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.DESKeySpec;
 import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
 
 import android.content.Context;
+import android.util.Log;
 import edu.mit.media.funf.Schedule.DefaultSchedule;
 import edu.mit.media.funf.config.Configurable;
 import edu.mit.media.funf.security.Base64Coder;
+import edu.mit.media.funf.storage.FileArchive.ChecksummedFileArchive;
+import edu.mit.media.funf.storage.FileArchive.MovingFileArchive;
 import edu.mit.media.funf.util.FileUtil;
+import edu.mit.media.funf.util.LogUtil;
 import edu.mit.media.funf.util.NameGenerator;
 import edu.mit.media.funf.util.NameGenerator.CompositeNameGenerator;
 import edu.mit.media.funf.util.NameGenerator.RequiredSuffixNameGenerator;
@@ -49,25 +54,61 @@ import edu.mit.media.funf.util.StringUtil;
  * Archives are singletons by database name.
  */
 @DefaultSchedule(interval=3600)
-public class DefaultArchive implements FileArchive {
+public class DefaultArchive implements MovingFileArchive, ChecksummedFileArchive {
 
 	private static final String DES_ENCRYPTION = "DES";
+	public static final String AES_GCM_ENCRYPTION = "AES-GCM";
 	
 	private final static byte[] SALT = {
         (byte)0xa6, (byte)0xab, (byte)0x09, (byte)0x93,
         (byte)0xf4, (byte)0xcc, (byte)0xee, (byte)0x10
     };
 	private final static int ITERATION_COUNT = 135; // # of times password is hashed
+	private final static int AES_ITERATION_COUNT = 10000;
+	private final static int AES_KEY_BITS = 256;
 	
 	@Configurable
 	protected String name = "default";
 	
+	/**
+	 * Password to derive the encryption key from.  AES keys are derived with PBKDF2.
+	 */
 	@Configurable
 	protected String password;
 	
+	/**
+	 * Base64 encoded encryption key.  DES uses the first 8 bytes, AES needs a 16, 24 or 32 byte key.
+	 */
 	@Configurable
 	protected String key;
 	
+	/**
+	 * When true files are gzip compressed, and encrypted with AES instead of DES if a password or key is set.
+	 */
+	@Configurable
+	protected boolean compress = false;
+	
+	/**
+	 * Cipher used when a password or key is set, either DES, or AES-GCM for chunked authenticated
+	 * encryption spread across cores.
+	 */
+	@Configurable
+	protected String encryption = DES_ENCRYPTION;
+	
+	/**
+	 * When true files are backed up as they are archived, instead of as they are removed, 
+	 * writing the SD card archive and backup from a single read and encryption of the file.
+	 */
+	@Configurable
+	protected boolean backupOnAdd = false;
+	
+	/**
+	 * When true the archive directories keep a manifest of their files, so listing the archive 
+	 * for upload does not list the directories.
+	 */
+	@Configurable
+	protected boolean manifest = false;
+	
     protected Context context;
 	
 	public DefaultArchive() {
@@ -88,7 +129,7 @@ public class DefaultArchive implements FileArchive {
 	
 	/**
 	 * Set the encryption key using a password.  
-	 * Does not store the password, but instead uses it to derive a DES key to encrypt files.
+	 * Does not store the password, but instead uses it to derive a DES key, and a 256 bit AES key, to encrypt files.
 	 * @param encryptionPassword
 	 */
 	public void setEncryptionPassword(char[] encryptionPassword) { // Uses char[] instead of String to prevent caching
@@ -99,29 +140,55 @@ public class DefaultArchive implements FileArchive {
 		try {
 			SecretKeyFactory factory = SecretKeyFactory.getInstance("PBEWithMD5AndDES");
 			SecretKey secretKey = factory.generateSecret(keySpec);
-			setEncryptionKey(secretKey.getEncoded());
+			saveKey(toDesKey(secretKey.getEncoded()), toAesKey(encryptionPassword));
 		} catch (GeneralSecurityException e) {
 			throw new RuntimeException("Unable to encrypt data files.", e);
 		} 
 	  }
 	}
 	
+	/**
+	 * Sets the encryption key.  A 16, 24 or 32 byte key is also used as is for AES, shorter keys only work with DES.
+	 * @param encryptionKey
+	 */
 	public void setEncryptionKey(byte[] encryptionKey) {
 	  if (encryptionKey == null || encryptionKey.length == 0) {
-        saveKey(null);
+        saveKey(null, null);
       } else {
 		try {
-			DESKeySpec des = new DESKeySpec(encryptionKey);
-			SecretKey key = SecretKeyFactory.getInstance(DES_ENCRYPTION).generateSecret(des);
-			saveKey(key);
+			int length = encryptionKey.length;
+			SecretKey aesKey = (length == 16 || length == 24 || length == 32) ? new SecretKeySpec(encryptionKey, "AES") : null;
+			saveKey(toDesKey(encryptionKey), aesKey);
 		} catch (GeneralSecurityException e) {
 			throw new RuntimeException("Unable to build key for encryption", e);
 		} 
       }
 	}
 	
+	private static SecretKey toDesKey(byte[] encryptionKey) throws GeneralSecurityException {
+		DESKeySpec des = new DESKeySpec(encryptionKey);
+		return SecretKeyFactory.getInstance(DES_ENCRYPTION).generateSecret(des);
+	}
+	
+	/**
+	 * @return the AES key, or null if this platform can't derive one, in which case only DES can be used
+	 */
+	private static SecretKey toAesKey(char[] encryptionPassword) {
+		PBEKeySpec keySpec = new PBEKeySpec(encryptionPassword, SALT, AES_ITERATION_COUNT, AES_KEY_BITS);
+		try {
+			byte[] key = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1").generateSecret(keySpec).getEncoded();
+			return new SecretKeySpec(key, "AES");
+		} catch (GeneralSecurityException e) {
+			Log.w(LogUtil.TAG, "Unable to derive AES key from password, only DES encryption is available.", e);
+			return null;
+		} finally {
+			keySpec.clearPassword();
+		}
+	}
+	
 	
 	private SecretKey keyCache = null;
+	private SecretKey aesKeyCache = null;
 	public SecretKey getSecretKey() {
 	  if (keyCache == null) {
 	    if (key != null) {
@@ -133,8 +200,17 @@ public class DefaultArchive implements FileArchive {
 	  return keyCache; 
 	}
 	
-    private void saveKey(SecretKey secretKey) {
+    /**
+     * @return key for the AES ciphers, used when compressing or with AES-GCM, or null if none is set
+     */
+    public SecretKey getAesKey() {
+      getSecretKey();
+      return aesKeyCache;
+    }
+	
+    private void saveKey(SecretKey secretKey, SecretKey aesKey) {
       keyCache = secretKey;
+      aesKeyCache = aesKey;
       // Reset delegate archive, to reinitialize key
       delegateArchive = null;
       getDelegateArchive();
@@ -152,17 +228,21 @@ public class DefaultArchive implements FileArchive {
 		return FileUtil.getSdCardPath(context) + getCleanedName() + "/";
 	}
 	
+	private FileCopier fileCopier;
 	private FileArchive delegateArchive; // Cache
 	protected FileArchive getDelegateArchive() {
 		if (delegateArchive == null) {
 			synchronized (this) {
 				if (delegateArchive == null) {
 					SecretKey key = getSecretKey();
+					FileCopier copier = getFileCopier(key, compress);
+					fileCopier = copier;
 					String rootSdCardPath = getPathOnSDCard();
-					FileArchive backupArchive = FileDirectoryArchive.getRollingFileArchive(new File(rootSdCardPath + "backup"));
+					FileDirectoryArchive backupArchive = FileDirectoryArchive.getRollingFileArchive(new File(rootSdCardPath + "backup"));
+					FileDirectoryArchive sdCardArchive = getTimestampedDbFileArchive(new File(rootSdCardPath + "archive"), context, copier, manifest);
 					FileArchive mainArchive = new CompositeFileArchive(
-							getTimestampedDbFileArchive(new File(rootSdCardPath + "archive"), context, key),
-							getTimestampedDbFileArchive(context.getDir("funf_" + getCleanedName() + "_archive", Context.MODE_PRIVATE), context, key)
+							backupOnAdd ? new TeeFileArchive(sdCardArchive, backupArchive) : sdCardArchive,
+							getTimestampedDbFileArchive(context.getDir("funf_" + getCleanedName() + "_archive", Context.MODE_PRIVATE), context, copier, manifest)
 							);
 					delegateArchive = new BackedUpArchive(mainArchive, backupArchive);
 				}
@@ -171,10 +251,39 @@ public class DefaultArchive implements FileArchive {
 		return delegateArchive;
 	}
 	
-	static FileDirectoryArchive getTimestampedDbFileArchive(File archiveDir, Context context, SecretKey encryptionKey) {
+	/**
+	 * @return the copier the database archive writes files with, such as a {@link FileCopier.CompressedFileCopier} 
+	 * whose byte counts show how much compression saves
+	 */
+	public FileCopier getFileCopier() {
+		getDelegateArchive();
+		return fileCopier;
+	}
+	
+	/**
+	 * @param encryptionKey the DES key, or null if files are not encrypted.  AES ciphers use the matching AES key.
+	 * If an AES cipher is configured and only a DES key is set, files are encrypted with DES and not compressed.
+	 */
+	protected FileCopier getFileCopier(SecretKey encryptionKey, boolean compress) {
+		boolean aes = compress || AES_GCM_ENCRYPTION.equalsIgnoreCase(encryption);
+		SecretKey aesKey = aesKeyCache;
+		if (encryptionKey != null && aes && aesKey == null) {
+			Log.e(LogUtil.TAG, "AES encryption needs a password, or a 128, 192 or 256 bit key.  Encrypting archive '" 
+					+ name + "' with DES instead.");
+			return new FileCopier.EncryptedFileCopier(encryptionKey, DES_ENCRYPTION);
+		}
+		if (encryptionKey != null && AES_GCM_ENCRYPTION.equalsIgnoreCase(encryption)) {
+			return new FileCopier.ChunkedEncryptedFileCopier(aesKey, compress);
+		}
+		if (compress) {
+			return new FileCopier.CompressedFileCopier(encryptionKey == null ? null : aesKey);
+		}
+		return (encryptionKey == null) ? new FileCopier.SimpleFileCopier() : new FileCopier.EncryptedFileCopier(encryptionKey, DES_ENCRYPTION);
+	}
+	
+	static FileDirectoryArchive getTimestampedDbFileArchive(File archiveDir, Context context, FileCopier copier, boolean useManifest) {
 		NameGenerator nameGenerator = new CompositeNameGenerator(new SystemUniqueTimestampNameGenerator(context), new RequiredSuffixNameGenerator(".db"));
-		FileCopier copier = (encryptionKey == null) ? new FileCopier.SimpleFileCopier() : new FileCopier.EncryptedFileCopier(encryptionKey, DES_ENCRYPTION);
-		return new FileDirectoryArchive(archiveDir, nameGenerator, copier, new DirectoryCleaner.KeepAll());
+		return new FileDirectoryArchive(archiveDir, nameGenerator, copier, new DirectoryCleaner.KeepAll(), useManifest);
 	}
 	
 	@Override
@@ -182,10 +291,40 @@ public class DefaultArchive implements FileArchive {
 		return getDelegateArchive().add(item);
 	}
 
+	@Override
+	public boolean move(File item) {
+		return move(getDelegateArchive(), item);
+	}
+	
+	/**
+	 * Moves the item into the archive, or adds it and deletes it when the archive can't consume it.
+	 */
+	protected static boolean move(FileArchive archive, File item) {
+		if (archive instanceof MovingFileArchive) {
+			return ((MovingFileArchive)archive).move(item);
+		} else if (archive.add(item)) {
+			item.delete();
+			return true;
+		}
+		return false;
+	}
+
 	@Override
 	public boolean contains(File item) {
 		return getDelegateArchive().contains(item);
 	}
+	
+	@Override
+	public String getChecksum(File item) {
+		return getChecksum(getDelegateArchive(), item);
+	}
+	
+	/**
+	 * @return the checksum the archive keeps for the item, or null if it does not keep checksums
+	 */
+	protected static String getChecksum(FileArchive archive, File item) {
+		return (archive instanceof ChecksummedFileArchive) ? ((ChecksummedFileArchive)archive).getChecksum(item) : null;
+	}
 
 	@Override
 	public File[] getAll() {
@@ -26,8 +26,14 @@ package edu.mit.media.funf.storage;
 import java.io.File;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
 
 import android.os.StatFs;
+import android.util.Log;
+import edu.mit.media.funf.util.LogUtil;
 
 /**
  * Cleans unneeded files from directories
@@ -95,69 +101,236 @@ public interface DirectoryCleaner {
 	}
 	
 	/**
-	 * Keeps the total size of all files in the directory under the number of bytes specified
+	 * A cleaner that is told about files as they are added to and removed from the directory,
+	 * so it does not need to list the directory each time it cleans.
 	 */
-	public static class KeepUnderStorageLimit implements DirectoryCleaner {
-		private final long maxBytesToKeep;
+	public interface IncrementalDirectoryCleaner extends DirectoryCleaner {
+		
+		public void fileAdded(File file);
+		
+		public void fileRemoved(File file);
+	}
+	
+	/**
+	 * Keeps the total size of all files in the directory under the number of bytes specified, deleting the oldest first.
+	 * 
+	 * The size of the directory is kept in a running ledger along with the files ordered by age, built by listing the
+	 * directory once, and kept up to date as files are added and removed.  The directory is listed again every
+	 * rescan interval, to pick up changes made by someone else, or when a different directory is cleaned.  Hidden files, 
+	 * such as partially copied files, are not counted or deleted.  Files that cannot be deleted stay in the ledger.
+	 */
+	public static class KeepUnderStorageLimit implements IncrementalDirectoryCleaner {
+		
+		public static final long DEFAULT_RESCAN_MILLIS = 60 * 60 * 1000L;
+		
+		private long maxBytesToKeep;
+		private final long rescanMillis;
+		
+		private File directory = null;
+		private long scanTime = 0L;
+		private long totalBytes = 0L;
+		private final Map<String, LedgerEntry> entries = new HashMap<String, LedgerEntry>();
+		private final TreeSet<LedgerEntry> oldestFirst = new TreeSet<LedgerEntry>();
+		
 		public KeepUnderStorageLimit(long maxBytesToKeep) {
+			this(maxBytesToKeep, DEFAULT_RESCAN_MILLIS);
+		}
+		
+		/**
+		 * @param rescanMillis how long files added or removed by someone else can go unnoticed
+		 */
+		public KeepUnderStorageLimit(long maxBytesToKeep, long rescanMillis) {
+			this.maxBytesToKeep = maxBytesToKeep;
+			this.rescanMillis = rescanMillis;
+		}
+		
+		public synchronized void setMaxBytesToKeep(long maxBytesToKeep) {
 			this.maxBytesToKeep = maxBytesToKeep;
 		}
 		
 		@Override
-		public void clean(File directory) {
-			if (directory.isDirectory()) {
-				File[] files = directory.listFiles();
-				long bytesToDelete = size(directory) - maxBytesToKeep;
-				if (bytesToDelete > 0) {
-					Arrays.sort(files, new DescendingByLastModifiedComaparator());
-					for (int i=files.length; i>=0; i--) {
-						if (bytesToDelete > 0) {
-							bytesToDelete -= size(files[i]);
-							files[i].delete();
-						}
+		public synchronized void clean(File directory) {
+			long now = System.currentTimeMillis();
+			if (!directory.equals(this.directory) || now - scanTime >= rescanMillis || now < scanTime) {
+				rebuild(directory);
+				scanTime = now;
+			}
+			Iterator<LedgerEntry> oldest = oldestFirst.iterator();
+			while (totalBytes > maxBytesToKeep && oldest.hasNext()) {
+				LedgerEntry entry = oldest.next();
+				File file = new File(directory, entry.name);
+				if (file.delete() || !file.exists()) {
+					oldest.remove();
+					entries.remove(entry.name);
+					totalBytes -= entry.size;
+				} else {
+					Log.w(LogUtil.TAG, "Unable to delete " + file.getAbsolutePath() + " to stay under the storage limit.");
+				}
+			}
+		}
+		
+		@Override
+		public synchronized void fileAdded(File file) {
+			if (isTracked(file)) {
+				remove(file.getName());
+				add(file.getName(), size(file), file.lastModified());
+			}
+		}
+		
+		@Override
+		public synchronized void fileRemoved(File file) {
+			if (isTracked(file)) {
+				remove(file.getName());
+			}
+		}
+		
+		/**
+		 * @return the size of the files in the directory, as of the last clean
+		 */
+		public synchronized long getTotalBytes() {
+			return totalBytes;
+		}
+		
+		private boolean isTracked(File file) {
+			return directory != null && directory.equals(file.getParentFile()) && !file.isHidden();
+		}
+		
+		private void rebuild(File directory) {
+			this.directory = directory;
+			entries.clear();
+			oldestFirst.clear();
+			totalBytes = 0L;
+			File[] files = directory.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					if (!file.isHidden()) {
+						add(file.getName(), size(file), file.lastModified());
 					}
 				}
 			}
 		}
 		
+		private void add(String name, long size, long lastModified) {
+			LedgerEntry entry = new LedgerEntry(name, size, lastModified);
+			entries.put(name, entry);
+			oldestFirst.add(entry);
+			totalBytes += size;
+		}
+		
+		private void remove(String name) {
+			LedgerEntry entry = entries.remove(name);
+			if (entry != null) {
+				oldestFirst.remove(entry);
+				totalBytes -= entry.size;
+			}
+		}
+		
 		/**
 		 * Calculate the size of the file or directory recursively.
 		 * @param file
 		 */
-		private long size(File file) {
+		private static long size(File file) {
 			if (file.isDirectory()) {
 				long bytes = 0;
-				for (File childFile : file.listFiles()) {
-					bytes += size(childFile);
+				File[] childFiles = file.listFiles();
+				if (childFiles != null) {
+					for (File childFile : childFiles) {
+						bytes += size(childFile);
+					}
 				}
 				return bytes;
 			} else {
 				return file.length();
 			}
 		}
+		
+		private static class LedgerEntry implements Comparable<LedgerEntry> {
+			private final String name;
+			private final long size;
+			private final long lastModified;
+			
+			private LedgerEntry(String name, long size, long lastModified) {
+				this.name = name;
+				this.size = size;
+				this.lastModified = lastModified;
+			}
+			
+			@Override
+			public int compareTo(LedgerEntry another) {
+				if (lastModified != another.lastModified) {
+					return lastModified < another.lastModified ? -1 : 1;
+				}
+				return name.compareTo(another.name);
+			}
+		}
 	}
 	
 
 	/**
-	 * Cleans files to use only a certain percentage of the disk that is free
+	 * Cleans files to use only a certain percentage of the disk that is free.
+	 * The free space is cached for a short time, since it is checked every time a file is archived.
 	 */
-	public static class KeepUnderPercentageOfDiskFree implements DirectoryCleaner {
+	public static class KeepUnderPercentageOfDiskFree implements IncrementalDirectoryCleaner {
+		
+		public static final long DEFAULT_STAT_REFRESH_MILLIS = 60000L;
 
 		private final double percentageOfDiskFree;
 		private final long minBytesToKeep;
+		private final long statRefreshMillis;
+		private final KeepUnderStorageLimit storageLimit;
+		private String statPath = null;
+		private long statTime = 0L;
+		private long bytesAvailable = 0L;
 		
 		public KeepUnderPercentageOfDiskFree(double percentageOfDiskFree, long minBytesToKeep) {
+			this(percentageOfDiskFree, minBytesToKeep, DEFAULT_STAT_REFRESH_MILLIS);
+		}
+		
+		/**
+		 * @param statRefreshMillis how long the free space of the disk is cached for
+		 */
+		public KeepUnderPercentageOfDiskFree(double percentageOfDiskFree, long minBytesToKeep, long statRefreshMillis) {
 			assert percentageOfDiskFree > 0 && percentageOfDiskFree <= 1;
 			this.percentageOfDiskFree = percentageOfDiskFree;
 			this.minBytesToKeep = minBytesToKeep;
+			this.statRefreshMillis = statRefreshMillis;
+			this.storageLimit = new KeepUnderStorageLimit(minBytesToKeep);
 		}
 		
 		@Override
 		public void clean(File directory) {
+			long bytesToKeep = Math.max((long)(getBytesAvailable(directory) * percentageOfDiskFree), minBytesToKeep);
+			storageLimit.setMaxBytesToKeep(bytesToKeep);
+			storageLimit.clean(directory);
+		}
+		
+		private synchronized long getBytesAvailable(File directory) {
+			String path = directory.getAbsolutePath();
+			long now = System.currentTimeMillis();
+			if (!path.equals(statPath) || now - statTime >= statRefreshMillis || now < statTime) {
+				bytesAvailable = readBytesAvailable(directory);
+				statPath = path;
+				statTime = now;
+			}
+			return bytesAvailable;
+		}
+		
+		/**
+		 * @return the free space of the disk the directory is on
+		 */
+		protected long readBytesAvailable(File directory) {
 			StatFs stat = new StatFs(directory.getAbsolutePath());
-			long bytesAvailable = (long)stat.getAvailableBlocks() * (long)stat.getBlockSize();
-			long bytesToKeep = Math.max((long)(bytesAvailable * percentageOfDiskFree), minBytesToKeep);
-			new KeepUnderStorageLimit(bytesToKeep).clean(directory);
+			return (long)stat.getAvailableBlocks() * (long)stat.getBlockSize();
+		}
+		
+		@Override
+		public void fileAdded(File file) {
+			storageLimit.fileAdded(file);
+		}
+		
+		@Override
+		public void fileRemoved(File file) {
+			storageLimit.fileRemoved(file);
 		}
 		
 	}
@@ -165,7 +338,7 @@ public interface DirectoryCleaner {
 	/**
 	 * Applies all of the cleaning strategies to the directory
 	 */
-	public static class CompositeDirectoryCleaner implements DirectoryCleaner {
+	public static class CompositeDirectoryCleaner implements IncrementalDirectoryCleaner {
 
 		private final DirectoryCleaner[] cleaners;
 		
@@ -180,6 +353,24 @@ public interface DirectoryCleaner {
 			}
 		}
 		
+		@Override
+		public void fileAdded(File file) {
+			for(DirectoryCleaner cleaner : cleaners) {
+				if (cleaner instanceof IncrementalDirectoryCleaner) {
+					((IncrementalDirectoryCleaner)cleaner).fileAdded(file);
+				}
+			}
+		}
+		
+		@Override
+		public void fileRemoved(File file) {
+			for(DirectoryCleaner cleaner : cleaners) {
+				if (cleaner instanceof IncrementalDirectoryCleaner) {
+					((IncrementalDirectoryCleaner)cleaner).fileRemoved(file);
+				}
+			}
+		}
+		
 	}
 	
 	
@@ -24,6 +24,7 @@
 package edu.mit.media.funf.storage;
 
 import java.io.File;
+import java.util.List;
 
 
 /**
@@ -57,6 +58,49 @@ public interface FileArchive {
 	 */
 	public File[] getAll();
 	
+	/**
+	 * Archive that can consume the item it archives.  Callers of archives without it add the item and then delete it.
+	 */
+	public interface MovingFileArchive extends FileArchive {
+		
+		/**
+		 * Adds the item to the archive, consuming it.  Archives may rename the item into place
+		 * instead of copying it, which avoids reading the item when no transformation is needed.
+		 * @param item
+		 * @return true if archive was successful, in which case the item no longer exists
+		 */
+		public boolean move(File item);
+	}
 	
+	/**
+	 * Archive that keeps a checksum of each file as stored, so uploads can be verified.
+	 */
+	public interface ChecksummedFileArchive extends FileArchive {
+		
+		/**
+		 * @param item
+		 * @return lower case hex SHA-256 of the item as stored, computed when it was archived, or null if it is not known
+		 */
+		public String getChecksum(File item);
+	}
+	
+	/**
+	 * Archive that stores identical content once.  A file whose content the archive already has, or has had, 
+	 * is not stored again, a reference from its name to the archived content is kept instead.
+	 */
+	public interface DeduplicatingFileArchive extends FileArchive {
+		
+		/**
+		 * @return references to content that is no longer in the archive, usually because it has been uploaded, 
+		 * so they can be recorded remotely
+		 */
+		public List<ArchiveManifest.Entry> getReferences();
+		
+		/**
+		 * Forgets a reference once it has been recorded remotely.
+		 * @param name name of the file referring to the content
+		 */
+		public void removeReference(String name);
+	}
 
 }
\ No newline at end of file
@@ -25,6 +25,8 @@ package edu.mit.media.funf.storage;
 
 
 
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -33,8 +35,18 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.channels.FileChannel;
+import java.security.DigestInputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
 import javax.crypto.CipherOutputStream;
 import javax.crypto.SecretKey;
 
@@ -54,13 +66,65 @@ public interface FileCopier {
 	 */
 	public boolean copy(File sourceFile, File destinationFile);
 	
+	/**
+	 * A FileCopier that can write the same copy to several destinations, reading and transforming the source only once.
+	 */
+	public interface MultiFileCopier extends FileCopier {
+		
+		/**
+		 * Copy file from source to every destination, leaving destinations with identical content.
+		 * 
+		 * @param sourceFile
+		 * @param destinationFiles
+		 * @return true if every destination was written
+		 */
+		public boolean copy(File sourceFile, File[] destinationFiles);
+		
+		/**
+		 * Copy file from source to every destination, computing a digest of the source as it is read.
+		 * 
+		 * @param sourceFile
+		 * @param destinationFiles
+		 * @param digest updated with the content of the source file, or null
+		 * @return true if every destination was written
+		 */
+		public boolean copy(File sourceFile, File[] destinationFiles, MessageDigest digest);
+		
+		/**
+		 * Copy file from source to every destination, computing digests of the source as it is read and of the 
+		 * copy as it is written.  They differ when the copier transforms the content.
+		 * 
+		 * @param sourceFile
+		 * @param destinationFiles
+		 * @param sourceDigest updated with the content of the source file, or null
+		 * @param copyDigest updated with the content written to each destination, or null
+		 * @return true if every destination was written
+		 */
+		public boolean copy(File sourceFile, File[] destinationFiles, MessageDigest sourceDigest, MessageDigest copyDigest);
+	}
+	
+	/**
+	 * A FileCopier whose copies can be read back, such as to query archived databases on the device.
+	 */
+	public interface DecodingFileCopier extends FileCopier {
+		
+		/**
+		 * Writes the original content of a file this copier wrote.
+		 * 
+		 * @param copiedFile
+		 * @param destinationFile
+		 * @return true if the destination has the original content
+		 */
+		public boolean decode(File copiedFile, File destinationFile);
+	}
+	
 	
 	
 	/**
 	 * Basic FileCopier
 	 *
 	 */
-	public static class SimpleFileCopier implements FileCopier {
+	public static class SimpleFileCopier implements MultiFileCopier {
 		
 		@Override
 		public boolean copy(File srcFile, File dstFile) {
@@ -93,9 +157,49 @@ public interface FileCopier {
 			}
 			return true;
 		}
+		
+		@Override
+		public boolean copy(File srcFile, File[] dstFiles) {
+			return copy(srcFile, dstFiles, null);
+		}
+		
+		@Override
+		public boolean copy(File srcFile, File[] dstFiles, MessageDigest digest) {
+			return copy(srcFile, dstFiles, digest, null);
+		}
+		
+		@Override
+		public boolean copy(File srcFile, File[] dstFiles, MessageDigest sourceDigest, MessageDigest copyDigest) {
+			if (dstFiles.length == 1 && sourceDigest == null && copyDigest == null) {
+				return copy(srcFile, dstFiles[0]);
+			}
+			InputStream in = null;
+			OutputStream out = null;
+			try {
+				in = new FileInputStream(srcFile);
+				if (sourceDigest != null) {
+					in = new DigestInputStream(in, sourceDigest);
+				}
+				out = TeeOutputStream.open(dstFiles, copyDigest);
+				byte[] buf = new byte[64 * 1024];
+				int len;
+				while ((len = in.read(buf)) > 0) {
+					out.write(buf, 0, len);
+				}
+				out.close();
+				out = null;
+			} catch (IOException e) {
+				Log.e(LogUtil.TAG, "Error backing up file. " + e.getLocalizedMessage());
+				return false;
+			} finally {
+				IOUtil.close(in);
+				IOUtil.close(out);
+			}
+			return true;
+		}
 	}
 	
-	public static class EncryptedFileCopier implements FileCopier {
+	public static class EncryptedFileCopier implements MultiFileCopier, DecodingFileCopier {
 		public static final String TAG = EncryptedFileCopier.class.getName();
 		private final SecretKey key;
 		private final String transformation;
@@ -124,7 +228,22 @@ public interface FileCopier {
 		
 		@Override
 		public boolean copy(File sourceFile, File destinationFile) {
-			Log.i(TAG, "encrypting + copying " + sourceFile.getPath() + " to " + destinationFile.getPath());
+			return copy(sourceFile, new File[] {destinationFile});
+		}
+		
+		@Override
+		public boolean copy(File sourceFile, File[] destinationFiles) {
+			return copy(sourceFile, destinationFiles, null);
+		}
+		
+		@Override
+		public boolean copy(File sourceFile, File[] destinationFiles, MessageDigest digest) {
+			return copy(sourceFile, destinationFiles, digest, null);
+		}
+		
+		@Override
+		public boolean copy(File sourceFile, File[] destinationFiles, MessageDigest digest, MessageDigest copyDigest) {
+			Log.i(TAG, "encrypting + copying " + sourceFile.getPath() + " to " + Arrays.toString(destinationFiles));
 
 			Cipher ecipher = getCipher();
 			if (ecipher == null) {
@@ -136,7 +255,10 @@ public interface FileCopier {
 			CipherOutputStream co = null;
 			try {
 				in = new FileInputStream(sourceFile);
-				out = new FileOutputStream(destinationFile); 
+				if (digest != null) {
+					in = new DigestInputStream(in, digest);
+				}
+				out = TeeOutputStream.open(destinationFiles, copyDigest); 
 				co = new CipherOutputStream(out, ecipher);
 				byte[] buf = new byte[128*4096]; 
 				int len = 0; 
@@ -159,5 +281,327 @@ public interface FileCopier {
 			return true;
 		}
 		
+		@Override
+		public boolean decode(File copiedFile, File destinationFile) {
+			InputStream in = null;
+			OutputStream out = null;
+			try {
+				Cipher dcipher = Cipher.getInstance(transformation); // The cached cipher only encrypts
+				dcipher.init(Cipher.DECRYPT_MODE, key);
+				in = new CipherInputStream(new FileInputStream(copiedFile), dcipher);
+				out = new FileOutputStream(destinationFile);
+				byte[] buf = new byte[64 * 1024];
+				int len;
+				while ((len = in.read(buf)) > 0) {
+					out.write(buf, 0, len);
+				}
+				out.close();
+				out = null;
+				return true;
+			} catch (GeneralSecurityException e) {
+				Log.e(TAG, "Unable to decrypt " + copiedFile.getName(), e);
+				return false;
+			} catch (IOException e) {
+				Log.e(TAG, "Unable to decrypt " + copiedFile.getName(), e);
+				return false;
+			} finally {
+				IOUtil.close(in);
+				IOUtil.close(out);
+			}
+		}
+	}
+	
+	/**
+	 * Gzip compresses files, then optionally encrypts them with AES, in a single streaming pass.
+	 * Database files full of json typically shrink 5-10x, which saves both storage and upload bytes.
+	 * 
+	 * File format: the magic bytes "FNZ2", a flag byte that is 1 if encrypted, then if encrypted the gzip stream 
+	 * encrypted and authenticated with AES-GCM by a {@link ChunkedEncryptingOutputStream}, otherwise the gzip stream itself.
+	 * Use {@link #decode(InputStream, OutputStream, SecretKey)} to read files back.
+	 */
+	public static class CompressedFileCopier implements MultiFileCopier, DecodingFileCopier {
+		public static final String TAG = CompressedFileCopier.class.getName();
+		private static final byte[] MAGIC = {'F', 'N', 'Z', '2'};
+		private static final int BUFFER_SIZE = 64 * 1024;
+		
+		private final SecretKey key;
+		private long rawBytes = 0L;
+		private long compressedBytes = 0L;
+		
+		/**
+		 * @param key 128, 192 or 256 bit AES key, or null to compress without encrypting
+		 */
+		public CompressedFileCopier(SecretKey key) {
+			this.key = key == null ? null : checkAesKey(key);
+		}
+		
+		/**
+		 * Keys are used as given, weaker key material such as a DES key can't be stretched into a stronger key.
+		 * @throws IllegalArgumentException if the key is not a 128, 192 or 256 bit AES key
+		 */
+		static SecretKey checkAesKey(SecretKey key) {
+			byte[] encoded = key.getEncoded();
+			int length = encoded == null ? 0 : encoded.length;
+			if (!"AES".equalsIgnoreCase(key.getAlgorithm()) || (length != 16 && length != 24 && length != 32)) {
+				throw new IllegalArgumentException("Expected a 128, 192 or 256 bit AES key, not a " 
+						+ (length * 8) + " bit " + key.getAlgorithm() + " key");
+			}
+			return key;
+		}
+		
+		@Override
+		public boolean copy(File sourceFile, File destinationFile) {
+			return copy(sourceFile, new File[] {destinationFile});
+		}
+		
+		@Override
+		public boolean copy(File sourceFile, File[] destinationFiles) {
+			return copy(sourceFile, destinationFiles, null);
+		}
+		
+		@Override
+		public boolean copy(File sourceFile, File[] destinationFiles, MessageDigest digest) {
+			return copy(sourceFile, destinationFiles, digest, null);
+		}
+		
+		@Override
+		public boolean copy(File sourceFile, File[] destinationFiles, MessageDigest digest, MessageDigest copyDigest) {
+			InputStream in = null;
+			OutputStream out = null;
+			try {
+				in = new FileInputStream(sourceFile);
+				if (digest != null) {
+					in = new DigestInputStream(in, digest);
+				}
+				OutputStream fileOut = new BufferedOutputStream(TeeOutputStream.open(destinationFiles, copyDigest), BUFFER_SIZE);
+				out = fileOut;
+				fileOut.write(MAGIC);
+				fileOut.write(key == null ? 0 : 1);
+				if (key != null) {
+					// Encrypted on this thread, the copier is meant for cheap compression of small files
+					out = new ChunkedEncryptingOutputStream(fileOut, key, 0, ChunkedEncryptingOutputStream.DEFAULT_CHUNK_SIZE, null, 1);
+				}
+				out = new GZIPOutputStream(out, BUFFER_SIZE);
+				byte[] buf = new byte[BUFFER_SIZE];
+				int len;
+				while ((len = in.read(buf)) > 0) {
+					out.write(buf, 0, len);
+				}
+				out.close();
+				out = null;
+			} catch (IOException e) {
+				Log.e(TAG, "Unable to compress " + sourceFile.getName(), e);
+				return false;
+			} finally {
+				IOUtil.close(in);
+				IOUtil.close(out);
+			}
+			long raw = sourceFile.length();
+			long compressed = destinationFiles[0].length();
+			synchronized (this) {
+				rawBytes += raw;
+				compressedBytes += compressed;
+			}
+			Log.i(TAG, "compressed " + sourceFile.getName() + " from " + raw + " to " + compressed + " bytes");
+			return true;
+		}
+		
+		/**
+		 * @return total size of the files copied
+		 */
+		public synchronized long getRawBytes() {
+			return rawBytes;
+		}
+		
+		/**
+		 * @return total size of the compressed, and possibly encrypted, copies
+		 */
+		public synchronized long getCompressedBytes() {
+			return compressedBytes;
+		}
+		
+		@Override
+		public boolean decode(File copiedFile, File destinationFile) {
+			InputStream in = null;
+			OutputStream out = null;
+			try {
+				in = new FileInputStream(copiedFile);
+				out = new BufferedOutputStream(new FileOutputStream(destinationFile), BUFFER_SIZE);
+				decode(in, out, key);
+				out.close();
+				out = null;
+				return true;
+			} catch (GeneralSecurityException e) {
+				Log.e(TAG, "Unable to decode " + copiedFile.getName(), e);
+				return false;
+			} catch (IOException e) {
+				Log.e(TAG, "Unable to decode " + copiedFile.getName(), e);
+				return false;
+			} finally {
+				IOUtil.close(in);
+				IOUtil.close(out);
+			}
+		}
+		
+		/**
+		 * Reads back a file written by this copier.
+		 * @param key the key given to the copier, or null if the file is not encrypted
+		 * @throws IOException if the file is not a compressed archive file, or was modified after it was encrypted
+		 */
+		public static void decode(InputStream in, OutputStream out, SecretKey key) throws IOException, GeneralSecurityException {
+			DataInputStream header = new DataInputStream(in);
+			byte[] magic = new byte[MAGIC.length];
+			header.readFully(magic);
+			if (!Arrays.equals(MAGIC, magic)) {
+				throw new IOException("Not a compressed archive file");
+			}
+			InputStream data = in;
+			if (header.readUnsignedByte() == 1) {
+				if (key == null) {
+					throw new GeneralSecurityException("Archive file is encrypted");
+				}
+				data = new ChunkedDecryptingInputStream(in, checkAesKey(key));
+			}
+			InputStream gzipIn = new GZIPInputStream(data, BUFFER_SIZE);
+			byte[] buf = new byte[BUFFER_SIZE];
+			int len;
+			while ((len = gzipIn.read(buf)) > 0) {
+				out.write(buf, 0, len);
+			}
+			out.flush();
+		}
+	}
+	
+	/**
+	 * Encrypts files with AES-GCM in fixed size chunks, see {@link ChunkedEncryptingOutputStream}, optionally
+	 * gzip compressing them first.  Chunks are encrypted in parallel on a pool shared by all copiers,
+	 * with one thread per core.  Read files back with {@link #decode(InputStream, OutputStream, SecretKey)}.
+	 */
+	public static class ChunkedEncryptedFileCopier implements MultiFileCopier, DecodingFileCopier {
+		public static final String TAG = ChunkedEncryptedFileCopier.class.getName();
+		public static final int FLAG_COMPRESSED = 1;
+		private static final int BUFFER_SIZE = 64 * 1024;
+		
+		private static ExecutorService executor; // Shared
+		private static synchronized ExecutorService getExecutor() {
+			if (executor == null) {
+				executor = Executors.newFixedThreadPool(getThreadCount(), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, TAG);
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			}
+			return executor;
+		}
+		
+		private static int getThreadCount() {
+			return Runtime.getRuntime().availableProcessors();
+		}
+		
+		private final SecretKey key;
+		private final boolean compress;
+		private final int chunkSize;
+		
+		public ChunkedEncryptedFileCopier(SecretKey key, boolean compress) {
+			this(key, compress, ChunkedEncryptingOutputStream.DEFAULT_CHUNK_SIZE);
+		}
+		
+		/**
+		 * @param key 128, 192 or 256 bit AES key
+		 * @param compress true to gzip compress before encrypting
+		 * @param chunkSize number of plain text bytes per chunk
+		 */
+		public ChunkedEncryptedFileCopier(SecretKey key, boolean compress, int chunkSize) {
+			this.key = CompressedFileCopier.checkAesKey(key);
+			this.compress = compress;
+			this.chunkSize = chunkSize;
+		}
+		
+		@Override
+		public boolean copy(File sourceFile, File destinationFile) {
+			return copy(sourceFile, new File[] {destinationFile});
+		}
+		
+		@Override
+		public boolean copy(File sourceFile, File[] destinationFiles) {
+			return copy(sourceFile, destinationFiles, null);
+		}
+		
+		@Override
+		public boolean copy(File sourceFile, File[] destinationFiles, MessageDigest digest) {
+			return copy(sourceFile, destinationFiles, digest, null);
+		}
+		
+		@Override
+		public boolean copy(File sourceFile, File[] destinationFiles, MessageDigest digest, MessageDigest copyDigest) {
+			Log.i(TAG, "encrypting + copying " + sourceFile.getPath() + " to " + Arrays.toString(destinationFiles));
+			InputStream in = null;
+			OutputStream out = null;
+			try {
+				in = new FileInputStream(sourceFile);
+				if (digest != null) {
+					in = new DigestInputStream(in, digest);
+				}
+				out = new BufferedOutputStream(TeeOutputStream.open(destinationFiles, copyDigest), BUFFER_SIZE);
+				out = new ChunkedEncryptingOutputStream(out, key, compress ? FLAG_COMPRESSED : 0, chunkSize, 
+						getExecutor(), 2 * getThreadCount());
+				if (compress) {
+					out = new GZIPOutputStream(out, BUFFER_SIZE);
+				}
+				byte[] buf = new byte[BUFFER_SIZE];
+				int len;
+				while ((len = in.read(buf)) > 0) {
+					out.write(buf, 0, len);
+				}
+				out.close();
+				out = null;
+			} catch (IOException e) {
+				Log.e(TAG, "Unable to encrypt " + sourceFile.getName(), e);
+				return false;
+			} finally {
+				IOUtil.close(in);
+				IOUtil.close(out);
+			}
+			Log.i(TAG, "done copy");
+			return true;
+		}
+		
+		@Override
+		public boolean decode(File copiedFile, File destinationFile) {
+			InputStream in = null;
+			OutputStream out = null;
+			try {
+				in = new FileInputStream(copiedFile);
+				out = new BufferedOutputStream(new FileOutputStream(destinationFile), BUFFER_SIZE);
+				decode(in, out, key);
+				out.close();
+				out = null;
+				return true;
+			} catch (IOException e) {
+				Log.e(TAG, "Unable to decrypt " + copiedFile.getName(), e);
+				return false;
+			} finally {
+				IOUtil.close(in);
+				IOUtil.close(out);
+			}
+		}
+		
+		/**
+		 * Reads back a file written by this copier.
+		 * @param key the key given to the copier
+		 */
+		public static void decode(InputStream in, OutputStream out, SecretKey key) throws IOException {
+			ChunkedDecryptingInputStream decrypted = new ChunkedDecryptingInputStream(in, CompressedFileCopier.checkAesKey(key));
+			InputStream data = (decrypted.getFlags() & FLAG_COMPRESSED) != 0 ? new GZIPInputStream(decrypted, BUFFER_SIZE) : decrypted;
+			byte[] buf = new byte[BUFFER_SIZE];
+			int len;
+			while ((len = data.read(buf)) > 0) {
+				out.write(buf, 0, len);
+			}
+			out.flush();
+		}
 	}
 }
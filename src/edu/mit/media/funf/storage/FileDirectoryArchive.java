@@ -24,8 +24,22 @@
 package edu.mit.media.funf.storage;
 
 import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
 import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
 
+import android.util.Log;
+import edu.mit.media.funf.storage.FileArchive.ChecksummedFileArchive;
+import edu.mit.media.funf.storage.FileArchive.DeduplicatingFileArchive;
+import edu.mit.media.funf.storage.FileArchive.MovingFileArchive;
+import edu.mit.media.funf.util.IOUtil;
+import edu.mit.media.funf.util.LogUtil;
 import edu.mit.media.funf.util.NameGenerator;
 
 /**
@@ -33,19 +47,45 @@ import edu.mit.media.funf.util.NameGenerator;
  * A file may be able to be archived more than once depending on the nameGenerator strategy that is used.
  *
  */
-public class FileDirectoryArchive implements FileArchive {
+public class FileDirectoryArchive implements MovingFileArchive, ChecksummedFileArchive, DeduplicatingFileArchive {
 	public static final String TAG = FileDirectoryArchive.class.getName();
+	private static final String TEMP_SUFFIX = ".part";
+	private static final String CONTENT_DIGEST = "SHA-256";
 	
 	private final File archiveDir;
 	private final NameGenerator nameGenerator;
 	private final FileCopier fileCopier;
 	private final DirectoryCleaner cleaner;
+	private final ArchiveManifest manifest;
+	private final boolean deduplicate;
 	
 	public FileDirectoryArchive(File archiveDir, NameGenerator nameGenerator, FileCopier fileCopier, DirectoryCleaner cleaner) {
+		this(archiveDir, nameGenerator, fileCopier, cleaner, false);
+	}
+	
+	/**
+	 * @param useManifest true to keep an {@link ArchiveManifest} of the archived files, so the archive is listed
+	 * and queried from memory instead of by listing the directory
+	 */
+	public FileDirectoryArchive(File archiveDir, NameGenerator nameGenerator, FileCopier fileCopier, DirectoryCleaner cleaner, boolean useManifest) {
+		this(archiveDir, nameGenerator, fileCopier, cleaner, useManifest, false);
+	}
+	
+	/**
+	 * @param deduplicate true to skip files whose content is already in the archive, or has been removed from it.
+	 * A SHA-256 hash of each file is computed before it is copied and kept in the manifest, which implies useManifest.
+	 * Known content is then skipped without being copied, at the cost of reading new content twice.
+	 * A skipped file is recorded as a reference to the archived content, see {@link #getReferences()}.  Removed 
+	 * content is remembered for as long as the manifest keeps its checksum, so content captured again later is 
+	 * only ever referenced, never stored again.
+	 */
+	public FileDirectoryArchive(File archiveDir, NameGenerator nameGenerator, FileCopier fileCopier, DirectoryCleaner cleaner, boolean useManifest, boolean deduplicate) {
 		this.archiveDir = archiveDir;
 		this.nameGenerator = nameGenerator;
 		this.fileCopier = fileCopier;
 		this.cleaner = cleaner;
+		this.manifest = (useManifest || deduplicate) ? new ArchiveManifest(archiveDir) : null;
+		this.deduplicate = deduplicate;
 		archiveDir.mkdirs();
 	}
 	
@@ -58,32 +98,312 @@ public class FileDirectoryArchive implements FileArchive {
 	}
 	
 	
+	/**
+	 * Files are copied under a hidden temporary name, synced, and renamed when complete,
+	 * so an archive being read on another thread never sees a partially copied file, 
+	 * and the item can be deleted once it is archived.
+	 */
 	@Override
 	public boolean add(File item) {
 		this.archiveDir.mkdirs();
-		File archiveFile = new File(archiveDir, nameGenerator.generateName(item.getName()));
-		boolean result = fileCopier.copy(item, archiveFile);
-		cleaner.clean(archiveDir);
+		String archiveName = nameGenerator.generateName(item.getName());
+		File archiveFile = new File(archiveDir, archiveName);
+		File tempFile = new File(archiveDir, "." + archiveName + TEMP_SUFFIX);
+		MessageDigest fileDigest = getFileDigest();
+		if (deduplicate) {
+			// Hashed before copying, so known content is never copied or encrypted
+			MessageDigest digest = getContentDigest();
+			if (!digest(item, digest)) {
+				return false;
+			}
+			String checksum = ArchiveManifest.toChecksum(digest.digest());
+			if (manifest.hasContent(checksum)) {
+				Log.i(LogUtil.TAG, "Content of " + item.getName() + " is already archived, skipping.");
+				manifest.addReference(archiveName, checksum);
+				return true;
+			}
+			boolean result = copy(item, tempFile, null, fileDigest) && IOUtil.sync(tempFile) && tempFile.renameTo(archiveFile);
+			if (result) {
+				archived(archiveFile, checksum, toChecksum(fileDigest));
+			} else {
+				tempFile.delete();
+			}
+			clean();
+			return result;
+		}
+		boolean result = (fileDigest == null ? fileCopier.copy(item, tempFile) : copy(item, tempFile, null, fileDigest)) 
+				&& IOUtil.sync(tempFile) && tempFile.renameTo(archiveFile);
+		if (result) {
+			archived(archiveFile, null, toChecksum(fileDigest));
+		} else {
+			tempFile.delete();
+		}
+		clean();
+		return result;
+	}
+	
+	/**
+	 * Copies the item, digesting its content during the copy when the copier supports it.
+	 * @param fileDigest digest of the copy, only given when the copier supports it
+	 */
+	private boolean copy(File item, File tempFile, MessageDigest digest, MessageDigest fileDigest) {
+		if (fileCopier instanceof FileCopier.MultiFileCopier) {
+			return ((FileCopier.MultiFileCopier)fileCopier).copy(item, new File[] {tempFile}, digest, fileDigest);
+		}
+		return fileCopier.copy(item, tempFile) && (digest == null || digest(item, digest));
+	}
+	
+	/**
+	 * A digest of the archived file is computed as it is written, when there is a manifest to keep it in, 
+	 * and the copier can compute it without reading the file again.
+	 * @return the digest to compute, or null if none should be
+	 */
+	private MessageDigest getFileDigest() {
+		return (manifest != null && fileCopier instanceof FileCopier.MultiFileCopier) ? getContentDigest() : null;
+	}
+	
+	private static String toChecksum(MessageDigest digest) {
+		return digest == null ? null : ArchiveManifest.toChecksum(digest.digest());
+	}
+	
+	private static boolean digest(File item, MessageDigest digest) {
+		InputStream in = null;
+		try {
+			in = new FileInputStream(item);
+			byte[] buffer = new byte[64 * 1024];
+			int count;
+			while ((count = in.read(buffer)) > 0) {
+				digest.update(buffer, 0, count);
+			}
+			return true;
+		} catch (IOException e) {
+			Log.e(LogUtil.TAG, "Unable to read " + item.getName(), e);
+			return false;
+		} finally {
+			IOUtil.close(in);
+		}
+	}
+	
+	private static MessageDigest getContentDigest() {
+		try {
+			return MessageDigest.getInstance(CONTENT_DIGEST);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("Unable to hash archive content", e);
+		}
+	}
+	
+	/**
+	 * Adds the item to this archive, and writes the same archived file under the same name into each of the copies.
+	 * When this archive's copier is a {@link FileCopier.MultiFileCopier} the item is read and transformed only once,
+	 * and every destination is written from the same buffers.  Copies are best effort, a copy that cannot be written
+	 * does not stop the item from being added to this archive.
+	 * @return true if the item was added to this archive
+	 */
+	public boolean add(File item, FileDirectoryArchive... copies) {
+		if (copies.length == 0) {
+			return add(item);
+		}
+		this.archiveDir.mkdirs();
+		String archiveName = nameGenerator.generateName(item.getName());
+		File archiveFile = new File(archiveDir, archiveName);
+		if (!(fileCopier instanceof FileCopier.MultiFileCopier)) {
+			File tempFile = new File(archiveDir, "." + archiveName + TEMP_SUFFIX);
+			boolean result = fileCopier.copy(item, tempFile) && IOUtil.sync(tempFile) && tempFile.renameTo(archiveFile);
+			if (result) {
+				archived(archiveFile);
+				for (FileDirectoryArchive copy : copies) {
+					copy.addArchived(archiveFile);
+				}
+			} else {
+				tempFile.delete();
+			}
+			clean();
+			return result;
+		}
+		List<FileDirectoryArchive> destinations = new ArrayList<FileDirectoryArchive>();
+		destinations.add(this);
+		for (FileDirectoryArchive copy : copies) {
+			copy.archiveDir.mkdirs();
+			if (copy.archiveDir.isDirectory()) {
+				destinations.add(copy);
+			}
+		}
+		File[] tempFiles = new File[destinations.size()];
+		for (int i = 0; i < tempFiles.length; i++) {
+			tempFiles[i] = new File(destinations.get(i).archiveDir, "." + archiveName + TEMP_SUFFIX);
+		}
+		MessageDigest fileDigest = getFileDigest();
+		boolean result = ((FileCopier.MultiFileCopier)fileCopier).copy(item, tempFiles, null, fileDigest);
+		if (result) {
+			String fileChecksum = toChecksum(fileDigest); // Copies have the same content
+			result = IOUtil.sync(tempFiles[0]) && tempFiles[0].renameTo(archiveFile);
+			if (result) {
+				archived(archiveFile, null, fileChecksum);
+				// Copies are only put in place once this archive has the file, so falling back leaves none behind
+				for (int i = 1; i < tempFiles.length; i++) {
+					File copyFile = new File(destinations.get(i).archiveDir, archiveName);
+					if (IOUtil.sync(tempFiles[i]) && tempFiles[i].renameTo(copyFile)) {
+						destinations.get(i).archived(copyFile, null, fileChecksum);
+					} else {
+						Log.w(LogUtil.TAG, "Unable to copy " + archiveName + " to " + destinations.get(i).archiveDir);
+					}
+				}
+			}
+		}
+		for (int i = 0; i < tempFiles.length; i++) {
+			tempFiles[i].delete();
+			destinations.get(i).clean();
+		}
+		if (!result && tempFiles.length > 1) {
+			// One of the copies may have failed the whole write, fall back to this archive alone
+			Log.w(LogUtil.TAG, "Unable to write copies of " + item.getName() + ", archiving without them");
+			return add(item);
+		}
+		return result;
+	}
+	
+	/**
+	 * Copies a file that has already been archived elsewhere, keeping its name and content.
+	 */
+	private boolean addArchived(File archivedFile) {
+		this.archiveDir.mkdirs();
+		File tempFile = new File(archiveDir, "." + archivedFile.getName() + TEMP_SUFFIX);
+		File archiveFile = new File(archiveDir, archivedFile.getName());
+		boolean result = new FileCopier.SimpleFileCopier().copy(archivedFile, tempFile)
+				&& IOUtil.sync(tempFile) && tempFile.renameTo(archiveFile);
+		if (result) {
+			archived(archiveFile);
+		} else {
+			tempFile.delete();
+		}
+		clean();
 		return result;
 	}
 	
+	private void archived(File archiveFile) {
+		archived(archiveFile, null, null);
+	}
+	
+	private void archived(File archiveFile, String checksum, String fileChecksum) {
+		if (manifest != null) {
+			manifest.add(archiveFile, checksum, fileChecksum);
+		}
+		if (cleaner instanceof DirectoryCleaner.IncrementalDirectoryCleaner) {
+			((DirectoryCleaner.IncrementalDirectoryCleaner)cleaner).fileAdded(archiveFile);
+		}
+	}
+	
+	private void clean() {
+		cleaner.clean(archiveDir);
+		if (manifest != null && !(cleaner instanceof DirectoryCleaner.KeepAll)) {
+			manifest.reconcile(); // The cleaner may have deleted files
+		}
+	}
+	
+	/**
+	 * @return the manifest of archived files, or null if this archive does not keep one
+	 */
+	public ArchiveManifest getManifest() {
+		return manifest;
+	}
+	
+	/**
+	 * When files are copied unchanged, the item is renamed into the archive, which is atomic and does not
+	 * read the item if both are on the same filesystem.  Otherwise the item is copied and then deleted.
+	 */
+	@Override
+	public boolean move(File item) {
+		if (fileCopier instanceof FileCopier.SimpleFileCopier) {
+			this.archiveDir.mkdirs();
+			File archiveFile = new File(archiveDir, nameGenerator.generateName(item.getName()));
+			String checksum = null;
+			if (deduplicate) {
+				// Still a single read of the item, instead of a read and a write
+				MessageDigest digest = getContentDigest();
+				if (!digest(item, digest)) {
+					return false;
+				}
+				checksum = ArchiveManifest.toChecksum(digest.digest());
+				if (manifest.hasContent(checksum)) {
+					Log.i(LogUtil.TAG, "Content of " + item.getName() + " is already archived, skipping.");
+					manifest.addReference(archiveFile.getName(), checksum);
+					item.delete();
+					return true;
+				}
+			}
+			if (item.renameTo(archiveFile)) {
+				archived(archiveFile, checksum, checksum); // Renamed unchanged, so the content is the file
+				clean();
+				return true;
+			}
+			// Different filesystems, such as internal storage and the SD card
+		}
+		if (add(item)) {
+			item.delete();
+			return true;
+		}
+		return false;
+	}
+	
 	@Override
 	public File[] getAll() {
-		cleaner.clean(archiveDir);
-		File[] files = archiveDir.listFiles();
+		clean();
+		if (manifest != null) {
+			return manifest.getFiles();
+		}
+		File[] files = archiveDir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return !file.isHidden();
+			}
+		});
 		return (files == null) ? new File[0] : files;
 	}
 
 	@Override
 	public boolean remove(File item) {
 		if(contains(item)) {
-			return item.delete();
+			boolean removed = item.delete();
+			if (removed || !item.exists()) {
+				if (manifest != null) {
+					manifest.remove(item.getName());
+				}
+				if (cleaner instanceof DirectoryCleaner.IncrementalDirectoryCleaner) {
+					((DirectoryCleaner.IncrementalDirectoryCleaner)cleaner).fileRemoved(new File(archiveDir, item.getName()));
+				}
+			}
+			return removed;
 		}
 		return false;
 	}
 	
+	@Override
+	public String getChecksum(File item) {
+		if (manifest == null || !archiveDir.equals(item.getParentFile())) {
+			return null;
+		}
+		ArchiveManifest.Entry entry = manifest.get(item.getName());
+		return entry == null ? null : entry.fileChecksum;
+	}
+	
+	@Override
+	public List<ArchiveManifest.Entry> getReferences() {
+		return manifest == null ? new ArrayList<ArchiveManifest.Entry>() : manifest.getReferences();
+	}
+	
+	@Override
+	public void removeReference(String name) {
+		if (manifest != null) {
+			manifest.removeReference(name);
+		}
+	}
+	
+	@Override
 	public boolean contains(final File item) {
 		final String itemFilename = item.getName();
+		if (manifest != null) {
+			return manifest.contains(itemFilename);
+		}
 		String[] files = archiveDir.list(new FilenameFilter() {
 			@Override
 			public boolean accept(File dir, String filename) {
@@ -23,30 +23,67 @@
  */
 package edu.mit.media.funf.storage;
 
-import java.io.DataOutputStream;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.NetworkInfo.State;
 import android.util.Log;
 import edu.mit.media.funf.Schedule.DefaultSchedule;
 import edu.mit.media.funf.config.Configurable;
+import edu.mit.media.funf.storage.RemoteFileArchive.BatchRemoteFileArchive;
+import edu.mit.media.funf.storage.RemoteFileArchive.MeteredRemoteFileArchive;
+import edu.mit.media.funf.storage.RemoteFileArchive.ReferenceRemoteFileArchive;
+import edu.mit.media.funf.storage.RemoteFileArchive.VerifiedRemoteFileArchive;
 import edu.mit.media.funf.util.IOUtil;
 import edu.mit.media.funf.util.LogUtil;
 
 /**
  * Archives a file to the url specified using POST HTTP method.
- *
+ * 
+ * In resumable mode files are instead sent in fixed size chunks, so a dropped connection only loses the chunk 
+ * in flight.  The protocol follows the common resumable upload pattern:
+ * <ol>
+ * <li>POST to the url with an X-Upload-Name and X-Upload-Content-Length header and an empty body starts a session,
+ * the server replies 201 with the session url in the Location header.  When an X-Content-SHA256 header is sent 
+ * as well, the server may reply 200 without a Location header if it already has the file.  The reply must echo 
+ * the checksum in its own X-Content-SHA256 header, so a server that does not deduplicate is never taken to have 
+ * the file.</li>
+ * <li>Each chunk is PUT to the session url with a "Content-Range: bytes first-last/total" header.
+ * The server replies 308 with a "Range: bytes=0-last" header of everything it has stored, or 200/201 when complete.</li>
+ * <li>A PUT with "Content-Range: bytes &#42;/total" and an empty body asks the server how much it has stored.
+ * An empty file has no chunks, this PUT alone completes it.</li>
+ * </ol>
+ * Session urls are saved, so an upload interrupted by a restart of the process continues where the server left off.
+ * 
+ * References to content the server already has are recorded with a session request carrying the checksum, 
+ * and succeed when the server acknowledges it has the content as above.  They are only sent in resumable mode, 
+ * the multipart endpoint of a server without resumable uploads may accept any request.
  */
 @DefaultSchedule(interval=21600) // 6h
-public class HttpArchive implements RemoteFileArchive {
+public class HttpArchive implements BatchRemoteFileArchive, VerifiedRemoteFileArchive, MeteredRemoteFileArchive, 
+		ReferenceRemoteFileArchive {
 	
     @Configurable
 	private String url;
@@ -54,6 +91,37 @@ public class HttpArchive implements RemoteFileArchive {
     @Configurable
     private boolean wifiOnly = false;
     
+    /**
+     * When true files are uploaded in chunks that can be resumed after a failure, see class description.
+     */
+    @Configurable
+    private boolean resumable = false;
+    
+    /**
+     * Bytes per request in resumable mode.
+     */
+    @Configurable
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    
+    /**
+     * Upload rate limits keyed by network type name, such as "wifi" or "mobile".
+     * Uploads on networks without a limit are sent as fast as possible.
+     */
+    @Configurable
+    private Map<String, Long> maxBytesPerSecond = null;
+    
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+    private static final int STATUS_RESUME_INCOMPLETE = 308;
+    private static final String CHECKSUM_HEADER = "X-Content-SHA256";
+    private static final String LINE_END = "\r\n";
+    private static final String BOUNDARY = "*****";
+    private static final String MULTIPART_TAIL = LINE_END + "--" + BOUNDARY + "--" + LINE_END;
+    private static final String MAX_CHECKSUM = String.format(Locale.US, "%064d", 0); // Hex SHA-256 length
+    private static final int TIMEOUT_MILLIS = 60000;
+    
+    private final Map<String, String> sessions = new HashMap<String, String>(); // Cache of prefs
+    private final Map<String, BandwidthLimiter> limiters = new HashMap<String, BandwidthLimiter>();
+    
     private Context context;
     
 	@SuppressWarnings("unused")
@@ -80,6 +148,44 @@ public class HttpArchive implements RemoteFileArchive {
 	  this.url = url;
 	}
 	
+	public void setResumable(boolean resumable) {
+	  this.resumable = resumable;
+	}
+	
+	public void setChunkSize(int chunkSize) {
+	  this.chunkSize = chunkSize;
+	}
+	
+	public synchronized void setMaxBytesPerSecond(Map<String, Long> maxBytesPerSecond) {
+	  this.maxBytesPerSecond = maxBytesPerSecond;
+	  limiters.clear();
+	}
+	
+	/**
+	 * @return limiter shared by all uploads on the current network type, or null if it has no limit
+	 */
+	protected synchronized BandwidthLimiter getLimiter() {
+		if (maxBytesPerSecond == null || maxBytesPerSecond.isEmpty() || context == null) {
+			return null;
+		}
+		ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+		NetworkInfo netInfo = connectivityManager.getActiveNetworkInfo();
+		if (netInfo == null) {
+			return null;
+		}
+		String networkType = netInfo.getTypeName().toLowerCase(Locale.US);
+		Long rate = maxBytesPerSecond.get(networkType);
+		if (rate == null || rate <= 0) {
+			return null;
+		}
+		BandwidthLimiter limiter = limiters.get(networkType);
+		if (limiter == null || limiter.getBytesPerSecond() != rate) {
+			limiter = new BandwidthLimiter(rate);
+			limiters.put(networkType, limiter);
+		}
+		return limiter;
+	}
+	
 	public boolean isAvailable() {
 	  assert context != null;
 	  ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
@@ -102,6 +208,15 @@ public class HttpArchive implements RemoteFileArchive {
 	
 	
 	public boolean add(File file) {
+		return add(file, null);
+	}
+	
+	/**
+	 * The checksum is sent in an X-Content-SHA256 header on the file's multipart part, and when starting a resumable 
+	 * session, so the server can verify the upload.  In resumable mode the server may reply to the session request 
+	 * with 200 and no session url when it already has a file with that checksum, and the file is not sent.
+	 */
+	public boolean add(File file, String checksum) {
 		/*
 		HttpClient httpclient = new DefaultHttpClient();
 		try {
@@ -133,41 +248,362 @@ public class HttpArchive implements RemoteFileArchive {
 		}
 	    return true;
 		*/
-		return IOUtil.isValidUrl(url) ? uploadFile(file, url) : false;
+		bytesSent.get()[0] = 0L;
+		if (!IOUtil.isValidUrl(url)) {
+			return false;
+		}
+		if (resumable) {
+			return uploadResumable(file, checksum);
+		}
+		Map<File, String> checksums = checksum == null ? null : Collections.singletonMap(file, checksum);
+		return !uploadFiles(Collections.singletonList(file), url, getLimiter(), checksums).isEmpty();
+	}
+	
+	/**
+	 * Uploads the files in one multipart request, see {@link #uploadFiles(List, String, BandwidthLimiter, Map)}.
+	 * Batches are always sent this way, including in resumable mode.
+	 */
+	public List<File> addAll(List<File> files, Map<File, String> checksums) {
+		bytesSent.get()[0] = 0L;
+		if (!IOUtil.isValidUrl(url)) {
+			return new ArrayList<File>();
+		}
+		return uploadFiles(files, url, getLimiter(), checksums);
+	}
+	
+	/**
+	 * References need the resumable protocol, see class description.
+	 */
+	public boolean acceptsReferences() {
+		return resumable;
+	}
+	
+	/**
+	 * A server without the content replies with a new session, which is left to expire.
+	 */
+	public boolean addReference(String name, long size, String checksum) {
+		bytesSent.get()[0] = 0L;
+		if (!acceptsReferences() || !IOUtil.isValidUrl(url)) {
+			return false;
+		}
+		try {
+			return startSession(name, size, checksum) == null;
+		} catch (IOException e) {
+			Log.e(LogUtil.TAG, "Unable to record " + name + ".", e);
+			return false;
+		}
+	}
+	
+	/**
+	 * Counts request bodies, including multipart headers, but not HTTP headers or responses.
+	 */
+	public long getBytesSent() {
+		return bytesSent.get()[0];
+	}
+	
+	/**
+	 * The file's multipart headers, with room for a checksum, and the closing boundary are counted as 
+	 * if it were uploaded on its own.  Resumable uploads send the file alone.
+	 */
+	public long getUploadSize(File file) {
+		if (resumable) {
+			return file.length();
+		}
+		try {
+			return getPartHead(0, file, MAX_CHECKSUM).length + file.length() + MULTIPART_TAIL.length();
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Uploads the file in chunks, continuing any earlier session for the same file.
+	 */
+	protected boolean uploadResumable(File file, String checksum) {
+		long total = file.length();
+		String sessionKey = file.getAbsolutePath();
+		BandwidthLimiter limiter = getLimiter();
+		try {
+			String sessionUrl = getSession(sessionKey, total);
+			long offset = -1L;
+			if (sessionUrl != null) {
+				offset = queryOffset(sessionUrl, total);
+				if (offset < 0) {
+					Log.i(LogUtil.TAG, "Upload session for " + file.getName() + " has expired, starting again.");
+				}
+			}
+			if (offset < 0) {
+				sessionUrl = startSession(file.getName(), total, checksum);
+				if (sessionUrl == null) {
+					Log.i(LogUtil.TAG, "Server already has " + file.getName() + ", skipping upload.");
+					return true;
+				}
+				putSession(sessionKey, sessionUrl, total);
+				offset = 0L;
+				if (total == 0 && queryOffset(sessionUrl, total) != total) {
+					throw new IOException("Server did not complete the empty upload");
+				}
+			} else if (offset > 0) {
+				Log.i(LogUtil.TAG, "Resuming upload of " + file.getName() + " at byte " + offset);
+			}
+			while (offset < total) {
+				long stored = sendChunk(sessionUrl, file, offset, (int)Math.min(chunkSize, total - offset), total, limiter);
+				if (stored <= offset) {
+					// Sending the same chunk again would not go any better, the next attempt asks where to resume
+					throw new IOException("Server stored nothing past byte " + offset);
+				}
+				offset = stored;
+			}
+			removeSession(sessionKey);
+			return true;
+		} catch (IOException e) {
+			Log.e(LogUtil.TAG, "Resumable upload of " + file.getName() + " interrupted.", e);
+			return false;
+		}
+	}
+	
+	/**
+	 * @return the session url, or null if the server already has a file with the checksum
+	 */
+	private String startSession(String name, long total, String checksum) throws IOException {
+		HttpURLConnection conn = openConnection(url, "POST");
+		boolean responded = false;
+		try {
+			conn.setRequestProperty("X-Upload-Name", name);
+			conn.setRequestProperty("X-Upload-Content-Length", String.valueOf(total));
+			if (checksum != null) {
+				conn.setRequestProperty(CHECKSUM_HEADER, checksum);
+			}
+			conn.setFixedLengthStreamingMode(0);
+			conn.getOutputStream().close();
+			int status = conn.getResponseCode();
+			responded = true;
+			String location = conn.getHeaderField("Location");
+			if (status == HttpURLConnection.HTTP_OK && location == null && checksum != null 
+					&& checksum.equalsIgnoreCase(conn.getHeaderField(CHECKSUM_HEADER))) {
+				return null; // Acknowledged the content, only a deduplicating server echoes the checksum
+			}
+			if ((status != HttpURLConnection.HTTP_OK && status != HttpURLConnection.HTTP_CREATED) || location == null) {
+				throw new IOException("Unable to start upload session, status " + status);
+			}
+			return new URL(new URL(url), location).toString();
+		} finally {
+			release(conn, responded);
+		}
+	}
+	
+	/**
+	 * @return number of bytes the server has stored, the total if it has the whole file, 
+	 * or -1 if the session no longer exists
+	 */
+	private long queryOffset(String sessionUrl, long total) throws IOException {
+		HttpURLConnection conn = openConnection(sessionUrl, "PUT");
+		boolean responded = false;
+		try {
+			conn.setRequestProperty("Content-Range", "bytes */" + total);
+			conn.setFixedLengthStreamingMode(0);
+			conn.getOutputStream().close();
+			long stored = getStoredOffset(conn, total);
+			responded = true;
+			return stored;
+		} finally {
+			release(conn, responded);
+		}
+	}
+	
+	/**
+	 * @return offset to send next, as reported by the server
+	 */
+	private long sendChunk(String sessionUrl, File file, long offset, int length, long total, BandwidthLimiter limiter) throws IOException {
+		HttpURLConnection conn = openConnection(sessionUrl, "PUT");
+		RandomAccessFile in = null;
+		boolean responded = false;
+		try {
+			conn.setRequestProperty("Content-Type", "application/octet-stream");
+			conn.setRequestProperty("Content-Range", "bytes " + offset + "-" + (offset + length - 1) + "/" + total);
+			conn.setFixedLengthStreamingMode(length);
+			in = new RandomAccessFile(file, "r");
+			in.seek(offset);
+			byte[] buffer = uploadBuffer.get();
+			int maxRead = (limiter == null) ? buffer.length : Math.min(buffer.length, limiter.getMaxWrite());
+			OutputStream out = conn.getOutputStream();
+			int remaining = length;
+			while (remaining > 0) {
+				int count = in.read(buffer, 0, Math.min(maxRead, remaining));
+				if (count < 0) {
+					throw new IOException("File shorter than expected");
+				}
+				if (limiter != null) {
+					limiter.acquire(count);
+				}
+				out.write(buffer, 0, count);
+				bytesSent.get()[0] += count;
+				remaining -= count;
+			}
+			out.close();
+			long stored = getStoredOffset(conn, total);
+			responded = true;
+			if (stored < 0) {
+				throw new IOException("Upload session no longer exists");
+			}
+			return stored;
+		} finally {
+			IOUtil.close(in);
+			release(conn, responded);
+		}
+	}
+	
+	private static long getStoredOffset(HttpURLConnection conn, long total) throws IOException {
+		int status = conn.getResponseCode();
+		if (status == HttpURLConnection.HTTP_OK || status == HttpURLConnection.HTTP_CREATED) {
+			return total;
+		} else if (status == STATUS_RESUME_INCOMPLETE) {
+			String range = conn.getHeaderField("Range");
+			if (range == null) {
+				return 0L;
+			}
+			try {
+				return Long.parseLong(range.substring(range.lastIndexOf('-') + 1).trim()) + 1;
+			} catch (NumberFormatException e) {
+				throw new IOException("Malformed range " + range);
+			}
+		} else if (status == HttpURLConnection.HTTP_NOT_FOUND || status == HttpURLConnection.HTTP_GONE) {
+			return -1L;
+		}
+		throw new IOException("Unexpected upload status " + status);
+	}
+	
+	/**
+	 * Returns the connection to the keep-alive pool when the response was read, so later uploads to the same
+	 * host skip the connection handshake.  The pool only takes back connections whose response body has been
+	 * fully read and closed, disconnecting closes the socket instead.
+	 */
+	private static void release(HttpURLConnection conn, boolean reuse) {
+		if (!reuse) {
+			conn.disconnect();
+			return;
+		}
+		InputStream in = null;
+		try {
+			in = conn.getResponseCode() < HttpURLConnection.HTTP_BAD_REQUEST ? conn.getInputStream() : conn.getErrorStream();
+			if (in != null) {
+				byte[] buffer = new byte[1024];
+				while (in.read(buffer) >= 0) {
+					// Discard the response body
+				}
+			}
+		} catch (IOException e) {
+			conn.disconnect();
+		} finally {
+			IOUtil.close(in);
+		}
+	}
+	
+	private static HttpURLConnection openConnection(String url, String method) throws IOException {
+		HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+		conn.setDoOutput(true);
+		conn.setUseCaches(false);
+		conn.setInstanceFollowRedirects(false);
+		conn.setConnectTimeout(TIMEOUT_MILLIS);
+		conn.setReadTimeout(TIMEOUT_MILLIS);
+		conn.setRequestMethod(method);
+		return conn;
+	}
+	
+	private SharedPreferences getSessionPrefs() {
+		return context == null ? null : context.getSharedPreferences(HttpArchive.class.getName(), Context.MODE_PRIVATE);
+	}
+	
+	/**
+	 * @return saved session url for the file, or null if there is none for a file of this length
+	 */
+	private synchronized String getSession(String key, long total) {
+		String value = sessions.get(key);
+		SharedPreferences prefs = getSessionPrefs();
+		if (value == null && prefs != null) {
+			value = prefs.getString(key, null);
+		}
+		if (value == null) {
+			return null;
+		}
+		int separator = value.indexOf(' ');
+		if (separator < 0 || !value.substring(0, separator).equals(String.valueOf(total))) {
+			return null;
+		}
+		return value.substring(separator + 1);
+	}
+	
+	private synchronized void putSession(String key, String sessionUrl, long total) {
+		String value = total + " " + sessionUrl;
+		sessions.put(key, value);
+		SharedPreferences prefs = getSessionPrefs();
+		if (prefs != null) {
+			prefs.edit().putString(key, value).commit();
+		}
+	}
+	
+	private synchronized void removeSession(String key) {
+		sessions.remove(key);
+		SharedPreferences prefs = getSessionPrefs();
+		if (prefs != null) {
+			prefs.edit().remove(key).commit();
+		}
 	}
 	
 	/**
 	 * Copied (and slightly modified) from Friends and Family
+	 * 
+	 * The length of the multipart body is computed up front, so the body is streamed from disk
+	 * through a fixed size buffer instead of being buffered in memory by the connection.
 	 * @param file
 	 * @param uploadurl
 	 * @return
 	 */
 	public static boolean uploadFile(File file,String uploadurl) {
+		return uploadFile(file, uploadurl, null);
+	}
+	
+	/**
+	 * @param limiter limits the rate the file is sent at, or null to send it as fast as possible
+	 */
+	public static boolean uploadFile(File file, String uploadurl, BandwidthLimiter limiter) {
+		return !uploadFiles(Collections.singletonList(file), uploadurl, limiter).isEmpty();
+	}
+	
+	/**
+	 * Sends the files as parts of one multipart request, all named "uploadedfile".
+	 * When there is more than one file the server acknowledges each file it has stored by listing 
+	 * its name on a line of its own in the response body.
+	 * @param limiter limits the rate the files are sent at, or null to send them as fast as possible
+	 * @return the files the server has acknowledged
+	 */
+	public static List<File> uploadFiles(List<File> files, String uploadurl, BandwidthLimiter limiter) {
+		return uploadFiles(files, uploadurl, limiter, null);
+	}
+	
+	/**
+	 * @param checksums lower case hex SHA-256 of the files that have one, sent in an X-Content-SHA256 header
+	 * on each file's part, may be null
+	 */
+	public static List<File> uploadFiles(List<File> files, String uploadurl, BandwidthLimiter limiter, Map<File, String> checksums) {
 		HttpURLConnection conn = null; 
-		DataOutputStream dos = null; 
-		//DataInputStream inStream = null; 
+		FileInputStream fileInputStream = null;
 
-		String lineEnd = "\r\n"; 
-		String twoHyphens = "--"; 
-		String boundary =  "*****"; 
-
-
-		int bytesRead, bytesAvailable, bufferSize; 
-		byte[] buffer; 
-		int maxBufferSize = 64*1024; //old value 1024*1024 
-
-		boolean isSuccess = true;
+		List<File> acknowledged = new ArrayList<File>();
+		boolean responded = false;
 		try 
 		{ 
 			//------------------ CLIENT REQUEST 
-			FileInputStream fileInputStream = null;
-			//Log.i("FNF","UploadService Runnable: 1"); 
-			try {
-				fileInputStream = new FileInputStream(file); 
-			}catch (FileNotFoundException e) {
-				e.printStackTrace();
-				Log.e(LogUtil.TAG, "file not found");
+			byte[][] heads = new byte[files.size()][];
+			long contentLength = 0L;
+			for (int i = 0; i < heads.length; i++) {
+				String checksum = checksums == null ? null : checksums.get(files.get(i));
+				heads[i] = getPartHead(i, files.get(i), checksum);
+				contentLength += heads[i].length + files.get(i).length();
 			}
+			byte[] tail = MULTIPART_TAIL.getBytes("UTF-8");
+			contentLength += tail.length;
+			
 			// open a URL connection to the Servlet 
 			URL url = new URL(uploadurl); 
 			// Open a HTTP connection to the URL 
@@ -179,61 +615,115 @@ public class HttpArchive implements RemoteFileArchive {
 			// Don't use a cached copy. 
 			conn.setUseCaches(false); 
 			// set timeout
-			conn.setConnectTimeout(60000);
-			conn.setReadTimeout(60000);
+			conn.setConnectTimeout(TIMEOUT_MILLIS);
+			conn.setReadTimeout(TIMEOUT_MILLIS);
 			// Use a post method. 
 			conn.setRequestMethod("POST"); 
 			conn.setRequestProperty("Connection", "Keep-Alive"); 
-			conn.setRequestProperty("Content-Type", "multipart/form-data;boundary="+boundary); 
-
-			dos = new DataOutputStream( conn.getOutputStream() ); 
-			dos.writeBytes(twoHyphens + boundary + lineEnd); 
-			dos.writeBytes("Content-Disposition: form-data; name=\"uploadedfile\";filename=\"" + file.getName() +"\"" + lineEnd); 
-			dos.writeBytes(lineEnd); 
-
-			//Log.i("FNF","UploadService Runnable:Headers are written"); 
-
-			// create a buffer of maximum size 
-			bytesAvailable = fileInputStream.available(); 
-			bufferSize = Math.min(bytesAvailable, maxBufferSize); 
-			buffer = new byte[bufferSize]; 
-
-			// read file and write it into form... 
-			bytesRead = fileInputStream.read(buffer, 0, bufferSize); 
-			while (bytesRead > 0) 
-			{ 
-				dos.write(buffer, 0, bufferSize); 
-				bytesAvailable = fileInputStream.available(); 
-				bufferSize = Math.min(bytesAvailable, maxBufferSize); 
-				bytesRead = fileInputStream.read(buffer, 0, bufferSize); 
-			} 
+			conn.setRequestProperty("Content-Type", "multipart/form-data;boundary=" + BOUNDARY); 
+			// Stream the body instead of buffering it to compute the length
+			if (contentLength <= Integer.MAX_VALUE) {
+				conn.setFixedLengthStreamingMode((int)contentLength);
+			} else {
+				conn.setChunkedStreamingMode(UPLOAD_BUFFER_SIZE);
+			}
 
+			OutputStream out = conn.getOutputStream(); 
+			byte[] buffer = uploadBuffer.get(); 
+			long[] sent = bytesSent.get();
+			int maxRead = (limiter == null) ? buffer.length : Math.min(buffer.length, limiter.getMaxWrite());
+			for (int i = 0; i < heads.length; i++) {
+				fileInputStream = new FileInputStream(files.get(i)); 
+				out.write(heads[i]); 
+				sent[0] += heads[i].length;
+				int bytesRead; 
+				while ((bytesRead = fileInputStream.read(buffer, 0, maxRead)) > 0) 
+				{ 
+					if (limiter != null) {
+						limiter.acquire(bytesRead);
+					}
+					out.write(buffer, 0, bytesRead); 
+					sent[0] += bytesRead;
+				} 
+				IOUtil.close(fileInputStream);
+				fileInputStream = null;
+			}
 			// send multipart form data necesssary after file data... 
-			dos.writeBytes(lineEnd); 
-			dos.writeBytes(twoHyphens + boundary + twoHyphens + lineEnd); 
-
-			// close streams 
-			//Log.i("FNF","UploadService Runnable:File is written"); 
-			fileInputStream.close(); 
-			dos.flush(); 
-			dos.close(); 
+			out.write(tail); 
+			sent[0] += tail.length;
+			out.close(); 
+			
+			//------------------ read the SERVER RESPONSE 
+			if (conn.getResponseCode() == HttpURLConnection.HTTP_OK) {
+				if (files.size() == 1) {
+					acknowledged.add(files.get(0));
+				} else {
+					Set<String> names = readLines(conn.getInputStream());
+					for (File file : files) {
+						if (names.contains(file.getName())) {
+							acknowledged.add(file);
+						}
+					}
+				}
+			}
+			responded = true;
 		} 
-		catch (Exception e) 
+		catch (FileNotFoundException e) {
+			Log.e(LogUtil.TAG, "file not found", e);
+		}
+		catch (IOException e) 
 		{ 
-			Log.e("FNF", "UploadService Runnable:Client Request error", e);
-			isSuccess = false;
+			Log.e(LogUtil.TAG, "UploadService Runnable:Client Request error", e);
 		} 
-
-		//------------------ read the SERVER RESPONSE 
-		try {
-			if (conn.getResponseCode() != 200) {
-				isSuccess = false;
+		finally {
+			IOUtil.close(fileInputStream);
+			if (conn != null) {
+				release(conn, responded);
 			}
-		} catch (IOException e) {
-			Log.e("FNF", "Connection error", e);
-			isSuccess = false;
 		}
 
-		return isSuccess;
+		return acknowledged;
 	}
+	
+	/**
+	 * @return the boundary and headers preceding the file's content in a multipart request
+	 */
+	private static byte[] getPartHead(int index, File file, String checksum) throws UnsupportedEncodingException {
+		return ((index == 0 ? "" : LINE_END) + "--" + BOUNDARY + LINE_END
+				+ "Content-Disposition: form-data; name=\"uploadedfile\";filename=\"" + file.getName() + "\"" + LINE_END
+				+ (checksum == null ? "" : CHECKSUM_HEADER + ": " + checksum + LINE_END)
+				+ LINE_END).getBytes("UTF-8");
+	}
+	
+	private static Set<String> readLines(InputStream in) throws IOException {
+		Set<String> lines = new HashSet<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			lines.add(line.trim());
+		}
+		return lines;
+	}
+	
+	private static final int UPLOAD_BUFFER_SIZE = 64 * 1024;
+	
+	/**
+	 * One buffer per uploading thread, reused for every file it uploads.
+	 */
+	private static final ThreadLocal<byte[]> uploadBuffer = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[UPLOAD_BUFFER_SIZE];
+		}
+	};
+	
+	/**
+	 * Bytes of request bodies written by each uploading thread since its last add or addAll started.
+	 */
+	private static final ThreadLocal<long[]> bytesSent = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			return new long[1];
+		}
+	};
 }
@@ -0,0 +1,441 @@
+/**
+ *
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ *
+ * This file is part of Funf.
+ *
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package edu.mit.media.funf.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import edu.mit.media.funf.json.IJsonObject;
+import edu.mit.media.funf.util.IOUtil;
+import edu.mit.media.funf.util.LogUtil;
+
+/**
+ * A bounded buffer of probe data waiting to be written.  Each probe type has its own capacity,
+ * and the overflow policy decides what happens to data that arrives when that capacity is reached.
+ *
+ * Data is offered from probe threads and polled from the writing thread.
+ */
+public class IngestionQueue {
+
+	public static enum OverflowPolicy {
+		/**
+		 * Make the probe thread wait for room in the queue.
+		 */
+		BLOCK,
+		/**
+		 * Discard the oldest queued record for the probe to make room.
+		 */
+		DROP_OLDEST,
+		/**
+		 * Discard the incoming record.
+		 */
+		DROP_NEWEST,
+		/**
+		 * Discard every other queued record for the probe, halving the rate while keeping the time span.
+		 */
+		DOWNSAMPLE,
+		/**
+		 * Append records that do not fit to a file on disk, to be written once the queue drains.
+		 */
+		SPILL
+	}
+
+	/**
+	 * A blocked probe thread holds up the probe's other callbacks, so by default it only waits briefly.
+	 */
+	public static final long DEFAULT_MAX_BLOCK_MILLIS = 100L;
+
+	private final int defaultCapacity;
+	private long maxBlockMillis = DEFAULT_MAX_BLOCK_MILLIS;
+	private final OverflowPolicy policy;
+	private final File spillFile;
+	private final Map<String, Integer> capacities = new HashMap<String, Integer>();
+
+	private final Map<String, LinkedList<Queued>> queues = new HashMap<String, LinkedList<Queued>>();
+	private final List<String> probeTypes = new ArrayList<String>();
+	private int nextProbeTypeIndex = 0;
+	private boolean drainScheduled = false;
+
+	private DataOutputStream spillOut = null;
+	private DataInputStream spillIn = null;
+	private long spillPending = 0L;
+	private long spillNextSequence = 0L; // Sequence number of the oldest spilled record not yet read
+
+	private long offeredCount = 0L; // Sequence number of the next record offered
+	private final LinkedList<Long> blockedSequences = new LinkedList<Long>();
+
+	private long droppedCount = 0L;
+	private long spilledCount = 0L;
+
+	/**
+	 * @param defaultCapacity number of records buffered per probe type, unless overridden
+	 * @param policy what to do with records that arrive when a probe's buffer is full
+	 * @param spillFile file to use for the SPILL policy, may be null for other policies
+	 */
+	public IngestionQueue(int defaultCapacity, OverflowPolicy policy, File spillFile) {
+		if (policy == OverflowPolicy.SPILL && spillFile == null) {
+			throw new IllegalArgumentException("Spill policy requires a spill file.");
+		}
+		this.defaultCapacity = Math.max(1, defaultCapacity);
+		this.policy = policy == null ? OverflowPolicy.DROP_OLDEST : policy;
+		this.spillFile = spillFile;
+		if (spillFile != null && spillFile.exists()) {
+			recoverSpill();
+			offeredCount = spillPending; // Recovered records are older than anything offered from now on
+		}
+	}
+
+	/**
+	 * Counts the records spilled by a previous process, so they are written once the queue drains.
+	 * A partially written last record is truncated, as is everything from a corrupt record on.
+	 */
+	private void recoverSpill() {
+		long validLength = 0L;
+		long maxLength = spillFile.length();
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile)));
+			while (true) {
+				int length = ProbeRecord.readLength(in, maxLength);
+				in.readFully(new byte[length]);
+				int valueLength = ProbeRecord.readLength(in, maxLength);
+				in.readFully(new byte[valueLength]);
+				validLength += 8 + length + valueLength;
+				spillPending++;
+			}
+		} catch (EOFException e) {
+			// End of the complete records
+		} catch (StreamCorruptedException e) {
+			Log.e(LogUtil.TAG, "Spill file is corrupt after " + spillPending + " records, discarding the rest.", e);
+		} catch (IOException e) {
+			Log.e(LogUtil.TAG, "Unable to read spill file.", e);
+		} finally {
+			IOUtil.close(in);
+		}
+		if (validLength < spillFile.length()) {
+			RandomAccessFile file = null;
+			try {
+				file = new RandomAccessFile(spillFile, "rw");
+				file.setLength(validLength);
+			} catch (IOException e) {
+				Log.e(LogUtil.TAG, "Unable to truncate spill file.", e);
+			} finally {
+				IOUtil.close(file);
+			}
+		}
+		if (spillPending > 0) {
+			Log.i(LogUtil.TAG, "Recovered " + spillPending + " spilled records.");
+		}
+	}
+
+	/**
+	 * Overrides the capacity of specific probe types.
+	 * @param capacities number of records keyed by probe type
+	 */
+	public synchronized void setCapacities(Map<String, Integer> capacities) {
+		this.capacities.clear();
+		if (capacities != null) {
+			this.capacities.putAll(capacities);
+		}
+	}
+
+	/**
+	 * @param maxBlockMillis how long the BLOCK policy makes a probe thread wait for room, before dropping its record
+	 */
+	public synchronized void setMaxBlockMillis(long maxBlockMillis) {
+		this.maxBlockMillis = Math.max(0L, maxBlockMillis);
+	}
+
+	/**
+	 * Adds a record to the queue, applying the overflow policy if the probe's buffer is full.
+	 * @return true if the caller should schedule a drain, because one is not already pending
+	 */
+	public synchronized boolean offer(String probeType, IJsonObject data) {
+		LinkedList<Queued> queue = getQueue(probeType);
+		Queued record = new Queued(offeredCount++, data);
+		if (spillPending > 0) {
+			// Keep records in order once some have been spilled
+			spill(probeType, record);
+		} else if (queue.size() < getCapacity(probeType)) {
+			queue.addLast(record);
+		} else {
+			switch (policy) {
+			case BLOCK:
+				block(probeType, queue, record);
+				break;
+			case DROP_OLDEST:
+				queue.removeFirst();
+				queue.addLast(record);
+				droppedCount++;
+				break;
+			case DROP_NEWEST:
+				droppedCount++;
+				break;
+			case DOWNSAMPLE:
+				downsample(queue);
+				queue.addLast(record);
+				break;
+			case SPILL:
+				spill(probeType, record);
+				break;
+			}
+		}
+		if (drainScheduled) {
+			return false;
+		}
+		drainScheduled = true;
+		return true;
+	}
+
+	private void block(String probeType, LinkedList<Queued> queue, Queued record) {
+		long deadline = System.currentTimeMillis() + maxBlockMillis;
+		long remaining = maxBlockMillis;
+		Long sequence = Long.valueOf(record.sequence);
+		blockedSequences.add(sequence);
+		while (queue.size() >= getCapacity(probeType) && remaining > 0) {
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				break;
+			}
+			remaining = deadline - System.currentTimeMillis();
+		}
+		blockedSequences.remove(sequence);
+		if (queue.size() < getCapacity(probeType)) {
+			queue.addLast(record);
+		} else {
+			Log.w(LogUtil.TAG, "Timed out waiting for room to queue " + probeType + " data, dropping.");
+			droppedCount++;
+		}
+	}
+
+	private void downsample(LinkedList<Queued> queue) {
+		int sizeBefore = queue.size();
+		Iterator<Queued> iterator = queue.iterator();
+		boolean keep = true;
+		while (iterator.hasNext()) {
+			iterator.next();
+			if (!keep) {
+				iterator.remove();
+			}
+			keep = !keep;
+		}
+		droppedCount += sizeBefore - queue.size();
+	}
+
+	private void spill(String probeType, Queued record) {
+		try {
+			if (spillOut == null) {
+				spillOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile, true)));
+			}
+			ProbeRecord.writeString(spillOut, probeType);
+			ProbeRecord.writeString(spillOut, record.data.toString());
+			if (spillPending == 0) {
+				// Every record offered from now on is spilled too, until the spill is drained
+				spillNextSequence = record.sequence;
+			}
+			spillPending++;
+			spilledCount++;
+		} catch (IOException e) {
+			Log.e(LogUtil.TAG, "Unable to spill " + probeType + " data to disk, dropping.", e);
+			droppedCount++;
+		}
+	}
+
+	/**
+	 * Removes the next record to write.  Queued records are returned round robin across probe types,
+	 * followed by any spilled records in the order they were spilled.
+	 * @return the next record, or null if the queue is empty, in which case a new drain needs to be scheduled.
+	 */
+	public synchronized ProbeRecord poll() {
+		for (int i = 0; i < probeTypes.size(); i++) {
+			String probeType = probeTypes.get(nextProbeTypeIndex);
+			nextProbeTypeIndex = (nextProbeTypeIndex + 1) % probeTypes.size();
+			LinkedList<Queued> queue = queues.get(probeType);
+			if (!queue.isEmpty()) {
+				IJsonObject data = queue.removeFirst().data;
+				notifyAll(); // Wake any blocked probe threads
+				return new ProbeRecord(probeType, data);
+			}
+		}
+		if (spillPending > 0) {
+			ProbeRecord record = readSpilled();
+			if (record != null) {
+				return record;
+			}
+		}
+		drainScheduled = false;
+		return null;
+	}
+
+	/**
+	 * @return the next readable spilled record, or null if there are none left
+	 */
+	private ProbeRecord readSpilled() {
+		try {
+			if (spillOut != null) {
+				spillOut.flush();
+			}
+			if (spillIn == null) {
+				spillIn = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile)));
+			}
+			long maxLength = spillFile.length();
+			while (spillPending > 0) {
+				String probeType = ProbeRecord.readString(spillIn, maxLength);
+				String value = ProbeRecord.readString(spillIn, maxLength);
+				spillPending--;
+				spillNextSequence++;
+				if (spillPending == 0) {
+					closeSpill();
+				}
+				try {
+					return new ProbeRecord(probeType, new IJsonObject(new JsonParser().parse(value).getAsJsonObject()));
+				} catch (JsonParseException e) {
+					Log.w(LogUtil.TAG, "Skipping unreadable spilled record for " + probeType);
+					droppedCount++;
+				}
+			}
+			return null;
+		} catch (EOFException e) {
+			Log.e(LogUtil.TAG, "Spill file ended early, " + spillPending + " records lost.");
+		} catch (IOException e) {
+			Log.e(LogUtil.TAG, "Unable to read spilled data, " + spillPending + " records lost.", e);
+		}
+		droppedCount += spillPending;
+		spillPending = 0;
+		closeSpill();
+		return null;
+	}
+
+	private void closeSpill() {
+		IOUtil.close(spillIn);
+		IOUtil.close(spillOut);
+		spillIn = null;
+		spillOut = null;
+		spillFile.delete();
+	}
+
+	private LinkedList<Queued> getQueue(String probeType) {
+		LinkedList<Queued> queue = queues.get(probeType);
+		if (queue == null) {
+			queue = new LinkedList<Queued>();
+			queues.put(probeType, queue);
+			probeTypes.add(probeType);
+		}
+		return queue;
+	}
+
+	private int getCapacity(String probeType) {
+		Integer capacity = capacities.get(probeType);
+		return capacity == null ? defaultCapacity : Math.max(1, capacity);
+	}
+
+	/**
+	 * @return number of records currently held in memory or spilled to disk
+	 */
+	public synchronized long size() {
+		long size = spillPending;
+		for (LinkedList<Queued> queue : queues.values()) {
+			size += queue.size();
+		}
+		return size;
+	}
+
+	/**
+	 * Records are numbered in the order they are offered, whatever then happens to them.
+	 * @return the sequence number the next offered record will get
+	 */
+	public synchronized long getOfferedCount() {
+		return offeredCount;
+	}
+
+	/**
+	 * Every record offered with a lower sequence number than this has been polled or dropped.
+	 * @return the sequence number of the oldest record still queued, spilled or waiting to be queued, 
+	 * or {@link #getOfferedCount()} if there is none
+	 */
+	public synchronized long getOldestQueuedSequence() {
+		long oldest = offeredCount;
+		for (LinkedList<Queued> queue : queues.values()) {
+			if (!queue.isEmpty()) {
+				oldest = Math.min(oldest, queue.getFirst().sequence);
+			}
+		}
+		if (spillPending > 0) {
+			oldest = Math.min(oldest, spillNextSequence);
+		}
+		if (!blockedSequences.isEmpty()) {
+			oldest = Math.min(oldest, blockedSequences.getFirst());
+		}
+		return oldest;
+	}
+
+	/**
+	 * @return total number of records discarded because of overflow or spill errors
+	 */
+	public synchronized long getDroppedCount() {
+		return droppedCount;
+	}
+
+	/**
+	 * @return total number of records that have been spilled to disk
+	 */
+	public synchronized long getSpilledCount() {
+		return spilledCount;
+	}
+
+	public OverflowPolicy getPolicy() {
+		return policy;
+	}
+
+	private static class Queued {
+		private final long sequence;
+		private final IJsonObject data;
+
+		private Queued(long sequence, IJsonObject data) {
+			this.sequence = sequence;
+			this.data = data;
+		}
+	}
+}
@@ -35,11 +35,20 @@ import javax.crypto.SecretKey;
 import android.util.Log;
 import android.webkit.MimeTypeMap;
 
+import edu.mit.media.funf.config.Configurable;
+import edu.mit.media.funf.storage.FileArchive.DeduplicatingFileArchive;
 import edu.mit.media.funf.util.LogUtil;
 import edu.mit.media.funf.util.NameGenerator;
 import edu.mit.media.funf.util.NameGenerator.IdentityNameGenerator;
 
-public class LargeFileArchive extends DefaultArchive implements FileArchive {
+public class LargeFileArchive extends DefaultArchive implements DeduplicatingFileArchive {
+	
+	/**
+	 * When true media files are identified by a hash of their content, computed while they are archived,
+	 * so the same content is only stored and uploaded once.
+	 */
+	@Configurable
+	protected boolean deduplicate = false;
 
 	private FileArchive largeFileArchive; // Cache
 	protected FileArchive getLargeFileArchive() {
@@ -51,9 +60,9 @@ public class LargeFileArchive extends DefaultArchive implements FileArchive {
 					FileArchive backupArchive = FileDirectoryArchive.getRollingFileArchive(new File(rootSdCardPath + "backupLarge"));
 					
 					NameGenerator nameGenerator = new IdentityNameGenerator();
-					FileCopier copier = (key == null) ? new FileCopier.SimpleFileCopier() : new FileCopier.EncryptedFileCopier(key, "DES");
+					FileCopier copier = getFileCopier(key, false); // Media files are already compressed
 					DirectoryCleaner cleaner = new DirectoryCleaner.KeepAll();
-					FileArchive mainArchive = new FileDirectoryArchive(new File(rootSdCardPath + "archiveLarge"), nameGenerator, copier, cleaner);
+					FileArchive mainArchive = new FileDirectoryArchive(new File(rootSdCardPath + "archiveLarge"), nameGenerator, copier, cleaner, deduplicate, deduplicate);
 					
 					largeFileArchive = new BackedUpArchive(mainArchive, backupArchive);
 				}
@@ -84,6 +93,16 @@ public class LargeFileArchive extends DefaultArchive implements FileArchive {
 			return getDelegateArchive().add(item);
 	}
 
+	@Override
+	public boolean move(File item) {
+		if (isLargeFile(item)) {
+		    Log.d(LogUtil.TAG, "moving to large archive");
+		    return move(getLargeFileArchive(), item);
+		}
+		else
+			return move(getDelegateArchive(), item);
+	}
+
 	@Override
 	public boolean contains(File item) {
 		if (isLargeFile(item))
@@ -91,6 +110,14 @@ public class LargeFileArchive extends DefaultArchive implements FileArchive {
 		else
 			return getDelegateArchive().contains(item);
 	}
+	
+	@Override
+	public String getChecksum(File item) {
+		if (isLargeFile(item))
+			return getChecksum(getLargeFileArchive(), item);
+		else
+			return getChecksum(getDelegateArchive(), item);
+	}
 
 	@Override
 	public File[] getAll() {
@@ -103,6 +130,24 @@ public class LargeFileArchive extends DefaultArchive implements FileArchive {
 		return allFiles.toArray(allFilesArray);
 	}
 
+	/**
+	 * Only media files are deduplicated.
+	 */
+	@Override
+	public List<ArchiveManifest.Entry> getReferences() {
+		FileArchive largeFileArchive = getLargeFileArchive();
+		return (largeFileArchive instanceof DeduplicatingFileArchive) 
+				? ((DeduplicatingFileArchive)largeFileArchive).getReferences() : new ArrayList<ArchiveManifest.Entry>();
+	}
+	
+	@Override
+	public void removeReference(String name) {
+		FileArchive largeFileArchive = getLargeFileArchive();
+		if (largeFileArchive instanceof DeduplicatingFileArchive) {
+			((DeduplicatingFileArchive)largeFileArchive).removeReference(name);
+		}
+	}
+
 	@Override
 	public boolean remove(File item) {
 		if (isLargeFile(item))
@@ -30,8 +30,12 @@ import java.util.Locale;
 import java.util.UUID;
 
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+import edu.mit.media.funf.util.LogUtil;
 import edu.mit.media.funf.time.TimeUtil;
 import edu.mit.media.funf.util.StringUtil;
 import edu.mit.media.funf.util.UuidUtil;
@@ -56,20 +60,49 @@ public class NameValueDatabaseHelper extends SQLiteOpenHelper {
 						  new Column(COLUMN_INSTALLATION, "TEXT"), // Universally Unique Id for device installation 
 				      	  new Column(COLUMN_UUID, "TEXT"), // Universally Unique Id for file 
 					      new Column(COLUMN_CREATED, "FLOAT"))); // TIMESTAMP in data broadcast
+	public static final String COLUMN_TABLE = "table_name";
+	public static final Table PROBE_TABLE = new Table("probe", 
+			Arrays.asList(new Column(COLUMN_NAME, "TEXT UNIQUE"), // Probe type, as stored in the data name column
+					      new Column(COLUMN_TABLE, "TEXT"))); // Table holding this probe's data when partitioned
+	public static final String[] DATA_INDEXES_SQL = {
+			String.format("CREATE INDEX IF NOT EXISTS %s_%s_%s ON %s (%s, %s);", 
+					DATA_TABLE.name, COLUMN_NAME, COLUMN_TIMESTAMP, DATA_TABLE.name, COLUMN_NAME, COLUMN_TIMESTAMP), // Per probe time ranges
+			String.format("CREATE INDEX IF NOT EXISTS %s_%s ON %s (%s);", 
+					DATA_TABLE.name, COLUMN_TIMESTAMP, DATA_TABLE.name, COLUMN_TIMESTAMP)}; // Time ranges across probes
 	
 	
 	private final Context context;
 	private final String databaseName;
+	private final boolean partitioned;
 	
 	public NameValueDatabaseHelper(Context context, String name, int version) {
+		this(context, name, version, false);
+	}
+	
+	/**
+	 * @param partitioned when true each probe type's data is kept in its own table, created the first time the
+	 * probe writes, and the data table is replaced by a view over all probe tables for existing readers.
+	 * Databases in the other layout are converted when opened.
+	 */
+	public NameValueDatabaseHelper(Context context, String name, int version, boolean partitioned) {
 		super(context, name, null, version);
 		this.context = context;
 		this.databaseName = name;
+		this.partitioned = partitioned;
+	}
+	
+	public boolean isPartitioned() {
+		return partitioned;
 	}
 
 	@Override
 	public void onCreate(SQLiteDatabase db) {
-		db.execSQL(DATA_TABLE.getCreateTableSQL());
+		if (partitioned) {
+			db.execSQL(PROBE_TABLE.getCreateTableSQL());
+			createDataView(db);
+		} else {
+			db.execSQL(DATA_TABLE.getCreateTableSQL());
+		}
 		db.execSQL(FILE_INFO_TABLE.getCreateTableSQL());
 		// Insert file identifier information
 		String installationUuid = UuidUtil.getInstallationId(context);
@@ -83,9 +116,140 @@ public class NameValueDatabaseHelper extends SQLiteOpenHelper {
 
 	@Override
 	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-		// Nothing yet
+		convertLayout(db); // Already in a transaction
 	}	
 	
+	@Override
+	public void onOpen(SQLiteDatabase db) {
+		// Layout and indexes are checked on open, since the helper version follows the pipeline config rather than the schema
+		if (!db.isReadOnly()) {
+			if (isPartitioned(db) != partitioned) {
+				db.beginTransaction();
+				try {
+					convertLayout(db);
+					db.setTransactionSuccessful();
+				} finally {
+					db.endTransaction();
+				}
+			}
+			if (!partitioned) {
+				for (String indexSql : DATA_INDEXES_SQL) {
+					db.execSQL(indexSql);
+				}
+			}
+		}
+	}
+	
+	private void convertLayout(SQLiteDatabase db) {
+		boolean wasPartitioned = isPartitioned(db);
+		if (partitioned && !wasPartitioned) {
+			Log.i(LogUtil.TAG, "Partitioning database " + databaseName + " by probe.");
+			db.execSQL(PROBE_TABLE.getCreateTableSQL());
+			for (String name : getNames(db, String.format("SELECT DISTINCT %s FROM %s", COLUMN_NAME, DATA_TABLE.name))) {
+				db.execSQL(String.format("INSERT INTO %s (%s, %s) SELECT %s, %s FROM %s WHERE %s = ?", 
+						createProbeTable(db, name), COLUMN_TIMESTAMP, COLUMN_VALUE, 
+						COLUMN_TIMESTAMP, COLUMN_VALUE, DATA_TABLE.name, COLUMN_NAME), new Object[] {name});
+			}
+			db.execSQL("DROP TABLE " + DATA_TABLE.name);
+			createDataView(db);
+		} else if (!partitioned && wasPartitioned) {
+			Log.i(LogUtil.TAG, "Merging probe tables in database " + databaseName + ".");
+			db.execSQL("DROP VIEW " + DATA_TABLE.name);
+			db.execSQL(DATA_TABLE.getCreateTableSQL());
+			for (String table : getNames(db, String.format("SELECT %s FROM %s", COLUMN_TABLE, PROBE_TABLE.name))) {
+				db.execSQL(String.format("INSERT INTO %s (%s, %s, %s) SELECT %s, %s, %s FROM %s", 
+						DATA_TABLE.name, COLUMN_NAME, COLUMN_TIMESTAMP, COLUMN_VALUE, 
+						COLUMN_NAME, COLUMN_TIMESTAMP, COLUMN_VALUE, getPartitionSelectSQL(db, table)));
+				db.execSQL("DROP TABLE " + table);
+			}
+			db.execSQL("DROP TABLE " + PROBE_TABLE.name);
+		}
+	}
+	
+	/**
+	 * Returns the table holding a probe's data, creating it if this helper partitions by probe.
+	 * Must not be called inside a transaction that may be rolled back while the table is in use.
+	 * @param name probe type, as stored in the data name column
+	 * @return the probe's table, or the shared data table if not partitioned
+	 */
+	public String getProbeTable(SQLiteDatabase db, String name) {
+		if (!partitioned) {
+			return DATA_TABLE.name;
+		}
+		String table = findProbeTable(db, name);
+		if (table == null) {
+			table = createProbeTable(db, name);
+			db.execSQL("DROP VIEW IF EXISTS " + DATA_TABLE.name);
+			createDataView(db);
+		}
+		return table;
+	}
+	
+	private String createProbeTable(SQLiteDatabase db, String name) {
+		db.execSQL(String.format("INSERT INTO %s (%s) VALUES (?)", PROBE_TABLE.name, COLUMN_NAME), new Object[] {name});
+		long probeId = DatabaseUtils.longForQuery(db, String.format("SELECT _id FROM %s WHERE %s = ?", PROBE_TABLE.name, COLUMN_NAME), new String[] {name});
+		// Named from the probe class, with the id keeping names from different packages apart
+		String simpleName = name.replaceAll("^\"|\"$", "");
+		simpleName = simpleName.substring(simpleName.lastIndexOf('.') + 1).replaceAll("[^A-Za-z0-9_]", "_");
+		String table = "probe_" + probeId + "_" + simpleName;
+		db.execSQL(String.format("CREATE TABLE %s (_id INTEGER primary key autoincrement, %s FLOAT, %s TEXT);", table, COLUMN_TIMESTAMP, COLUMN_VALUE));
+		db.execSQL(String.format("CREATE INDEX %s_%s ON %s (%s);", table, COLUMN_TIMESTAMP, table, COLUMN_TIMESTAMP));
+		db.execSQL(String.format("UPDATE %s SET %s = ? WHERE _id = ?", PROBE_TABLE.name, COLUMN_TABLE), new Object[] {table, probeId});
+		return table;
+	}
+	
+	/**
+	 * Keeps the data table readable, with the same columns, for tools that do not know the partitioned layout.
+	 */
+	private static void createDataView(SQLiteDatabase db) {
+		List<String> selects = new ArrayList<String>();
+		for (String table : getNames(db, String.format("SELECT %s FROM %s ORDER BY _id", COLUMN_TABLE, PROBE_TABLE.name))) {
+			selects.add(String.format("SELECT %s, %s, %s FROM %s", COLUMN_NAME, COLUMN_TIMESTAMP, COLUMN_VALUE, getPartitionSelectSQL(db, table)));
+		}
+		if (selects.isEmpty()) {
+			selects.add(String.format("SELECT NULL AS %s, NULL AS %s, NULL AS %s WHERE 0", COLUMN_NAME, COLUMN_TIMESTAMP, COLUMN_VALUE));
+		}
+		db.execSQL(String.format("CREATE VIEW %s AS %s", DATA_TABLE.name, StringUtil.join(selects, " UNION ALL ")));
+	}
+	
+	private static String getPartitionSelectSQL(SQLiteDatabase db, String table) {
+		String name = DatabaseUtils.stringForQuery(db, String.format("SELECT %s FROM %s WHERE %s = ?", COLUMN_NAME, PROBE_TABLE.name, COLUMN_TABLE), new String[] {table});
+		return String.format("(SELECT %s AS %s, %s, %s FROM %s)", DatabaseUtils.sqlEscapeString(name), COLUMN_NAME, COLUMN_TIMESTAMP, COLUMN_VALUE, table);
+	}
+	
+	/**
+	 * @return true if the database keeps each probe's data in its own table
+	 */
+	public static boolean isPartitioned(SQLiteDatabase db) {
+		return DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM sqlite_master WHERE type = 'table' AND name = ?", new String[] {PROBE_TABLE.name}) > 0;
+	}
+	
+	/**
+	 * @param name probe type, as stored in the data name column
+	 * @return the table holding a probe's data in a partitioned database, or null if the probe has no table
+	 */
+	public static String findProbeTable(SQLiteDatabase db, String name) {
+		if (!isPartitioned(db)) {
+			return null;
+		}
+		List<String> tables = getNames(db, String.format("SELECT %s FROM %s WHERE %s = ?", 
+				COLUMN_TABLE, PROBE_TABLE.name, COLUMN_NAME), name);
+		return tables.isEmpty() ? null : tables.get(0);
+	}
+	
+	private static List<String> getNames(SQLiteDatabase db, String sql, String... selectionArgs) {
+		List<String> names = new ArrayList<String>();
+		Cursor cursor = db.rawQuery(sql, selectionArgs.length == 0 ? null : selectionArgs);
+		try {
+			while (cursor.moveToNext()) {
+				names.add(cursor.getString(0));
+			}
+		} finally {
+			cursor.close();
+		}
+		return names;
+	}
+	
 	// TODO: Consider moving these to an external utils class
 	/**
 	 * Immutable Table Definition
@@ -0,0 +1,72 @@
+/**
+ *
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ *
+ * This file is part of Funf.
+ *
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package edu.mit.media.funf.storage;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+
+import edu.mit.media.funf.json.IJsonObject;
+
+/**
+ * Probe data along with the probe type that produced it, as held by the ingestion queue and the data journal.
+ * On disk a record is the probe type followed by the data's json, each prefixed by its length in bytes.
+ */
+public class ProbeRecord {
+	public final String probeType;
+	public final IJsonObject data;
+
+	ProbeRecord(String probeType, IJsonObject data) {
+		this.probeType = probeType;
+		this.data = data;
+	}
+
+	static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * @param maxLength longest value that can be in the file, usually its length, so a corrupt length
+	 * is reported instead of allocated
+	 */
+	static String readString(DataInputStream in, long maxLength) throws IOException {
+		byte[] bytes = new byte[readLength(in, maxLength)];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * Reads the length prefix of a value, see {@link #readString(DataInputStream, long)}.
+	 */
+	static int readLength(DataInputStream in, long maxLength) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > maxLength) {
+			throw new StreamCorruptedException("Invalid record length " + length);
+		}
+		return length;
+	}
+}
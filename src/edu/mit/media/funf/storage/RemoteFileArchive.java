@@ -24,6 +24,8 @@
 package edu.mit.media.funf.storage;
 
 import java.io.File;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Interface for representing file archives that are not on the device.
@@ -49,4 +51,72 @@ public interface RemoteFileArchive {
 	 * @return
 	 */
 	public String getId();
+	
+	/**
+	 * Remote archive that can be given the checksum of a file along with it, so the remote end can verify what it 
+	 * received, and recognize files it already has.
+	 */
+	public interface VerifiedRemoteFileArchive extends RemoteFileArchive {
+		
+		/**
+		 * Synchronously add the file to the remote archive
+		 * @param file the File to upload
+		 * @param checksum lower case hex SHA-256 of the file, or null if it is not known
+		 * @return true if successfully added, or the remote archive already has the file, false otherwise
+		 */
+		public boolean add(File file, String checksum);
+	}
+	
+	/**
+	 * Remote archive that can take several files in one request, acknowledging each file separately.
+	 */
+	public interface BatchRemoteFileArchive extends RemoteFileArchive {
+		
+		/**
+		 * Synchronously add the files to the remote archive
+		 * @param files the files to upload
+		 * @param checksums lower case hex SHA-256 of the files that have one, may be null
+		 * @return the files that were successfully added, which may be only some of them
+		 */
+		public List<File> addAll(List<File> files, Map<File, String> checksums);
+	}
+	
+	/**
+	 * Remote archive that reports how much it sent, so uploads that fail part way are still counted 
+	 * against upload budgets.
+	 */
+	public interface MeteredRemoteFileArchive extends RemoteFileArchive {
+		
+		/**
+		 * @return bytes written to the network by the calling thread's most recent add, whether or not it succeeded
+		 */
+		public long getBytesSent();
+		
+		/**
+		 * @return bytes an add of the file is expected to write to the network, including protocol overhead,
+		 * so upload budgets reserve what is actually sent
+		 */
+		public long getUploadSize(File file);
+	}
+	
+	/**
+	 * Remote archive that can record a file by name and checksum alone, when it already has the content.
+	 * Used for files a {@link FileArchive.DeduplicatingFileArchive} did not store again.
+	 */
+	public interface ReferenceRemoteFileArchive extends RemoteFileArchive {
+		
+		/**
+		 * Synchronously record the name against content the remote archive already has
+		 * @param name name of the file referring to the content
+		 * @param size size of the archived file holding the content
+		 * @param checksum lower case hex SHA-256 of the archived file holding the content
+		 * @return true if the name was recorded, false if it could not be, or the remote archive does not have the content
+		 */
+		public boolean addReference(String name, long size, String checksum);
+		
+		/**
+		 * @return true if references can be recorded as currently configured, otherwise they are kept for later
+		 */
+		public boolean acceptsReferences();
+	}
 }
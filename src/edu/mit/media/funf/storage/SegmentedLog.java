@@ -0,0 +1,415 @@
+/**
+ *
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ *
+ * This file is part of Funf.
+ *
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package edu.mit.media.funf.storage;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+
+import android.util.Log;
+import edu.mit.media.funf.util.IOUtil;
+import edu.mit.media.funf.util.LogUtil;
+
+/**
+ * Append only storage for probe data, an alternative to the SQLite database for high rate streams.
+ * Records are length prefixed and collected in a buffer that is written to the open segment with a single
+ * channel write.  Once a segment reaches its size limit, or is rolled for archiving, it is closed by renaming
+ * it, and closed segments can be handed to a {@link FileArchive} like a database file.
+ * 
+ * Segment format: the magic bytes "FUNFLOG1", then for each record an int length followed by that many bytes
+ * holding the UTF-8 probe name (short length prefixed), the double timestamp and the UTF-8 json value.
+ * All numbers are big endian.
+ */
+public class SegmentedLog {
+
+	public static final String SEGMENT_SUFFIX = ".log";
+	private static final String OPEN_SUFFIX = ".open";
+	private static final byte[] MAGIC = {'F', 'U', 'N', 'F', 'L', 'O', 'G', '1'};
+	public static final long DEFAULT_SEGMENT_BYTES = 4 * 1024 * 1024;
+	private static final int BUFFER_BYTES = 64 * 1024;
+	
+	private final File logDir;
+	private final String name;
+	private final long segmentBytes;
+	
+	private long segment;
+	private FileChannel channel = null;
+	private long channelSize = 0L;
+	private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+	
+	public SegmentedLog(File logDir, String name) {
+		this(logDir, name, DEFAULT_SEGMENT_BYTES);
+	}
+	
+	/**
+	 * @param logDir directory holding only this log's segments
+	 * @param name prefix for segment file names, so archived segments can be told apart
+	 * @param segmentBytes size at which the open segment is closed and a new one started
+	 */
+	public SegmentedLog(File logDir, String name, long segmentBytes) {
+		this.logDir = logDir;
+		this.name = name;
+		this.segmentBytes = segmentBytes;
+		logDir.mkdirs();
+		long lastSegment = -1L;
+		for (File file : listFiles(SEGMENT_SUFFIX, OPEN_SUFFIX)) {
+			if (file.getName().endsWith(OPEN_SUFFIX)) {
+				recover(file);
+			}
+			lastSegment = Math.max(lastSegment, getSegmentId(file));
+		}
+		this.segment = lastSegment + 1;
+	}
+	
+	/**
+	 * Closes a segment left open by a previous process, dropping any partially written record.
+	 */
+	private void recover(File openFile) {
+		long validLength = 0L;
+		SegmentReader reader = null;
+		try {
+			reader = new SegmentReader(openFile);
+			while (reader.hasNext()) {
+				reader.next();
+			}
+			validLength = reader.getValidLength();
+		} catch (IOException e) {
+			Log.e(LogUtil.TAG, "Unable to read open log segment " + openFile.getName(), e);
+		} finally {
+			IOUtil.close(reader);
+		}
+		if (validLength <= MAGIC.length) {
+			openFile.delete();
+			return;
+		}
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(openFile, "rw");
+			file.setLength(validLength);
+		} catch (IOException e) {
+			Log.e(LogUtil.TAG, "Unable to truncate log segment " + openFile.getName(), e);
+		} finally {
+			IOUtil.close(file);
+		}
+		openFile.renameTo(getSegmentFile(getSegmentId(openFile), false));
+	}
+	
+	/**
+	 * Buffers a record, writing the buffer to the open segment when it is full.
+	 */
+	public synchronized void append(String probeName, double timestamp, String value) throws IOException {
+		byte[] nameBytes = probeName.getBytes("UTF-8");
+		byte[] valueBytes = value.getBytes("UTF-8");
+		int recordLength = 2 + nameBytes.length + 8 + valueBytes.length;
+		if (buffer.remaining() < 4 + recordLength) {
+			write();
+			if (buffer.capacity() < 4 + recordLength) {
+				buffer = ByteBuffer.allocate(4 + recordLength);
+			}
+		}
+		buffer.putInt(recordLength);
+		buffer.putShort((short)nameBytes.length);
+		buffer.put(nameBytes);
+		buffer.putDouble(timestamp);
+		buffer.put(valueBytes);
+	}
+	
+	/**
+	 * Writes buffered records to the open segment, rolling it if it has reached its size limit.
+	 */
+	public synchronized void flush() throws IOException {
+		write();
+		if (channelSize >= segmentBytes) {
+			roll();
+		}
+	}
+	
+	private void write() throws IOException {
+		if (buffer.position() == 0) {
+			return;
+		}
+		if (channel == null) {
+			FileChannel opened = new FileOutputStream(getSegmentFile(segment, true), true).getChannel();
+			try {
+				opened.write(ByteBuffer.wrap(MAGIC));
+			} catch (IOException e) {
+				IOUtil.close(opened);
+				segment++; // Partial header, recovered when the log is next opened
+				throw e;
+			}
+			channel = opened;
+			channelSize = MAGIC.length;
+		}
+		buffer.flip();
+		long writtenSize = channelSize;
+		try {
+			while (buffer.hasRemaining()) {
+				writtenSize += channel.write(buffer);
+			}
+			channelSize = writtenSize;
+		} catch (IOException e) {
+			discardFailedWrite();
+			throw e;
+		} finally {
+			buffer.clear();
+		}
+	}
+	
+	/**
+	 * Drops what was written of a failed write, so the segment ends in a complete record.  If that is not possible 
+	 * the segment is left open on disk, to be recovered when the log is next opened, and a new one is started.
+	 */
+	private void discardFailedWrite() {
+		try {
+			channel.truncate(channelSize);
+			return;
+		} catch (IOException e) {
+			Log.e(LogUtil.TAG, "Unable to truncate log segment " + segment + ", starting a new one.", e);
+		}
+		IOUtil.close(channel);
+		channel = null;
+		channelSize = 0L;
+		segment++;
+	}
+	
+	/**
+	 * Forces written records to disk.
+	 */
+	public synchronized void sync() throws IOException {
+		write();
+		if (channel != null) {
+			channel.force(false);
+		}
+	}
+	
+	/**
+	 * Writes any buffered records and closes the open segment, making it available to archive.
+	 * Does nothing if the open segment is empty.
+	 */
+	public synchronized void roll() throws IOException {
+		write();
+		if (channel == null) {
+			return;
+		}
+		try {
+			channel.force(false);
+		} finally {
+			IOUtil.close(channel);
+			channel = null;
+			channelSize = 0L;
+		}
+		long closed = segment++; // Never written to again, even if the rename fails
+		if (!getSegmentFile(closed, true).renameTo(getSegmentFile(closed, false))) {
+			// Left open on disk, so it is recovered and closed when the log is next opened
+			throw new IOException("Unable to close log segment " + closed);
+		}
+	}
+	
+	/**
+	 * @return closed segments, oldest first
+	 */
+	public File[] getClosedSegments() {
+		File[] files = listFiles(SEGMENT_SUFFIX);
+		Arrays.sort(files);
+		return files;
+	}
+	
+	/**
+	 * @return bytes written to the open segment so far
+	 */
+	public synchronized long getOpenSegmentBytes() {
+		return channelSize;
+	}
+	
+	private File[] listFiles(final String... suffixes) {
+		File[] files = logDir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String filename) {
+				if (!filename.startsWith(name + "_")) {
+					return false;
+				}
+				for (String suffix : suffixes) {
+					if (filename.endsWith(suffix)) {
+						return true;
+					}
+				}
+				return false;
+			}
+		});
+		return files == null ? new File[0] : files;
+	}
+	
+	private File getSegmentFile(long id, boolean open) {
+		return new File(logDir, String.format(Locale.US, "%s_%019d%s%s", name, id, SEGMENT_SUFFIX, open ? OPEN_SUFFIX : ""));
+	}
+	
+	private long getSegmentId(File file) {
+		String id = file.getName().substring(name.length() + 1);
+		return Long.parseLong(id.substring(0, id.indexOf('.')));
+	}
+	
+	/**
+	 * A record read back from a segment.
+	 */
+	public static class Entry {
+		public final String probeName;
+		public final double timestamp;
+		public final String value;
+		
+		private Entry(String probeName, double timestamp, String value) {
+			this.probeName = probeName;
+			this.timestamp = timestamp;
+			this.value = value;
+		}
+	}
+	
+	/**
+	 * Streams the records of a segment file, stopping quietly at a partially written last record.
+	 */
+	public static class SegmentReader implements Iterator<Entry>, Closeable {
+		
+		private final FileChannel channel;
+		private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+		private long validLength = 0L;
+		private Entry next = null;
+		private boolean done = false;
+		
+		public SegmentReader(File segmentFile) throws IOException {
+			this.channel = new FileInputStream(segmentFile).getChannel();
+			buffer.limit(0);
+			byte[] magic = new byte[MAGIC.length];
+			if (!fill(magic.length)) {
+				IOUtil.close(channel);
+				throw new EOFException("Empty log segment " + segmentFile.getName());
+			}
+			buffer.get(magic);
+			if (!Arrays.equals(MAGIC, magic)) {
+				IOUtil.close(channel);
+				throw new IOException("Not a log segment " + segmentFile.getName());
+			}
+			validLength = MAGIC.length;
+		}
+		
+		/**
+		 * Makes at least count bytes available in the buffer, growing it if needed.
+		 * @return false if the file ends first
+		 */
+		private boolean fill(int count) throws IOException {
+			if (buffer.remaining() >= count) {
+				return true;
+			}
+			buffer.compact();
+			if (buffer.capacity() < count) {
+				ByteBuffer larger = ByteBuffer.allocate(count);
+				buffer.flip();
+				larger.put(buffer);
+				buffer = larger;
+			}
+			while (buffer.position() < count) {
+				if (channel.read(buffer) < 0) {
+					buffer.flip();
+					return false;
+				}
+			}
+			buffer.flip();
+			return true;
+		}
+		
+		@Override
+		public boolean hasNext() {
+			if (next == null && !done) {
+				try {
+					next = readEntry();
+				} catch (IOException e) {
+					Log.e(LogUtil.TAG, "Unable to read log segment.", e);
+				} catch (BufferUnderflowException e) {
+					Log.e(LogUtil.TAG, "Corrupt log segment record.");
+				}
+				done = next == null;
+			}
+			return next != null;
+		}
+		
+		private Entry readEntry() throws IOException {
+			if (!fill(4)) {
+				return null;
+			}
+			int recordLength = buffer.getInt(buffer.position());
+			if (recordLength < 10 || recordLength > channel.size() - validLength - 4 || !fill(4 + recordLength)) {
+				return null;
+			}
+			buffer.getInt();
+			int nameLength = buffer.getShort() & 0xFFFF;
+			if (nameLength > recordLength - 10) {
+				throw new IOException("Corrupt log segment record.");
+			}
+			byte[] nameBytes = new byte[nameLength];
+			buffer.get(nameBytes);
+			double timestamp = buffer.getDouble();
+			byte[] valueBytes = new byte[recordLength - 2 - nameBytes.length - 8];
+			buffer.get(valueBytes);
+			validLength += 4 + recordLength;
+			return new Entry(new String(nameBytes, "UTF-8"), timestamp, new String(valueBytes, "UTF-8"));
+		}
+
+		@Override
+		public Entry next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Entry entry = next;
+			next = null;
+			return entry;
+		}
+		
+		/**
+		 * @return number of bytes at the start of the file holding complete records
+		 */
+		public long getValidLength() {
+			return validLength;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void close() {
+			IOUtil.close(channel);
+		}
+	}
+}
@@ -0,0 +1,651 @@
+/**
+ *
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ *
+ * This file is part of Funf.
+ *
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package edu.mit.media.funf.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.NetworkInfo.State;
+import android.util.Log;
+
+import com.google.gson.JsonElement;
+
+import edu.mit.media.funf.config.Configurable;
+import edu.mit.media.funf.config.RuntimeTypeAdapterFactory;
+import edu.mit.media.funf.json.IJsonObject;
+import edu.mit.media.funf.probe.Probe.DataListener;
+import edu.mit.media.funf.util.IOUtil;
+import edu.mit.media.funf.util.LogUtil;
+import edu.mit.media.funf.util.StringUtil;
+
+/**
+ * Streams probe data to a remote receiver as it arrives, over one long lived TCP connection, instead of 
+ * waiting for the database to be archived and uploaded.  Files given to add are sent over the same connection.
+ * 
+ * Every frame, in both directions, is a 1 byte type, an 8 byte sequence number, a 4 byte payload length and the 
+ * payload, big endian:
+ * <ul>
+ * <li>RECORD (1): the probe type then the JSON data, each as a 4 byte length followed by UTF-8 bytes.</li>
+ * <li>FILE (2): the file name as a 4 byte length followed by UTF-8 bytes, then the file content.</li>
+ * <li>ACK (3): sent by the receiver with an empty payload once it has stored every frame up to and including 
+ * the sequence number.</li>
+ * </ul>
+ * Sequence numbers start at 1 on each connection.  Records are written to a local spool before they are sent, 
+ * and removed from it once acknowledged.  After a reconnect everything left in the spool is sent again, so 
+ * delivery is at least once, and a receiver may see a record more than once.
+ */
+public class StreamingArchive implements RemoteFileArchive, DataListener {
+
+	public static final byte FRAME_RECORD = 1;
+	public static final byte FRAME_FILE = 2;
+	public static final byte FRAME_ACK = 3;
+	public static final int FRAME_HEADER_BYTES = 13;
+	
+	public static final int DEFAULT_BATCH_RECORDS = 50;
+	public static final long DEFAULT_BATCH_MILLIS = 1000L;
+	public static final int DEFAULT_MAX_PENDING_RECORDS = 10000;
+	
+	private static final long MIN_RECONNECT_MILLIS = 1000L;
+	private static final long MAX_RECONNECT_MILLIS = 60 * 1000L;
+	private static final long ACK_TIMEOUT_MILLIS = 30 * 1000L;
+	private static final long FILE_TIMEOUT_MILLIS = 10 * 60 * 1000L;
+	private static final int TIMEOUT_MILLIS = 60000;
+	private static final int BUFFER_SIZE = 8192;
+	
+	@Configurable
+	private String host;
+	
+	@Configurable
+	private int port;
+	
+	@Configurable
+	private boolean wifiOnly = false;
+	
+	/**
+	 * Records written together before flushing the connection.  A smaller batch is sent once its oldest 
+	 * record has waited batchMillis.
+	 */
+	@Configurable
+	private int batchRecords = DEFAULT_BATCH_RECORDS;
+	
+	@Configurable
+	private long batchMillis = DEFAULT_BATCH_MILLIS;
+	
+	/**
+	 * Records held in memory waiting to be sent or acknowledged.  Records beyond this are only kept in the spool, 
+	 * and read back from it once the connection has caught up.
+	 */
+	@Configurable
+	private int maxPendingRecords = DEFAULT_MAX_PENDING_RECORDS;
+	
+	@Configurable
+	private int spoolSegmentRecords = DataJournal.DEFAULT_SEGMENT_RECORDS;
+	
+	private Context context;
+	private File spoolDir;
+	private DataJournal spool;
+	
+	// Guarded by this
+	private final LinkedList<Frame> pending = new LinkedList<Frame>(); // Files first, then records in spool order
+	private final LinkedList<Frame> sent = new LinkedList<Frame>();
+	private int queuedRecords = 0;
+	private long overflowSegment = -1L; // Oldest spool segment with records that are not in memory
+	private IOException connectionError = null;
+	private long nextSeq = 1L;
+	private long lastAckMillis = 0L;
+	private Thread sender = null;
+	
+	private volatile boolean running = false;
+	private volatile Socket socket = null;
+	private DataOutputStream out;
+	
+	public StreamingArchive() {
+		
+	}
+	
+	public StreamingArchive(Context context, String host, int port) {
+		this.context = context;
+		this.host = host;
+		this.port = port;
+	}
+	
+	public void setContext(Context context) {
+		this.context = context;
+	}
+	
+	public void setHost(String host) {
+		this.host = host;
+	}
+	
+	public void setPort(int port) {
+		this.port = port;
+	}
+	
+	/**
+	 * @param spoolDir directory holding only this archive's spool, defaults to a private directory named after the receiver
+	 */
+	public void setSpoolDir(File spoolDir) {
+		this.spoolDir = spoolDir;
+	}
+	
+	/**
+	 * @param spoolSegmentRecords records per spool segment, the unit in which acknowledged records are removed 
+	 * and in which the spool is read back
+	 */
+	public void setSpoolSegmentRecords(int spoolSegmentRecords) {
+		this.spoolSegmentRecords = spoolSegmentRecords;
+	}
+	
+	public void setMaxPendingRecords(int maxPendingRecords) {
+		this.maxPendingRecords = Math.max(1, maxPendingRecords);
+	}
+	
+	public void setBatching(int batchRecords, long batchMillis) {
+		this.batchRecords = Math.max(1, batchRecords);
+		this.batchMillis = batchMillis;
+	}
+	
+	/**
+	 * Starts the thread that connects to the receiver and sends data.  Called on first use if not called before.
+	 * @throws IllegalStateException if neither a context nor a spool directory was set
+	 */
+	public synchronized void start() {
+		checkSpoolDir();
+		if (sender == null) {
+			running = true;
+			sender = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					send();
+				}
+			}, getClass().getName());
+			sender.setDaemon(true);
+			sender.start();
+		}
+	}
+	
+	/**
+	 * Stops sending and closes the connection.  Unacknowledged records stay in the spool for the next start.
+	 */
+	public void stop() {
+		synchronized (this) {
+			running = false;
+			sender = null;
+			notifyAll();
+		}
+		closeSocket();
+	}
+
+	@Override
+	public boolean isAvailable() {
+		assert context != null;
+		ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+		NetworkInfo netInfo = connectivityManager.getActiveNetworkInfo();
+		if (!wifiOnly && netInfo != null && netInfo.isConnectedOrConnecting()) {
+			return true;
+		} else if (wifiOnly) {
+			State wifiInfo = connectivityManager.getNetworkInfo(ConnectivityManager.TYPE_WIFI).getState();
+			if (State.CONNECTED.equals(wifiInfo) || State.CONNECTING.equals(wifiInfo)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public String getId() {
+		return host + ":" + port;
+	}
+	
+	/**
+	 * Sends the file over the stream, waiting until the receiver acknowledges it.
+	 * Files are not spooled, a file that is not acknowledged is left for the caller to retry.
+	 */
+	@Override
+	public boolean add(File file) {
+		byte[] name = toUtf8(file.getName());
+		if (!file.exists() || file.length() > Integer.MAX_VALUE - 4 - name.length) {
+			Log.e(LogUtil.TAG, "Unable to stream file " + file.getName());
+			return false;
+		}
+		Frame frame = new Frame(file);
+		start();
+		long deadline = System.currentTimeMillis() + FILE_TIMEOUT_MILLIS;
+		synchronized (this) {
+			ListIterator<Frame> i = pending.listIterator();
+			while (i.hasNext()) {
+				if (i.next().file == null) {
+					i.previous();
+					break;
+				}
+			}
+			i.add(frame);
+			notifyAll();
+			try {
+				long remaining = deadline - System.currentTimeMillis();
+				while (!frame.done && running && remaining > 0) {
+					wait(remaining);
+					remaining = deadline - System.currentTimeMillis();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			pending.remove(frame);
+			return frame.received;
+		}
+	}
+	
+	@Override
+	public void onDataReceived(IJsonObject probeConfig, IJsonObject data) {
+		String probeType = probeConfig.get(RuntimeTypeAdapterFactory.TYPE).getAsString();
+		synchronized (this) {
+			DataJournal spool = getSpool();
+			long segment = spool.getLastClosedSegment() + 1;
+			spool.append(probeType, data);
+			if (overflowSegment < 0 && queuedRecords >= maxPendingRecords) {
+				overflowSegment = segment;
+			}
+			if (overflowSegment < 0) {
+				pending.add(new Frame(probeType, data, segment));
+				queuedRecords++;
+				notifyAll();
+			}
+		}
+		start();
+	}
+
+	@Override
+	public void onDataCompleted(IJsonObject probeConfig, JsonElement checkpoint) {
+		// Records are sent as they arrive
+	}
+	
+	private void checkSpoolDir() {
+		if (spoolDir == null && context == null) {
+			throw new IllegalStateException("StreamingArchive needs a context or a spool directory");
+		}
+	}
+	
+	private DataJournal getSpool() {
+		if (spool == null) {
+			checkSpoolDir();
+			File dir = spoolDir;
+			if (dir == null) {
+				dir = context.getDir("funf_stream_" + StringUtil.simpleFilesafe(getId()), Context.MODE_PRIVATE);
+			}
+			spool = new DataJournal(dir, spoolSegmentRecords, DataJournal.DEFAULT_SYNC_RECORDS, DataJournal.DEFAULT_SYNC_MILLIS);
+		}
+		return spool;
+	}
+	
+	private synchronized boolean isSender() {
+		return running && sender == Thread.currentThread();
+	}
+	
+	private void send() {
+		long reconnectMillis = MIN_RECONNECT_MILLIS;
+		while (isSender()) {
+			try {
+				if (socket == null) {
+					connect();
+				}
+				List<Frame> batch = takeBatch();
+				for (Frame frame : batch) {
+					writeFrame(frame);
+				}
+				if (!batch.isEmpty()) {
+					out.flush();
+					reconnectMillis = MIN_RECONNECT_MILLIS;
+				}
+			} catch (IOException e) {
+				if (isSender()) {
+					Log.w(LogUtil.TAG, "Stream to " + getId() + " interrupted: " + e.getMessage());
+				}
+				disconnect();
+				pause(reconnectMillis);
+				reconnectMillis = Math.min(reconnectMillis * 2, MAX_RECONNECT_MILLIS);
+			}
+		}
+		disconnect();
+	}
+	
+	private void connect() throws IOException {
+		if (context != null && !isAvailable()) {
+			throw new IOException("Network unavailable");
+		}
+		final Socket newSocket = new Socket();
+		final DataInputStream in;
+		try {
+			newSocket.connect(new InetSocketAddress(host, port), TIMEOUT_MILLIS);
+			newSocket.setTcpNoDelay(true);
+			out = new DataOutputStream(new BufferedOutputStream(newSocket.getOutputStream(), BUFFER_SIZE));
+			in = new DataInputStream(new BufferedInputStream(newSocket.getInputStream()));
+		} catch (IOException e) {
+			newSocket.close();
+			throw e;
+		}
+		socket = newSocket;
+		synchronized (this) {
+			nextSeq = 1L;
+			connectionError = null;
+			resync();
+		}
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				readAcks(newSocket, in);
+			}
+		}, getClass().getName() + "[acks]");
+		reader.setDaemon(true);
+		reader.start();
+	}
+	
+	private void disconnect() {
+		closeSocket();
+		synchronized (this) {
+			// Files in flight will not be acknowledged on a new connection
+			Iterator<Frame> i = sent.iterator();
+			while (i.hasNext()) {
+				Frame frame = i.next();
+				if (frame.file != null) {
+					frame.done = true;
+					i.remove();
+				}
+			}
+			notifyAll();
+		}
+	}
+	
+	private void closeSocket() {
+		Socket oldSocket = socket;
+		socket = null;
+		if (oldSocket != null) {
+			try {
+				oldSocket.close();
+			} catch (IOException e) {
+				Log.w(LogUtil.TAG, "Unable to close stream to " + getId());
+			}
+		}
+	}
+	
+	private synchronized void pause(long millis) {
+		long deadline = System.currentTimeMillis() + millis;
+		try {
+			long remaining = millis;
+			while (isSender() && remaining > 0) {
+				wait(remaining);
+				remaining = deadline - System.currentTimeMillis();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Replaces the records in memory with the oldest in the spool, which includes every record not yet acknowledged.
+	 */
+	private void resync() {
+		sent.clear();
+		Iterator<Frame> i = pending.iterator();
+		while (i.hasNext()) {
+			if (i.next().file == null) {
+				i.remove();
+			}
+		}
+		queuedRecords = 0;
+		overflowSegment = 0L;
+		refill();
+	}
+	
+	/**
+	 * Reads records that are only in the spool back into memory, in whole segments up to about maxPendingRecords.
+	 * Any that do not fit are left for the next refill, once the records in memory have been acknowledged.
+	 */
+	private void refill() {
+		DataJournal spool = getSpool();
+		long throughSegment = spool.roll();
+		int maxRecords = Math.max(1, maxPendingRecords - queuedRecords);
+		List<DataJournal.Entry> entries = spool.read(overflowSegment, throughSegment, maxRecords);
+		for (DataJournal.Entry entry : entries) {
+			pending.add(new Frame(entry.probeType, entry.data, entry.segment));
+		}
+		queuedRecords += entries.size();
+		overflowSegment = -1L;
+		if (entries.size() >= maxRecords) {
+			long nextSegment = entries.get(entries.size() - 1).segment + 1;
+			if (nextSegment <= throughSegment) {
+				overflowSegment = nextSegment;
+			}
+		}
+	}
+	
+	/**
+	 * Waits until a batch is ready to send, then moves it to the frames awaiting acknowledgement.
+	 * @return the batch, empty if the archive was stopped
+	 */
+	private synchronized List<Frame> takeBatch() throws IOException {
+		try {
+			while (isSender()) {
+				if (connectionError != null) {
+					throw connectionError;
+				}
+				long now = System.currentTimeMillis();
+				if (!sent.isEmpty() && now - lastAckMillis > ACK_TIMEOUT_MILLIS) {
+					throw new IOException("No acknowledgement from receiver");
+				}
+				if (overflowSegment >= 0 && queuedRecords == 0) {
+					refill();
+				}
+				long waitMillis = Long.MAX_VALUE;
+				if (!pending.isEmpty()) {
+					Frame first = pending.getFirst();
+					if (first.file != null || pending.size() >= batchRecords || now - first.queuedMillis >= batchMillis) {
+						break;
+					}
+					waitMillis = first.queuedMillis + batchMillis - now;
+				}
+				if (!sent.isEmpty()) {
+					waitMillis = Math.min(waitMillis, lastAckMillis + ACK_TIMEOUT_MILLIS - now + 1);
+				}
+				wait(waitMillis == Long.MAX_VALUE ? 0L : Math.max(1L, waitMillis));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (!isSender()) {
+			return Collections.emptyList();
+		}
+		if (sent.isEmpty()) {
+			lastAckMillis = System.currentTimeMillis();
+		}
+		List<Frame> batch = new ArrayList<Frame>();
+		while (!pending.isEmpty() && batch.size() < batchRecords) {
+			Frame frame = pending.removeFirst();
+			frame.seq = nextSeq++;
+			sent.add(frame);
+			batch.add(frame);
+		}
+		return batch;
+	}
+	
+	private void writeFrame(Frame frame) throws IOException {
+		if (frame.file == null) {
+			byte[] probeType = toUtf8(frame.probeType);
+			byte[] data = toUtf8(frame.data.toString());
+			writeHeader(FRAME_RECORD, frame.seq, 8 + probeType.length + data.length);
+			out.writeInt(probeType.length);
+			out.write(probeType);
+			out.writeInt(data.length);
+			out.write(data);
+		} else {
+			byte[] name = toUtf8(frame.file.getName());
+			long length = frame.file.length();
+			InputStream input = new FileInputStream(frame.file);
+			try {
+				writeHeader(FRAME_FILE, frame.seq, 4 + name.length + (int) length);
+				out.writeInt(name.length);
+				out.write(name);
+				byte[] buffer = new byte[BUFFER_SIZE];
+				long remaining = length;
+				while (remaining > 0) {
+					int read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+					if (read < 0) {
+						throw new IOException("File changed while streaming " + frame.file.getName());
+					}
+					out.write(buffer, 0, read);
+					remaining -= read;
+				}
+			} finally {
+				IOUtil.close(input);
+			}
+		}
+	}
+	
+	private void writeHeader(byte type, long seq, int length) throws IOException {
+		out.writeByte(type);
+		out.writeLong(seq);
+		out.writeInt(length);
+	}
+	
+	/**
+	 * Reads acknowledgements until the connection closes, then wakes the sender if it is still using the connection.
+	 */
+	private void readAcks(Socket ackSocket, DataInputStream in) {
+		try {
+			while (true) {
+				byte type = in.readByte();
+				long seq = in.readLong();
+				int length = in.readInt();
+				if (length != 0) {
+					throw new IOException("Unexpected frame from receiver");
+				}
+				if (type == FRAME_ACK) {
+					acknowledged(ackSocket, seq);
+				}
+			}
+		} catch (IOException e) {
+			synchronized (this) {
+				if (socket == ackSocket) {
+					connectionError = e instanceof EOFException ? new IOException("Connection closed by receiver") : e;
+					notifyAll();
+				}
+			}
+		}
+	}
+	
+	private synchronized void acknowledged(Socket ackSocket, long seq) {
+		if (socket != ackSocket) {
+			return; // Sequence numbers belong to a previous connection
+		}
+		lastAckMillis = System.currentTimeMillis();
+		while (!sent.isEmpty() && sent.getFirst().seq <= seq) {
+			Frame frame = sent.removeFirst();
+			if (frame.file == null) {
+				queuedRecords--;
+			} else {
+				frame.done = true;
+				frame.received = true;
+			}
+		}
+		notifyAll();
+		
+		// Records are in spool order, so everything before the oldest unacknowledged record can be removed
+		long oldestSegment = getOldestSegment();
+		DataJournal spool = getSpool();
+		if (oldestSegment < 0) {
+			spool.deleteThrough(spool.roll());
+		} else {
+			spool.deleteThrough(oldestSegment - 1);
+		}
+	}
+	
+	/**
+	 * @return the spool segment of the oldest record not yet acknowledged, or -1 if every record has been
+	 */
+	private long getOldestSegment() {
+		for (Frame frame : sent) {
+			if (frame.file == null) {
+				return frame.segment;
+			}
+		}
+		for (Frame frame : pending) {
+			if (frame.file == null) {
+				return frame.segment;
+			}
+		}
+		return overflowSegment;
+	}
+	
+	private static byte[] toUtf8(String value) {
+		try {
+			return value.getBytes("UTF-8");
+		} catch (IOException e) {
+			throw new RuntimeException(e); // UTF-8 is always supported
+		}
+	}
+	
+	private static class Frame {
+		private final String probeType;
+		private final IJsonObject data;
+		private final long segment;
+		private final File file;
+		private final long queuedMillis;
+		private long seq;
+		private boolean done = false;
+		private boolean received = false;
+		
+		private Frame(String probeType, IJsonObject data, long segment) {
+			this.probeType = probeType;
+			this.data = data;
+			this.segment = segment;
+			this.file = null;
+			this.queuedMillis = System.currentTimeMillis();
+		}
+		
+		private Frame(File file) {
+			this.probeType = null;
+			this.data = null;
+			this.segment = -1L;
+			this.file = file;
+			this.queuedMillis = 0L;
+		}
+	}
+}
@@ -0,0 +1,83 @@
+/**
+ *
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ *
+ * This file is part of Funf.
+ *
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package edu.mit.media.funf.storage;
+
+import java.io.File;
+
+import edu.mit.media.funf.storage.FileArchive.ChecksummedFileArchive;
+import edu.mit.media.funf.storage.FileArchive.MovingFileArchive;
+
+/**
+ * Archive that writes a copy of every added file into other directory archives, from the same read of the file.
+ * Only the main archive is listed or removed from, the copies are left to their own cleaners.
+ *
+ */
+public class TeeFileArchive implements MovingFileArchive, ChecksummedFileArchive {
+
+	private final FileDirectoryArchive archive;
+	private final FileDirectoryArchive[] copies;
+	
+	public TeeFileArchive(FileDirectoryArchive archive, FileDirectoryArchive... copies) {
+		this.archive = archive;
+		this.copies = copies;
+	}
+	
+	@Override
+	public boolean add(File item) {
+		return archive.add(item, copies);
+	}
+
+	/**
+	 * The copies still need the item's content, so it is copied once and then deleted.
+	 */
+	@Override
+	public boolean move(File item) {
+		if (add(item)) {
+			item.delete();
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public File[] getAll() {
+		return archive.getAll();
+	}
+
+	@Override
+	public boolean remove(File item) {
+		return archive.remove(item);
+	}
+
+	@Override
+	public boolean contains(File item) {
+		return archive.contains(item);
+	}
+	
+	@Override
+	public String getChecksum(File item) {
+		return archive.getChecksum(item);
+	}
+
+}
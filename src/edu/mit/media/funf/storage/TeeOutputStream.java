@@ -0,0 +1,115 @@
+/**
+ *
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ *
+ * This file is part of Funf.
+ *
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package edu.mit.media.funf.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+
+import edu.mit.media.funf.util.IOUtil;
+
+/**
+ * Writes the same bytes to several output streams, so data that is expensive to produce
+ * can be produced once and stored in several places.
+ */
+public class TeeOutputStream extends OutputStream {
+
+	private final OutputStream[] outs;
+	
+	public TeeOutputStream(OutputStream... outs) {
+		this.outs = outs;
+	}
+	
+	/**
+	 * Opens a stream to each file, or none of them if any cannot be opened.
+	 */
+	public static OutputStream open(File[] files) throws IOException {
+		if (files.length == 1) {
+			return new FileOutputStream(files[0]);
+		}
+		OutputStream[] outs = new OutputStream[files.length];
+		try {
+			for (int i = 0; i < files.length; i++) {
+				outs[i] = new FileOutputStream(files[i]);
+			}
+		} catch (IOException e) {
+			for (OutputStream out : outs) {
+				IOUtil.close(out);
+			}
+			throw e;
+		}
+		return new TeeOutputStream(outs);
+	}
+	
+	/**
+	 * Opens a stream to each file, updating the digest with everything written, or none of them if any cannot be opened.
+	 * @param digest updated with the bytes written to the files, or null
+	 */
+	public static OutputStream open(File[] files, MessageDigest digest) throws IOException {
+		OutputStream out = open(files);
+		return digest == null ? out : new DigestOutputStream(out, digest);
+	}
+	
+	@Override
+	public void write(int b) throws IOException {
+		for (OutputStream out : outs) {
+			out.write(b);
+		}
+	}
+	
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		for (OutputStream out : outs) {
+			out.write(b, off, len);
+		}
+	}
+	
+	@Override
+	public void flush() throws IOException {
+		for (OutputStream out : outs) {
+			out.flush();
+		}
+	}
+	
+	/**
+	 * Closes every stream, even if closing an earlier one fails.
+	 */
+	@Override
+	public void close() throws IOException {
+		IOException exception = null;
+		for (OutputStream out : outs) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				exception = e;
+			}
+		}
+		if (exception != null) {
+			throw exception;
+		}
+	}
+}
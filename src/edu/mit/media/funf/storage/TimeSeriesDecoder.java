@@ -0,0 +1,184 @@
+/**
+ *
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ *
+ * This file is part of Funf.
+ *
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package edu.mit.media.funf.storage;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import edu.mit.media.funf.json.IJsonObject;
+import edu.mit.media.funf.probe.builtin.ProbeKeys.BaseProbeKeys;
+import edu.mit.media.funf.security.Base64Coder;
+
+/**
+ * Reads back the samples of a block written by {@link TimeSeriesEncoder}.
+ */
+public class TimeSeriesDecoder {
+
+	public static final String ENCODING_GORILLA = "gorilla";
+	
+	/**
+	 * Keys of a probe data record holding an encoded block, rather than a single sample.
+	 */
+	public static final String 
+		ENCODING = "encoding",
+		FIELDS = "fields",
+		COUNT = "count",
+		BLOCK = "block";
+	
+	private final byte[] block;
+	private final int valueCount;
+	private final int count;
+	private int bitPosition = 32; // After the sample count
+	private int index = 0;
+	
+	private long time;
+	private long delta = 0L;
+	private final int[] values;
+	private final int[] leading;
+	private final int[] trailing;
+	
+	public TimeSeriesDecoder(byte[] block, int valueCount) {
+		this.block = block;
+		this.valueCount = valueCount;
+		this.count = ((block[0] & 0xFF) << 24) | ((block[1] & 0xFF) << 16) | ((block[2] & 0xFF) << 8) | (block[3] & 0xFF);
+		this.values = new int[valueCount];
+		this.leading = new int[valueCount];
+		this.trailing = new int[valueCount];
+	}
+	
+	/**
+	 * Moves to the next sample.
+	 * @return false once every sample has been read
+	 */
+	public boolean next() {
+		if (index >= count) {
+			return false;
+		}
+		if (index == 0) {
+			time = read(64);
+			for (int i = 0; i < valueCount; i++) {
+				values[i] = (int)read(32);
+			}
+		} else {
+			delta += readDeltaOfDelta();
+			time += delta;
+			for (int i = 0; i < valueCount; i++) {
+				readValue(i);
+			}
+		}
+		index++;
+		return true;
+	}
+	
+	private long readDeltaOfDelta() {
+		if (read(1) == 0) {
+			return 0L;
+		} else if (read(1) == 0) {
+			return readSigned(7);
+		} else if (read(1) == 0) {
+			return readSigned(9);
+		} else if (read(1) == 0) {
+			return readSigned(12);
+		} else {
+			return read(64);
+		}
+	}
+	
+	private void readValue(int field) {
+		if (read(1) == 0) {
+			return; // Unchanged
+		}
+		if (read(1) == 1) {
+			leading[field] = (int)read(5);
+			int meaningful = (int)read(5) + 1;
+			trailing[field] = 32 - leading[field] - meaningful;
+		}
+		int meaningful = 32 - leading[field] - trailing[field];
+		values[field] ^= (int)(read(meaningful) << trailing[field]);
+	}
+	
+	private long read(int length) {
+		long value = 0L;
+		for (int i = 0; i < length; i++) {
+			int bit = (block[bitPosition >>> 3] >>> (7 - (bitPosition & 7))) & 1;
+			value = (value << 1) | bit;
+			bitPosition++;
+		}
+		return value;
+	}
+	
+	private long readSigned(int length) {
+		long value = read(length);
+		return (value << (64 - length)) >> (64 - length); // Sign extend
+	}
+	
+	public int getCount() {
+		return count;
+	}
+	
+	/**
+	 * @return time of the current sample, in the unit it was encoded with
+	 */
+	public long getTime() {
+		return time;
+	}
+	
+	public float getValue(int field) {
+		return Float.intBitsToFloat(values[field]);
+	}
+	
+	/**
+	 * @return true if the probe data record holds an encoded block of samples
+	 */
+	public static boolean isBlock(IJsonObject data) {
+		return data.has(ENCODING) && ENCODING_GORILLA.equals(data.get(ENCODING).getAsString());
+	}
+	
+	/**
+	 * Expands a probe data record holding an encoded block of sensor samples into one record per sample,
+	 * with the same fields and timestamps in seconds as records sent one sample at a time.
+	 */
+	public static List<JsonObject> decode(IJsonObject data) {
+		JsonArray fieldArray = data.get(FIELDS).getAsJsonArray();
+		String[] fields = new String[fieldArray.size()];
+		for (int i = 0; i < fields.length; i++) {
+			fields[i] = fieldArray.get(i).getAsString();
+		}
+		TimeSeriesDecoder decoder = new TimeSeriesDecoder(Base64Coder.decode(data.get(BLOCK).getAsString()), fields.length);
+		List<JsonObject> samples = new ArrayList<JsonObject>(decoder.getCount());
+		while (decoder.next()) {
+			JsonObject sample = new JsonObject();
+			sample.addProperty(BaseProbeKeys.TIMESTAMP, BigDecimal.valueOf(decoder.getTime(), 6)); // Microseconds
+			for (int i = 0; i < fields.length; i++) {
+				sample.addProperty(fields[i], decoder.getValue(i));
+			}
+			samples.add(sample);
+		}
+		return samples;
+	}
+}
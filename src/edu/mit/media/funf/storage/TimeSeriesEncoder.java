@@ -0,0 +1,196 @@
+/**
+ *
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ *
+ * This file is part of Funf.
+ *
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package edu.mit.media.funf.storage;
+
+import java.util.Arrays;
+
+/**
+ * Compresses a block of numeric samples taken at regular intervals, such as sensor readings, using the
+ * scheme from Facebook's Gorilla time series database.  Timestamps are stored as the difference between
+ * successive intervals, and each value as the XOR of its bits with the previous value of the same field,
+ * so steady rates and slowly changing values take only a few bits per sample.
+ * 
+ * Block format: int sample count, long first timestamp, then the first sample's float values as raw bits,
+ * followed by the bit packed timestamps and values of every later sample.  Read with {@link TimeSeriesDecoder}.
+ */
+public class TimeSeriesEncoder {
+	
+	private final int valueCount;
+	private final BitWriter bits = new BitWriter();
+	private int count = 0;
+	private long previousTime;
+	private long previousDelta;
+	private final int[] previousValues;
+	private final int[] previousLeading;
+	private final int[] previousTrailing;
+	
+	/**
+	 * @param valueCount number of float values in every sample
+	 */
+	public TimeSeriesEncoder(int valueCount) {
+		this.valueCount = valueCount;
+		this.previousValues = new int[valueCount];
+		this.previousLeading = new int[valueCount];
+		this.previousTrailing = new int[valueCount];
+	}
+	
+	/**
+	 * @param time sample time in any integer unit, microseconds for sensor data
+	 * @param values exactly valueCount values
+	 */
+	public void add(long time, float[] values) {
+		if (values.length != valueCount) {
+			throw new IllegalArgumentException("Expected " + valueCount + " values, got " + values.length);
+		}
+		if (count == 0) {
+			bits.write(time, 64);
+			for (int i = 0; i < valueCount; i++) {
+				previousValues[i] = Float.floatToIntBits(values[i]);
+				previousLeading[i] = -1; // No previous window
+				bits.write(previousValues[i], 32);
+			}
+			previousDelta = 0L;
+		} else {
+			long delta = time - previousTime;
+			writeDeltaOfDelta(delta - previousDelta);
+			previousDelta = delta;
+			for (int i = 0; i < valueCount; i++) {
+				writeValue(i, Float.floatToIntBits(values[i]));
+			}
+		}
+		previousTime = time;
+		count++;
+	}
+	
+	private void writeDeltaOfDelta(long deltaOfDelta) {
+		if (deltaOfDelta == 0) {
+			bits.write(0, 1);
+		} else if (deltaOfDelta >= -64 && deltaOfDelta < 64) {
+			bits.write(0x2, 2);
+			bits.write(deltaOfDelta, 7);
+		} else if (deltaOfDelta >= -256 && deltaOfDelta < 256) {
+			bits.write(0x6, 3);
+			bits.write(deltaOfDelta, 9);
+		} else if (deltaOfDelta >= -2048 && deltaOfDelta < 2048) {
+			bits.write(0xE, 4);
+			bits.write(deltaOfDelta, 12);
+		} else {
+			bits.write(0xF, 4);
+			bits.write(deltaOfDelta, 64);
+		}
+	}
+	
+	private void writeValue(int field, int value) {
+		int xor = value ^ previousValues[field];
+		previousValues[field] = value;
+		if (xor == 0) {
+			bits.write(0, 1);
+			return;
+		}
+		bits.write(1, 1);
+		int leading = Integer.numberOfLeadingZeros(xor);
+		int trailing = Integer.numberOfTrailingZeros(xor);
+		if (previousLeading[field] >= 0 && leading >= previousLeading[field] && trailing >= previousTrailing[field]) {
+			// Fits in the previous window of meaningful bits
+			bits.write(0, 1);
+			bits.write(xor >>> previousTrailing[field], 32 - previousLeading[field] - previousTrailing[field]);
+		} else {
+			int meaningful = 32 - leading - trailing;
+			bits.write(1, 1);
+			bits.write(leading, 5);
+			bits.write(meaningful - 1, 5);
+			bits.write(xor >>> trailing, meaningful);
+			previousLeading[field] = leading;
+			previousTrailing[field] = trailing;
+		}
+	}
+	
+	public int getCount() {
+		return count;
+	}
+	
+	public int getValueCount() {
+		return valueCount;
+	}
+	
+	/**
+	 * @return the encoded block of all samples added since the last reset
+	 */
+	public byte[] toByteArray() {
+		byte[] data = bits.toByteArray();
+		byte[] block = new byte[4 + data.length];
+		block[0] = (byte)(count >>> 24);
+		block[1] = (byte)(count >>> 16);
+		block[2] = (byte)(count >>> 8);
+		block[3] = (byte)count;
+		System.arraycopy(data, 0, block, 4, data.length);
+		return block;
+	}
+	
+	/**
+	 * Starts a new block.
+	 */
+	public void reset() {
+		bits.reset();
+		count = 0;
+	}
+	
+	private static class BitWriter {
+		private byte[] bytes = new byte[256];
+		private int bitCount = 0;
+		
+		/**
+		 * Writes the low order length bits of value, most significant first.
+		 */
+		void write(long value, int length) {
+			ensureCapacity(bitCount + length);
+			for (int i = length - 1; i >= 0; i--) {
+				if (((value >>> i) & 1L) != 0) {
+					bytes[bitCount >>> 3] |= (byte)(0x80 >>> (bitCount & 7));
+				}
+				bitCount++;
+			}
+		}
+		
+		private void ensureCapacity(int bits) {
+			int needed = (bits + 7) >>> 3;
+			if (needed > bytes.length) {
+				byte[] larger = new byte[Math.max(needed, bytes.length * 2)];
+				System.arraycopy(bytes, 0, larger, 0, bytes.length);
+				bytes = larger;
+			}
+		}
+		
+		byte[] toByteArray() {
+			byte[] result = new byte[(bitCount + 7) >>> 3];
+			System.arraycopy(bytes, 0, result, 0, result.length);
+			return result;
+		}
+		
+		void reset() {
+			Arrays.fill(bytes, (byte)0);
+			bitCount = 0;
+		}
+	}
+}
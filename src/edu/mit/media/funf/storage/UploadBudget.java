@@ -0,0 +1,186 @@
+/**
+ *
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ *
+ * This file is part of Funf.
+ *
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package edu.mit.media.funf.storage;
+
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.SharedPreferences;
+
+/**
+ * Daily and monthly byte budgets for uploads, per network type, so uploads on metered networks
+ * have a predictable cost.  Network types without a budget are unlimited.
+ * 
+ * Bytes are reserved before an upload starts, so concurrent uploads cannot overrun a budget together.
+ * Once it finishes the bytes actually sent are counted, whether or not the upload succeeded.
+ * Counts are persisted in shared preferences when they are given, and start again at zero on each
+ * new day or month in local time.
+ */
+public class UploadBudget {
+
+	private static final String DAY_PREFIX = "day:";
+	private static final String MONTH_PREFIX = "month:";
+	
+	private final SharedPreferences prefs;
+	private final Map<String, Long> dailyBytes;
+	private final Map<String, Long> monthlyBytes;
+	
+	private final Map<String, Usage> usage = new HashMap<String, Usage>();
+	private final Map<String, Long> reserved = new HashMap<String, Long>();
+	
+	/**
+	 * @param prefs where usage is persisted, or null to keep it in memory only
+	 * @param dailyBytes bytes allowed per day keyed by network type name, may be null
+	 * @param monthlyBytes bytes allowed per calendar month keyed by network type name, may be null
+	 */
+	public UploadBudget(SharedPreferences prefs, Map<String, Long> dailyBytes, Map<String, Long> monthlyBytes) {
+		this.prefs = prefs;
+		this.dailyBytes = dailyBytes == null ? new HashMap<String, Long>() : dailyBytes;
+		this.monthlyBytes = monthlyBytes == null ? new HashMap<String, Long>() : monthlyBytes;
+	}
+	
+	public boolean isLimited(String networkType) {
+		return dailyBytes.containsKey(networkType) || monthlyBytes.containsKey(networkType);
+	}
+	
+	/**
+	 * Reserves bytes for an upload, if they fit in the remaining budgets of the network type.
+	 * @return true if the upload may start, in which case the bytes must be given back with {@link #release} 
+	 * once it finishes, and the bytes it sent counted with {@link #record}
+	 */
+	public synchronized boolean tryReserve(String networkType, long bytes, long now) {
+		if (!isLimited(networkType)) {
+			return true;
+		}
+		long pending = getReserved(networkType) + bytes;
+		if (!fits(dailyBytes.get(networkType), getUsage(DAY_PREFIX, networkType, now), pending)
+				|| !fits(monthlyBytes.get(networkType), getUsage(MONTH_PREFIX, networkType, now), pending)) {
+			return false;
+		}
+		reserved.put(networkType, pending);
+		return true;
+	}
+	
+	/**
+	 * Counts bytes as used without them having been reserved, for uploads allowed outside the budget.
+	 */
+	public synchronized void record(String networkType, long bytes, long now) {
+		if (isLimited(networkType)) {
+			add(DAY_PREFIX, networkType, bytes, now);
+			add(MONTH_PREFIX, networkType, bytes, now);
+		}
+	}
+	
+	/**
+	 * Returns reserved bytes to the budget, after an upload failed or did not start.
+	 */
+	public synchronized void release(String networkType, long bytes) {
+		if (reserved.containsKey(networkType)) {
+			reserved.put(networkType, Math.max(0L, reserved.get(networkType) - bytes));
+		}
+	}
+	
+	/**
+	 * @return bytes counted against the network type today
+	 */
+	public synchronized long getDailyUsage(String networkType, long now) {
+		return getUsage(DAY_PREFIX, networkType, now).bytes;
+	}
+	
+	/**
+	 * @return bytes counted against the network type this month
+	 */
+	public synchronized long getMonthlyUsage(String networkType, long now) {
+		return getUsage(MONTH_PREFIX, networkType, now).bytes;
+	}
+	
+	private long getReserved(String networkType) {
+		Long bytes = reserved.get(networkType);
+		return bytes == null ? 0L : bytes;
+	}
+	
+	private static boolean fits(Long budget, Usage used, long bytes) {
+		return budget == null || used.bytes + bytes <= budget;
+	}
+	
+	private void add(String prefix, String networkType, long bytes, long now) {
+		Usage current = getUsage(prefix, networkType, now);
+		current.bytes += bytes;
+		if (prefs != null) {
+			prefs.edit().putString(prefix + networkType, current.toString()).commit();
+		}
+	}
+	
+	/**
+	 * @return usage for the current period, starting a new one if the saved usage is for an earlier period
+	 */
+	private Usage getUsage(String prefix, String networkType, long now) {
+		String key = prefix + networkType;
+		long period = getPeriod(prefix, now);
+		Usage current = usage.get(key);
+		if (current == null && prefs != null) {
+			current = Usage.parse(prefs.getString(key, null));
+		}
+		if (current == null || current.period != period) {
+			current = new Usage(period, 0L);
+		}
+		usage.put(key, current);
+		return current;
+	}
+	
+	private static long getPeriod(String prefix, long now) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(now);
+		long month = calendar.get(Calendar.YEAR) * 12L + calendar.get(Calendar.MONTH);
+		return DAY_PREFIX.equals(prefix) ? month * 32L + calendar.get(Calendar.DAY_OF_MONTH) : month;
+	}
+	
+	private static class Usage {
+		private final long period;
+		private long bytes;
+		
+		private Usage(long period, long bytes) {
+			this.period = period;
+			this.bytes = bytes;
+		}
+		
+		private static Usage parse(String value) {
+			int separator = value == null ? -1 : value.indexOf(' ');
+			if (separator < 0) {
+				return null;
+			}
+			try {
+				return new Usage(Long.parseLong(value.substring(0, separator)), Long.parseLong(value.substring(separator + 1)));
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+		
+		@Override
+		public String toString() {
+			return period + " " + bytes;
+		}
+	}
+}
@@ -0,0 +1,258 @@
+/**
+ *
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ *
+ * This file is part of Funf.
+ *
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package edu.mit.media.funf.storage;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import android.content.SharedPreferences;
+import edu.mit.media.funf.util.AsyncSharedPrefs;
+
+/**
+ * Failure counts and next attempt times for uploads, kept per file and per remote archive.
+ * Each failure pushes the next attempt back exponentially, with jitter so that many devices
+ * do not retry against a server at the same moment.  A remote archive that keeps failing has its
+ * circuit opened, and gets a single trial upload once its backoff has passed.
+ * 
+ * State is written through to shared preferences when they are given, so backoff survives restarts.
+ * Writes are applied asynchronously, keeping disk writes off the upload thread.
+ */
+public class UploadRetryJournal {
+
+	public static enum CircuitState {
+		/**
+		 * Uploads go through as normal.
+		 */
+		CLOSED,
+		/**
+		 * Too many consecutive failures, no uploads until the next attempt time.
+		 */
+		OPEN,
+		/**
+		 * Backoff has passed, a single trial upload decides whether to close or reopen the circuit.
+		 */
+		HALF_OPEN
+	}
+	
+	public static final long DEFAULT_BASE_DELAY_MILLIS = 30 * 1000L;
+	public static final long DEFAULT_MAX_DELAY_MILLIS = 6 * 60 * 60 * 1000L;
+	
+	private static final String FILE_PREFIX = "file:";
+	private static final String REMOTE_PREFIX = "remote:";
+	
+	private final SharedPreferences prefs;
+	private final int remoteFailureThreshold;
+	private final long baseDelayMillis;
+	private final long maxDelayMillis;
+	private final Random random = new Random();
+	
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+	private final Set<String> trialsInFlight = new HashSet<String>();
+	
+	/**
+	 * @param prefs where state is persisted, or null to keep it in memory only
+	 * @param remoteFailureThreshold consecutive failures of a remote archive that open its circuit
+	 * @param baseDelayMillis delay after the first failure, doubled with each further failure
+	 * @param maxDelayMillis upper bound on the delay
+	 */
+	public UploadRetryJournal(SharedPreferences prefs, int remoteFailureThreshold, long baseDelayMillis, long maxDelayMillis) {
+		this.prefs = prefs;
+		this.remoteFailureThreshold = Math.max(1, remoteFailureThreshold);
+		this.baseDelayMillis = Math.max(1L, baseDelayMillis);
+		this.maxDelayMillis = Math.max(this.baseDelayMillis, maxDelayMillis);
+		if (prefs != null) {
+			load();
+		}
+	}
+	
+	private void load() {
+		SharedPreferences.Editor stale = null;
+		for (Map.Entry<String, ?> pref : prefs.getAll().entrySet()) {
+			String key = pref.getKey();
+			Entry entry = Entry.parse(String.valueOf(pref.getValue()));
+			boolean missingFile = key.startsWith(FILE_PREFIX) && !new File(key.substring(FILE_PREFIX.length())).exists();
+			if (entry == null || missingFile) {
+				stale = (stale == null) ? prefs.edit() : stale;
+				stale.remove(key);
+			} else {
+				entries.put(key, entry);
+			}
+		}
+		if (stale != null) {
+			stale.commit();
+		}
+	}
+	
+	/**
+	 * @return true if the file has no pending backoff
+	 */
+	public synchronized boolean isFileDue(File file, long now) {
+		Entry entry = entries.get(fileKey(file));
+		return entry == null || entry.nextAttemptMillis <= now;
+	}
+	
+	public synchronized int getFileFailures(File file) {
+		Entry entry = entries.get(fileKey(file));
+		return entry == null ? 0 : entry.failures;
+	}
+	
+	public synchronized CircuitState getCircuitState(String remoteId, long now) {
+		Entry entry = entries.get(remoteKey(remoteId));
+		if (entry == null || entry.failures < remoteFailureThreshold) {
+			return CircuitState.CLOSED;
+		}
+		return entry.nextAttemptMillis > now ? CircuitState.OPEN : CircuitState.HALF_OPEN;
+	}
+	
+	/**
+	 * Checks whether an upload to the remote archive may start.  While the circuit is half open
+	 * only the first caller is let through, until its upload is recorded as a success or failure.
+	 */
+	public synchronized boolean tryAcquireRemote(String remoteId, long now) {
+		switch (getCircuitState(remoteId, now)) {
+		case CLOSED:
+			return true;
+		case HALF_OPEN:
+			return trialsInFlight.add(remoteId);
+		default:
+			return false;
+		}
+	}
+	
+	/**
+	 * Gives up a remote archive slot acquired for an upload that did not run.
+	 */
+	public synchronized void releaseRemote(String remoteId) {
+		trialsInFlight.remove(remoteId);
+	}
+	
+	/**
+	 * Records a request the remote archive handled, closing its circuit.  Recorded once per request, 
+	 * however many files were in it.
+	 */
+	public synchronized void remoteSucceeded(String remoteId) {
+		trialsInFlight.remove(remoteId);
+		remove(remoteKey(remoteId));
+	}
+	
+	/**
+	 * Records a failed request to the remote archive, backing it off.  Recorded once per request, 
+	 * however many files were in it.
+	 */
+	public synchronized void remoteFailed(String remoteId, long now) {
+		trialsInFlight.remove(remoteId);
+		increment(remoteKey(remoteId), now);
+	}
+	
+	public synchronized void fileSucceeded(File file) {
+		remove(fileKey(file));
+	}
+	
+	/**
+	 * Backs off a file that was not uploaded, without counting against the remote archive.
+	 * @return time of the next attempt for the file
+	 */
+	public synchronized long fileFailed(File file, String remoteId, long now) {
+		Entry entry = increment(fileKey(file), now);
+		Entry remote = entries.get(remoteKey(remoteId));
+		if (remote != null && remote.failures >= remoteFailureThreshold && remote.nextAttemptMillis > entry.nextAttemptMillis) {
+			// No point retrying the file before the remote archive is tried again
+			entry.nextAttemptMillis = remote.nextAttemptMillis;
+			put(fileKey(file), entry);
+		}
+		return entry.nextAttemptMillis;
+	}
+	
+	private Entry increment(String key, long now) {
+		Entry entry = entries.get(key);
+		entry = new Entry(entry == null ? 1 : entry.failures + 1, 0L);
+		entry.nextAttemptMillis = now + getDelay(entry.failures);
+		put(key, entry);
+		return entry;
+	}
+	
+	/**
+	 * Exponential delay with "equal jitter", at least half the exponential delay and at most all of it.
+	 */
+	private long getDelay(int failures) {
+		long delay = baseDelayMillis << Math.min(failures - 1, 30);
+		if (delay <= 0 || delay > maxDelayMillis) {
+			delay = maxDelayMillis;
+		}
+		long half = delay / 2;
+		return half + (long)(random.nextDouble() * (delay - half));
+	}
+	
+	private void put(String key, Entry entry) {
+		entries.put(key, entry);
+		if (prefs != null) {
+			AsyncSharedPrefs.apply(prefs.edit().putString(key, entry.toString()));
+		}
+	}
+	
+	private void remove(String key) {
+		if (entries.remove(key) != null && prefs != null) {
+			AsyncSharedPrefs.apply(prefs.edit().remove(key));
+		}
+	}
+	
+	private static String fileKey(File file) {
+		return FILE_PREFIX + file.getAbsolutePath();
+	}
+	
+	private static String remoteKey(String remoteId) {
+		return REMOTE_PREFIX + remoteId;
+	}
+	
+	private static class Entry {
+		private final int failures;
+		private long nextAttemptMillis;
+		
+		private Entry(int failures, long nextAttemptMillis) {
+			this.failures = failures;
+			this.nextAttemptMillis = nextAttemptMillis;
+		}
+		
+		private static Entry parse(String value) {
+			int separator = value.indexOf(' ');
+			if (separator < 0) {
+				return null;
+			}
+			try {
+				return new Entry(Integer.parseInt(value.substring(0, separator)), Long.parseLong(value.substring(separator + 1)));
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+		
+		@Override
+		public String toString() {
+			return failures + " " + nextAttemptMillis;
+		}
+	}
+}
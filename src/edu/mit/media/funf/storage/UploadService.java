@@ -22,50 +22,173 @@ package edu.mit.media.funf.storage;
 
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.PowerManager.WakeLock;
 import android.util.Log;
 import edu.mit.media.funf.config.Configurable;
+import edu.mit.media.funf.storage.FileArchive.ChecksummedFileArchive;
+import edu.mit.media.funf.storage.FileArchive.DeduplicatingFileArchive;
+import edu.mit.media.funf.storage.RemoteFileArchive.BatchRemoteFileArchive;
+import edu.mit.media.funf.storage.RemoteFileArchive.MeteredRemoteFileArchive;
+import edu.mit.media.funf.storage.RemoteFileArchive.ReferenceRemoteFileArchive;
+import edu.mit.media.funf.storage.RemoteFileArchive.VerifiedRemoteFileArchive;
+import edu.mit.media.funf.storage.UploadRetryJournal.CircuitState;
 import edu.mit.media.funf.util.LockUtil;
 import edu.mit.media.funf.util.LogUtil;
 
 public class UploadService {
 
+  /**
+   * Order in which the files of an archive are queued for upload.
+   */
+  public static enum UploadOrder {
+    /**
+     * The order the archive lists its files in.
+     */
+    ARCHIVE,
+    NEWEST_FIRST,
+    OLDEST_FIRST,
+    SMALLEST_FIRST,
+    /**
+     * Highest priority first, using the priority of the probe category the file name matches, 
+     * with newer files first among equal priorities.
+     */
+    PRIORITY
+  }
+
+  /**
+   * Consecutive failures after which uploads to a remote archive stop until its backoff has passed.
+   */
   @Configurable
   private int maxRemoteRetries = 6; 
   
+  /**
+   * Number of times a file is retried while the service is running, 
+   * after that it waits for the next upload run once its backoff has passed.
+   */
   @Configurable
   private int maxFileRetries = 3;
   
+  /**
+   * Delay before retrying after the first failure, doubled for each further failure.
+   */
+  @Configurable
+  private long retryBaseDelayMillis = UploadRetryJournal.DEFAULT_BASE_DELAY_MILLIS;
+  
+  @Configurable
+  private long retryMaxDelayMillis = UploadRetryJournal.DEFAULT_MAX_DELAY_MILLIS;
+  
+  /**
+   * Bytes that may be uploaded per day, keyed by network type name such as "wifi" or "mobile".
+   * Network types without a daily or monthly budget are unlimited.
+   */
+  @Configurable
+  private Map<String, Long> dailyByteBudgets = null;
+  
+  /**
+   * Bytes that may be uploaded per calendar month, keyed by network type name.
+   */
+  @Configurable
+  private Map<String, Long> monthlyByteBudgets = null;
+  
+  /**
+   * Files up to this size with at least urgentMinPriority are uploaded regardless of budgets, 0 for none.
+   * Their bytes still count towards the budgets.
+   */
+  @Configurable
+  private long urgentMaxBytes = 0L;
+  
+  @Configurable
+  private int urgentMinPriority = 1;
+  
+  /**
+   * Maximum number of files sent in one request, to remote archives that accept batches.  1 turns batching off.
+   */
+  @Configurable
+  private int batchMaxFiles = 1;
+  
+  /**
+   * Maximum total size of the files in one request, a larger file is sent on its own.
+   */
+  @Configurable
+  private long batchMaxBytes = 1024 * 1024L;
+  
+  /**
+   * Number of files uploaded at the same time, across all remote archives.
+   */
+  @Configurable
+  private int concurrency = 1;
+  
+  /**
+   * Number of files uploaded at the same time to any one remote archive.
+   */
+  @Configurable
+  private int maxConcurrentPerRemote = 2;
+  
+  @Configurable
+  private UploadOrder order = UploadOrder.ARCHIVE;
+  
+  /**
+   * Priorities used by the PRIORITY order, keyed by a part of the file name that identifies the 
+   * probe category, such as a capture probe's file name base or a file extension. Files matching none are priority 0.
+   */
+  @Configurable
+  private Map<String, Integer> priorities = null;
+  
   private Context context;
   
-  private Map<String, Integer> fileFailures;
-  private Map<String, Integer> remoteArchiveFailures;
+  private UploadRetryJournal retries;
+  private UploadBudget budget;
   private Set<File> filesToUpload;
   private WakeLock lock;
   
   private Handler uploadHandler;
   private Looper looper;
+  private ExecutorService uploadExecutor;
+  private final Map<String, RemoteQueue> remoteQueues = new HashMap<String, RemoteQueue>();
+  private int uploadsInFlight = 0;
   private Runnable endUploads = new Runnable() {
     
     @Override
     public void run() {
-      if (lock != null && lock.isHeld()) {
-        lock.release();
-      }
-      lock = null;
+      releaseLock(false);
     }
   };
   
+  /**
+   * @param force true to release even while uploads are running on the worker pool, which may have queued 
+   * more work after this release was posted
+   */
+  private synchronized void releaseLock(boolean force) {
+    if (!force && uploadsInFlight > 0) {
+      return;
+    }
+    if (lock != null && lock.isHeld()) {
+      lock.release();
+    }
+    lock = null;
+  }
+  
   public UploadService() {
     
   }
@@ -77,76 +200,430 @@ public class UploadService {
   public void setContext(Context context) {
     this.context = context;
   }
+  
+  /**
+   * Must be set before the service is started.
+   */
+  public void setConcurrency(int concurrency) {
+    this.concurrency = concurrency;
+  }
+  
+  public void setMaxConcurrentPerRemote(int maxConcurrentPerRemote) {
+    this.maxConcurrentPerRemote = maxConcurrentPerRemote;
+  }
+  
+  public void setOrder(UploadOrder order) {
+    this.order = (order == null) ? UploadOrder.ARCHIVE : order;
+  }
+  
+  public void setPriorities(Map<String, Integer> priorities) {
+    this.priorities = priorities;
+  }
+  
+  /**
+   * Must be set before the service is started.
+   */
+  public void setByteBudgets(Map<String, Long> dailyByteBudgets, Map<String, Long> monthlyByteBudgets) {
+    this.dailyByteBudgets = dailyByteBudgets;
+    this.monthlyByteBudgets = monthlyByteBudgets;
+  }
+  
+  public void setBatching(int batchMaxFiles, long batchMaxBytes) {
+    this.batchMaxFiles = batchMaxFiles;
+    this.batchMaxBytes = batchMaxBytes;
+  }
+  
+  public void setUrgent(long urgentMaxBytes, int urgentMinPriority) {
+    this.urgentMaxBytes = urgentMaxBytes;
+    this.urgentMinPriority = urgentMinPriority;
+  }
 
   public void start() {
     HandlerThread thread = new HandlerThread(getClass().getName());
     thread.start();
     looper = thread.getLooper();
     uploadHandler = new Handler(looper);
-    fileFailures = new HashMap<String, Integer>();
-    remoteArchiveFailures = new HashMap<String, Integer>();
+    SharedPreferences prefs = (context == null) ? null : context.getSharedPreferences(UploadService.class.getName(), Context.MODE_PRIVATE);
+    retries = new UploadRetryJournal(prefs, maxRemoteRetries, retryBaseDelayMillis, retryMaxDelayMillis);
+    SharedPreferences budgetPrefs = (context == null) ? null : context.getSharedPreferences(UploadBudget.class.getName(), Context.MODE_PRIVATE);
+    budget = new UploadBudget(budgetPrefs, dailyByteBudgets, monthlyByteBudgets);
     filesToUpload = Collections.synchronizedSet(new HashSet<File>());
+    if (concurrency > 1) {
+      uploadExecutor = Executors.newFixedThreadPool(concurrency);
+    }
   }
 
-  public void stop() {
+  /**
+   * Synchronized with queuing and dispatching, so no upload is handed to the pool after it has been shut down.
+   */
+  public synchronized void stop() {
+    if (uploadExecutor != null) {
+      uploadExecutor.shutdownNow();
+      uploadExecutor = null;
+    }
     looper.quit();
-    endUploads.run();
+    releaseLock(true);
   }
 
   public void run(final FileArchive archive, final RemoteFileArchive remoteArchive) {
     Log.i(LogUtil.TAG, "Running upload...");
     if (archive != null && remoteArchive != null) {
-      if (lock == null) {
-        lock = LockUtil.getWakeLock(context);
+      long now = System.currentTimeMillis();
+      if (retries.getCircuitState(remoteArchive.getId(), now) == CircuitState.OPEN) {
+        Log.i(LogUtil.TAG, "Skipping upload, remote archive '" + remoteArchive.getId() + "' is backing off.");
+        return;
       }
-      for (final File file : archive.getAll()) {
-        archive(archive, remoteArchive, file);
+      boolean batching = batchMaxFiles > 1 && remoteArchive instanceof BatchRemoteFileArchive;
+      List<File> batch = new ArrayList<File>();
+      long batchBytes = 0L;
+      for (final File file : sort(archive.getAll())) {
+        if (!retries.isFileDue(file, now)) {
+          continue;
+        }
+        if (!batching) {
+          archive(archive, remoteArchive, file);
+          continue;
+        }
+        long size = file.length();
+        if (!batch.isEmpty() && (batch.size() >= batchMaxFiles || batchBytes + size > batchMaxBytes)) {
+          archive(archive, remoteArchive, batch);
+          batch = new ArrayList<File>();
+          batchBytes = 0L;
+        }
+        batch.add(file);
+        batchBytes += size;
+      }
+      if (!batch.isEmpty()) {
+        archive(archive, remoteArchive, batch);
+      }
+      if (archive instanceof DeduplicatingFileArchive && remoteArchive instanceof ReferenceRemoteFileArchive
+          && ((ReferenceRemoteFileArchive)remoteArchive).acceptsReferences()) {
+        final DeduplicatingFileArchive dedupArchive = (DeduplicatingFileArchive)archive;
+        if (!dedupArchive.getReferences().isEmpty()) {
+          queue(remoteArchive.getId(), new Runnable() {
+            @Override
+            public void run() {
+              runReferences(dedupArchive, (ReferenceRemoteFileArchive)remoteArchive);
+            }
+          });
+        }
       }
     }
   }
+  
+  /**
+   * Records the names of files that were not stored because the archive already had their content, 
+   * once that content has been uploaded.  References are small and not counted against the upload budget.
+   */
+  protected void runReferences(DeduplicatingFileArchive archive, ReferenceRemoteFileArchive remoteArchive) {
+    if (!remoteArchive.isAvailable()) {
+      return;
+    }
+    for (ArchiveManifest.Entry reference : archive.getReferences()) {
+      if (remoteArchive.addReference(reference.name, reference.size, reference.fileChecksum)) {
+        archive.removeReference(reference.name);
+      } else {
+        Log.i(LogUtil.TAG, "Unable to record '" + reference.name + "', will retry on a later upload.");
+      }
+    }
+  }
+  
+  /**
+   * Orders files for upload, last modified times and sizes are read once rather than for every comparison.
+   */
+  protected File[] sort(File[] files) {
+    if (order == UploadOrder.ARCHIVE || files.length < 2) {
+      return files;
+    }
+    final Map<File, long[]> keys = new HashMap<File, long[]>();
+    for (File file : files) {
+      long lastModified = file.lastModified();
+      switch (order) {
+      case NEWEST_FIRST:
+        keys.put(file, new long[] {-lastModified});
+        break;
+      case OLDEST_FIRST:
+        keys.put(file, new long[] {lastModified});
+        break;
+      case SMALLEST_FIRST:
+        keys.put(file, new long[] {file.length(), lastModified});
+        break;
+      default:
+        keys.put(file, new long[] {-getPriority(file), -lastModified});
+      }
+    }
+    File[] sorted = files.clone();
+    Arrays.sort(sorted, new Comparator<File>() {
+      @Override
+      public int compare(File f1, File f2) {
+        long[] k1 = keys.get(f1), k2 = keys.get(f2);
+        for (int i = 0; i < k1.length; i++) {
+          if (k1[i] != k2[i]) {
+            return k1[i] < k2[i] ? -1 : 1;
+          }
+        }
+        return 0;
+      }
+    });
+    return sorted;
+  }
+  
+  private static String getChecksum(FileArchive archive, File file) {
+    return (archive instanceof ChecksummedFileArchive) ? ((ChecksummedFileArchive)archive).getChecksum(file) : null;
+  }
+  
+  private int getPriority(File file) {
+    int priority = 0;
+    boolean matched = false;
+    if (priorities != null) {
+      String name = file.getName();
+      for (Map.Entry<String, Integer> entry : priorities.entrySet()) {
+        if (name.contains(entry.getKey()) && entry.getValue() != null && (!matched || entry.getValue() > priority)) {
+          priority = entry.getValue();
+          matched = true;
+        }
+      }
+    }
+    return priority;
+  }
+  
+  /**
+   * Small files with a high priority are uploaded regardless of the upload budget.
+   */
+  private boolean isUrgent(File file, long size) {
+    return urgentMaxBytes > 0 && size <= urgentMaxBytes && getPriority(file) >= urgentMinPriority;
+  }
+  
+  /**
+   * @return lower case name of the active network type, such as "wifi" or "mobile", or an empty string if unknown
+   */
+  protected String getNetworkType() {
+    if (context == null) {
+      return "";
+    }
+    ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+    NetworkInfo netInfo = connectivityManager.getActiveNetworkInfo();
+    return netInfo == null ? "" : netInfo.getTypeName().toLowerCase(Locale.US);
+  }
+  
+  private synchronized void acquireLock() {
+    if (lock == null) {
+      lock = LockUtil.getWakeLock(context);
+    }
+  }
 
 
   public void archive(final FileArchive archive, final RemoteFileArchive remoteArchive, final File file) {
-    if (!filesToUpload.contains(file)) {
-      filesToUpload.add(file);
-      uploadHandler.post(new Runnable() {
+    archive(archive, remoteArchive, Collections.singletonList(file));
+  }
+  
+  /**
+   * Queues the files to be uploaded in one request, leaving out any that are already queued.
+   * The wake lock is only taken once something is queued, since releasing it is queued after the upload.
+   */
+  protected void archive(final FileArchive archive, final RemoteFileArchive remoteArchive, List<File> files) {
+    final List<File> queued = new ArrayList<File>();
+    for (File file : files) {
+      if (filesToUpload.add(file)) {
+        queued.add(file);
+      }
+    }
+    if (!queued.isEmpty()) {
+      queue(remoteArchive.getId(), new Runnable() {
         @Override
         public void run() {
-          runArchive(archive, remoteArchive, file);
+          if (queued.size() == 1) {
+            runArchive(archive, remoteArchive, queued.get(0));
+          } else {
+            runBatch(archive, remoteArchive, queued);
+          }
         }
       });
-      uploadHandler.removeCallbacks(endUploads);
+    }
+  }
+  
+  private synchronized void queue(String remoteId, Runnable upload) {
+    acquireLock();
+    uploadHandler.removeCallbacks(endUploads);
+    if (uploadExecutor != null) {
+      submit(remoteId, upload);
+    } else {
+      uploadHandler.post(upload);
       uploadHandler.post(endUploads); // Add stop self to end
     }
   }
+  
+  /**
+   * Queues an upload to run on the worker pool, once fewer than the maximum uploads are running for the remote archive.
+   */
+  private synchronized void submit(String remoteId, Runnable upload) {
+    RemoteQueue queue = remoteQueues.get(remoteId);
+    if (queue == null) {
+      queue = new RemoteQueue();
+      remoteQueues.put(remoteId, queue);
+    }
+    queue.pending.add(upload);
+    uploadsInFlight++;
+    dispatch(queue);
+  }
+  
+  private synchronized void dispatch(final RemoteQueue queue) {
+    while (queue.running < Math.max(1, maxConcurrentPerRemote) && !queue.pending.isEmpty() 
+        && uploadExecutor != null && !uploadExecutor.isShutdown()) {
+      final Runnable upload = queue.pending.removeFirst();
+      queue.running++;
+      uploadExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            upload.run();
+          } finally {
+            finished(queue);
+          }
+        }
+      });
+    }
+  }
+  
+  private synchronized void finished(RemoteQueue queue) {
+    queue.running--;
+    uploadsInFlight--;
+    dispatch(queue);
+    if (uploadsInFlight == 0) {
+      uploadHandler.post(endUploads);
+    }
+  }
+  
+  private static class RemoteQueue {
+    private final LinkedList<Runnable> pending = new LinkedList<Runnable>();
+    private int running = 0;
+  }
+  
 
-  protected void runArchive(FileArchive archive, RemoteFileArchive remoteArchive, File file) {
-    Integer numRemoteFailures = remoteArchiveFailures.get(remoteArchive.getId());
-    numRemoteFailures = (numRemoteFailures == null) ? 0 : numRemoteFailures;
-    if (numRemoteFailures < maxRemoteRetries && remoteArchive.isAvailable()) {
-      Log.i(LogUtil.TAG, "Archiving..." + file.getName());
-      if (remoteArchive.add(file)) {
-        archive.remove(file);
+  protected void runArchive(final FileArchive archive, final RemoteFileArchive remoteArchive, final File file) {
+    runBatch(archive, remoteArchive, Collections.singletonList(file));
+  }
+  
+  /**
+   * Uploads the files in a single request when there is more than one, only removing the files the remote archive 
+   * acknowledges from the local archive.  Each of the others backs off and is retried on its own.
+   */
+  protected void runBatch(final FileArchive archive, final RemoteFileArchive remoteArchive, List<File> files) {
+    String remoteId = remoteArchive.getId();
+    long now = System.currentTimeMillis();
+    List<File> due = new ArrayList<File>();
+    for (File file : files) {
+      if (retries.isFileDue(file, now)) {
+        due.add(file);
+      } else {
         filesToUpload.remove(file);
+      }
+    }
+    if (due.isEmpty()) {
+      return;
+    } else if (!retries.tryAcquireRemote(remoteId, now)) {
+      Log.i(LogUtil.TAG, "Canceling upload.  Remote archive '" + remoteId + "' is backing off.");
+      filesToUpload.removeAll(due);
+      return;
+    } else if (!remoteArchive.isAvailable()) {
+      retries.releaseRemote(remoteId);
+      Log.i(LogUtil.TAG, "Canceling upload.  Remote archive '" + remoteId
+          + "' is not currently available.");
+      filesToUpload.removeAll(due);
+      return;
+    }
+    
+    String networkType = getNetworkType();
+    List<File> toSend = new ArrayList<File>();
+    Map<File, Long> sizes = new HashMap<File, Long>();
+    Set<File> urgentFiles = new HashSet<File>();
+    for (File file : due) {
+      long size = (remoteArchive instanceof MeteredRemoteFileArchive) 
+          ? ((MeteredRemoteFileArchive)remoteArchive).getUploadSize(file) : file.length();
+      boolean urgent = isUrgent(file, size);
+      if (urgent || budget.tryReserve(networkType, size, now)) {
+        toSend.add(file);
+        sizes.put(file, size);
+        if (urgent) {
+          urgentFiles.add(file);
+        }
       } else {
-        Integer numFileFailures = fileFailures.get(file.getName());
-        numFileFailures = (numFileFailures == null) ? 1 : numFileFailures + 1;
-        numRemoteFailures += 1;
-        fileFailures.put(file.getName(), numFileFailures);
-        remoteArchiveFailures.put(remoteArchive.getId(), numRemoteFailures);
-        // 3 Attempts
-        if (numFileFailures < maxFileRetries) {
-          filesToUpload.remove(file); // Remove so we can queue up again
-          archive(archive, remoteArchive, file);
-        } else {
-          Log.i(LogUtil.TAG, "Failed to upload '" + file.getAbsolutePath() + "' after 3 attempts.");
-          filesToUpload.remove(file);
+        Log.i(LogUtil.TAG, "Deferring upload of '" + file.getName() + "', over the upload budget for " + networkType + ".");
+        filesToUpload.remove(file);
+      }
+    }
+    if (toSend.isEmpty()) {
+      retries.releaseRemote(remoteId);
+      return;
+    }
+    
+    List<File> added;
+    if (toSend.size() == 1) {
+      File file = toSend.get(0);
+      Log.i(LogUtil.TAG, "Archiving..." + file.getName());
+      boolean success = (remoteArchive instanceof VerifiedRemoteFileArchive) 
+          ? ((VerifiedRemoteFileArchive)remoteArchive).add(file, getChecksum(archive, file)) 
+          : remoteArchive.add(file);
+      added = success ? toSend : Collections.<File>emptyList();
+    } else {
+      Log.i(LogUtil.TAG, "Archiving " + toSend.size() + " files in one request...");
+      Map<File, String> checksums = new HashMap<File, String>();
+      for (File file : toSend) {
+        String checksum = getChecksum(archive, file);
+        if (checksum != null) {
+          checksums.put(file, checksum);
         }
       }
+      added = ((BatchRemoteFileArchive)remoteArchive).addAll(toSend, checksums);
+    }
+    
+    // The remote archive's health is judged per request, each file backs off on its own
+    now = System.currentTimeMillis(); // The request may have taken a while
+    if (added.isEmpty()) {
+      retries.remoteFailed(remoteId, now);
     } else {
-      Log.i(LogUtil.TAG, "Canceling upload.  Remote archive '" + remoteArchive.getId()
-          + "' is not currently available.");
-      filesToUpload.remove(file);
+      retries.remoteSucceeded(remoteId);
+    }
+    // Everything sent counts against the budget, including the part of a failed upload that got through
+    long sentBytes = 0L;
+    if (remoteArchive instanceof MeteredRemoteFileArchive) {
+      sentBytes = ((MeteredRemoteFileArchive)remoteArchive).getBytesSent();
+    } else {
+      for (File file : toSend) {
+        sentBytes += sizes.get(file);
+      }
+    }
+    budget.record(networkType, sentBytes, now);
+    for (File file : toSend) {
+      if (!urgentFiles.contains(file)) {
+        budget.release(networkType, sizes.get(file));
+      }
+    }
+    
+    Set<File> acknowledged = new HashSet<File>(added);
+    for (final File file : toSend) {
+      if (acknowledged.contains(file)) {
+        retries.fileSucceeded(file);
+        archive.remove(file);
+        filesToUpload.remove(file);
+        continue;
+      }
+      long nextAttempt = retries.fileFailed(file, remoteId, now);
+      int numFileFailures = retries.getFileFailures(file);
+      if (numFileFailures < maxFileRetries && retries.getCircuitState(remoteId, now) == CircuitState.CLOSED) {
+        // Stays in filesToUpload so it is not queued again while waiting
+        uploadHandler.postDelayed(new Runnable() {
+          @Override
+          public void run() {
+            filesToUpload.remove(file);
+            archive(archive, remoteArchive, file);
+          }
+        }, Math.max(0L, nextAttempt - System.currentTimeMillis()));
+      } else {
+        Log.i(LogUtil.TAG, "Failed to upload '" + file.getAbsolutePath() + "' after " + numFileFailures 
+            + " attempts, waiting until a later upload.");
+        filesToUpload.remove(file);
+      }
     }
   }
 
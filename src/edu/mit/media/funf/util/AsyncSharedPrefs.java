@@ -361,13 +361,15 @@ public class AsyncSharedPrefs implements SharedPreferences, OnSharedPreferenceCh
 	 */
 	public static void apply(final SharedPreferences.Editor editor) {
 		// Use the apply method if it exists
-		try {
-			applyMethod.invoke(editor);
-			return;
-		} catch (InvocationTargetException unused) {
-			// fall through
-		} catch (IllegalAccessException unused) {
-			// fall through
+		if (applyMethod != null) {
+			try {
+				applyMethod.invoke(editor);
+				return;
+			} catch (InvocationTargetException unused) {
+				// fall through
+			} catch (IllegalAccessException unused) {
+				// fall through
+			}
 		}
 		// Commit if for some reason using apply does not work
 		// No apply method, spin up thread to commit
@@ -47,9 +47,11 @@ package edu.mit.media.funf.util;
 import static edu.mit.media.funf.util.LogUtil.TAG;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
 import java.io.Reader;
 
 import org.apache.http.client.ClientProtocolException;
@@ -118,6 +120,24 @@ public class IOUtil {
 		return false;
 	}
 
+	/**
+	 * Forces the content of a file out to the storage device.
+	 * @return true if the file was synced
+	 */
+	public static boolean sync(File file) {
+		RandomAccessFile out = null;
+		try {
+			out = new RandomAccessFile(file, "rw");
+			out.getFD().sync();
+			return true;
+		} catch (IOException e) {
+			Log.e(LogUtil.TAG, "Unable to sync " + file.getName(), e);
+			return false;
+		} finally {
+			close(out);
+		}
+	}
+
   public static boolean isValidUrl(String url) {
   	Log.d(LogUtil.TAG, "Validating url");
   	boolean isValidUrl = false;
@@ -0,0 +1,212 @@
+/**
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland. 
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version. 
+ * 
+ * Funf is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.mit.media.funf.action;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.database.DatabaseUtils;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import edu.mit.media.funf.json.IJsonObject;
+import edu.mit.media.funf.storage.NameValueDatabaseHelper;
+
+public class WriteDataActionTest extends AndroidTestCase {
+
+	private static final String DATABASE_NAME = "write_test";
+	private static final String ACCELEROMETER_TYPE = "edu.mit.media.funf.probe.builtin.AccelerometerSensorProbe";
+	private static final String ACCELEROMETER = new JsonPrimitive(ACCELEROMETER_TYPE).toString();
+	
+	private NameValueDatabaseHelper helper;
+	private HandlerThread thread;
+	private Handler handler;
+	private WriteDataAction action;
+	private int timestamp = 0;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		getContext().deleteDatabase(DATABASE_NAME);
+		helper = new NameValueDatabaseHelper(getContext(), DATABASE_NAME, 1);
+		thread = new HandlerThread(getClass().getName());
+		thread.start();
+		handler = new Handler(thread.getLooper());
+		action = new WriteDataAction(helper);
+		action.setBatchLatency(60.0); // Only flushed by size unless a test lowers it
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		thread.quit();
+		helper.close();
+		getContext().deleteDatabase(DATABASE_NAME);
+		super.tearDown();
+	}
+	
+	/**
+	 * Writes a record with a value of about the given number of characters.
+	 */
+	private void write(int valueLength) {
+		JsonObject data = new JsonObject();
+		data.addProperty("timestamp", ++timestamp);
+		StringBuilder padding = new StringBuilder();
+		while (padding.length() < valueLength) {
+			padding.append('x');
+		}
+		data.addProperty("padding", padding.toString());
+		action.execute(ACCELEROMETER, new IJsonObject(data));
+	}
+	
+	private long getRowCount() {
+		return DatabaseUtils.queryNumEntries(helper.getReadableDatabase(), NameValueDatabaseHelper.DATA_TABLE.name);
+	}
+	
+	/**
+	 * Waits for everything already posted to the handler to run.
+	 */
+	private void waitForHandler() throws InterruptedException {
+		final CountDownLatch latch = new CountDownLatch(1);
+		handler.post(new Runnable() {
+			@Override
+			public void run() {
+				latch.countDown();
+			}
+		});
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+	}
+	
+	private static class CountingAction extends Action {
+		private int runs = 0;
+		
+		@Override
+		protected void execute() {
+			runs++;
+		}
+	}
+	
+	public void testFlushesAtBatchSize() {
+		action.setBatchSize(3);
+		write(10);
+		write(10);
+		assertEquals(0L, getRowCount());
+		write(10);
+		assertEquals(3L, getRowCount());
+		write(10);
+		assertEquals(3L, getRowCount());
+		action.flush();
+		assertEquals(4L, getRowCount());
+	}
+	
+	public void testFlushesAtBatchBytes() {
+		action.setBatchSize(100);
+		action.setBatchBytes(250L);
+		write(100);
+		write(100);
+		assertEquals(0L, getRowCount());
+		write(100); // Over 250 value characters
+		assertEquals(3L, getRowCount());
+	}
+	
+	public void testFlushesAfterLatency() throws InterruptedException {
+		action.setHandler(handler);
+		action.setBatchSize(100);
+		action.setBatchLatency(0.2);
+		write(10);
+		write(10);
+		assertEquals(0L, getRowCount());
+		Thread.sleep(1000L);
+		waitForHandler();
+		assertEquals(2L, getRowCount());
+	}
+	
+	public void testSingleRecordBatchWritesImmediately() {
+		action.setBatchSize(1);
+		write(10);
+		assertEquals(1L, getRowCount());
+	}
+	
+	public void testArchivesAtRowLimit() throws InterruptedException {
+		CountingAction archive = new CountingAction();
+		action.setHandler(handler);
+		action.setBatchSize(2);
+		action.setMaxDatabaseRows(4);
+		action.setArchiveAction(archive);
+		write(10);
+		write(10);
+		waitForHandler();
+		assertEquals(0, archive.runs);
+		write(10);
+		write(10);
+		waitForHandler();
+		assertEquals(1, archive.runs);
+		
+		// Not retried on every batch while the archive has not replaced the database
+		write(10);
+		write(10);
+		waitForHandler();
+		assertEquals(1, archive.runs);
+	}
+	
+	public void testArchivesAtProbeByteLimit() throws InterruptedException {
+		CountingAction archive = new CountingAction();
+		action.setHandler(handler);
+		action.setBatchSize(1);
+		action.setMaxProbeBytes(Collections.singletonMap(ACCELEROMETER_TYPE, 150L));
+		action.setArchiveAction(archive);
+		write(100);
+		waitForHandler();
+		assertEquals(0, archive.runs);
+		write(100);
+		waitForHandler();
+		assertEquals(1, archive.runs);
+	}
+	
+	public void testArchivesAtDatabaseSize() throws InterruptedException {
+		CountingAction archive = new CountingAction();
+		action.setHandler(handler);
+		action.setBatchSize(1);
+		action.setMaxDatabaseBytes(1L);
+		action.setArchiveAction(archive);
+		write(10);
+		waitForHandler();
+		assertEquals(1, archive.runs);
+	}
+	
+	public void testNoArchiveSoonAfterArchiving() throws InterruptedException {
+		CountingAction archive = new CountingAction();
+		action.setHandler(handler);
+		action.setBatchSize(2);
+		action.setMaxDatabaseRows(2);
+		action.setArchiveAction(archive);
+		action.onArchived(); // As if just archived, so the minimum interval holds off the next one
+		write(10);
+		write(10);
+		waitForHandler();
+		assertEquals(0, archive.runs);
+	}
+}
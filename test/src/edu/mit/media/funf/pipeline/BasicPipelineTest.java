@@ -1,5 +1,9 @@
 package edu.mit.media.funf.pipeline;
 
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
@@ -7,11 +11,20 @@ import android.content.ServiceConnection;
 import android.os.IBinder;
 import android.test.AndroidTestCase;
 import android.util.Log;
+
+import com.google.gson.JsonObject;
+
 import edu.mit.media.funf.FunfManager;
+import edu.mit.media.funf.config.RuntimeTypeAdapterFactory;
+import edu.mit.media.funf.json.IJsonObject;
+import edu.mit.media.funf.storage.DataQueryIterator;
 import edu.mit.media.funf.tests.R;
 
 public class BasicPipelineTest extends AndroidTestCase {
 
+  private static final String PIPELINE_NAME = "pipelinetest";
+  private static final String ACCELEROMETER = "edu.mit.media.funf.probe.builtin.AccelerometerSensorProbe";
+
   private FunfManager mgr;
   private ServiceConnection conn = new ServiceConnection() {
     
@@ -44,9 +57,52 @@ public class BasicPipelineTest extends AndroidTestCase {
   
   @Override
   protected void tearDown() throws Exception {
+    getContext().deleteDatabase(PIPELINE_NAME);
     super.tearDown();
     getContext().unbindService(conn);
   }
+  
+  private BasicPipeline createPipeline(String config) {
+    getContext().deleteDatabase(PIPELINE_NAME);
+    BasicPipeline pipeline = (BasicPipeline)mgr.getGson().fromJson(config, Pipeline.class);
+    pipeline.onCreate(mgr);
+    return pipeline;
+  }
+  
+  private static void send(BasicPipeline pipeline, int timestamp) {
+    JsonObject probeConfig = new JsonObject();
+    probeConfig.addProperty(RuntimeTypeAdapterFactory.TYPE, ACCELEROMETER);
+    JsonObject data = new JsonObject();
+    data.addProperty("timestamp", timestamp);
+    pipeline.onDataReceived(new IJsonObject(probeConfig), new IJsonObject(data));
+  }
+  
+  /**
+   * Waits for everything already posted to the pipeline's handler to run.
+   */
+  private static void waitForHandler(BasicPipeline pipeline) throws InterruptedException {
+    final CountDownLatch latch = new CountDownLatch(1);
+    pipeline.getHandler().post(new Runnable() {
+      @Override
+      public void run() {
+        latch.countDown();
+      }
+    });
+    assertTrue(latch.await(5, TimeUnit.SECONDS));
+  }
+  
+  private static int count(DataQueryIterator results) {
+    int count = 0;
+    try {
+      while (results.hasNext()) {
+        results.next();
+        count++;
+      }
+    } finally {
+      results.close();
+    }
+    return count;
+  }
 
 
   public void testAsdf() {
@@ -55,4 +111,48 @@ public class BasicPipelineTest extends AndroidTestCase {
     Log.d("FunfTest", "PIPELINE: " + mgr.getGson().toJson(pipeline));
     pipeline.onCreate(mgr);
   }
+  
+  public void testWritesInBatchesAndFlushesOnDestroy() throws InterruptedException {
+    BasicPipeline pipeline = createPipeline("{\"name\":\"" + PIPELINE_NAME + "\",\"writeBatchSize\":2,"
+        + "\"writeBatchLatency\":60,\"data\":[]}");
+    waitForHandler(pipeline);
+    for (int i = 1; i <= 3; i++) {
+      send(pipeline, i);
+    }
+    waitForHandler(pipeline);
+    assertEquals(2, count(pipeline.query(ACCELEROMETER, 0, 10, 0))); // The third waits for a full batch
+    
+    // Destroying the pipeline writes what is still buffered
+    pipeline.onDestroy();
+    long deadline = System.currentTimeMillis() + 5000L;
+    while (count(pipeline.query(ACCELEROMETER, 0, 10, 0)) < 3 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50L);
+    }
+    assertEquals(3, count(pipeline.query(ACCELEROMETER, 0, 10, 0)));
+  }
+  
+  public void testArchivesAtRowLimit() throws InterruptedException {
+    BasicPipeline pipeline = createPipeline("{\"name\":\"" + PIPELINE_NAME + "\",\"writeBatchSize\":2,"
+        + "\"writeBatchLatency\":60,\"archiveMaxRows\":4,\"data\":[]}");
+    int archived = pipeline.getArchive().getAll().length;
+    try {
+      for (int i = 1; i <= 4; i++) {
+        send(pipeline, i);
+      }
+      waitForHandler(pipeline);
+      waitForHandler(pipeline); // The archive is posted by the write that reached the limit
+      assertEquals(archived + 1, pipeline.getArchive().getAll().length);
+      
+      // Archived data is still queryable, followed by data in the new database
+      send(pipeline, 5);
+      send(pipeline, 6);
+      waitForHandler(pipeline);
+      assertEquals(6, count(pipeline.query(ACCELEROMETER, 0, 10, 0)));
+    } finally {
+      pipeline.onDestroy();
+      for (File file : pipeline.getArchive().getAll()) {
+        pipeline.getArchive().remove(file);
+      }
+    }
+  }
 }
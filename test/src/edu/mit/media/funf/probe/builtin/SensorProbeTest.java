@@ -0,0 +1,136 @@
+package edu.mit.media.funf.probe.builtin;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.hardware.SensorManager;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import edu.mit.media.funf.json.IJsonObject;
+import edu.mit.media.funf.probe.Probe.DataListener;
+import edu.mit.media.funf.probe.Probe.State;
+import edu.mit.media.funf.probe.ProbeTestCase;
+import edu.mit.media.funf.probe.builtin.ProbeKeys.SensorKeys;
+import edu.mit.media.funf.storage.TimeSeriesDecoder;
+
+public class SensorProbeTest extends ProbeTestCase<SensorProbeTest.BlockSensorProbe> {
+
+  public SensorProbeTest() {
+    super(BlockSensorProbe.class);
+  }
+
+  /**
+   * Sensor probe with no matching sensor, so the only samples are the ones the test adds.
+   */
+  public static class BlockSensorProbe extends SensorProbe {
+
+    @Override
+    public int getSensorType() {
+      return -1;
+    }
+
+    @Override
+    public String[] getValueNames() {
+      return new String[] {"x", "y", "z"};
+    }
+  }
+
+  private final List<IJsonObject> received = new ArrayList<IJsonObject>();
+
+  private DataListener listener = new DataListener() {
+    @Override
+    public void onDataReceived(IJsonObject probeConfig, IJsonObject data) {
+      synchronized (received) {
+        received.add(data);
+      }
+    }
+
+    @Override
+    public void onDataCompleted(IJsonObject probeConfig, JsonElement checkpoint) {
+    }
+  };
+
+  private BlockSensorProbe startProbe(double blockDuration) throws InterruptedException {
+    JsonObject config = new JsonObject();
+    config.addProperty("blockDuration", blockDuration);
+    BlockSensorProbe probe = getProbe(config);
+    probe.registerListener(listener);
+    waitForState(probe, State.RUNNING);
+    return probe;
+  }
+
+  private void stopProbe(BlockSensorProbe probe) throws InterruptedException {
+    probe.unregisterListener(listener);
+    waitForState(probe, State.DISABLED);
+  }
+
+  private void waitForState(BlockSensorProbe probe, State state) throws InterruptedException {
+    for (int i = 0; i < 100 && probe.getState() != state; i++) {
+      Thread.sleep(50L);
+    }
+    assertEquals(state, probe.getState());
+  }
+
+  private void addSamples(BlockSensorProbe probe, long startNanos, long intervalNanos, int count) {
+    String[] valueNames = probe.getValueNames();
+    for (int i = 0; i < count; i++) {
+      float[] values = new float[] {0.1f * i, 9.8f, -0.2f * (i % 5)};
+      probe.addToBlock(startNanos + i * intervalNanos, SensorManager.SENSOR_STATUS_ACCURACY_HIGH, values, valueNames);
+    }
+  }
+
+  public void testBlocksEndOnBlockDuration() throws InterruptedException {
+    BlockSensorProbe probe = startProbe(0.5);
+    addSamples(probe, System.nanoTime(), 10000000L, 120); // 100Hz for 1.2 seconds
+    stopProbe(probe);
+
+    assertEquals("Two full blocks plus the rest sent on stop", 3, received.size());
+    int sampleCount = 0;
+    for (int i = 0; i < received.size(); i++) {
+      IJsonObject block = received.get(i);
+      assertTrue(TimeSeriesDecoder.isBlock(block));
+      List<JsonObject> samples = TimeSeriesDecoder.decode(block);
+      assertEquals(block.get(TimeSeriesDecoder.COUNT).getAsInt(), samples.size());
+      BigDecimal first = samples.get(0).get(SensorKeys.TIMESTAMP).getAsBigDecimal();
+      BigDecimal last = samples.get(samples.size() - 1).get(SensorKeys.TIMESTAMP).getAsBigDecimal();
+      BigDecimal secondToLast = samples.get(samples.size() - 2).get(SensorKeys.TIMESTAMP).getAsBigDecimal();
+      assertEquals(0, first.compareTo(block.get(SensorKeys.TIMESTAMP).getAsBigDecimal().setScale(6, BigDecimal.ROUND_DOWN)));
+      if (i < received.size() - 1) {
+        assertTrue("Block closes on the first sample past its duration", last.subtract(first).doubleValue() >= 0.5);
+        assertTrue(secondToLast.subtract(first).doubleValue() < 0.5);
+      } else {
+        assertTrue("Last block is flushed before it is full", last.subtract(first).doubleValue() < 0.5);
+      }
+      sampleCount += samples.size();
+    }
+    assertEquals(120, sampleCount);
+  }
+
+  public void testLastBlockSentOnStop() throws InterruptedException {
+    BlockSensorProbe probe = startProbe(60.0);
+    addSamples(probe, System.nanoTime(), 10000000L, 20);
+    Thread.sleep(200L);
+    assertTrue("Nothing is sent before the block is full", received.isEmpty());
+    stopProbe(probe);
+
+    assertEquals(1, received.size());
+    List<JsonObject> samples = TimeSeriesDecoder.decode(received.get(0));
+    assertEquals(20, samples.size());
+    for (int i = 0; i < samples.size(); i++) {
+      JsonObject sample = samples.get(i);
+      assertEquals(SensorManager.SENSOR_STATUS_ACCURACY_HIGH, sample.get(SensorKeys.ACCURACY).getAsInt());
+      assertEquals(0.1f * i, sample.get("x").getAsFloat());
+      assertEquals(9.8f, sample.get("y").getAsFloat());
+      assertEquals(-0.2f * (i % 5), sample.get("z").getAsFloat());
+    }
+  }
+
+  public void testNoBlockWithoutSamples() throws InterruptedException {
+    BlockSensorProbe probe = startProbe(0.5);
+    stopProbe(probe);
+    assertTrue(received.isEmpty());
+  }
+}
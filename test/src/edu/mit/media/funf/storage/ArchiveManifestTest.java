@@ -0,0 +1,205 @@
+/**
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland. 
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version. 
+ * 
+ * Funf is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.mit.media.funf.storage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.util.List;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import android.test.AndroidTestCase;
+import edu.mit.media.funf.util.NameGenerator;
+
+public class ArchiveManifestTest extends AndroidTestCase {
+
+	private File archiveDir;
+	
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		archiveDir = new File(getContext().getFilesDir(), "manifest_test");
+		clear(archiveDir);
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		clear(archiveDir);
+		super.tearDown();
+	}
+	
+	private static void clear(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+	
+	private File newArchiveFile(String name) throws IOException {
+		File file = new File(getContext().getFilesDir(), name);
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(new byte[100]);
+		out.close();
+		return file;
+	}
+	
+	private FileDirectoryArchive newArchive() {
+		return new FileDirectoryArchive(archiveDir, new NameGenerator.IdentityNameGenerator(), 
+				new FileCopier.SimpleFileCopier(), new DirectoryCleaner.KeepAll(), true);
+	}
+	
+	public void testManifestSurvivesReload() throws IOException {
+		FileDirectoryArchive archive = newArchive();
+		assertTrue(archive.add(newArchiveFile("a.db")));
+		assertTrue(archive.move(newArchiveFile("b.db")));
+		assertTrue(archive.add(newArchiveFile("c.db")));
+		assertTrue(archive.remove(new File(archiveDir, "b.db")));
+		long created = archive.getManifest().get("a.db").created;
+		archive.getManifest().close();
+		
+		FileDirectoryArchive reloaded = newArchive();
+		assertEquals(2, reloaded.getAll().length);
+		assertTrue(reloaded.contains(new File("c.db")));
+		assertFalse(reloaded.contains(new File("b.db")));
+		assertEquals(created, reloaded.getManifest().get("a.db").created);
+		assertEquals(100L, reloaded.getManifest().get("c.db").size);
+	}
+	
+	public void testOutsideChangesWaitForRescan() throws IOException {
+		FileDirectoryArchive archive = newArchive();
+		assertTrue(archive.add(newArchiveFile("a.db")));
+		// Partial copies are hidden, and never part of the archive
+		new FileOutputStream(new File(archiveDir, ".b.db.part")).close();
+		// Files put in place by someone else are only seen once the directory is listed again
+		new FileOutputStream(new File(archiveDir, "c.db")).close();
+		assertEquals(1, archive.getAll().length);
+		assertFalse(archive.contains(new File("c.db")));
+		archive.getManifest().reconcile();
+		assertEquals(2, archive.getAll().length);
+		assertTrue(archive.contains(new File("c.db")));
+		
+		ArchiveManifest rescanned = new ArchiveManifest(archiveDir, 0L);
+		new File(archiveDir, "c.db").delete();
+		assertFalse(rescanned.contains("c.db"));
+		assertEquals(1, rescanned.getFiles().length);
+	}
+	
+	public void testFindsFilesArchivedBeforeACrash() throws IOException {
+		FileDirectoryArchive archive = newArchive();
+		assertTrue(archive.add(newArchiveFile("a.db")));
+		archive.getManifest().close();
+		// Copied into place, but the process died before the manifest was updated
+		new FileOutputStream(new File(archiveDir, "b.db")).close();
+		
+		FileDirectoryArchive reloaded = newArchive();
+		assertEquals(2, reloaded.getAll().length);
+		assertTrue(reloaded.contains(new File("b.db")));
+	}
+	
+	public void testReadsEarlierManifestFormat() throws IOException {
+		archiveDir.mkdirs();
+		new FileOutputStream(new File(archiveDir, "a.db")).close();
+		new FileOutputStream(new File(archiveDir, "b.db")).close();
+		Writer out = new OutputStreamWriter(new FileOutputStream(new File(archiveDir, ArchiveManifest.FILENAME)), "UTF-8");
+		// Lines with an upload state, before and after file checksums were kept
+		out.write("+\ta.db\t0\t1000\tc1\tPENDING\n");
+		out.write("+\tb.db\t0\t2000\tc2\tUPLOADING\tf2\n");
+		out.close();
+		
+		ArchiveManifest manifest = new ArchiveManifest(archiveDir);
+		assertEquals(1000L, manifest.get("a.db").created);
+		assertNull(manifest.get("a.db").fileChecksum);
+		assertEquals("c2", manifest.get("b.db").checksum);
+		assertEquals("f2", manifest.get("b.db").fileChecksum);
+		assertTrue(manifest.hasContent("c1"));
+	}
+	
+	public void testDeduplicatesContent() throws IOException {
+		FileDirectoryArchive archive = new FileDirectoryArchive(archiveDir, new NameGenerator.IdentityNameGenerator(), 
+				new FileCopier.SimpleFileCopier(), new DirectoryCleaner.KeepAll(), false, true);
+		assertTrue(archive.add(newArchiveFile("a.jpg")));
+		assertTrue(archive.move(newArchiveFile("b.jpg")));
+		assertEquals(1, archive.getAll().length);
+		assertNotNull(archive.getManifest().get("a.jpg").checksum);
+		assertTrue(archive.getReferences().isEmpty()); // Content not uploaded yet
+		
+		// Content that has been uploaded and removed is still recognized
+		assertTrue(archive.remove(new File(archiveDir, "a.jpg")));
+		assertTrue(archive.add(newArchiveFile("c.jpg")));
+		assertEquals(0, archive.getAll().length);
+		
+		List<ArchiveManifest.Entry> references = archive.getReferences();
+		assertEquals(2, references.size());
+		assertEquals("b.jpg", references.get(0).name);
+		assertEquals("c.jpg", references.get(1).name);
+		assertEquals(100L, references.get(0).size);
+		assertNotNull(references.get(0).fileChecksum);
+		archive.removeReference("b.jpg");
+		archive.getManifest().close();
+		
+		FileDirectoryArchive reloaded = new FileDirectoryArchive(archiveDir, new NameGenerator.IdentityNameGenerator(), 
+				new FileCopier.SimpleFileCopier(), new DirectoryCleaner.KeepAll(), false, true);
+		assertEquals(1, reloaded.getReferences().size());
+		assertEquals("c.jpg", reloaded.getReferences().get(0).name);
+		assertTrue(reloaded.add(newArchiveFile("d.jpg")));
+		assertEquals(0, reloaded.getAll().length);
+	}
+	
+	public void testChecksumsArchivedFile() throws Exception {
+		SecretKey key = new SecretKeySpec(new byte[16], "AES");
+		FileDirectoryArchive archive = new FileDirectoryArchive(archiveDir, new NameGenerator.IdentityNameGenerator(), 
+				new FileCopier.CompressedFileCopier(key), new DirectoryCleaner.KeepAll(), true);
+		assertTrue(archive.add(newArchiveFile("a.db")));
+		File archived = new File(archiveDir, "a.db");
+		
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		FileInputStream in = new FileInputStream(archived);
+		byte[] buffer = new byte[1024];
+		int count;
+		while ((count = in.read(buffer)) > 0) {
+			digest.update(buffer, 0, count);
+		}
+		in.close();
+		assertEquals(ArchiveManifest.toChecksum(digest.digest()), archive.getChecksum(archived));
+		archive.getManifest().close();
+		assertEquals(archive.getChecksum(archived), newArchive().getChecksum(archived));
+	}
+	
+	public void testRebuildsWhenMissing() throws IOException {
+		FileDirectoryArchive archive = newArchive();
+		assertTrue(archive.add(newArchiveFile("a.db")));
+		assertTrue(archive.add(newArchiveFile("b.db")));
+		archive.getManifest().close();
+		assertTrue(new File(archiveDir, ArchiveManifest.FILENAME).delete());
+		
+		assertEquals(2, newArchive().getAll().length);
+	}
+}
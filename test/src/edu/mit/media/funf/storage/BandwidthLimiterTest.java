@@ -0,0 +1,80 @@
+/**
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland. 
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version. 
+ * 
+ * Funf is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.mit.media.funf.storage;
+
+import java.io.InterruptedIOException;
+
+import android.test.AndroidTestCase;
+
+public class BandwidthLimiterTest extends AndroidTestCase {
+
+	private static final long RATE = 100000L;
+	
+	public void testBurstIsImmediate() throws InterruptedIOException {
+		BandwidthLimiter limiter = new BandwidthLimiter(RATE, 10000L);
+		long start = System.currentTimeMillis();
+		limiter.acquire(10000);
+		assertTrue(System.currentTimeMillis() - start < 100L);
+	}
+	
+	public void testPacesToRate() throws InterruptedIOException {
+		BandwidthLimiter limiter = new BandwidthLimiter(RATE, 10000L);
+		limiter.acquire(10000); // Use up the burst
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < 5; i++) {
+			limiter.acquire(10000);
+		}
+		long elapsed = System.currentTimeMillis() - start;
+		assertTrue("Took " + elapsed + "ms", elapsed >= 450L && elapsed < 1500L); // 50000 bytes at 100000 per second
+	}
+	
+	public void testSharedBetweenWriters() throws InterruptedException, InterruptedIOException {
+		final BandwidthLimiter limiter = new BandwidthLimiter(RATE, 10000L);
+		limiter.acquire(10000);
+		Runnable writer = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (int i = 0; i < 3; i++) {
+						limiter.acquire(10000);
+					}
+				} catch (InterruptedIOException e) {
+					// Fails the timing assertion
+				}
+			}
+		};
+		long start = System.currentTimeMillis();
+		Thread first = new Thread(writer);
+		Thread second = new Thread(writer);
+		first.start();
+		second.start();
+		first.join();
+		second.join();
+		long elapsed = System.currentTimeMillis() - start;
+		assertTrue("Took " + elapsed + "ms", elapsed >= 550L && elapsed < 1500L); // 60000 bytes between them
+	}
+	
+	public void testMaxWriteIsBurst() {
+		assertEquals(4096, new BandwidthLimiter(RATE, 4096L).getMaxWrite());
+		assertEquals((int)RATE, new BandwidthLimiter(RATE).getMaxWrite());
+	}
+}
@@ -0,0 +1,155 @@
+/**
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland. 
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version. 
+ * 
+ * Funf is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.mit.media.funf.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.DESKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+import edu.mit.media.funf.util.IOUtil;
+
+public class ChunkedEncryptionSpeedTest extends AndroidTestCase {
+
+	public static final String TAG = "FunfTest";
+	private static final int FILE_SIZE = 4 * 1024 * 1024;
+	
+	private File source;
+	private File destination;
+	private SecretKey key;
+	private SecretKey aesKey;
+	
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		source = new File(getContext().getFilesDir(), "chunked_source.db");
+		destination = new File(getContext().getFilesDir(), "chunked_destination.db");
+		byte[] data = new byte[FILE_SIZE];
+		new Random(1).nextBytes(data);
+		FileOutputStream out = new FileOutputStream(source);
+		out.write(data);
+		out.close();
+		key = SecretKeyFactory.getInstance("DES").generateSecret(new DESKeySpec("test1234".getBytes()));
+		aesKey = new SecretKeySpec("test1234test1234".getBytes(), "AES");
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		source.delete();
+		destination.delete();
+		super.tearDown();
+	}
+	
+	public void testSpeed() {
+		FileCopier des = new FileCopier.EncryptedFileCopier(key, "DES");
+		long now = System.currentTimeMillis();
+		assertTrue(des.copy(source, destination));
+		long desTime = System.currentTimeMillis() - now;
+		destination.delete();
+		
+		FileCopier gcm = new FileCopier.ChunkedEncryptedFileCopier(aesKey, false);
+		now = System.currentTimeMillis();
+		assertTrue(gcm.copy(source, destination));
+		long gcmTime = System.currentTimeMillis() - now;
+		Log.i(TAG, "DES: " + desTime + "ms, chunked AES-GCM: " + gcmTime + "ms, "
+				+ Runtime.getRuntime().availableProcessors() + " cores");
+	}
+	
+	public void testRoundTrip() throws IOException {
+		for (boolean compress : new boolean[] {false, true}) {
+			assertTrue(new FileCopier.ChunkedEncryptedFileCopier(aesKey, compress, 64 * 1024).copy(source, destination));
+			assertTrue(Arrays.equals(read(source), decode(read(destination))));
+			destination.delete();
+		}
+	}
+	
+	public void testTamperDetected() throws IOException {
+		assertTrue(new FileCopier.ChunkedEncryptedFileCopier(aesKey, false, 64 * 1024).copy(source, destination));
+		byte[] encrypted = read(destination);
+		encrypted[encrypted.length / 2] ^= 1;
+		try {
+			decode(encrypted);
+			fail("Modified chunk should not decrypt");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+	
+	public void testHeaderTamperDetected() throws IOException {
+		assertTrue(new FileCopier.ChunkedEncryptedFileCopier(aesKey, false, 64 * 1024).copy(source, destination));
+		int[] headerBytes = {4, 8, 9}; // Flags, chunk size and salt
+		for (int index : headerBytes) {
+			byte[] encrypted = read(destination);
+			encrypted[index] ^= 1;
+			try {
+				decode(encrypted);
+				fail("Modified header byte " + index + " should not decrypt");
+			} catch (IOException e) {
+				// Expected
+			}
+		}
+	}
+	
+	public void testWriteAfterClose() throws IOException {
+		ChunkedEncryptingOutputStream out = new ChunkedEncryptingOutputStream(new ByteArrayOutputStream(), aesKey, 0, 1024, null, 1);
+		out.write(1);
+		out.close();
+		try {
+			out.write(2);
+			fail("Write after close should fail");
+		} catch (IOException e) {
+			assertEquals("Stream closed", e.getMessage());
+		}
+	}
+	
+	private byte[] decode(byte[] encrypted) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		FileCopier.ChunkedEncryptedFileCopier.decode(new ByteArrayInputStream(encrypted), out, aesKey);
+		return out.toByteArray();
+	}
+	
+	private static byte[] read(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int count;
+			while ((count = in.read(buffer)) > 0) {
+				out.write(buffer, 0, count);
+			}
+			return out.toByteArray();
+		} finally {
+			IOUtil.close(in);
+		}
+	}
+}
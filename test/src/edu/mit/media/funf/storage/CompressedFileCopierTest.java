@@ -0,0 +1,130 @@
+/**
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland. 
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version. 
+ * 
+ * Funf is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.mit.media.funf.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import android.test.AndroidTestCase;
+import edu.mit.media.funf.util.IOUtil;
+
+public class CompressedFileCopierTest extends AndroidTestCase {
+
+	private File source;
+	private File destination;
+	private byte[] content;
+	private SecretKey key;
+	
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		source = new File(getContext().getFilesDir(), "compressed_source.db");
+		destination = new File(getContext().getFilesDir(), "compressed_destination.db");
+		StringBuilder json = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			json.append("{\"timestamp\":").append(i).append(",\"x\":0.5}\n");
+		}
+		content = json.toString().getBytes("UTF-8");
+		FileOutputStream out = new FileOutputStream(source);
+		out.write(content);
+		out.close();
+		key = new SecretKeySpec("test1234test1234test1234test1234".getBytes(), "AES");
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		source.delete();
+		destination.delete();
+		super.tearDown();
+	}
+	
+	public void testCompressedRoundTrip() throws Exception {
+		FileCopier.CompressedFileCopier copier = new FileCopier.CompressedFileCopier(null);
+		assertTrue(copier.copy(source, destination));
+		assertTrue(destination.length() < content.length / 5);
+		assertEquals(content.length, copier.getRawBytes());
+		assertEquals(destination.length(), copier.getCompressedBytes());
+		assertTrue(Arrays.equals(content, decode(read(destination), null)));
+	}
+	
+	public void testEncryptedRoundTrip() throws Exception {
+		assertTrue(new FileCopier.CompressedFileCopier(key).copy(source, destination));
+		assertTrue(Arrays.equals(content, decode(read(destination), key)));
+		try {
+			decode(read(destination), null);
+			fail("Encrypted file should need the key");
+		} catch (GeneralSecurityException e) {
+			// Expected
+		}
+	}
+	
+	public void testTamperDetected() throws Exception {
+		assertTrue(new FileCopier.CompressedFileCopier(key).copy(source, destination));
+		byte[] encrypted = read(destination);
+		encrypted[encrypted.length / 2] ^= 1;
+		try {
+			decode(encrypted, key);
+			fail("Modified file should not decrypt");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+	
+	public void testWeakKeyRejected() {
+		try {
+			new FileCopier.CompressedFileCopier(new SecretKeySpec(new byte[8], "DES"));
+			fail("DES key should not be accepted for AES");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+	
+	private static byte[] decode(byte[] encoded, SecretKey key) throws IOException, GeneralSecurityException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		FileCopier.CompressedFileCopier.decode(new ByteArrayInputStream(encoded), out, key);
+		return out.toByteArray();
+	}
+	
+	private static byte[] read(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int count;
+			while ((count = in.read(buffer)) > 0) {
+				out.write(buffer, 0, count);
+			}
+			return out.toByteArray();
+		} finally {
+			IOUtil.close(in);
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package edu.mit.media.funf.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import android.test.AndroidTestCase;
+
+import com.google.gson.JsonObject;
+
+import edu.mit.media.funf.json.IJsonObject;
+
+public class DataJournalTest extends AndroidTestCase {
+
+	private static final String PROBE = "edu.mit.media.funf.probe.builtin.AccelerometerSensorProbe";
+
+	private File journalDir;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		journalDir = new File(getContext().getFilesDir(), "test_journal");
+		clear();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		clear();
+		super.tearDown();
+	}
+
+	private void clear() {
+		File[] files = journalDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+	}
+
+	private IJsonObject data(int i) {
+		JsonObject data = new JsonObject();
+		data.addProperty("timestamp", i);
+		return new IJsonObject(data);
+	}
+
+	public void testRecoversAfterPartialRecord() throws Exception {
+		DataJournal journal = new DataJournal(journalDir, 3, 2, 1000L);
+		boolean segmentClosed = false;
+		for (int i = 0; i < 7; i++) {
+			segmentClosed |= journal.append(PROBE, data(i));
+		}
+		assertTrue(segmentClosed);
+		assertEquals(1L, journal.getLastClosedSegment());
+
+		// Simulate the process being killed part way through a record
+		File[] segments = journalDir.listFiles();
+		Arrays.sort(segments);
+		FileOutputStream out = new FileOutputStream(segments[segments.length - 1], true);
+		out.write(new byte[] {0, 0, 0, 50, 1, 2});
+		out.close();
+
+		DataJournal recovered = new DataJournal(journalDir);
+		long throughSegment = recovered.getLastClosedSegment();
+		List<DataJournal.Entry> entries = recovered.read(throughSegment);
+		assertEquals(7, entries.size());
+		for (int i = 0; i < 7; i++) {
+			assertEquals(PROBE, entries.get(i).probeType);
+			assertEquals(i, entries.get(i).data.get("timestamp").getAsInt());
+		}
+		recovered.deleteThrough(throughSegment);
+		assertEquals(0, journalDir.list().length);
+	}
+}
@@ -0,0 +1,153 @@
+/**
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland. 
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version. 
+ * 
+ * Funf is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.mit.media.funf.storage;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.DESKeySpec;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import edu.mit.media.funf.json.IJsonObject;
+
+public class DataQueryIteratorTest extends AndroidTestCase {
+
+	private static final String PLAIN_DATABASE = "query_plain";
+	private static final String PARTITIONED_DATABASE = "query_partitioned";
+	private static final String ACCELEROMETER = "edu.mit.media.funf.probe.builtin.AccelerometerSensorProbe";
+	private static final String WIFI = "edu.mit.media.funf.probe.builtin.WifiProbe";
+	
+	private List<File> databaseFiles;
+	private File encryptedFile;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		getContext().deleteDatabase(PLAIN_DATABASE);
+		getContext().deleteDatabase(PARTITIONED_DATABASE);
+		encryptedFile = new File(getContext().getFilesDir(), "query_encrypted.db");
+		
+		NameValueDatabaseHelper plain = new NameValueDatabaseHelper(getContext(), PLAIN_DATABASE, 1);
+		SQLiteDatabase db = plain.getWritableDatabase();
+		insert(db, ACCELEROMETER, 1.0);
+		insert(db, WIFI, 2.0);
+		insert(db, ACCELEROMETER, 3.0);
+		plain.close();
+		
+		NameValueDatabaseHelper partitioned = new NameValueDatabaseHelper(getContext(), PARTITIONED_DATABASE, 1, true);
+		db = partitioned.getWritableDatabase();
+		insertPartitioned(partitioned, db, ACCELEROMETER, 4.0);
+		insertPartitioned(partitioned, db, WIFI, 5.0);
+		insertPartitioned(partitioned, db, ACCELEROMETER, 6.0);
+		partitioned.close();
+		
+		databaseFiles = Arrays.asList(getContext().getDatabasePath(PLAIN_DATABASE), getContext().getDatabasePath(PARTITIONED_DATABASE));
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		getContext().deleteDatabase(PLAIN_DATABASE);
+		getContext().deleteDatabase(PARTITIONED_DATABASE);
+		encryptedFile.delete();
+		super.tearDown();
+	}
+	
+	private static String json(String probeType) {
+		return "\"" + probeType + "\""; // Names are stored as JSON strings
+	}
+	
+	private static String value(double timestamp) {
+		return "{\"t\":" + (int)timestamp + "}";
+	}
+	
+	private static void insert(SQLiteDatabase db, String probeType, double timestamp) {
+		db.execSQL(String.format("INSERT INTO %s (%s, %s, %s) VALUES (?, ?, ?)", NameValueDatabaseHelper.DATA_TABLE.name, 
+				NameValueDatabaseHelper.COLUMN_NAME, NameValueDatabaseHelper.COLUMN_TIMESTAMP, NameValueDatabaseHelper.COLUMN_VALUE), 
+				new Object[] {json(probeType), timestamp, value(timestamp)});
+	}
+	
+	private static void insertPartitioned(NameValueDatabaseHelper helper, SQLiteDatabase db, String probeType, double timestamp) {
+		String table = helper.getProbeTable(db, json(probeType));
+		db.execSQL(String.format("INSERT INTO %s (%s, %s) VALUES (?, ?)", table, 
+				NameValueDatabaseHelper.COLUMN_TIMESTAMP, NameValueDatabaseHelper.COLUMN_VALUE), 
+				new Object[] {timestamp, value(timestamp)});
+	}
+	
+	/**
+	 * @return the "t" value of every record, in the order returned
+	 */
+	private static List<Integer> read(DataQueryIterator results) {
+		List<Integer> times = new ArrayList<Integer>();
+		try {
+			while (results.hasNext()) {
+				IJsonObject data = results.next();
+				times.add(data.get("t").getAsInt());
+			}
+		} finally {
+			results.close();
+		}
+		return times;
+	}
+	
+	public void testTimeRange() {
+		assertEquals(Arrays.asList(2, 3, 4, 5), read(new DataQueryIterator(databaseFiles, null, 2.0, 6.0, 0)));
+		assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6), read(new DataQueryIterator(databaseFiles, null, 0.0, 10.0, 0)));
+		assertTrue(read(new DataQueryIterator(databaseFiles, null, 7.0, 10.0, 0)).isEmpty());
+	}
+	
+	public void testProbeFilter() {
+		assertEquals(Arrays.asList(1, 3, 4, 6), read(new DataQueryIterator(databaseFiles, ACCELEROMETER, 0.0, 10.0, 0)));
+		assertEquals(Arrays.asList(2, 5), read(new DataQueryIterator(databaseFiles, WIFI, 0.0, 10.0, 0)));
+		assertTrue(read(new DataQueryIterator(databaseFiles, "edu.mit.media.funf.probe.builtin.BatteryProbe", 0.0, 10.0, 0)).isEmpty());
+	}
+	
+	public void testLimit() {
+		assertEquals(Arrays.asList(1, 2), read(new DataQueryIterator(databaseFiles, null, 0.0, 10.0, 2)));
+		// Continues into the next database for the rest of the limit
+		assertEquals(Arrays.asList(1, 3, 4), read(new DataQueryIterator(databaseFiles, ACCELEROMETER, 0.0, 10.0, 3)));
+	}
+	
+	public void testPartitionedDatabase() {
+		List<File> partitionedOnly = Arrays.asList(getContext().getDatabasePath(PARTITIONED_DATABASE));
+		assertEquals(Arrays.asList(4, 6), read(new DataQueryIterator(partitionedOnly, ACCELEROMETER, 0.0, 10.0, 0)));
+		assertEquals(Arrays.asList(5, 6), read(new DataQueryIterator(partitionedOnly, null, 5.0, 10.0, 0)));
+	}
+	
+	public void testDecodesEncryptedArchive() throws Exception {
+		FileCopier.EncryptedFileCopier copier = new FileCopier.EncryptedFileCopier(
+				SecretKeyFactory.getInstance("DES").generateSecret(new DESKeySpec("test1234".getBytes())), "DES");
+		assertTrue(copier.copy(getContext().getDatabasePath(PLAIN_DATABASE), encryptedFile));
+		List<File> files = Arrays.asList(encryptedFile, getContext().getDatabasePath(PARTITIONED_DATABASE));
+		
+		// Skipped without a decoder
+		assertEquals(Arrays.asList(4, 6), read(new DataQueryIterator(files, ACCELEROMETER, 0.0, 10.0, 0)));
+		
+		File tempDir = getContext().getCacheDir();
+		int tempFiles = tempDir.list().length;
+		assertEquals(Arrays.asList(1, 3, 4, 6), read(new DataQueryIterator(files, copier, tempDir, ACCELEROMETER, 0.0, 10.0, 0)));
+		assertEquals(tempFiles, tempDir.list().length); // Decoded copies are deleted
+	}
+}
@@ -31,4 +31,14 @@ public class DefaultArchiveTest extends AndroidTestCase {
 		testDbArchive.setEncryptionPassword("changeme".toCharArray());
 		testDbArchive.setEncryptionPassword("test1234".toCharArray());
 	}
+	
+	public void testShortKeyFallsBackToDes() {
+		DefaultArchive testDbArchive = new DefaultArchive(getContext(), "testDb");
+		testDbArchive.compress = true;
+		testDbArchive.encryption = DefaultArchive.AES_GCM_ENCRYPTION;
+		testDbArchive.setEncryptionKey("8bytekey".getBytes());
+		assertNull(testDbArchive.getAesKey());
+		assertTrue(testDbArchive.getFileCopier() instanceof FileCopier.EncryptedFileCopier);
+		testDbArchive.getAll(); // Does not throw
+	}
 }
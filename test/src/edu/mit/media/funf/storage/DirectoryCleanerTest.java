@@ -0,0 +1,176 @@
+/**
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland. 
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version. 
+ * 
+ * Funf is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.mit.media.funf.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import android.test.AndroidTestCase;
+
+public class DirectoryCleanerTest extends AndroidTestCase {
+
+	private File dir;
+	private long time;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		dir = new File(getContext().getFilesDir(), "test_cleaner");
+		clear(dir);
+		dir.mkdirs();
+		time = System.currentTimeMillis() - 100000L;
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		clear(dir);
+		super.tearDown();
+	}
+
+	private static void clear(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				clear(child);
+			}
+		}
+		file.delete();
+	}
+	
+	/**
+	 * Writes a file of this size, each one older than the next
+	 */
+	private File write(File parent, String name, int size) throws IOException {
+		File file = new File(parent, name);
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(new byte[size]);
+		out.close();
+		time += 1000L;
+		file.setLastModified(time);
+		return file;
+	}
+	
+	public void testDeletesOldestFirst() throws IOException {
+		File a = write(dir, "a", 100);
+		File c = write(dir, "c", 100);
+		File b = write(dir, "b", 100);
+		DirectoryCleaner.KeepUnderStorageLimit cleaner = new DirectoryCleaner.KeepUnderStorageLimit(250);
+		cleaner.clean(dir);
+		assertFalse(a.exists());
+		assertTrue(c.exists());
+		assertTrue(b.exists());
+		assertEquals(200, cleaner.getTotalBytes());
+		
+		cleaner.setMaxBytesToKeep(150);
+		cleaner.clean(dir);
+		assertFalse(c.exists());
+		assertTrue(b.exists());
+		assertEquals(100, cleaner.getTotalBytes());
+	}
+	
+	public void testTracksAddedAndRemovedFiles() throws IOException {
+		write(dir, "a", 100);
+		File b = write(dir, "b", 100);
+		DirectoryCleaner.KeepUnderStorageLimit cleaner = new DirectoryCleaner.KeepUnderStorageLimit(250);
+		cleaner.clean(dir);
+		assertEquals(200, cleaner.getTotalBytes());
+		
+		cleaner.fileAdded(write(dir, "c", 100));
+		assertEquals(300, cleaner.getTotalBytes());
+		b.delete();
+		cleaner.fileRemoved(b);
+		assertEquals(200, cleaner.getTotalBytes());
+		
+		// Hidden files, like partial copies, are not counted
+		cleaner.fileAdded(write(dir, ".c.part", 100));
+		assertEquals(200, cleaner.getTotalBytes());
+	}
+	
+	public void testOutsideChangesWaitForRescan() throws IOException {
+		write(dir, "a", 100);
+		DirectoryCleaner.KeepUnderStorageLimit cached = new DirectoryCleaner.KeepUnderStorageLimit(1000);
+		DirectoryCleaner.KeepUnderStorageLimit rescanned = new DirectoryCleaner.KeepUnderStorageLimit(1000, 0L);
+		cached.clean(dir);
+		rescanned.clean(dir);
+		
+		write(dir, "b", 100);
+		cached.clean(dir);
+		rescanned.clean(dir);
+		assertEquals(100, cached.getTotalBytes());
+		assertEquals(200, rescanned.getTotalBytes());
+	}
+	
+	public void testKeepsFilesThatCannotBeDeleted() throws IOException {
+		// A directory with something in it cannot be deleted
+		File stuck = new File(dir, "stuck");
+		stuck.mkdir();
+		write(stuck, "inside", 100);
+		stuck.setLastModified(time - 10000L);
+		File a = write(dir, "a", 100);
+		File b = write(dir, "b", 100);
+		DirectoryCleaner.KeepUnderStorageLimit cleaner = new DirectoryCleaner.KeepUnderStorageLimit(250);
+		cleaner.clean(dir);
+		assertTrue(stuck.exists());
+		assertFalse(a.exists());
+		assertTrue(b.exists());
+		assertEquals(200, cleaner.getTotalBytes());
+	}
+	
+	public void testCachesFreeSpace() throws IOException {
+		File a = write(dir, "a", 100);
+		File b = write(dir, "b", 100);
+		CountingDiskFree cleaner = new CountingDiskFree(60000L);
+		cleaner.bytesAvailable = 1000L;
+		cleaner.clean(dir);
+		assertEquals(1, cleaner.stats);
+		
+		// Still cached, the drop in free space is not seen yet
+		cleaner.bytesAvailable = 300L;
+		cleaner.clean(dir);
+		assertEquals(1, cleaner.stats);
+		assertTrue(a.exists());
+		
+		CountingDiskFree uncached = new CountingDiskFree(0L);
+		uncached.bytesAvailable = 300L;
+		uncached.clean(dir);
+		uncached.clean(dir);
+		assertEquals(2, uncached.stats);
+		assertFalse(a.exists());
+		assertTrue(b.exists());
+	}
+	
+	private static class CountingDiskFree extends DirectoryCleaner.KeepUnderPercentageOfDiskFree {
+		private int stats = 0;
+		private long bytesAvailable;
+		
+		private CountingDiskFree(long statRefreshMillis) {
+			super(0.5, 0L, statRefreshMillis);
+		}
+		
+		@Override
+		protected long readBytesAvailable(File directory) {
+			stats++;
+			return bytesAvailable;
+		}
+	}
+}
@@ -0,0 +1,163 @@
+/**
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland. 
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version. 
+ * 
+ * Funf is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.mit.media.funf.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import android.test.AndroidTestCase;
+import edu.mit.media.funf.util.NameGenerator;
+
+public class FileDirectoryArchiveTest extends AndroidTestCase {
+
+	private File archiveDir, sourceDir;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		archiveDir = new File(getContext().getFilesDir(), "fda_archive");
+		sourceDir = new File(getContext().getFilesDir(), "fda_source");
+		clear(archiveDir);
+		clear(sourceDir);
+		sourceDir.mkdirs();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		clear(archiveDir);
+		clear(sourceDir);
+		super.tearDown();
+	}
+
+	private static void clear(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				clear(child);
+			}
+		}
+		file.delete();
+	}
+	
+	private File writeSource(String name, byte[] content) throws IOException {
+		File file = new File(sourceDir, name);
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(content);
+		out.close();
+		return file;
+	}
+	
+	/**
+	 * Counts copies, and is not a MultiFileCopier so the archive cannot digest while copying.
+	 */
+	private static class CountingFileCopier implements FileCopier {
+		private final FileCopier copier = new FileCopier.SimpleFileCopier();
+		int copies = 0;
+		
+		@Override
+		public boolean copy(File sourceFile, File destinationFile) {
+			copies++;
+			return copier.copy(sourceFile, destinationFile);
+		}
+	}
+	
+	/**
+	 * Counts copies, and is a SimpleFileCopier so the archive may rename files into place.
+	 */
+	private static class CountingSimpleFileCopier extends FileCopier.SimpleFileCopier {
+		int copies = 0;
+		
+		@Override
+		public boolean copy(File sourceFile, File destinationFile) {
+			copies++;
+			return super.copy(sourceFile, destinationFile);
+		}
+	}
+	
+	private static FileDirectoryArchive newArchive(File dir, FileCopier copier) {
+		return new FileDirectoryArchive(dir, new NameGenerator.IdentityNameGenerator(), copier, new DirectoryCleaner.KeepAll());
+	}
+	
+	public void testMoveRenamesUnchangedFiles() throws IOException {
+		CountingSimpleFileCopier copier = new CountingSimpleFileCopier();
+		File source = writeSource("move.db", "content".getBytes());
+		assertTrue(newArchive(archiveDir, copier).move(source));
+		assertEquals(0, copier.copies);
+		assertFalse(source.exists());
+		assertEquals("content".length(), new File(archiveDir, "move.db").length());
+	}
+	
+	public void testMoveCopiesWhenCopierTransforms() throws IOException {
+		CountingFileCopier copier = new CountingFileCopier();
+		File source = writeSource("move.db", "content".getBytes());
+		assertTrue(newArchive(archiveDir, copier).move(source));
+		assertEquals(1, copier.copies);
+		assertFalse(source.exists());
+		assertTrue(new File(archiveDir, "move.db").exists());
+	}
+	
+	public void testMoveCopiesAcrossFilesystems() throws IOException {
+		File externalDir = getContext().getExternalFilesDir(null);
+		if (externalDir == null) {
+			return; // No external storage to move across to
+		}
+		File externalArchiveDir = new File(externalDir, "fda_archive");
+		clear(externalArchiveDir);
+		try {
+			CountingSimpleFileCopier copier = new CountingSimpleFileCopier();
+			File source = writeSource("move.db", "content".getBytes());
+			assertTrue(newArchive(externalArchiveDir, copier).move(source));
+			assertFalse(source.exists());
+			assertEquals("content".length(), new File(externalArchiveDir, "move.db").length());
+			String[] left = externalArchiveDir.list();
+			assertEquals(1, left.length); // No temporary file left behind
+		} finally {
+			clear(externalArchiveDir);
+		}
+	}
+	
+	public void testMoveFailureKeepsSource() throws IOException {
+		// A non empty directory in the way of the archived file makes both the rename and the copy fail
+		File blocker = new File(archiveDir, "move.db");
+		blocker.mkdirs();
+		new FileOutputStream(new File(blocker, "inside")).close();
+		File source = writeSource("move.db", "content".getBytes());
+		assertFalse(newArchive(archiveDir, new CountingSimpleFileCopier()).move(source));
+		assertTrue(source.exists());
+	}
+	
+	public void testDuplicateContentIsNotCopied() throws IOException {
+		CountingFileCopier copier = new CountingFileCopier();
+		FileDirectoryArchive archive = new FileDirectoryArchive(archiveDir, new NameGenerator.IdentityNameGenerator(), 
+				copier, new DirectoryCleaner.KeepAll(), true, true);
+		byte[] content = "same content".getBytes();
+		assertTrue(archive.add(writeSource("first.jpg", content)));
+		assertEquals(1, copier.copies);
+		assertTrue(archive.add(writeSource("second.jpg", content)));
+		assertEquals(1, copier.copies);
+		assertFalse(new File(archiveDir, "second.jpg").exists());
+		assertTrue(archive.add(writeSource("third.jpg", "other content".getBytes())));
+		assertEquals(2, copier.copies);
+		assertEquals(2, archive.getAll().length);
+	}
+}
@@ -0,0 +1,214 @@
+/**
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland. 
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version. 
+ * 
+ * Funf is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.mit.media.funf.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+
+public class HttpArchiveTest extends AndroidTestCase {
+
+	private LocalUploadServer server;
+	private File file;
+	private byte[] content;
+	
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		server = new LocalUploadServer();
+		content = new byte[300 * 1024];
+		new Random(1).nextBytes(content);
+		file = new File(getContext().getFilesDir(), "upload_test.db");
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(content);
+		out.close();
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		server.shutdown();
+		file.delete();
+		// Saved sessions point at this server's port
+		getContext().getSharedPreferences(HttpArchive.class.getName(), Context.MODE_PRIVATE).edit().clear().commit();
+		super.tearDown();
+	}
+	
+	private HttpArchive newArchive() {
+		HttpArchive archive = new HttpArchive(getContext(), server.getUrl());
+		archive.setContext(getContext());
+		return archive;
+	}
+	
+	public void testMultipartUpload() {
+		assertTrue(newArchive().add(file));
+		assertTrue(Arrays.equals(content, server.getUploads().get(file.getName())));
+	}
+	
+	public void testUploadSizeMatchesBytesSent() {
+		HttpArchive archive = newArchive();
+		assertTrue(archive.add(file, sha256(content)));
+		assertEquals(archive.getUploadSize(file), archive.getBytesSent());
+		assertTrue(archive.getUploadSize(file) > content.length);
+	}
+	
+	public void testResumesAfterDroppedConnection() throws IOException {
+		HttpArchive archive = newArchive();
+		archive.setResumable(true);
+		archive.setChunkSize(64 * 1024);
+		// Session start and the first chunk go through, the second chunk is cut off
+		server.dropConnectionAfter(2, 10 * 1024);
+		assertFalse(archive.add(file));
+		assertTrue(server.getUploads().isEmpty());
+		
+		// A new instance, as after a restart, picks up the saved session after the stored chunk
+		HttpArchive restarted = newArchive();
+		restarted.setResumable(true);
+		restarted.setChunkSize(64 * 1024);
+		assertTrue(restarted.add(file));
+		assertTrue(Arrays.equals(content, server.getUploads().get(file.getName())));
+		assertTrue(restarted.getBytesSent() < content.length);
+		assertTrue(restarted.getBytesSent() >= content.length - 64 * 1024);
+	}
+	
+	public void testResumableEmptyFile() throws IOException {
+		File empty = new File(file.getParentFile(), "empty.txt");
+		new FileOutputStream(empty).close();
+		HttpArchive archive = newArchive();
+		archive.setResumable(true);
+		assertTrue(archive.add(empty));
+		byte[] uploaded = server.getUploads().get(empty.getName());
+		assertNotNull(uploaded);
+		assertEquals(0, uploaded.length);
+	}
+	
+	public void testResumableFailsWithoutProgress() {
+		HttpArchive archive = newArchive();
+		archive.setResumable(true);
+		archive.setChunkSize(64 * 1024);
+		server.setStoreChunks(false);
+		assertFalse(archive.add(file));
+		// Gave up after the first chunk instead of sending it over and over
+		assertTrue(archive.getBytesSent() <= 64 * 1024);
+		assertTrue(server.getUploads().isEmpty());
+	}
+	
+	public void testReportsBytesSentOnFailure() {
+		HttpArchive archive = newArchive();
+		server.setFailStatus(500);
+		assertFalse(archive.add(file));
+		// The whole body went over the network, even though it was not stored
+		assertTrue(archive.getBytesSent() >= content.length);
+	}
+	
+	public void testReusesConnection() {
+		HttpArchive archive = newArchive();
+		for (int i = 0; i < 3; i++) {
+			assertTrue(archive.add(file));
+		}
+		assertEquals(3, server.getRequestCount());
+		assertEquals(1, server.getConnectionCount());
+	}
+	
+	public void testBandwidthLimited() {
+		BandwidthLimiter limiter = new BandwidthLimiter(100 * 1024);
+		long start = System.currentTimeMillis();
+		assertTrue(HttpArchive.uploadFile(file, server.getUrl(), limiter));
+		// One second of burst, the remaining 200K at 100K per second
+		assertTrue(System.currentTimeMillis() - start >= 1900);
+		assertTrue(Arrays.equals(content, server.getUploads().get(file.getName())));
+	}
+	
+	public void testBatchAcknowledgesEachFile() throws IOException {
+		List<File> files = new ArrayList<File>();
+		for (int i = 0; i < 3; i++) {
+			File small = new File(getContext().getFilesDir(), "batch" + i + ".db");
+			FileOutputStream out = new FileOutputStream(small);
+			out.write(content, i * 1000, 1000);
+			out.close();
+			files.add(small);
+		}
+		server.rejectFile("batch1.db");
+		List<File> added = newArchive().addAll(files, null);
+		assertEquals(Arrays.asList(files.get(0), files.get(2)), added);
+		assertEquals(1, server.getRequestCount());
+		assertTrue(Arrays.equals(Arrays.copyOfRange(content, 2000, 3000), server.getUploads().get("batch2.db")));
+		for (File small : files) {
+			small.delete();
+		}
+	}
+	
+	public void testChecksumVerifiedAndDeduplicated() {
+		String checksum = sha256(content);
+		HttpArchive archive = newArchive();
+		assertFalse(archive.add(file, sha256(new byte[0])));
+		assertTrue(server.getUploads().isEmpty());
+		assertTrue(archive.add(file, checksum));
+		
+		// A server that already has the content does not need it sent again
+		archive.setResumable(true);
+		int requests = server.getRequestCount();
+		assertTrue(archive.add(file, checksum));
+		assertEquals(requests + 1, server.getRequestCount());
+	}
+	
+	public void testRecordsReference() {
+		HttpArchive archive = newArchive();
+		archive.setResumable(true);
+		assertFalse(archive.addReference("copy.db", content.length, sha256(content)));
+		assertTrue(archive.add(file));
+		assertTrue(archive.addReference("copy.db", content.length, sha256(content)));
+		assertTrue(Arrays.equals(content, server.getUploads().get("copy.db")));
+		
+		// Not sent to the multipart endpoint
+		archive.setResumable(false);
+		int requests = server.getRequestCount();
+		assertFalse(archive.acceptsReferences());
+		assertFalse(archive.addReference("other.db", content.length, sha256(content)));
+		assertEquals(requests, server.getRequestCount());
+	}
+	
+	public void testPlainOkIsNotDeduplication() {
+		// An old server answers any POST with 200, which must not count as having the content
+		server.setDeduplicate(false);
+		HttpArchive archive = newArchive();
+		archive.setResumable(true);
+		assertFalse(archive.add(file, sha256(content)));
+		assertFalse(archive.addReference("copy.db", content.length, sha256(content)));
+	}
+	
+	private static String sha256(byte[] content) {
+		try {
+			return ArchiveManifest.toChecksum(MessageDigest.getInstance("SHA-256").digest(content));
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
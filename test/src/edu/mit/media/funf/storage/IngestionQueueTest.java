@@ -0,0 +1,168 @@
+/**
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland. 
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version. 
+ * 
+ * Funf is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.mit.media.funf.storage;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import android.test.AndroidTestCase;
+
+import com.google.gson.JsonObject;
+
+import edu.mit.media.funf.json.IJsonObject;
+import edu.mit.media.funf.storage.IngestionQueue.OverflowPolicy;
+
+public class IngestionQueueTest extends AndroidTestCase {
+
+	private static final String PROBE = "edu.mit.media.funf.probe.builtin.AccelerometerSensorProbe";
+
+	private IJsonObject data(int i) {
+		JsonObject data = new JsonObject();
+		data.addProperty("timestamp", i);
+		return new IJsonObject(data);
+	}
+
+	public void testDropOldest() {
+		IngestionQueue queue = new IngestionQueue(2, OverflowPolicy.DROP_OLDEST, null);
+		assertTrue(queue.offer(PROBE, data(1)));
+		assertFalse(queue.offer(PROBE, data(2)));
+		queue.offer(PROBE, data(3));
+		assertEquals(1, queue.getDroppedCount());
+		assertEquals(2, queue.poll().data.get("timestamp").getAsInt());
+		assertEquals(3, queue.poll().data.get("timestamp").getAsInt());
+		assertNull(queue.poll());
+	}
+
+	public void testDropNewest() {
+		IngestionQueue queue = new IngestionQueue(2, OverflowPolicy.DROP_NEWEST, null);
+		for (int i = 1; i <= 3; i++) {
+			queue.offer(PROBE, data(i));
+		}
+		assertEquals(1, queue.getDroppedCount());
+		assertEquals(1, queue.poll().data.get("timestamp").getAsInt());
+		assertEquals(2, queue.poll().data.get("timestamp").getAsInt());
+		assertNull(queue.poll());
+	}
+
+	public void testBlockWaitsForRoom() throws InterruptedException {
+		final IngestionQueue queue = new IngestionQueue(1, OverflowPolicy.BLOCK, null);
+		queue.setMaxBlockMillis(10000L);
+		queue.offer(PROBE, data(1));
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100L);
+				} catch (InterruptedException e) {
+					return;
+				}
+				queue.poll();
+			}
+		};
+		writer.start();
+		queue.offer(PROBE, data(2)); // Returns once the writer makes room
+		writer.join();
+		assertEquals(0, queue.getDroppedCount());
+		assertEquals(2, queue.poll().data.get("timestamp").getAsInt());
+	}
+
+	public void testBlockGivesUp() {
+		IngestionQueue queue = new IngestionQueue(1, OverflowPolicy.BLOCK, null);
+		queue.offer(PROBE, data(1));
+		long start = System.currentTimeMillis();
+		queue.offer(PROBE, data(2));
+		// Nothing drains the queue, so the probe thread waits only the default time before dropping
+		assertTrue(System.currentTimeMillis() - start < 1000L);
+		assertEquals(1, queue.getDroppedCount());
+		assertEquals(1, queue.poll().data.get("timestamp").getAsInt());
+		assertNull(queue.poll());
+	}
+
+	public void testDownsample() {
+		IngestionQueue queue = new IngestionQueue(4, OverflowPolicy.DOWNSAMPLE, null);
+		for (int i = 1; i <= 5; i++) {
+			queue.offer(PROBE, data(i));
+		}
+		assertEquals(2, queue.getDroppedCount());
+		assertEquals(1, queue.poll().data.get("timestamp").getAsInt());
+		assertEquals(3, queue.poll().data.get("timestamp").getAsInt());
+		assertEquals(5, queue.poll().data.get("timestamp").getAsInt());
+		assertNull(queue.poll());
+	}
+
+	public void testSpillPreservesOrder() {
+		File spillFile = new File(getContext().getFilesDir(), "test.spill");
+		spillFile.delete();
+		IngestionQueue queue = new IngestionQueue(1, OverflowPolicy.SPILL, spillFile);
+		for (int i = 1; i <= 4; i++) {
+			queue.offer(PROBE, data(i));
+		}
+		assertEquals(3, queue.getSpilledCount());
+		for (int i = 1; i <= 4; i++) {
+			ProbeRecord entry = queue.poll();
+			assertEquals(PROBE, entry.probeType);
+			assertEquals(i, entry.data.get("timestamp").getAsInt());
+		}
+		assertNull(queue.poll());
+		assertFalse(spillFile.exists());
+	}
+
+	public void testOldestQueuedSequence() {
+		File spillFile = new File(getContext().getFilesDir(), "test.spill");
+		spillFile.delete();
+		IngestionQueue queue = new IngestionQueue(1, OverflowPolicy.SPILL, spillFile);
+		assertEquals(0, queue.getOldestQueuedSequence());
+		for (int i = 0; i < 3; i++) {
+			queue.offer(PROBE, data(i));
+		}
+		assertEquals(3, queue.getOfferedCount());
+		assertEquals(0, queue.getOldestQueuedSequence());
+		queue.poll();
+		assertEquals(1, queue.getOldestQueuedSequence()); // Spilled records still count as queued
+		queue.poll();
+		assertEquals(2, queue.getOldestQueuedSequence());
+		queue.poll();
+		assertEquals(3, queue.getOldestQueuedSequence());
+
+		IngestionQueue dropping = new IngestionQueue(1, OverflowPolicy.DROP_OLDEST, null);
+		dropping.offer(PROBE, data(0));
+		dropping.offer(PROBE, data(1));
+		assertEquals(1, dropping.getOldestQueuedSequence()); // Dropped records are done with
+	}
+
+	public void testDiscardsCorruptSpill() throws IOException {
+		File spillFile = new File(getContext().getFilesDir(), "test.spill");
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(spillFile));
+		ProbeRecord.writeString(out, PROBE);
+		ProbeRecord.writeString(out, data(1).toString());
+		out.writeInt(Integer.MAX_VALUE); // Corrupt length, larger than the file
+		out.write(new byte[16]);
+		out.close();
+		IngestionQueue queue = new IngestionQueue(1, OverflowPolicy.SPILL, spillFile);
+		assertEquals(1, queue.size());
+		assertEquals(1, queue.poll().data.get("timestamp").getAsInt());
+		assertNull(queue.poll());
+		assertFalse(spillFile.exists());
+	}
+}
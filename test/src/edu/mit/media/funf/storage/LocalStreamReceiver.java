@@ -0,0 +1,180 @@
+/**
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland. 
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version. 
+ * 
+ * Funf is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.mit.media.funf.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Receiver on localhost for the frames sent by {@link StreamingArchive}, standing in for a streaming server in tests.
+ * Frames are acknowledged once no more are waiting to be read, and a connection can be dropped part way 
+ * through to simulate a flaky network.
+ */
+public class LocalStreamReceiver {
+
+	private final ServerSocket serverSocket;
+	private final List<String> records = Collections.synchronizedList(new ArrayList<String>());
+	private final Map<String, byte[]> files = Collections.synchronizedMap(new HashMap<String, byte[]>());
+	private final AtomicInteger connectionCount = new AtomicInteger();
+	private volatile int dropAfterFrames = -1;
+	private volatile boolean running = true;
+	
+	public LocalStreamReceiver() throws IOException {
+		serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		Thread acceptThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (running) {
+					try {
+						final Socket socket = serverSocket.accept();
+						connectionCount.incrementAndGet();
+						new Thread(new Runnable() {
+							@Override
+							public void run() {
+								serve(socket);
+							}
+						}).start();
+					} catch (IOException e) {
+						// Closed
+					}
+				}
+			}
+		});
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+	}
+	
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+	
+	/**
+	 * @return the JSON of every record received, in order, including any sent more than once
+	 */
+	public List<String> getRecords() {
+		synchronized (records) {
+			return new ArrayList<String>(records);
+		}
+	}
+	
+	public byte[] getFile(String name) {
+		return files.get(name);
+	}
+	
+	public int getConnectionCount() {
+		return connectionCount.get();
+	}
+	
+	/**
+	 * Acknowledges and closes the next connection when this many more frames have been received, without storing the next frame.
+	 */
+	public void dropConnectionAfter(int frames) {
+		this.dropAfterFrames = frames;
+	}
+	
+	public void shutdown() {
+		running = false;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			// Already closed
+		}
+	}
+	
+	private void serve(Socket socket) {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			long lastSeq = 0L;
+			while (running) {
+				byte type;
+				try {
+					type = in.readByte();
+				} catch (EOFException e) {
+					break;
+				}
+				long seq = in.readLong();
+				byte[] payload = new byte[in.readInt()];
+				in.readFully(payload);
+				if (dropAfterFrames == 0) {
+					// Acknowledge what was stored, then fail part way through what remains
+					dropAfterFrames = -1;
+					ack(out, lastSeq);
+					break;
+				} else if (dropAfterFrames > 0) {
+					dropAfterFrames--;
+				}
+				DataInputStream frame = new DataInputStream(new ByteArrayInputStream(payload));
+				if (type == StreamingArchive.FRAME_RECORD) {
+					readString(frame); // Probe type
+					records.add(readString(frame));
+				} else if (type == StreamingArchive.FRAME_FILE) {
+					String name = readString(frame);
+					byte[] content = new byte[frame.available()];
+					frame.readFully(content);
+					files.put(name, content);
+				}
+				lastSeq = seq;
+				if (in.available() == 0) {
+					ack(out, lastSeq);
+				}
+			}
+		} catch (IOException e) {
+			// Connection dropped by the client
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Already closed
+			}
+		}
+	}
+	
+	private static void ack(DataOutputStream out, long seq) throws IOException {
+		if (seq > 0) {
+			out.writeByte(StreamingArchive.FRAME_ACK);
+			out.writeLong(seq);
+			out.writeInt(0);
+			out.flush();
+		}
+	}
+	
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+}
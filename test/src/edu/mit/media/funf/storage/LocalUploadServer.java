@@ -0,0 +1,450 @@
+/**
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland. 
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version. 
+ * 
+ * Funf is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.mit.media.funf.storage;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal HTTP/1.1 server on localhost, standing in for an upload server in tests.
+ * Accepts multipart POST uploads, and the resumable protocol described in {@link HttpArchive}.
+ * Connections are kept alive between requests, and can be dropped part way through a request body
+ * to simulate a flaky network.
+ */
+public class LocalUploadServer {
+
+	private static final String PATH = "/upload";
+	
+	private final ServerSocket serverSocket;
+	private final Map<String, byte[]> uploads = Collections.synchronizedMap(new HashMap<String, byte[]>());
+	private final Map<String, Session> sessions = Collections.synchronizedMap(new HashMap<String, Session>());
+	private final Map<String, byte[]> storedContent = Collections.synchronizedMap(new HashMap<String, byte[]>());
+	private final Set<String> rejectedNames = Collections.synchronizedSet(new HashSet<String>());
+	private final AtomicInteger requestCount = new AtomicInteger();
+	private final AtomicInteger connectionCount = new AtomicInteger();
+	private final AtomicInteger nextSessionId = new AtomicInteger();
+	private volatile long dropAfterBytes = -1L;
+	private volatile int dropAfterRequests = 0;
+	private volatile boolean storeChunks = true;
+	private volatile boolean deduplicate = true;
+	private volatile int failStatus = 0;
+	private volatile boolean running = true;
+	
+	public LocalUploadServer() throws IOException {
+		serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		Thread acceptThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (running) {
+					try {
+						final Socket socket = serverSocket.accept();
+						connectionCount.incrementAndGet();
+						new Thread(new Runnable() {
+							@Override
+							public void run() {
+								serve(socket);
+							}
+						}).start();
+					} catch (IOException e) {
+						// Closed
+					}
+				}
+			}
+		});
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+	}
+	
+	public String getUrl() {
+		return "http://127.0.0.1:" + serverSocket.getLocalPort() + PATH;
+	}
+	
+	/**
+	 * @return content of each completed upload, keyed by file name
+	 */
+	public Map<String, byte[]> getUploads() {
+		return uploads;
+	}
+	
+	public int getRequestCount() {
+		return requestCount.get();
+	}
+	
+	public int getConnectionCount() {
+		return connectionCount.get();
+	}
+	
+	/**
+	 * Closes the connection once, after this many bytes of the next request body have been read.
+	 */
+	public void dropConnectionAfter(long bytes) {
+		dropConnectionAfter(0, bytes);
+	}
+	
+	/**
+	 * Serves this many requests normally, then closes the connection once, after this many bytes of the 
+	 * following request body have been read.
+	 */
+	public void dropConnectionAfter(int requests, long bytes) {
+		dropAfterRequests = requests;
+		dropAfterBytes = bytes;
+	}
+	
+	/**
+	 * When false, session requests are answered like an old server that accepts any POST, with 200 and no session,
+	 * and without acknowledging the checksum.
+	 */
+	public void setDeduplicate(boolean deduplicate) {
+		this.deduplicate = deduplicate;
+	}
+	
+	/**
+	 * When false, chunks of resumable uploads are acknowledged without being stored, replying 308 with no progress.
+	 */
+	public void setStoreChunks(boolean storeChunks) {
+		this.storeChunks = storeChunks;
+	}
+	
+	/**
+	 * Replies to every request with this status, or 0 to serve requests normally.
+	 */
+	public void setFailStatus(int status) {
+		failStatus = status;
+	}
+	
+	/**
+	 * Leaves the named file out of multipart uploads, as if the server failed to store it.
+	 */
+	public void rejectFile(String name) {
+		rejectedNames.add(name);
+	}
+	
+	public void shutdown() {
+		running = false;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			// Already closed
+		}
+	}
+	
+	private void serve(Socket socket) {
+		try {
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			while (running) {
+				Request request = readRequest(in);
+				if (request == null) {
+					break;
+				}
+				requestCount.incrementAndGet();
+				byte[] body = readBody(in, request);
+				if (body == null) {
+					break; // Dropped
+				}
+				Response response = failStatus != 0 ? new Response(failStatus) : handle(request, body);
+				out.write(response.toBytes());
+				out.flush();
+				if ("close".equalsIgnoreCase(request.headers.get("connection"))) {
+					break;
+				}
+			}
+		} catch (IOException e) {
+			// Client went away
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Already closed
+			}
+		}
+	}
+	
+	private Response handle(Request request, byte[] body) {
+		if ("POST".equals(request.method) && !deduplicate) {
+			return new Response(200);
+		} else if ("POST".equals(request.method) && request.headers.containsKey("x-upload-content-length")) {
+			String checksum = request.headers.get("x-content-sha256");
+			byte[] stored = checksum == null ? null : storedContent.get(checksum);
+			if (stored != null) {
+				uploads.put(request.headers.get("x-upload-name"), stored);
+				Response response = new Response(200); // Already have it
+				response.headers.put("X-Content-SHA256", checksum);
+				return response;
+			}
+			String id = String.valueOf(nextSessionId.incrementAndGet());
+			sessions.put(id, new Session(id, request.headers.get("x-upload-name"), 
+					Long.parseLong(request.headers.get("x-upload-content-length")), checksum));
+			Response response = new Response(201);
+			response.headers.put("Location", PATH + "?upload_id=" + id);
+			return response;
+		} else if ("POST".equals(request.method)) {
+			return handleMultipart(request, body);
+		} else if ("PUT".equals(request.method)) {
+			Session session = sessions.get(getQueryParameter(request.path, "upload_id"));
+			if (session == null) {
+				return new Response(404);
+			}
+			return session.put(request.headers.get("content-range"), body);
+		}
+		return new Response(405);
+	}
+	
+	private Response handleMultipart(Request request, byte[] body) {
+		String contentType = request.headers.get("content-type");
+		int boundaryIndex = contentType == null ? -1 : contentType.indexOf("boundary=");
+		if (boundaryIndex < 0) {
+			return new Response(400);
+		}
+		String delimiter = "--" + contentType.substring(boundaryIndex + "boundary=".length());
+		String text = latin1(body);
+		StringBuilder acknowledged = new StringBuilder();
+		int partStart = text.indexOf(delimiter);
+		while (partStart >= 0) {
+			int headerEnd = text.indexOf("\r\n\r\n", partStart);
+			int partEnd = text.indexOf("\r\n" + delimiter, headerEnd + 4);
+			if (headerEnd < 0 || partEnd < 0) {
+				break;
+			}
+			String partHeaders = text.substring(partStart, headerEnd);
+			int filenameIndex = partHeaders.indexOf("filename=\"");
+			if (filenameIndex >= 0) {
+				String filename = partHeaders.substring(filenameIndex + 10, partHeaders.indexOf('"', filenameIndex + 10));
+				byte[] content = new byte[partEnd - headerEnd - 4];
+				System.arraycopy(body, headerEnd + 4, content, 0, content.length);
+				int checksumIndex = partHeaders.toLowerCase(Locale.US).indexOf("x-content-sha256: ");
+				String checksum = checksumIndex < 0 ? null : partHeaders.substring(checksumIndex + 18).split("\r\n")[0];
+				if (!rejectedNames.contains(filename) && (checksum == null || checksum.equals(sha256(content)))) {
+					store(filename, content);
+					acknowledged.append(filename).append("\r\n");
+				}
+			}
+			partStart = text.indexOf(delimiter, partEnd + 2);
+		}
+		if (acknowledged.length() == 0) {
+			return new Response(400);
+		}
+		Response response = new Response(200);
+		response.body = acknowledged.toString();
+		return response;
+	}
+	
+	private void store(String name, byte[] content) {
+		uploads.put(name, content);
+		storedContent.put(sha256(content), content);
+	}
+	
+	private static String sha256(byte[] content) {
+		try {
+			return ArchiveManifest.toChecksum(MessageDigest.getInstance("SHA-256").digest(content));
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private class Session {
+		private final String id;
+		private final String name;
+		private final long total;
+		private final String checksum;
+		private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+		
+		private Session(String id, String name, long total, String checksum) {
+			this.id = id;
+			this.name = name;
+			this.total = total;
+			this.checksum = checksum;
+		}
+		
+		private synchronized Response put(String contentRange, byte[] body) {
+			if (storeChunks && contentRange != null && contentRange.startsWith("bytes ") && !contentRange.startsWith("bytes *")) {
+				long first = Long.parseLong(contentRange.substring(6, contentRange.indexOf('-')));
+				if (first == data.size()) {
+					data.write(body, 0, body.length);
+				}
+			}
+			if (data.size() >= total) {
+				byte[] content = data.toByteArray();
+				if (checksum != null && !checksum.equals(sha256(content))) {
+					sessions.remove(id); // Corrupt, the client has to start again
+					return new Response(400);
+				}
+				store(name, content);
+				return new Response(201);
+			}
+			Response response = new Response(308);
+			if (data.size() > 0) {
+				response.headers.put("Range", "bytes=0-" + (data.size() - 1));
+			}
+			return response;
+		}
+	}
+	
+	private static class Request {
+		private String method;
+		private String path;
+		private final Map<String, String> headers = new HashMap<String, String>();
+	}
+	
+	private static class Response {
+		private final int status;
+		private final Map<String, String> headers = new HashMap<String, String>();
+		private String body = "";
+		
+		private Response(int status) {
+			this.status = status;
+		}
+		
+		private byte[] toBytes() {
+			StringBuilder response = new StringBuilder();
+			response.append("HTTP/1.1 ").append(status).append(" Status\r\n");
+			for (Map.Entry<String, String> header : headers.entrySet()) {
+				response.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+			}
+			try {
+				byte[] content = body.getBytes("UTF-8");
+				response.append("Content-Length: ").append(content.length).append("\r\n\r\n").append(body);
+				return response.toString().getBytes("UTF-8");
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+	
+	private static Request readRequest(InputStream in) throws IOException {
+		String requestLine = readLine(in);
+		if (requestLine == null || requestLine.length() == 0) {
+			return null;
+		}
+		String[] parts = requestLine.split(" ");
+		Request request = new Request();
+		request.method = parts[0];
+		request.path = parts[1];
+		String line;
+		while ((line = readLine(in)) != null && line.length() > 0) {
+			int colon = line.indexOf(':');
+			request.headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+		}
+		return request;
+	}
+	
+	/**
+	 * @return the body, or null if the connection was dropped on purpose
+	 */
+	private byte[] readBody(InputStream in, Request request) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		long dropAfter = -1L;
+		if (dropAfterBytes >= 0) {
+			if (dropAfterRequests > 0) {
+				dropAfterRequests--;
+			} else {
+				dropAfter = dropAfterBytes;
+			}
+		}
+		String contentLength = request.headers.get("content-length");
+		if ("chunked".equalsIgnoreCase(request.headers.get("transfer-encoding"))) {
+			int chunkLength;
+			while ((chunkLength = Integer.parseInt(readLine(in).split(";")[0].trim(), 16)) > 0) {
+				if (!copy(in, body, chunkLength, dropAfter)) {
+					return null;
+				}
+				readLine(in);
+			}
+			readLine(in);
+		} else if (contentLength != null) {
+			if (!copy(in, body, Long.parseLong(contentLength), dropAfter)) {
+				return null;
+			}
+		}
+		return body.toByteArray();
+	}
+	
+	private boolean copy(InputStream in, ByteArrayOutputStream body, long length, long dropAfter) throws IOException {
+		byte[] buffer = new byte[8192];
+		long remaining = length;
+		while (remaining > 0) {
+			if (dropAfter >= 0 && body.size() >= dropAfter) {
+				dropAfterBytes = -1L;
+				return false;
+			}
+			int limit = (int)Math.min(buffer.length, remaining);
+			if (dropAfter >= 0) {
+				limit = (int)Math.max(1, Math.min(limit, dropAfter - body.size()));
+			}
+			int count = in.read(buffer, 0, limit);
+			if (count < 0) {
+				throw new IOException("Connection closed mid body");
+			}
+			body.write(buffer, 0, count);
+			remaining -= count;
+		}
+		return true;
+	}
+	
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) >= 0) {
+			if (c == '\n') {
+				int length = line.length();
+				return length > 0 && line.charAt(length - 1) == '\r' ? line.substring(0, length - 1) : line.toString();
+			}
+			line.append((char)c);
+		}
+		return line.length() == 0 ? null : line.toString();
+	}
+	
+	private static String getQueryParameter(String path, String name) {
+		int queryIndex = path.indexOf('?');
+		if (queryIndex >= 0) {
+			for (String parameter : path.substring(queryIndex + 1).split("&")) {
+				if (parameter.startsWith(name + "=")) {
+					return parameter.substring(name.length() + 1);
+				}
+			}
+		}
+		return null;
+	}
+	
+	private static String latin1(byte[] bytes) {
+		try {
+			return new String(bytes, "ISO-8859-1");
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,132 @@
+/**
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland. 
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version. 
+ * 
+ * Funf is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.mit.media.funf.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+public class NameValueDatabaseHelperTest extends AndroidTestCase {
+
+	private static final String DATABASE_NAME = "partition_test";
+	private static final String ACCELEROMETER = "\"edu.mit.media.funf.probe.builtin.AccelerometerSensorProbe\"";
+	private static final String WIFI = "\"edu.mit.media.funf.probe.builtin.WifiProbe\"";
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		getContext().deleteDatabase(DATABASE_NAME);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		getContext().deleteDatabase(DATABASE_NAME);
+		super.tearDown();
+	}
+	
+	/**
+	 * Writes rows the way databases were written before they could be partitioned
+	 */
+	private List<String> createOldDatabase(int version) {
+		NameValueDatabaseHelper helper = new NameValueDatabaseHelper(getContext(), DATABASE_NAME, version);
+		SQLiteDatabase db = helper.getWritableDatabase();
+		insert(db, ACCELEROMETER, 1.0, "{\"x\":1}");
+		insert(db, WIFI, 2.0, "{\"ssid\":\"funf\"}");
+		insert(db, ACCELEROMETER, 3.0, "{\"x\":3}");
+		List<String> rows = readData(db);
+		assertEquals(3, rows.size());
+		helper.close();
+		return rows;
+	}
+	
+	private static void insert(SQLiteDatabase db, String name, double timestamp, String value) {
+		db.execSQL(String.format("INSERT INTO %s (%s, %s, %s) VALUES (?, ?, ?)", NameValueDatabaseHelper.DATA_TABLE.name, 
+				NameValueDatabaseHelper.COLUMN_NAME, NameValueDatabaseHelper.COLUMN_TIMESTAMP, NameValueDatabaseHelper.COLUMN_VALUE), 
+				new Object[] {name, timestamp, value});
+	}
+	
+	/**
+	 * @return every row of the data table or view, in time order
+	 */
+	private static List<String> readData(SQLiteDatabase db) {
+		List<String> rows = new ArrayList<String>();
+		Cursor cursor = db.rawQuery(String.format("SELECT %s, %s, %s FROM %s ORDER BY %s", 
+				NameValueDatabaseHelper.COLUMN_NAME, NameValueDatabaseHelper.COLUMN_TIMESTAMP, NameValueDatabaseHelper.COLUMN_VALUE, 
+				NameValueDatabaseHelper.DATA_TABLE.name, NameValueDatabaseHelper.COLUMN_TIMESTAMP), null);
+		try {
+			while (cursor.moveToNext()) {
+				rows.add(cursor.getString(0) + " " + cursor.getDouble(1) + " " + cursor.getString(2));
+			}
+		} finally {
+			cursor.close();
+		}
+		return rows;
+	}
+	
+	private static String getFileUuid(SQLiteDatabase db) {
+		return DatabaseUtils.stringForQuery(db, String.format("SELECT %s FROM %s", 
+				NameValueDatabaseHelper.COLUMN_UUID, NameValueDatabaseHelper.FILE_INFO_TABLE.name), null);
+	}
+	
+	public void testPartitionsExistingDatabase() {
+		List<String> rows = createOldDatabase(1);
+		NameValueDatabaseHelper helper = new NameValueDatabaseHelper(getContext(), DATABASE_NAME, 1, true);
+		SQLiteDatabase db = helper.getWritableDatabase();
+		assertTrue(NameValueDatabaseHelper.isPartitioned(db));
+		String table = NameValueDatabaseHelper.findProbeTable(db, ACCELEROMETER);
+		assertNotNull(table);
+		assertEquals(2, DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + table, null));
+		assertNotNull(NameValueDatabaseHelper.findProbeTable(db, WIFI));
+		assertEquals(rows, readData(db));
+		String uuid = getFileUuid(db);
+		helper.close();
+		
+		// Converted back when opened without partitioning
+		helper = new NameValueDatabaseHelper(getContext(), DATABASE_NAME, 1);
+		db = helper.getWritableDatabase();
+		assertFalse(NameValueDatabaseHelper.isPartitioned(db));
+		assertNull(NameValueDatabaseHelper.findProbeTable(db, ACCELEROMETER));
+		assertEquals(rows, readData(db));
+		assertEquals(uuid, getFileUuid(db));
+		helper.close();
+	}
+	
+	public void testUpgradePartitionsDatabase() {
+		List<String> rows = createOldDatabase(1);
+		NameValueDatabaseHelper helper = new NameValueDatabaseHelper(getContext(), DATABASE_NAME, 2, true);
+		SQLiteDatabase db = helper.getWritableDatabase();
+		assertEquals(2, db.getVersion());
+		assertTrue(NameValueDatabaseHelper.isPartitioned(db));
+		assertEquals(rows, readData(db));
+		
+		// New probes get their own table, and show up in the data view
+		String table = helper.getProbeTable(db, "\"edu.mit.media.funf.probe.builtin.BatteryProbe\"");
+		db.execSQL(String.format("INSERT INTO %s (%s, %s) VALUES (?, ?)", table, 
+				NameValueDatabaseHelper.COLUMN_TIMESTAMP, NameValueDatabaseHelper.COLUMN_VALUE), new Object[] {4.0, "{}"});
+		assertEquals(4, readData(db).size());
+		helper.close();
+	}
+}
@@ -0,0 +1,177 @@
+/**
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland. 
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version. 
+ * 
+ * Funf is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.mit.media.funf.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.test.AndroidTestCase;
+
+public class SegmentedLogTest extends AndroidTestCase {
+
+	private static final String PROBE = "edu.mit.media.funf.probe.builtin.AccelerometerSensorProbe";
+
+	private File logDir;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		logDir = new File(getContext().getFilesDir(), "test_log");
+		clear();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		clear();
+		super.tearDown();
+	}
+
+	private void clear() {
+		File[] files = logDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+	}
+	
+	private static List<SegmentedLog.Entry> read(File segmentFile) throws IOException {
+		List<SegmentedLog.Entry> entries = new ArrayList<SegmentedLog.Entry>();
+		SegmentedLog.SegmentReader reader = new SegmentedLog.SegmentReader(segmentFile);
+		try {
+			while (reader.hasNext()) {
+				entries.add(reader.next());
+			}
+		} finally {
+			reader.close();
+		}
+		return entries;
+	}
+	
+	private File getOpenSegment() {
+		File[] files = logDir.listFiles();
+		for (File file : files) {
+			if (file.getName().endsWith(".open")) {
+				return file;
+			}
+		}
+		return null;
+	}
+
+	public void testRoundTrip() throws IOException {
+		SegmentedLog log = new SegmentedLog(logDir, "test");
+		log.append(PROBE, 1.5, "{\"x\":1}");
+		log.append(PROBE, 2.5, "{\"x\":\"\u00e9\"}");
+		log.roll();
+		
+		File[] segments = log.getClosedSegments();
+		assertEquals(1, segments.length);
+		List<SegmentedLog.Entry> entries = read(segments[0]);
+		assertEquals(2, entries.size());
+		assertEquals(PROBE, entries.get(0).probeName);
+		assertEquals(1.5, entries.get(0).timestamp, 0.0);
+		assertEquals("{\"x\":1}", entries.get(0).value);
+		assertEquals("{\"x\":\"\u00e9\"}", entries.get(1).value);
+		
+		log.roll(); // Nothing written, no empty segment
+		assertEquals(1, log.getClosedSegments().length);
+	}
+	
+	public void testRecoversTruncatedTail() throws IOException {
+		SegmentedLog log = new SegmentedLog(logDir, "test");
+		log.append(PROBE, 1.0, "{\"x\":1}");
+		log.append(PROBE, 2.0, "{\"x\":2}");
+		log.sync();
+		File openSegment = getOpenSegment();
+		assertNotNull(openSegment);
+		long length = openSegment.length();
+		
+		// A process killed part way through writing the last record
+		RandomAccessFile file = new RandomAccessFile(openSegment, "rw");
+		file.setLength(length - 3);
+		file.close();
+		
+		SegmentedLog recovered = new SegmentedLog(logDir, "test");
+		assertNull(getOpenSegment());
+		File[] segments = recovered.getClosedSegments();
+		assertEquals(1, segments.length);
+		List<SegmentedLog.Entry> entries = read(segments[0]);
+		assertEquals(1, entries.size());
+		assertEquals("{\"x\":1}", entries.get(0).value);
+		
+		// New records go to a new segment
+		recovered.append(PROBE, 3.0, "{\"x\":3}");
+		recovered.roll();
+		segments = recovered.getClosedSegments();
+		assertEquals(2, segments.length);
+		assertEquals("{\"x\":3}", read(segments[1]).get(0).value);
+	}
+	
+	public void testRollsAtSegmentSize() throws IOException {
+		SegmentedLog log = new SegmentedLog(logDir, "test", 100);
+		for (int i = 0; i < 10; i++) {
+			log.append(PROBE, i, "{\"x\":" + i + "}");
+			log.flush();
+		}
+		log.roll();
+		File[] segments = log.getClosedSegments();
+		assertTrue(segments.length > 1);
+		int count = 0;
+		for (File segment : segments) {
+			for (SegmentedLog.Entry entry : read(segment)) {
+				assertEquals(count++, (int)entry.timestamp); // Segments sort oldest first
+			}
+		}
+		assertEquals(10, count);
+	}
+	
+	public void testSegmentNotReusedAfterFailedClose() throws IOException {
+		SegmentedLog log = new SegmentedLog(logDir, "test");
+		log.append(PROBE, 1.0, "{\"x\":1}");
+		log.sync();
+		File openSegment = getOpenSegment();
+		// Occupy the closed name with a directory, so the rename fails
+		File closedName = new File(logDir, openSegment.getName().replace(".open", ""));
+		assertTrue(closedName.mkdir());
+		try {
+			log.roll();
+			fail("Expected the segment to fail to close");
+		} catch (IOException e) {
+			// Expected
+		}
+		assertTrue(closedName.delete());
+		
+		log.append(PROBE, 2.0, "{\"x\":2}");
+		log.roll();
+		List<SegmentedLog.Entry> entries = read(openSegment);
+		assertEquals(1, entries.size()); // Nothing appended to the segment that failed to close
+		
+		new SegmentedLog(logDir, "test"); // Closes the segment left open
+		File[] segments = log.getClosedSegments();
+		assertEquals(2, segments.length);
+		assertEquals("{\"x\":1}", read(segments[0]).get(0).value);
+		assertEquals("{\"x\":2}", read(segments[1]).get(0).value);
+	}
+}
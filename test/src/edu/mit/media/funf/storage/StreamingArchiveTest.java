@@ -0,0 +1,206 @@
+/**
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland. 
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version. 
+ * 
+ * Funf is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.mit.media.funf.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import android.test.AndroidTestCase;
+
+import com.google.gson.JsonObject;
+
+import edu.mit.media.funf.config.RuntimeTypeAdapterFactory;
+import edu.mit.media.funf.json.IJsonObject;
+
+public class StreamingArchiveTest extends AndroidTestCase {
+
+	private static final long WAIT_MILLIS = 10000L;
+	
+	private LocalStreamReceiver receiver;
+	private StreamingArchive archive;
+	private File spoolDir;
+	private IJsonObject probeConfig;
+	
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		receiver = new LocalStreamReceiver();
+		spoolDir = new File(getContext().getFilesDir(), "test_stream_spool");
+		clear();
+		archive = new StreamingArchive();
+		archive.setHost("127.0.0.1");
+		archive.setPort(receiver.getPort());
+		archive.setSpoolDir(spoolDir);
+		archive.setBatching(10, 50L);
+		JsonObject config = new JsonObject();
+		config.addProperty(RuntimeTypeAdapterFactory.TYPE, "edu.mit.media.funf.probe.builtin.TestProbe");
+		probeConfig = new IJsonObject(config);
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		archive.stop();
+		receiver.shutdown();
+		clear();
+		super.tearDown();
+	}
+	
+	private void clear() {
+		File[] files = spoolDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+	}
+	
+	private IJsonObject data(int i) {
+		JsonObject data = new JsonObject();
+		data.addProperty("timestamp", i);
+		return new IJsonObject(data);
+	}
+	
+	private Set<Integer> waitForRecords(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+		Set<Integer> received = new HashSet<Integer>();
+		while (received.size() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+			received.clear();
+			for (String record : receiver.getRecords()) {
+				received.add(Integer.valueOf(record.replaceAll("\\D", "")));
+			}
+		}
+		return received;
+	}
+	
+	private void waitForEmptySpool() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+		while (spoolDir.list().length > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+	}
+	
+	public void testNoContextOrSpoolDir() throws Exception {
+		StreamingArchive unconfigured = new StreamingArchive();
+		unconfigured.setHost("127.0.0.1");
+		unconfigured.setPort(receiver.getPort());
+		try {
+			unconfigured.onDataReceived(probeConfig, data(0));
+			fail("Expected a missing spool directory to be reported");
+		} catch (IllegalStateException e) {
+		}
+		try {
+			unconfigured.start();
+			fail("Expected a missing spool directory to be reported");
+		} catch (IllegalStateException e) {
+		}
+		unconfigured.stop();
+	}
+	
+	public void testRecordsStreamedAndSpoolCleared() throws Exception {
+		for (int i = 0; i < 100; i++) {
+			archive.onDataReceived(probeConfig, data(i));
+		}
+		assertEquals(100, waitForRecords(100).size());
+		List<String> records = receiver.getRecords();
+		assertEquals(100, records.size());
+		for (int i = 0; i < 100; i++) {
+			assertEquals(data(i).toString(), records.get(i));
+		}
+		waitForEmptySpool();
+		assertEquals(0, spoolDir.list().length);
+		assertEquals(1, receiver.getConnectionCount());
+	}
+	
+	public void testUnacknowledgedRecordsResent() throws Exception {
+		receiver.dropConnectionAfter(25);
+		for (int i = 0; i < 100; i++) {
+			archive.onDataReceived(probeConfig, data(i));
+		}
+		assertEquals(100, waitForRecords(100).size());
+		assertEquals(2, receiver.getConnectionCount());
+		waitForEmptySpool();
+		assertEquals(0, spoolDir.list().length);
+	}
+	
+	public void testSpoolSentAfterRestart() throws Exception {
+		// Spooled by a previous process that never connected
+		DataJournal spool = new DataJournal(spoolDir);
+		for (int i = 0; i < 20; i++) {
+			spool.append("edu.mit.media.funf.probe.builtin.TestProbe", data(i));
+		}
+		spool.roll();
+		archive.start();
+		assertEquals(20, waitForRecords(20).size());
+	}
+	
+	private void spool(int count) {
+		DataJournal spool = new DataJournal(spoolDir, 10, DataJournal.DEFAULT_SYNC_RECORDS, DataJournal.DEFAULT_SYNC_MILLIS);
+		for (int i = 0; i < count; i++) {
+			spool.append("edu.mit.media.funf.probe.builtin.TestProbe", data(i));
+		}
+		spool.roll();
+		archive.setSpoolSegmentRecords(10);
+	}
+	
+	public void testSpoolSegmentsKeptUntilAcknowledged() throws Exception {
+		spool(50);
+		receiver.dropConnectionAfter(25);
+		archive.start();
+		assertEquals(50, waitForRecords(50).size());
+		assertEquals(2, receiver.getConnectionCount());
+		waitForEmptySpool();
+		assertEquals(0, spoolDir.list().length);
+	}
+	
+	public void testSpoolReadBackInPieces() throws Exception {
+		spool(50);
+		archive.setMaxPendingRecords(15);
+		archive.start();
+		for (int i = 50; i < 70; i++) {
+			archive.onDataReceived(probeConfig, data(i));
+		}
+		assertEquals(70, waitForRecords(70).size());
+		waitForEmptySpool();
+		assertEquals(0, spoolDir.list().length);
+	}
+	
+	public void testFileAcknowledged() throws Exception {
+		byte[] content = new byte[100 * 1024];
+		new Random(1).nextBytes(content);
+		File file = new File(getContext().getFilesDir(), "stream_test.db");
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(content);
+		out.close();
+		try {
+			assertTrue(archive.add(file));
+			assertTrue(Arrays.equals(content, receiver.getFile(file.getName())));
+		} finally {
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,124 @@
+/**
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland. 
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version. 
+ * 
+ * Funf is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.mit.media.funf.storage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import android.test.AndroidTestCase;
+import edu.mit.media.funf.util.NameGenerator;
+
+public class TeeFileArchiveTest extends AndroidTestCase {
+
+	private File mainDir, copyDir, sourceFile;
+	private byte[] content;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mainDir = new File(getContext().getFilesDir(), "tee_main");
+		copyDir = new File(getContext().getFilesDir(), "tee_copy");
+		clear(mainDir);
+		clear(copyDir);
+		content = new byte[10000];
+		for (int i = 0; i < content.length; i++) {
+			content[i] = (byte)i;
+		}
+		sourceFile = new File(getContext().getFilesDir(), "tee.db");
+		FileOutputStream out = new FileOutputStream(sourceFile);
+		out.write(content);
+		out.close();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		clear(mainDir);
+		clear(copyDir);
+		sourceFile.delete();
+		super.tearDown();
+	}
+
+	private static void clear(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				clear(child);
+			}
+		}
+		file.delete();
+	}
+	
+	private static FileDirectoryArchive newArchive(File dir) {
+		return new FileDirectoryArchive(dir, new NameGenerator.IdentityNameGenerator(), 
+				new FileCopier.SimpleFileCopier(), new DirectoryCleaner.KeepAll());
+	}
+	
+	private static byte[] read(File file) throws IOException {
+		byte[] bytes = new byte[(int)file.length()];
+		FileInputStream in = new FileInputStream(file);
+		try {
+			int offset = 0;
+			while (offset < bytes.length) {
+				offset += in.read(bytes, offset, bytes.length - offset);
+			}
+		} finally {
+			in.close();
+		}
+		return bytes;
+	}
+	
+	public void testWritesEveryCopy() throws IOException {
+		TeeFileArchive archive = new TeeFileArchive(newArchive(mainDir), newArchive(copyDir));
+		assertTrue(archive.move(sourceFile));
+		assertFalse(sourceFile.exists());
+		assertTrue(Arrays.equals(content, read(new File(mainDir, "tee.db"))));
+		assertTrue(Arrays.equals(content, read(new File(copyDir, "tee.db"))));
+		assertEquals(1, mainDir.list().length); // No partial copies left behind
+		assertEquals(1, copyDir.list().length);
+		assertEquals(1, archive.getAll().length);
+	}
+	
+	public void testArchivesWithoutCopyThatCannotBeWritten() throws IOException {
+		// A file where the copy's directory should be
+		new FileOutputStream(copyDir).close();
+		TeeFileArchive archive = new TeeFileArchive(newArchive(mainDir), newArchive(copyDir));
+		assertTrue(archive.add(sourceFile));
+		assertTrue(Arrays.equals(content, read(new File(mainDir, "tee.db"))));
+		assertTrue(copyDir.isFile());
+	}
+	
+	public void testNoCopiesWhenArchiveFails() throws IOException {
+		// A non empty directory in the way of the archived file makes the rename fail
+		File blocker = new File(mainDir, "tee.db");
+		blocker.mkdirs();
+		new FileOutputStream(new File(blocker, "inside")).close();
+		TeeFileArchive archive = new TeeFileArchive(newArchive(mainDir), newArchive(copyDir));
+		assertFalse(archive.add(sourceFile));
+		assertTrue(sourceFile.exists());
+		assertFalse(new File(copyDir, "tee.db").exists());
+		String[] left = copyDir.list();
+		assertTrue(left == null || left.length == 0);
+	}
+}
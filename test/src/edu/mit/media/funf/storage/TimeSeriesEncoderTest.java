@@ -0,0 +1,130 @@
+package edu.mit.media.funf.storage;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Random;
+
+import android.test.AndroidTestCase;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import edu.mit.media.funf.json.IJsonObject;
+import edu.mit.media.funf.probe.builtin.ProbeKeys.SensorKeys;
+import edu.mit.media.funf.security.Base64Coder;
+
+public class TimeSeriesEncoderTest extends AndroidTestCase {
+
+	public void testRoundTrip() {
+		Random random = new Random(0);
+		int sampleCount = 500;
+		long[] times = new long[sampleCount];
+		float[][] values = new float[sampleCount][];
+		TimeSeriesEncoder encoder = new TimeSeriesEncoder(3);
+		long time = 1350000000000000L;
+		float x = 0.1f;
+		for (int i = 0; i < sampleCount; i++) {
+			time += 5000 + random.nextInt(400) - 200; // Jittered 200Hz, in microseconds
+			if (i == 250) {
+				time += 10000000L; // Gap
+			}
+			x += (random.nextFloat() - 0.5f) * 0.05f;
+			times[i] = time;
+			values[i] = new float[] {3f, x, i % 2 == 0 ? 9.8f : Float.NaN};
+			encoder.add(time, values[i]);
+		}
+		byte[] block = encoder.toByteArray();
+		assertTrue(block.length < sampleCount * 12);
+
+		TimeSeriesDecoder decoder = new TimeSeriesDecoder(block, 3);
+		assertEquals(sampleCount, decoder.getCount());
+		for (int i = 0; i < sampleCount; i++) {
+			assertTrue(decoder.next());
+			assertEquals(times[i], decoder.getTime());
+			for (int j = 0; j < 3; j++) {
+				assertEquals(Float.floatToIntBits(values[i][j]), Float.floatToIntBits(decoder.getValue(j)));
+			}
+		}
+		assertFalse(decoder.next());
+	}
+	
+	private static final String[] FIELDS = {SensorKeys.ACCURACY, "x", "y", "z"};
+	
+	/**
+	 * Accelerometer-like samples at 100Hz, quantized to the resolution of a typical sensor.
+	 */
+	private static float[][] getSamples(int sampleCount) {
+		Random random = new Random(0);
+		float resolution = 0.0383072f;
+		float[][] samples = new float[sampleCount][];
+		int x = 10, y = -20, z = 256;
+		for (int i = 0; i < sampleCount; i++) {
+			x += random.nextInt(3) - 1;
+			y += random.nextInt(3) - 1;
+			z += random.nextInt(3) - 1;
+			samples[i] = new float[] {3f, x * resolution, y * resolution, z * resolution};
+		}
+		return samples;
+	}
+	
+	private static JsonObject getBlockRecord(long startTime, long interval, float[][] samples) {
+		TimeSeriesEncoder encoder = new TimeSeriesEncoder(FIELDS.length);
+		for (int i = 0; i < samples.length; i++) {
+			encoder.add(startTime + i * interval, samples[i]);
+		}
+		JsonArray fields = new JsonArray();
+		for (String field : FIELDS) {
+			fields.add(new JsonPrimitive(field));
+		}
+		JsonObject data = new JsonObject();
+		data.addProperty(SensorKeys.TIMESTAMP, BigDecimal.valueOf(startTime, 6));
+		data.addProperty(TimeSeriesDecoder.ENCODING, TimeSeriesDecoder.ENCODING_GORILLA);
+		data.add(TimeSeriesDecoder.FIELDS, fields);
+		data.addProperty(TimeSeriesDecoder.COUNT, encoder.getCount());
+		data.addProperty(TimeSeriesDecoder.BLOCK, new String(Base64Coder.encode(encoder.toByteArray())));
+		return data;
+	}
+	
+	public void testDecodeExpandsSamples() {
+		long startTime = 1350000000000000L; // Microseconds
+		long interval = 10000L;
+		float[][] samples = getSamples(300);
+		IJsonObject data = new IJsonObject(getBlockRecord(startTime, interval, samples));
+		assertTrue(TimeSeriesDecoder.isBlock(data));
+		
+		List<JsonObject> decoded = TimeSeriesDecoder.decode(data);
+		assertEquals(samples.length, decoded.size());
+		for (int i = 0; i < samples.length; i++) {
+			JsonObject sample = decoded.get(i);
+			assertEquals(FIELDS.length + 1, sample.entrySet().size());
+			assertEquals(BigDecimal.valueOf(startTime + i * interval, 6), sample.get(SensorKeys.TIMESTAMP).getAsBigDecimal());
+			for (int j = 0; j < FIELDS.length; j++) {
+				assertEquals(samples[i][j], sample.get(FIELDS[j]).getAsFloat());
+			}
+		}
+	}
+	
+	public void testBlockIsSmallerThanPerSampleRecords() {
+		long startTime = 1350000000000000L;
+		float[][] samples = getSamples(3000); // 30 seconds at 100Hz
+		JsonObject block = getBlockRecord(startTime, 10000L, samples);
+		
+		long perSampleSize = 0;
+		for (int i = 0; i < samples.length; i++) {
+			JsonObject sample = new JsonObject();
+			sample.addProperty(SensorKeys.TIMESTAMP, BigDecimal.valueOf(startTime + i * 10000L, 6));
+			for (int j = 0; j < FIELDS.length; j++) {
+				sample.addProperty(FIELDS[j], samples[i][j]);
+			}
+			perSampleSize += sample.toString().length();
+		}
+		long encodedSize = Base64Coder.decode(block.get(TimeSeriesDecoder.BLOCK).getAsString()).length;
+		assertTrue("Encoded block of " + encodedSize + " bytes vs " + perSampleSize + " bytes of rows", 
+				encodedSize * 10 <= perSampleSize);
+		// The stored record carries the block as base64, a third larger
+		long recordSize = block.toString().length();
+		assertTrue("Block record of " + recordSize + " bytes vs " + perSampleSize + " bytes of rows", 
+				recordSize * 75 <= perSampleSize * 10);
+	}
+}
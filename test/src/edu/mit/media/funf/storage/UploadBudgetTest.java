@@ -0,0 +1,68 @@
+/**
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland. 
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version. 
+ * 
+ * Funf is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.mit.media.funf.storage;
+
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.test.AndroidTestCase;
+
+public class UploadBudgetTest extends AndroidTestCase {
+
+	private static final String MOBILE = "mobile";
+	private static final String WIFI = "wifi";
+	
+	private long time(int month, int day) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.clear();
+		calendar.set(2013, month, day, 12, 0);
+		return calendar.getTimeInMillis();
+	}
+	
+	public void testDailyAndMonthlyBudgets() {
+		Map<String, Long> daily = new HashMap<String, Long>();
+		daily.put(MOBILE, 100L);
+		Map<String, Long> monthly = new HashMap<String, Long>();
+		monthly.put(MOBILE, 250L);
+		UploadBudget budget = new UploadBudget(null, daily, monthly);
+		
+		long day1 = time(Calendar.JANUARY, 1);
+		assertTrue(budget.tryReserve(MOBILE, 60L, day1));
+		assertFalse(budget.tryReserve(MOBILE, 60L, day1)); // Reserved bytes count against the budget
+		budget.release(MOBILE, 60L);
+		budget.record(MOBILE, 60L, day1);
+		assertTrue(budget.tryReserve(MOBILE, 40L, day1));
+		budget.release(MOBILE, 40L);
+		assertEquals(60L, budget.getDailyUsage(MOBILE, day1));
+		assertTrue(budget.tryReserve(WIFI, 1000L, day1));
+		
+		long day2 = time(Calendar.JANUARY, 2);
+		assertTrue(budget.tryReserve(MOBILE, 100L, day2));
+		budget.release(MOBILE, 100L);
+		budget.record(MOBILE, 100L, day2);
+		budget.record(MOBILE, 80L, time(Calendar.JANUARY, 3));
+		assertEquals(240L, budget.getMonthlyUsage(MOBILE, day2));
+		assertFalse(budget.tryReserve(MOBILE, 20L, time(Calendar.JANUARY, 4)));
+		assertTrue(budget.tryReserve(MOBILE, 100L, time(Calendar.FEBRUARY, 1)));
+	}
+}
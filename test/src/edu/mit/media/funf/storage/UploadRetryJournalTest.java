@@ -0,0 +1,83 @@
+/**
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland. 
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version. 
+ * 
+ * Funf is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.mit.media.funf.storage;
+
+import java.io.File;
+
+import android.test.AndroidTestCase;
+import edu.mit.media.funf.storage.UploadRetryJournal.CircuitState;
+
+public class UploadRetryJournalTest extends AndroidTestCase {
+
+	private static final String REMOTE = "remote";
+	private static final long BASE = 1000L;
+	
+	private File file = new File("/data/test/upload.db");
+	
+	public void testExponentialBackoffWithJitter() {
+		UploadRetryJournal journal = new UploadRetryJournal(null, 10, BASE, 60 * BASE);
+		long now = 0L;
+		for (int failures = 1; failures <= 8; failures++) {
+			journal.remoteFailed(REMOTE, now);
+			long delay = journal.fileFailed(file, REMOTE, now) - now;
+			long expected = Math.min(BASE << (failures - 1), 60 * BASE);
+			assertTrue(delay >= expected / 2 && delay <= expected);
+			assertFalse(journal.isFileDue(file, now));
+			now += delay;
+			assertTrue(journal.isFileDue(file, now));
+		}
+		journal.remoteSucceeded(REMOTE);
+		journal.fileSucceeded(file);
+		assertEquals(0, journal.getFileFailures(file));
+		assertTrue(journal.isFileDue(file, 0L));
+	}
+	
+	public void testCircuitBreaker() {
+		UploadRetryJournal journal = new UploadRetryJournal(null, 2, BASE, 60 * BASE);
+		journal.remoteFailed(REMOTE, 0L);
+		journal.fileFailed(file, REMOTE, 0L);
+		assertEquals(CircuitState.CLOSED, journal.getCircuitState(REMOTE, 0L));
+		journal.remoteFailed(REMOTE, 0L);
+		long next = journal.fileFailed(file, REMOTE, 0L);
+		assertEquals(CircuitState.OPEN, journal.getCircuitState(REMOTE, 0L));
+		assertFalse(journal.tryAcquireRemote(REMOTE, 0L));
+		
+		// One trial once the backoff has passed
+		assertEquals(CircuitState.HALF_OPEN, journal.getCircuitState(REMOTE, next));
+		assertTrue(journal.tryAcquireRemote(REMOTE, next));
+		assertFalse(journal.tryAcquireRemote(REMOTE, next));
+		journal.remoteSucceeded(REMOTE);
+		assertEquals(CircuitState.CLOSED, journal.getCircuitState(REMOTE, next));
+		assertTrue(journal.tryAcquireRemote(REMOTE, next));
+	}
+	
+	public void testFailedBatchCountsOnceAgainstRemote() {
+		UploadRetryJournal journal = new UploadRetryJournal(null, 2, BASE, 60 * BASE);
+		journal.remoteFailed(REMOTE, 0L);
+		for (int i = 0; i < 6; i++) {
+			File batchFile = new File("/data/test/upload" + i + ".db");
+			assertTrue(journal.fileFailed(batchFile, REMOTE, 0L) > 0L);
+			assertEquals(1, journal.getFileFailures(batchFile));
+		}
+		assertEquals(CircuitState.CLOSED, journal.getCircuitState(REMOTE, 0L));
+	}
+}
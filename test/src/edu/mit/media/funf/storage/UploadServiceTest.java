@@ -0,0 +1,101 @@
+/**
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland. 
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version. 
+ * 
+ * Funf is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.mit.media.funf.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.test.AndroidTestCase;
+import edu.mit.media.funf.storage.UploadService.UploadOrder;
+
+public class UploadServiceTest extends AndroidTestCase {
+
+	private File dir;
+	private File oldLarge, middleSmall, newMedium;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		dir = new File(getContext().getFilesDir(), "upload_order");
+		dir.mkdirs();
+		oldLarge = createFile("1000_wifi.db", 300, 1000000000000L);
+		middleSmall = createFile("2000_audio.db", 100, 1000000100000L);
+		newMedium = createFile("3000_wifi.db", 200, 1000000200000L);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		oldLarge.delete();
+		middleSmall.delete();
+		newMedium.delete();
+		dir.delete();
+		super.tearDown();
+	}
+	
+	private File createFile(String name, int size, long lastModified) throws IOException {
+		File file = new File(dir, name);
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(new byte[size]);
+		out.close();
+		assertTrue(file.setLastModified(lastModified));
+		return file;
+	}
+	
+	private File[] sort(UploadOrder order, Map<String, Integer> priorities) {
+		UploadService service = new UploadService();
+		service.setOrder(order);
+		service.setPriorities(priorities);
+		return service.sort(new File[] {middleSmall, newMedium, oldLarge});
+	}
+	
+	public void testArchiveOrder() {
+		assertEquals(new File[] {middleSmall, newMedium, oldLarge}, sort(UploadOrder.ARCHIVE, null));
+	}
+	
+	public void testNewestAndOldestFirst() {
+		assertEquals(new File[] {newMedium, middleSmall, oldLarge}, sort(UploadOrder.NEWEST_FIRST, null));
+		assertEquals(new File[] {oldLarge, middleSmall, newMedium}, sort(UploadOrder.OLDEST_FIRST, null));
+	}
+	
+	public void testSmallestFirst() {
+		assertEquals(new File[] {middleSmall, newMedium, oldLarge}, sort(UploadOrder.SMALLEST_FIRST, null));
+	}
+	
+	public void testPriorityThenNewest() {
+		Map<String, Integer> priorities = new HashMap<String, Integer>();
+		priorities.put("wifi", 2);
+		priorities.put("audio", 1);
+		assertEquals(new File[] {newMedium, oldLarge, middleSmall}, sort(UploadOrder.PRIORITY, priorities));
+		
+		// Files matching no category have priority 0
+		priorities.remove("wifi");
+		assertEquals(new File[] {middleSmall, newMedium, oldLarge}, sort(UploadOrder.PRIORITY, priorities));
+	}
+	
+	private static void assertEquals(File[] expected, File[] actual) {
+		assertEquals(Arrays.asList(expected), Arrays.asList(actual));
+	}
+}